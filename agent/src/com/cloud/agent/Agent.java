@@ -45,15 +45,19 @@ import com.cloud.agent.api.Command;
 import com.cloud.agent.api.CronCommand;
 import com.cloud.agent.api.MaintainAnswer;
 import com.cloud.agent.api.MaintainCommand;
+import com.cloud.agent.api.PingAnswer;
 import com.cloud.agent.api.PingCommand;
+import com.cloud.agent.api.PingRoutingCommand;
 import com.cloud.agent.api.ReadyCommand;
 import com.cloud.agent.api.ShutdownCommand;
 import com.cloud.agent.api.StartupAnswer;
 import com.cloud.agent.api.StartupCommand;
 import com.cloud.agent.transport.Request;
+import com.cloud.agent.transport.Request.Version;
 import com.cloud.agent.transport.Response;
 import com.cloud.exception.AgentControlChannelException;
 import com.cloud.resource.ServerResource;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.PropertiesUtil;
 import com.cloud.utils.backoff.BackoffAlgorithm;
 import com.cloud.utils.concurrency.NamedThreadFactory;
@@ -121,6 +125,10 @@ public class Agent implements HandlerFactory, IAgentControl {
     long _startupWaitDefault = 180000;
     long _startupWait = _startupWaitDefault;
     boolean _reconnectAllowed = true;
+    // set once the management server has shown it can parse Version.v4
+    volatile boolean _binaryCodec = false;
+    // only set when pings are to report the VM state changes instead of every VM
+    VmStateReportTracker _vmStateReportTracker = null;
     //For time sentitive task, e.g. PingTask
     private final ThreadPoolExecutor _ugentTaskPool;
     ExecutorService _executor;
@@ -165,6 +173,10 @@ public class Agent implements HandlerFactory, IAgentControl {
             throw new ConfigurationException("Unable to configure " + _resource.getName());
         }
 
+        if (Boolean.parseBoolean(String.valueOf(params.get("ping.vm.state.delta")))) {
+            _vmStateReportTracker = new VmStateReportTracker(NumbersUtil.parseInt(String.valueOf(params.get("ping.vm.state.full.interval")), 10));
+        }
+
         _connection = new NioClient("Agent", _shell.getHost(), _shell.getPort(), _shell.getWorkers(), this);
 
         // ((NioClient)_connection).setBindAddress(_shell.getPrivateIp());
@@ -442,6 +454,9 @@ public class Agent implements HandlerFactory, IAgentControl {
 
         setId(startup.getHostId());
         _pingInterval = (long)startup.getPingInterval() * 1000; // change to ms.
+        if (_vmStateReportTracker != null) {
+            _vmStateReportTracker.reset();
+        }
 
         setLastPingResponseTime();
         scheduleWatch(link, response, _pingInterval, _pingInterval);
@@ -573,6 +588,9 @@ public class Agent implements HandlerFactory, IAgentControl {
                 }
             }
         } else {
+            if (answer instanceof PingAnswer && _vmStateReportTracker != null) {
+                _vmStateReportTracker.acknowledge(response.getSequence(), (PingAnswer)answer);
+            }
             setLastPingResponseTime();
         }
     }
@@ -600,6 +618,12 @@ public class Agent implements HandlerFactory, IAgentControl {
             final PingCommand ping = _resource.getCurrentStatus(getId());
             final Request request = new Request(_id, -1, ping, false);
             request.setSequence(getNextSequence());
+            if (ping instanceof PingRoutingCommand && _vmStateReportTracker != null) {
+                _vmStateReportTracker.prepare((PingRoutingCommand)ping, request.getSequence());
+            }
+            if (_binaryCodec) {
+                request.setVersion(Version.v4);
+            }
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Sending ping: " + request.toString());
             }
@@ -693,6 +717,9 @@ public class Agent implements HandlerFactory, IAgentControl {
     }
 
     private void postRequest(final Request request) throws AgentControlChannelException {
+        if (_binaryCodec) {
+            request.setVersion(Version.v4);
+        }
         if (_link != null) {
             try {
                 _link.send(request.toBytes());
@@ -838,12 +865,16 @@ public class Agent implements HandlerFactory, IAgentControl {
         public void doTask(final Task task) throws TaskExecutionException {
             if (task.getType() == Task.Type.CONNECT) {
                 _shell.getBackoffAlgorithm().reset();
+                _binaryCodec = false;
                 setLink(task.getLink());
                 sendStartup(task.getLink());
             } else if (task.getType() == Task.Type.DATA) {
                 Request request;
                 try {
                     request = Request.parse(task.getData());
+                    if (request.supportsBinaryCodec()) {
+                        _binaryCodec = true;
+                    }
                     if (request instanceof Response) {
                         //It's for pinganswer etc, should be processed immediately.
                         processResponse((Response)request, task.getLink());
@@ -0,0 +1,100 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.agent.api.PingAnswer;
+import com.cloud.agent.api.PingRoutingCommand;
+
+/**
+ * Turns the VM state report of the pings into the changes since the last report the management
+ * server acknowledged, once it has told the agent it accepts them.
+ *
+ * A full report is sent after a reconnect, whenever a ping is not answered, when the management
+ * server does not hold the last report of the host and every fullReportInterval pings.
+ */
+public class VmStateReportTracker {
+    private final int fullReportInterval;
+
+    private Map<String, HostVmStateReportEntry> acknowledgedReport;
+    private boolean deltaAccepted;
+    private int deltaReports;
+
+    private long pendingSequence = -1;
+    private Map<String, HostVmStateReportEntry> pendingReport;
+
+    public VmStateReportTracker(int fullReportInterval) {
+        this.fullReportInterval = fullReportInterval;
+    }
+
+    /**
+     * Replaces the report of the ping with the changes since the last acknowledged one when possible.
+     */
+    public synchronized void prepare(PingRoutingCommand ping, long sequence) {
+        Map<String, HostVmStateReportEntry> report = ping.getHostVmStateReport();
+        // the management server may have applied a ping that was not answered
+        boolean unanswered = pendingSequence != -1;
+        pendingSequence = report != null ? sequence : -1;
+        pendingReport = report;
+        if (report == null || acknowledgedReport == null || !deltaAccepted || unanswered || deltaReports >= fullReportInterval) {
+            deltaReports = 0;
+            return;
+        }
+
+        Map<String, HostVmStateReportEntry> changed = new HashMap<String, HostVmStateReportEntry>();
+        for (Map.Entry<String, HostVmStateReportEntry> entry : report.entrySet()) {
+            HostVmStateReportEntry previous = acknowledgedReport.get(entry.getKey());
+            if (previous == null || previous.getState() != entry.getValue().getState()) {
+                changed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        List<String> removed = new ArrayList<String>();
+        for (String vmName : acknowledgedReport.keySet()) {
+            if (!report.containsKey(vmName)) {
+                removed.add(vmName);
+            }
+        }
+        ping.setHostVmStateReportDelta(changed, removed);
+        deltaReports++;
+    }
+
+    public synchronized void acknowledge(long sequence, PingAnswer answer) {
+        if (sequence != pendingSequence) {
+            return;
+        }
+        acknowledgedReport = pendingReport;
+        deltaAccepted = answer.isDeltaReportAccepted();
+        pendingSequence = -1;
+        pendingReport = null;
+    }
+
+    /**
+     * Forgets the last report, after a reconnect the management server starts from a full one.
+     */
+    public synchronized void reset() {
+        acknowledgedReport = null;
+        deltaAccepted = false;
+        deltaReports = 0;
+        pendingSequence = -1;
+        pendingReport = null;
+    }
+}
@@ -0,0 +1,123 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.agent.api.PingAnswer;
+import com.cloud.agent.api.PingRoutingCommand;
+import com.cloud.host.Host;
+import com.cloud.vm.VirtualMachine.PowerState;
+
+public class VmStateReportTrackerTest {
+    private long sequence = 0;
+
+    private static Map<String, HostVmStateReportEntry> report(Object... namesAndStates) {
+        Map<String, HostVmStateReportEntry> report = new HashMap<String, HostVmStateReportEntry>();
+        for (int i = 0; i < namesAndStates.length; i += 2) {
+            report.put((String)namesAndStates[i], new HostVmStateReportEntry((PowerState)namesAndStates[i + 1], "host1"));
+        }
+        return report;
+    }
+
+    private PingRoutingCommand ping(VmStateReportTracker tracker, Map<String, HostVmStateReportEntry> report, boolean answered, boolean deltaAccepted) {
+        PingRoutingCommand ping = new PingRoutingCommand(Host.Type.Routing, 1, report);
+        long seq = ++sequence;
+        tracker.prepare(ping, seq);
+        if (answered) {
+            PingAnswer answer = new PingAnswer(ping);
+            answer.setDeltaReportAccepted(deltaAccepted);
+            tracker.acknowledge(seq, answer);
+        }
+        return ping;
+    }
+
+    @Test
+    public void testDeltaOnlyOnceAccepted() {
+        VmStateReportTracker tracker = new VmStateReportTracker(10);
+        Map<String, HostVmStateReportEntry> report = report("i-2-3-VM", PowerState.PowerOn);
+
+        Assert.assertFalse(ping(tracker, report, true, false).isHostVmStateReportDelta());
+        Assert.assertFalse(ping(tracker, report, true, true).isHostVmStateReportDelta());
+
+        PingRoutingCommand ping = ping(tracker, report, true, true);
+        Assert.assertTrue(ping.isHostVmStateReportDelta());
+        Assert.assertTrue(ping.getHostVmStateReport().isEmpty());
+        Assert.assertTrue(ping.getRemovedVms().isEmpty());
+    }
+
+    @Test
+    public void testDeltaHoldsChangedAndRemovedVms() {
+        VmStateReportTracker tracker = new VmStateReportTracker(10);
+        ping(tracker, report("i-2-3-VM", PowerState.PowerOn, "i-2-4-VM", PowerState.PowerOn, "i-2-5-VM", PowerState.PowerOn), true, true);
+
+        PingRoutingCommand ping = ping(tracker, report("i-2-3-VM", PowerState.PowerOn, "i-2-4-VM", PowerState.PowerOff, "i-2-6-VM", PowerState.PowerOn), true, true);
+        Assert.assertTrue(ping.isHostVmStateReportDelta());
+        Assert.assertEquals(report("i-2-4-VM", PowerState.PowerOff, "i-2-6-VM", PowerState.PowerOn).keySet(), ping.getHostVmStateReport().keySet());
+        Assert.assertEquals(PowerState.PowerOff, ping.getHostVmStateReport().get("i-2-4-VM").getState());
+        Assert.assertEquals(Arrays.asList("i-2-5-VM"), ping.getRemovedVms());
+    }
+
+    @Test
+    public void testFullReportAfterUnansweredPing() {
+        VmStateReportTracker tracker = new VmStateReportTracker(10);
+        ping(tracker, report("i-2-3-VM", PowerState.PowerOn), true, true);
+
+        // the management server may have seen the change of the lost ping
+        Assert.assertTrue(ping(tracker, report("i-2-3-VM", PowerState.PowerOff), false, true).isHostVmStateReportDelta());
+        PingRoutingCommand ping = ping(tracker, report("i-2-3-VM", PowerState.PowerOff), true, true);
+        Assert.assertFalse(ping.isHostVmStateReportDelta());
+        Assert.assertEquals(1, ping.getHostVmStateReport().size());
+
+        ping = ping(tracker, report("i-2-3-VM", PowerState.PowerOff), true, true);
+        Assert.assertTrue(ping.isHostVmStateReportDelta());
+        Assert.assertTrue(ping.getHostVmStateReport().isEmpty());
+    }
+
+    @Test
+    public void testFullReportEveryInterval() {
+        VmStateReportTracker tracker = new VmStateReportTracker(3);
+        Map<String, HostVmStateReportEntry> report = report("i-2-3-VM", PowerState.PowerOn);
+        ping(tracker, report, true, true);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(ping(tracker, report, true, true).isHostVmStateReportDelta());
+        }
+        Assert.assertFalse(ping(tracker, report, true, true).isHostVmStateReportDelta());
+        Assert.assertTrue(ping(tracker, report, true, true).isHostVmStateReportDelta());
+    }
+
+    @Test
+    public void testFullReportAfterReset() {
+        VmStateReportTracker tracker = new VmStateReportTracker(10);
+        Map<String, HostVmStateReportEntry> report = report("i-2-3-VM", PowerState.PowerOn);
+        ping(tracker, report, true, true);
+        Assert.assertTrue(ping(tracker, report, true, true).isHostVmStateReportDelta());
+
+        tracker.reset();
+        Assert.assertFalse(ping(tracker, report, true, true).isHostVmStateReportDelta());
+        PingRoutingCommand ping = ping(tracker, Collections.<String, HostVmStateReportEntry> emptyMap(), true, true);
+        Assert.assertTrue(ping.isHostVmStateReportDelta());
+        Assert.assertEquals(Arrays.asList("i-2-3-VM"), ping.getRemovedVms());
+    }
+}
@@ -18,6 +18,8 @@ package org.apache.cloudstack.api;
 
 import com.cloud.exception.CloudAuthenticationException;
 import javax.servlet.http.HttpSession;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Map;
 import java.net.InetAddress;
 
@@ -39,5 +41,18 @@ public interface ApiServerService {
 
     public String handleRequest(Map params, String responseType, StringBuilder auditTrailSb) throws ServerApiException;
 
+    /**
+     * Same as handleRequest, except that a list response is written to the stream while it is
+     * serialized, in which case null is returned.
+     */
+    public String handleRequest(Map params, String responseType, StringBuilder auditTrailSb, ResponseStream stream) throws ServerApiException;
+
     public Class<?> getCmdClass(String cmdName);
+
+    /**
+     * Where a response is streamed to, opened once the command has succeeded.
+     */
+    public interface ResponseStream {
+        Writer open() throws IOException;
+    }
 }
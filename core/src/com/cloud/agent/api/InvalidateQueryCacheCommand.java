@@ -0,0 +1,60 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.api;
+
+import java.util.Map;
+
+/*
+ * Broadcast to the MS peers after tables with a query cache were written, so
+ * that they drop their cached searches on these tables.  The versions are
+ * those of the sender, they let the peers ignore an invalidation received out
+ * of order.
+ */
+public class InvalidateQueryCacheCommand extends Command {
+    long msid;
+    long runId;
+    Map<String, Long> versions;
+
+    protected InvalidateQueryCacheCommand() {
+    }
+
+    public InvalidateQueryCacheCommand(long msid, long runId, Map<String, Long> versions) {
+        this.msid = msid;
+        this.runId = runId;
+        this.versions = versions;
+    }
+
+    public long getMsid() {
+        return msid;
+    }
+
+    public long getRunId() {
+        return runId;
+    }
+
+    public Map<String, Long> getVersions() {
+        return versions;
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return false;
+    }
+}
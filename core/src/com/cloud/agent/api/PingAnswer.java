@@ -22,6 +22,9 @@ package com.cloud.agent.api;
 public class PingAnswer extends Answer {
     private PingCommand _command = null;
 
+    // the management server holds the last VM state report of the host, the next one can be a delta
+    private boolean _deltaReportAccepted = false;
+
     protected PingAnswer() {
     }
 
@@ -33,4 +36,12 @@ public class PingAnswer extends Answer {
     public PingCommand getCommand() {
         return _command;
     }
+
+    public boolean isDeltaReportAccepted() {
+        return _deltaReportAccepted;
+    }
+
+    public void setDeltaReportAccepted(boolean deltaReportAccepted) {
+        _deltaReportAccepted = deltaReportAccepted;
+    }
 }
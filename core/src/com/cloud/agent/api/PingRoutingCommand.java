@@ -19,6 +19,7 @@
 
 package com.cloud.agent.api;
 
+import java.util.List;
 import java.util.Map;
 
 import com.cloud.host.Host;
@@ -27,6 +28,10 @@ public class PingRoutingCommand extends PingCommand {
 
     Map<String, HostVmStateReportEntry> _hostVmStateReport;
 
+    // when set, the report only holds the VMs that changed since the last acknowledged ping
+    boolean _hostVmStateReportDelta = false;
+    List<String> _removedVms;
+
     boolean _gatewayAccessible = true;
     boolean _vnetAccessible = true;
 
@@ -42,6 +47,28 @@ public class PingRoutingCommand extends PingCommand {
         return this._hostVmStateReport;
     }
 
+    public void setHostVmStateReport(Map<String, HostVmStateReportEntry> hostVmStateReport) {
+        this._hostVmStateReport = hostVmStateReport;
+    }
+
+    public boolean isHostVmStateReportDelta() {
+        return _hostVmStateReportDelta;
+    }
+
+    /**
+     * Turns the report into the changes since the last acknowledged ping: the VMs whose state
+     * changed or that appeared, and the names of the VMs that are no longer on the host.
+     */
+    public void setHostVmStateReportDelta(Map<String, HostVmStateReportEntry> changedVms, List<String> removedVms) {
+        this._hostVmStateReport = changedVms;
+        this._removedVms = removedVms;
+        this._hostVmStateReportDelta = true;
+    }
+
+    public List<String> getRemovedVms() {
+        return _removedVms;
+    }
+
     public boolean isGatewayAccessible() {
         return _gatewayAccessible;
     }
@@ -21,7 +21,7 @@ package com.cloud.agent.api;
 
 public class SecurityGroupRuleAnswer extends Answer {
     public static enum FailureReason {
-        NONE, UNKNOWN, PROGRAMMING_FAILED, CANNOT_BRIDGE_FIREWALL
+        NONE, UNKNOWN, PROGRAMMING_FAILED, CANNOT_BRIDGE_FIREWALL, OUT_OF_SYNC
     }
 
     Long logSequenceNumber = null;
@@ -0,0 +1,95 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.api;
+
+import java.util.List;
+
+/**
+ * Changes the ruleset of a vm from the one programmed with the base sequence
+ * number.  The rule sets of the base class hold the rules to add, the signature
+ * is the one of the complete ruleset after the change.  The host answers
+ * OUT_OF_SYNC if the ruleset programmed is not the base one.
+ */
+public class SecurityGroupRulesDeltaCmd extends SecurityGroupRulesCmd {
+    Long baseSeqNum;
+    IpPortAndProto[] ingressRulesToRemove;
+    IpPortAndProto[] egressRulesToRemove;
+
+    public SecurityGroupRulesDeltaCmd() {
+        super();
+    }
+
+    public SecurityGroupRulesDeltaCmd(String guestIp, String guestMac, String vmName, Long vmId, String signature, Long baseSeqNum, Long seqNum,
+            IpPortAndProto[] ingressRulesToAdd, IpPortAndProto[] egressRulesToAdd, IpPortAndProto[] ingressRulesToRemove, IpPortAndProto[] egressRulesToRemove,
+            List<String> secIps) {
+        super(guestIp, guestMac, vmName, vmId, signature, seqNum, ingressRulesToAdd, egressRulesToAdd, secIps);
+        this.baseSeqNum = baseSeqNum;
+        this.ingressRulesToRemove = ingressRulesToRemove;
+        this.egressRulesToRemove = egressRulesToRemove;
+    }
+
+    public Long getBaseSeqNum() {
+        return baseSeqNum;
+    }
+
+    public IpPortAndProto[] getIngressRulesToRemove() {
+        return ingressRulesToRemove;
+    }
+
+    public IpPortAndProto[] getEgressRulesToRemove() {
+        return egressRulesToRemove;
+    }
+
+    /**
+     * Same format as stringifyRules(), for the rules to remove.
+     */
+    public String stringifyRemovedRules() {
+        StringBuilder ruleBuilder = new StringBuilder();
+        for (IpPortAndProto ipPandP : getIngressRulesToRemove()) {
+            ruleBuilder.append("I:").append(ipPandP.getProto()).append(":").append(ipPandP.getStartPort()).append(":").append(ipPandP.getEndPort()).append(":");
+            for (String cidr : ipPandP.getAllowedCidrs()) {
+                ruleBuilder.append(cidr).append(",");
+            }
+            ruleBuilder.append("NEXT");
+            ruleBuilder.append(" ");
+        }
+        for (IpPortAndProto ipPandP : getEgressRulesToRemove()) {
+            ruleBuilder.append("E:").append(ipPandP.getProto()).append(":").append(ipPandP.getStartPort()).append(":").append(ipPandP.getEndPort()).append(":");
+            for (String cidr : ipPandP.getAllowedCidrs()) {
+                ruleBuilder.append(cidr).append(",");
+            }
+            ruleBuilder.append("NEXT");
+            ruleBuilder.append(" ");
+        }
+        return ruleBuilder.toString();
+    }
+
+    @Override
+    public int getTotalNumCidrs() {
+        int count = super.getTotalNumCidrs();
+        for (IpPortAndProto i : ingressRulesToRemove) {
+            count += i.getAllowedCidrs().length;
+        }
+        for (IpPortAndProto i : egressRulesToRemove) {
+            count += i.getAllowedCidrs().length;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,312 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.resource.virtualnetwork;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.log4j.Logger;
+
+import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.Session;
+
+import com.cloud.utils.ExecutionResult;
+
+/**
+ * VirtualRouterChannel keeps one SSH connection open to the control
+ * address of a virtual router.  Every call opens a session on the shared
+ * connection, so concurrent calls are multiplexed on it and only the first
+ * one pays the handshake.
+ *
+ * The config items of a call are pipelined: they are sent as one shell
+ * script and run in order by the router, each followed by a marker line
+ * carrying its exit code, from which the result of every item is read.
+ */
+public class VirtualRouterChannel {
+    private static final Logger s_logger = Logger.getLogger(VirtualRouterChannel.class);
+
+    private static final String SCRIPT_DIR = "/opt/cloud/bin/";
+    private static final int BASE64_LINE_LENGTH = 76;
+    private static final String PID_SUFFIX = "-PID";
+
+    private final String _routerIp;
+    private final int _port;
+    private final File _keyFile;
+    private final int _connectTimeout;
+
+    private Connection _conn;
+    private volatile long _lastUsed = System.currentTimeMillis();
+    private final AtomicInteger _running = new AtomicInteger();
+
+    /**
+     * @param connectTimeout milliseconds to connect and exchange the keys.
+     */
+    public VirtualRouterChannel(final String routerIp, final int port, final File keyFile, final int connectTimeout) {
+        _routerIp = routerIp;
+        _port = port;
+        _keyFile = keyFile;
+        _connectTimeout = connectTimeout;
+    }
+
+    public String getRouterIp() {
+        return _routerIp;
+    }
+
+    public long getLastUsed() {
+        return _lastUsed;
+    }
+
+    public boolean isBusy() {
+        return _running.get() > 0;
+    }
+
+    public synchronized boolean isConnected() {
+        return _conn != null;
+    }
+
+    protected synchronized Connection getConnection() throws IOException {
+        if (_conn == null) {
+            final Connection conn = new Connection(_routerIp, _port);
+            try {
+                conn.connect(null, _connectTimeout, _connectTimeout);
+                if (!conn.authenticateWithPublicKey("root", _keyFile, null)) {
+                    throw new IOException("Failed to authenticate to VR " + _routerIp + " with " + _keyFile);
+                }
+            } catch (final IOException e) {
+                conn.close();
+                throw e;
+            }
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Opened control channel to VR " + _routerIp);
+            }
+            _conn = conn;
+        }
+        return _conn;
+    }
+
+    public synchronized void close() {
+        if (_conn != null) {
+            _conn.close();
+            _conn = null;
+        }
+    }
+
+    /**
+     * Applies the config items in order, the failure of an item does not
+     * stop the next ones.
+     *
+     * If the channel times out or breaks once the items were handed to the
+     * router, the shell running them is killed, so that none of them runs
+     * after the call returns, and the items not reported are failed.
+     *
+     * @param timeout seconds an item may run.
+     * @return the result of every item, null if the channel broke before the
+     * items were handed to the router, so that none of them ran.
+     */
+    public List<ExecutionResult> execute(final List<ConfigItem> items, final int timeout) {
+        _running.incrementAndGet();
+        _lastUsed = System.currentTimeMillis();
+        final String marker = "#VRCHANNEL-" + UUID.randomUUID().toString();
+        final String script = buildScript(items, marker);
+        final StringBuilder output = new StringBuilder();
+
+        Session session = null;
+        boolean started = false;
+        try {
+            session = getConnection().openSession();
+            session.execCommand("/bin/bash -s");
+            final OutputStream stdin = session.getStdin();
+            // from here on, part of the items may run whatever happens to the channel
+            started = true;
+            stdin.write(script.getBytes());
+            stdin.close();
+
+            final InputStream stdout = session.getStdout();
+            final InputStream stderr = session.getStderr();
+            final byte[] buffer = new byte[8192];
+            while (true) {
+                if (stdout.available() == 0 && stderr.available() == 0) {
+                    // every item prints its marker when done, so a silence longer than the timeout of an item is a timeout
+                    final int conditions = session.waitForCondition(ChannelCondition.STDOUT_DATA | ChannelCondition.STDERR_DATA | ChannelCondition.EOF
+                            | ChannelCondition.CLOSED, timeout * 1000L);
+                    if ((conditions & ChannelCondition.TIMEOUT) != 0) {
+                        session.close();
+                        session = null;
+                        kill(parsePid(output.toString(), marker));
+                        final List<ExecutionResult> results = parseOutput(output.toString(), marker);
+                        if (results.size() < items.size()) {
+                            failUnreported(results, items, "Timed out after " + timeout + "s applying " + items.get(results.size()) + " in VR " + _routerIp);
+                        }
+                        return results;
+                    }
+                    if ((conditions & (ChannelCondition.STDOUT_DATA | ChannelCondition.STDERR_DATA)) == 0
+                            && (conditions & (ChannelCondition.EOF | ChannelCondition.CLOSED)) != 0) {
+                        break;
+                    }
+                }
+                while (stdout.available() > 0) {
+                    final int read = stdout.read(buffer);
+                    output.append(new String(buffer, 0, read));
+                }
+                // the scripts redirect their stderr, this is what the shell itself complains about
+                while (stderr.available() > 0) {
+                    final int read = stderr.read(buffer);
+                    s_logger.warn("Control channel to VR " + _routerIp + ": " + new String(buffer, 0, read));
+                }
+            }
+        } catch (final IOException e) {
+            s_logger.warn("Control channel to VR " + _routerIp + " broke: " + e.getMessage());
+            if (session != null) {
+                session.close();
+                session = null;
+            }
+            close();
+            if (!started) {
+                return null;
+            }
+            // the shell may still be running on the router, it is reached through a new connection
+            kill(parsePid(output.toString(), marker));
+            return failUnreported(parseOutput(output.toString(), marker), items, "Control channel to VR " + _routerIp + " broke: " + e.getMessage());
+        } finally {
+            if (session != null) {
+                session.close();
+            }
+            _lastUsed = System.currentTimeMillis();
+            _running.decrementAndGet();
+        }
+        return failUnreported(parseOutput(output.toString(), marker), items, "Control channel to VR " + _routerIp + " closed before the item was applied");
+    }
+
+    /**
+     * Kills the shell running the items of a call and the commands it
+     * started, on the current connection or a new one.
+     */
+    protected void kill(final String pid) {
+        if (pid == null) {
+            s_logger.warn("Unable to stop the config items left running in VR " + _routerIp + ", the shell did not report its pid");
+            return;
+        }
+        Session session = null;
+        try {
+            session = getConnection().openSession();
+            // the shell leads the process group of the session, the commands it runs are in it
+            session.execCommand("kill -TERM -- -" + pid + " 2>/dev/null || { pkill -TERM -P " + pid + "; kill -TERM " + pid + "; }");
+            session.waitForCondition(ChannelCondition.EXIT_STATUS | ChannelCondition.EOF | ChannelCondition.CLOSED, _connectTimeout);
+        } catch (final IOException e) {
+            s_logger.warn("Unable to stop the config items left running in VR " + _routerIp + " due to " + e.getMessage());
+            close();
+        } finally {
+            if (session != null) {
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * @return the results, completed with a failure for every item not reported.
+     */
+    protected static List<ExecutionResult> failUnreported(final List<ExecutionResult> results, final List<ConfigItem> items, final String reason) {
+        final int reported = results.size();
+        for (int i = reported; i < items.size(); i++) {
+            results.add(new ExecutionResult(false, i == reported ? reason : "Not applied: " + reason));
+        }
+        return results;
+    }
+
+    protected static String buildScript(final List<ConfigItem> items, final String marker) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("echo \"").append(marker).append(PID_SUFFIX).append(" $$\"\n");
+        for (final ConfigItem item : items) {
+            if (item instanceof FileConfigItem) {
+                final FileConfigItem file = (FileConfigItem)item;
+                String path = file.getFilePath();
+                if (!path.endsWith("/")) {
+                    path += "/";
+                }
+                sb.append("base64 -d 2>&1 > '").append(path).append(file.getFileName()).append("' <<'").append(marker).append("'\n");
+                final String content = new String(Base64.encodeBase64(file.getFileContents().getBytes()));
+                for (int i = 0; i < content.length(); i += BASE64_LINE_LENGTH) {
+                    sb.append(content, i, Math.min(content.length(), i + BASE64_LINE_LENGTH)).append('\n');
+                }
+                sb.append(marker).append('\n');
+            } else if (item instanceof ScriptConfigItem) {
+                final ScriptConfigItem script = (ScriptConfigItem)item;
+                sb.append(SCRIPT_DIR).append(script.getScript());
+                if (script.getArgs() != null) {
+                    sb.append(' ').append(script.getArgs());
+                }
+                sb.append(" < /dev/null 2>&1\n");
+            } else {
+                throw new IllegalArgumentException("Unable to apply unknown configitem of type " + item.getClass().getSimpleName());
+            }
+            sb.append("echo \"").append(marker).append(" $?\"\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the result of every item whose marker was received.
+     */
+    protected static List<ExecutionResult> parseOutput(final String output, final String marker) {
+        final List<ExecutionResult> results = new ArrayList<ExecutionResult>();
+        final StringBuilder details = new StringBuilder();
+        for (final String line : output.split("\n", -1)) {
+            final int index = line.indexOf(marker);
+            if (index < 0) {
+                if (!line.isEmpty()) {
+                    details.append(line).append('\n');
+                }
+                continue;
+            }
+            if (line.startsWith(PID_SUFFIX, index + marker.length())) {
+                continue;
+            }
+            if (index > 0) {
+                details.append(line, 0, index).append('\n');
+            }
+            final String exitCode = line.substring(index + marker.length()).trim();
+            results.add(new ExecutionResult("0".equals(exitCode), details.toString()));
+            details.setLength(0);
+        }
+        return results;
+    }
+
+    /**
+     * @return the pid of the shell running the items, null if not received.
+     */
+    protected static String parsePid(final String output, final String marker) {
+        final String prefix = marker + PID_SUFFIX + " ";
+        for (final String line : output.split("\n")) {
+            if (line.startsWith(prefix)) {
+                final String pid = line.substring(prefix.length()).trim();
+                return pid.matches("\\d+") ? pid : null;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,134 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.resource.virtualnetwork;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.ExecutionResult;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * VirtualRouterChannelPool holds the control channels to the virtual
+ * routers a hypervisor resource manages, keyed by the control address of
+ * the router.  Channels idle for longer than the idle timeout are closed,
+ * which also gets rid of the channels to routers that went away.
+ */
+public class VirtualRouterChannelPool {
+    private static final Logger s_logger = Logger.getLogger(VirtualRouterChannelPool.class);
+
+    private final ConcurrentHashMap<String, VirtualRouterChannel> _channels = new ConcurrentHashMap<String, VirtualRouterChannel>();
+    private final File _keyFile;
+    private final int _port;
+    private final int _connectTimeout;
+    private final long _idleTimeout;
+    private final ScheduledExecutorService _reaper;
+
+    /**
+     * @param connectTimeout milliseconds to connect to a router.
+     * @param idleTimeout seconds a channel is kept open while unused.
+     */
+    public VirtualRouterChannelPool(final File keyFile, final int port, final int connectTimeout, final int idleTimeout) {
+        _keyFile = keyFile;
+        _port = port;
+        _connectTimeout = connectTimeout;
+        _idleTimeout = idleTimeout * 1000L;
+        _reaper = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("VRChannelReaper"));
+        final long period = Math.max(1, idleTimeout / 2);
+        _reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                closeIdleChannels();
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Applies the config items through the channel to the router, on a new
+     * connection if the current one turns out to be broken before the items
+     * were handed to the router.
+     *
+     * @return the result of every item, null if none of them was handed to
+     * the router, so that they may be applied another way.
+     */
+    public List<ExecutionResult> execute(final String routerIp, final List<ConfigItem> items, final int timeout) {
+        VirtualRouterChannel channel = getChannel(routerIp);
+        final boolean connected = channel.isConnected();
+        List<ExecutionResult> results = channel.execute(items, timeout);
+        if (results == null && connected) {
+            // the connection was opened for a router that may have restarted since
+            channel = getChannel(routerIp);
+            results = channel.execute(items, timeout);
+        }
+        return results;
+    }
+
+    protected VirtualRouterChannel getChannel(final String routerIp) {
+        VirtualRouterChannel channel = _channels.get(routerIp);
+        if (channel == null) {
+            channel = new VirtualRouterChannel(routerIp, _port, _keyFile, _connectTimeout);
+            final VirtualRouterChannel existing = _channels.putIfAbsent(routerIp, channel);
+            if (existing != null) {
+                channel = existing;
+            }
+        }
+        return channel;
+    }
+
+    public void closeChannel(final String routerIp) {
+        final VirtualRouterChannel channel = _channels.remove(routerIp);
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    protected void closeIdleChannels() {
+        final long now = System.currentTimeMillis();
+        final Iterator<VirtualRouterChannel> it = _channels.values().iterator();
+        while (it.hasNext()) {
+            final VirtualRouterChannel channel = it.next();
+            if (!channel.isBusy() && now - channel.getLastUsed() > _idleTimeout) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Closing idle control channel to VR " + channel.getRouterIp());
+                }
+                it.remove();
+                channel.close();
+            }
+        }
+    }
+
+    public int getChannelCount() {
+        return _channels.size();
+    }
+
+    public void shutdown() {
+        _reaper.shutdownNow();
+        for (final String routerIp : _channels.keySet()) {
+            closeChannel(routerIp);
+        }
+    }
+}
@@ -29,6 +29,7 @@ import java.util.Map;
 import java.util.Queue;
 import java.util.UUID;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -66,6 +67,7 @@ public class VirtualRoutingResource {
 
     private static final Logger s_logger = Logger.getLogger(VirtualRoutingResource.class);
     private VirtualRouterDeployer _vrDeployer;
+    private VirtualRouterChannelPool _vrChannelPool;
     private Map<String, Queue<NetworkElementCommand>> _vrAggregateCommandsSet;
     protected Map<String, Lock> _vrLockMap = new HashMap<String, Lock>();
 
@@ -77,10 +79,24 @@ public class VirtualRoutingResource {
 
     private String _cfgVersion = "1.0";
 
+    // config items applied and the time spent on them, through the channels and through the deployer
+    private final AtomicLong _channelItems = new AtomicLong();
+    private final AtomicLong _channelMillis = new AtomicLong();
+    private final AtomicLong _deployerItems = new AtomicLong();
+    private final AtomicLong _deployerMillis = new AtomicLong();
+
     public VirtualRoutingResource(VirtualRouterDeployer deployer) {
         _vrDeployer = deployer;
     }
 
+    /**
+     * Applies the config items through persistent channels to the routers
+     * instead of the deployer, the deployer remains the fallback.
+     */
+    public void setChannelPool(VirtualRouterChannelPool pool) {
+        _vrChannelPool = pool;
+    }
+
     public Answer executeRequest(final NetworkElementCommand cmd) {
         boolean aggregated = false;
         String routerName = cmd.getAccessDetail(NetworkElementCommand.ROUTER_NAME);
@@ -157,6 +173,34 @@ public class VirtualRoutingResource {
     }
 
     private ExecutionResult applyConfigToVR(String routerAccessIp, ConfigItem c, int timeout) {
+        List<ConfigItem> cfg = new ArrayList<ConfigItem>(1);
+        cfg.add(c);
+        return applyConfigToVR(routerAccessIp, cfg, timeout).get(0);
+    }
+
+    protected List<ExecutionResult> applyConfigToVR(String routerAccessIp, List<ConfigItem> cfg, int timeout) {
+        if (_vrChannelPool != null) {
+            long startTimestamp = System.currentTimeMillis();
+            List<ExecutionResult> results = _vrChannelPool.execute(routerAccessIp, cfg, timeout);
+            if (results != null) {
+                // the items the channel failed to apply may have run already, they are not applied again
+                record(_channelItems, _channelMillis, results.size(), System.currentTimeMillis() - startTimestamp);
+                return results;
+            }
+            s_logger.warn("Unable to apply " + cfg.size() + " config items through the control channel to VR " + routerAccessIp
+                    + ", falling back to the hypervisor resource");
+        }
+
+        List<ExecutionResult> results = new ArrayList<ExecutionResult>(cfg.size());
+        for (ConfigItem c : cfg) {
+            long startTimestamp = System.currentTimeMillis();
+            results.add(applyConfigItemToVR(routerAccessIp, c, timeout));
+            record(_deployerItems, _deployerMillis, 1, System.currentTimeMillis() - startTimestamp);
+        }
+        return results;
+    }
+
+    private ExecutionResult applyConfigItemToVR(String routerAccessIp, ConfigItem c, int timeout) {
         if (c instanceof FileConfigItem) {
             FileConfigItem configItem = (FileConfigItem)c;
             return _vrDeployer.createFileInVR(routerAccessIp, configItem.getFilePath(), configItem.getFileName(), configItem.getFileContents());
@@ -167,6 +211,30 @@ public class VirtualRoutingResource {
         throw new CloudRuntimeException("Unable to apply unknown configitem of type " + c.getClass().getSimpleName());
     }
 
+    private static void record(AtomicLong items, AtomicLong millis, int count, long elapsed) {
+        items.addAndGet(count);
+        millis.addAndGet(elapsed);
+    }
+
+    private static double getItemsPerSecond(AtomicLong items, AtomicLong millis) {
+        long elapsed = millis.get();
+        return elapsed == 0 ? 0 : items.get() * 1000.0 / elapsed;
+    }
+
+    /**
+     * @return config items applied per second through the control channels.
+     */
+    public double getChannelItemsPerSecond() {
+        return getItemsPerSecond(_channelItems, _channelMillis);
+    }
+
+    /**
+     * @return config items applied per second through the deployer, e.g. router_proxy.sh.
+     */
+    public double getDeployerItemsPerSecond() {
+        return getItemsPerSecond(_deployerItems, _deployerMillis);
+    }
+
 
     private Answer applyConfig(NetworkElementCommand cmd, List<ConfigItem> cfg) {
 
@@ -175,21 +243,24 @@ public class VirtualRoutingResource {
             return new Answer(cmd, true, "Nothing to do");
         }
 
-        List<ExecutionResult> results = new ArrayList<ExecutionResult>();
+        long startTimestamp = System.currentTimeMillis();
+        List<ExecutionResult> results = applyConfigToVR(cmd.getRouterAccessIp(), cfg, VRScripts.DEFAULT_EXECUTEINVR_TIMEOUT);
+        if (s_logger.isDebugEnabled()) {
+            long elapsed = System.currentTimeMillis() - startTimestamp;
+            s_logger.debug("Applying " + cfg.size() + " config items of " + cmd.getClass().getSimpleName() + " took " + elapsed + "ms, "
+                    + String.format("%.1f items/s through the control channels, %.1f items/s through the hypervisor resource", getChannelItemsPerSecond(),
+                            getDeployerItemsPerSecond()));
+        }
+
         List<String> details = new ArrayList<String>();
         boolean finalResult = false;
-        for (ConfigItem configItem : cfg) {
-            long startTimestamp = System.currentTimeMillis();
-            ExecutionResult result = applyConfigToVR(cmd.getRouterAccessIp(), configItem);
-            if (s_logger.isDebugEnabled()) {
-                long elapsed = System.currentTimeMillis() - startTimestamp;
-                s_logger.debug("Processing " + configItem + " took " + elapsed + "ms");
-            }
+        for (int i = 0; i < cfg.size(); i++) {
+            ExecutionResult result = results.get(i);
             if (result == null) {
                 result = new ExecutionResult(false, "null execution result");
+                results.set(i, result);
             }
-            results.add(result);
-            details.add(configItem.getInfo() + (result.isSuccess() ? " - success: " : " - failed: ") + result.getDetails());
+            details.add(cfg.get(i).getInfo() + (result.isSuccess() ? " - success: " : " - failed: ") + result.getDetails());
             finalResult = result.isSuccess();
         }
 
@@ -0,0 +1,595 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.google.gson.Gson;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.GetHostStatsAnswer;
+import com.cloud.agent.api.GetHostStatsCommand;
+import com.cloud.agent.api.GetVmStatsAnswer;
+import com.cloud.agent.api.GetVmStatsCommand;
+import com.cloud.agent.api.NetworkUsageAnswer;
+import com.cloud.agent.api.NetworkUsageCommand;
+import com.cloud.agent.api.PingAnswer;
+import com.cloud.agent.api.PingCommand;
+import com.cloud.agent.api.PingRoutingCommand;
+import com.cloud.serializer.GsonHelper;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * BinaryCommandCodec marshalls the data package of a Version.v4 request.
+ *
+ * Commands of a registered class are written field by field, the same fields
+ * Gson would write, as tagged values.  Class descriptors (name and field
+ * names) and strings are written once per package and referred to by index
+ * afterwards, so the VM entries of a ping cost little more than their values.
+ * Receivers match the fields by name, which keeps the format tolerant to
+ * fields being added or removed.  Commands of any other class, or commands
+ * holding a value the codec does not handle, are embedded as Gson JSON.
+ *
+ * The data package looks as follows:
+ * 1. Number of commands - varint;
+ * 2. For each command, format - 1 byte, followed by either
+ *    a. JSON: length - varint, UTF-8 JSON of a one element Command[];
+ *    b. BINARY: the command as an object value.
+ */
+public class BinaryCommandCodec {
+    private static final Logger s_logger = Logger.getLogger(BinaryCommandCodec.class);
+
+    protected static final Gson s_gson = GsonHelper.getGson();
+    protected static final Charset UTF8 = Charset.forName("UTF-8");
+
+    protected static final byte FORMAT_JSON = 0;
+    protected static final byte FORMAT_BINARY = 1;
+
+    protected static final byte TAG_NULL = 0;
+    protected static final byte TAG_TRUE = 1;
+    protected static final byte TAG_FALSE = 2;
+    protected static final byte TAG_BYTE = 3;
+    protected static final byte TAG_SHORT = 4;
+    protected static final byte TAG_INT = 5;
+    protected static final byte TAG_LONG = 6;
+    protected static final byte TAG_FLOAT = 7;
+    protected static final byte TAG_DOUBLE = 8;
+    protected static final byte TAG_CHAR = 9;
+    protected static final byte TAG_STRING = 10;
+    protected static final byte TAG_ENUM = 11;
+    protected static final byte TAG_LIST = 12;
+    protected static final byte TAG_SET = 13;
+    protected static final byte TAG_MAP = 14;
+    protected static final byte TAG_ARRAY = 15;
+    protected static final byte TAG_BYTES = 16;
+    protected static final byte TAG_OBJECT = 17;
+    protected static final byte TAG_DATE = 18;
+
+    /* Guards against cycles in the object graph */
+    protected static final int MAX_DEPTH = 32;
+
+    private static final Set<Class<?>> s_binaryClasses = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
+    private static final Map<Class<?>, ClassSchema> s_schemas = new ConcurrentHashMap<Class<?>, ClassSchema>();
+    private static final Map<String, Class<?>> s_primitives = new HashMap<String, Class<?>>();
+
+    static {
+        for (final Class<?> clazz : new Class<?>[] {boolean.class, byte.class, short.class, int.class, long.class, float.class, double.class, char.class}) {
+            s_primitives.put(clazz.getName(), clazz);
+        }
+        register(PingCommand.class);
+        register(PingRoutingCommand.class);
+        register(PingAnswer.class);
+        register(GetVmStatsCommand.class);
+        register(GetVmStatsAnswer.class);
+        register(GetHostStatsCommand.class);
+        register(GetHostStatsAnswer.class);
+        register(NetworkUsageCommand.class);
+        register(NetworkUsageAnswer.class);
+        register(Answer.class);
+    }
+
+    /**
+     * Lets commands of this exact class be written in the binary format.
+     */
+    public static void register(final Class<? extends Command> clazz) {
+        s_binaryClasses.add(clazz);
+    }
+
+    public static boolean isRegistered(final Class<?> clazz) {
+        return s_binaryClasses.contains(clazz);
+    }
+
+    public static byte[] encode(final Command[] cmds) {
+        final Set<Integer> jsonOnly = new HashSet<Integer>();
+        while (true) {
+            final Encoder encoder = new Encoder();
+            int failed = -1;
+            try {
+                encoder.writeVarInt(cmds.length);
+                for (int i = 0; i < cmds.length; i++) {
+                    if (!jsonOnly.contains(i) && isRegistered(cmds[i].getClass())) {
+                        try {
+                            encoder._out.writeByte(FORMAT_BINARY);
+                            encoder.writeValue(cmds[i], 0);
+                            continue;
+                        } catch (final UnsupportedValueException e) {
+                            if (s_logger.isDebugEnabled()) {
+                                s_logger.debug("Falling back to json for " + cmds[i].getClass().getSimpleName() + ": " + e.getMessage());
+                            }
+                            failed = i;
+                            break;
+                        }
+                    }
+                    encoder._out.writeByte(FORMAT_JSON);
+                    encoder.writeBytes(s_gson.toJson(new Command[] {cmds[i]}, Command[].class).getBytes(UTF8));
+                }
+            } catch (final IOException e) {
+                throw new CloudRuntimeException("Unable to encode the commands", e);
+            }
+            if (failed < 0) {
+                return encoder.toByteArray();
+            }
+            jsonOnly.add(failed);
+        }
+    }
+
+    public static Command[] decode(final ByteBuffer buffer) throws ClassNotFoundException {
+        final Decoder decoder = new Decoder(buffer);
+        try {
+            final int count = decoder.readVarInt();
+            final Command[] cmds = new Command[count];
+            for (int i = 0; i < count; i++) {
+                final byte format = buffer.get();
+                if (format == FORMAT_BINARY) {
+                    cmds[i] = (Command)decoder.readValue();
+                } else if (format == FORMAT_JSON) {
+                    cmds[i] = s_gson.fromJson(new String(decoder.readBytes(), UTF8), Command[].class)[0];
+                } else {
+                    throw new CloudRuntimeException("Unknown command format " + format);
+                }
+            }
+            return cmds;
+        } catch (final BufferUnderflowException e) {
+            throw new CloudRuntimeException("Truncated command package", e);
+        }
+    }
+
+    protected static ClassSchema getSchema(final Class<?> clazz) {
+        ClassSchema schema = s_schemas.get(clazz);
+        if (schema == null) {
+            schema = new ClassSchema(clazz);
+            s_schemas.put(clazz, schema);
+        }
+        return schema;
+    }
+
+    /**
+     * The fields Gson marshalls for a class, and the constructor Gson uses to
+     * create it.
+     */
+    protected static class ClassSchema {
+        final Class<?> _clazz;
+        final Constructor<?> _constructor;
+        final Field[] _fields;
+        final Map<String, Field> _fieldsByName = new HashMap<String, Field>();
+
+        ClassSchema(final Class<?> clazz) {
+            _clazz = clazz;
+            Constructor<?> constructor = null;
+            try {
+                constructor = clazz.getDeclaredConstructor();
+            } catch (final NoSuchMethodException e) {
+                s_logger.trace(clazz.getName() + " has no default constructor");
+            }
+            _constructor = constructor;
+
+            final List<Field> fields = new ArrayList<Field>();
+            for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (final Field field : c.getDeclaredFields()) {
+                    final int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic() || _fieldsByName.containsKey(field.getName())) {
+                        continue;
+                    }
+                    fields.add(field);
+                    _fieldsByName.put(field.getName(), field);
+                }
+            }
+            _fields = fields.toArray(new Field[fields.size()]);
+            if (_constructor != null) {
+                AccessibleObject.setAccessible(new AccessibleObject[] {_constructor}, true);
+            }
+            AccessibleObject.setAccessible(_fields, true);
+        }
+    }
+
+    protected static class UnsupportedValueException extends RuntimeException {
+        private static final long serialVersionUID = 6317452310538493467L;
+
+        public UnsupportedValueException(final String message) {
+            super(message);
+        }
+    }
+
+    protected static class Encoder {
+        final ByteArrayOutputStream _bytes = new ByteArrayOutputStream(1024);
+        final DataOutputStream _out = new DataOutputStream(_bytes);
+        final Map<String, Integer> _strings = new HashMap<String, Integer>();
+        final Map<Class<?>, Integer> _classes = new HashMap<Class<?>, Integer>();
+
+        byte[] toByteArray() {
+            return _bytes.toByteArray();
+        }
+
+        void writeVarInt(final int value) throws IOException {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                _out.writeByte((int)((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            _out.writeByte((int)value);
+        }
+
+        void writeBytes(final byte[] bytes) throws IOException {
+            writeVarInt(bytes.length);
+            _out.write(bytes);
+        }
+
+        void writeString(final String value) throws IOException {
+            final Integer index = _strings.get(value);
+            if (index != null) {
+                writeVarInt(index);
+                return;
+            }
+            writeVarInt(_strings.size());
+            _strings.put(value, _strings.size());
+            writeBytes(value.getBytes(UTF8));
+        }
+
+        void writeClass(final ClassSchema schema) throws IOException {
+            final Integer index = _classes.get(schema._clazz);
+            if (index != null) {
+                writeVarInt(index);
+                return;
+            }
+            writeVarInt(_classes.size());
+            _classes.put(schema._clazz, _classes.size());
+            writeString(schema._clazz.getName());
+            writeVarInt(schema._fields.length);
+            for (final Field field : schema._fields) {
+                writeString(field.getName());
+            }
+        }
+
+        void writeValue(final Object value, final int depth) throws IOException {
+            if (depth > MAX_DEPTH) {
+                throw new UnsupportedValueException("object graph is deeper than " + MAX_DEPTH);
+            }
+            if (value == null) {
+                _out.writeByte(TAG_NULL);
+            } else if (value instanceof String) {
+                _out.writeByte(TAG_STRING);
+                writeString((String)value);
+            } else if (value instanceof Boolean) {
+                _out.writeByte((Boolean)value ? TAG_TRUE : TAG_FALSE);
+            } else if (value instanceof Integer) {
+                _out.writeByte(TAG_INT);
+                final int i = (Integer)value;
+                writeVarInt((i << 1) ^ (i >> 31));
+            } else if (value instanceof Long) {
+                _out.writeByte(TAG_LONG);
+                final long l = (Long)value;
+                writeVarLong((l << 1) ^ (l >> 63));
+            } else if (value instanceof Double) {
+                _out.writeByte(TAG_DOUBLE);
+                _out.writeDouble((Double)value);
+            } else if (value instanceof Float) {
+                _out.writeByte(TAG_FLOAT);
+                _out.writeFloat((Float)value);
+            } else if (value instanceof Short) {
+                _out.writeByte(TAG_SHORT);
+                _out.writeShort((Short)value);
+            } else if (value instanceof Byte) {
+                _out.writeByte(TAG_BYTE);
+                _out.writeByte((Byte)value);
+            } else if (value instanceof Character) {
+                _out.writeByte(TAG_CHAR);
+                _out.writeChar((Character)value);
+            } else if (value instanceof Enum) {
+                _out.writeByte(TAG_ENUM);
+                writeString(((Enum<?>)value).getDeclaringClass().getName());
+                writeString(((Enum<?>)value).name());
+            } else if (value instanceof byte[]) {
+                _out.writeByte(TAG_BYTES);
+                writeBytes((byte[])value);
+            } else if (value instanceof Date) {
+                _out.writeByte(TAG_DATE);
+                _out.writeLong(((Date)value).getTime());
+            } else if (value.getClass().isArray()) {
+                _out.writeByte(TAG_ARRAY);
+                writeString(value.getClass().getComponentType().getName());
+                final int length = Array.getLength(value);
+                writeVarInt(length);
+                for (int i = 0; i < length; i++) {
+                    writeValue(Array.get(value, i), depth + 1);
+                }
+            } else if (value instanceof Map) {
+                final Map<?, ?> map = (Map<?, ?>)value;
+                _out.writeByte(TAG_MAP);
+                writeVarInt(map.size());
+                for (final Map.Entry<?, ?> entry : map.entrySet()) {
+                    writeValue(entry.getKey(), depth + 1);
+                    writeValue(entry.getValue(), depth + 1);
+                }
+            } else if (value instanceof Collection) {
+                final Collection<?> collection = (Collection<?>)value;
+                _out.writeByte(value instanceof Set ? TAG_SET : TAG_LIST);
+                writeVarInt(collection.size());
+                for (final Object element : collection) {
+                    writeValue(element, depth + 1);
+                }
+            } else {
+                writeObject(value, depth);
+            }
+        }
+
+        void writeObject(final Object value, final int depth) throws IOException {
+            final Class<?> clazz = value.getClass();
+            final String name = clazz.getName();
+            if (name.startsWith("java.") || name.startsWith("javax.")) {
+                throw new UnsupportedValueException("unsupported type " + name);
+            }
+            final ClassSchema schema = getSchema(clazz);
+            if (schema._constructor == null) {
+                throw new UnsupportedValueException(name + " has no default constructor");
+            }
+
+            _out.writeByte(TAG_OBJECT);
+            writeClass(schema);
+            try {
+                for (final Field field : schema._fields) {
+                    writeValue(field.get(value), depth + 1);
+                }
+            } catch (final IllegalAccessException e) {
+                throw new UnsupportedValueException("unable to read " + name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    protected static class Decoder {
+        final ByteBuffer _buffer;
+        final List<String> _strings = new ArrayList<String>();
+        final List<ClassDescriptor> _classes = new ArrayList<ClassDescriptor>();
+
+        Decoder(final ByteBuffer buffer) {
+            _buffer = buffer;
+        }
+
+        int readVarInt() {
+            return (int)readVarLong();
+        }
+
+        long readVarLong() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (shift > 63) {
+                    throw new CloudRuntimeException("Malformed varint");
+                }
+                b = _buffer.get();
+                value |= (long)(b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        byte[] readBytes() {
+            final byte[] bytes = new byte[readVarInt()];
+            _buffer.get(bytes);
+            return bytes;
+        }
+
+        String readString() {
+            final int index = readVarInt();
+            if (index < _strings.size()) {
+                return _strings.get(index);
+            }
+            final String value = new String(readBytes(), UTF8);
+            _strings.add(value);
+            return value;
+        }
+
+        Class<?> readClassName() throws ClassNotFoundException {
+            final String name = readString();
+            final Class<?> primitive = s_primitives.get(name);
+            return primitive != null ? primitive : Class.forName(name);
+        }
+
+        ClassDescriptor readClass() throws ClassNotFoundException {
+            final int index = readVarInt();
+            if (index < _classes.size()) {
+                return _classes.get(index);
+            }
+            final ClassSchema schema = getSchema(Class.forName(readString()));
+            final Field[] fields = new Field[readVarInt()];
+            for (int i = 0; i < fields.length; i++) {
+                // Fields unknown to this side are read and dropped
+                fields[i] = schema._fieldsByName.get(readString());
+            }
+            final ClassDescriptor descriptor = new ClassDescriptor(schema, fields);
+            _classes.add(descriptor);
+            return descriptor;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Object readValue() throws ClassNotFoundException {
+            final byte tag = _buffer.get();
+            switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_BYTE:
+                return _buffer.get();
+            case TAG_SHORT:
+                return _buffer.getShort();
+            case TAG_INT:
+                final int i = readVarInt();
+                return (i >>> 1) ^ -(i & 1);
+            case TAG_LONG:
+                final long l = readVarLong();
+                return (l >>> 1) ^ -(l & 1);
+            case TAG_FLOAT:
+                return _buffer.getFloat();
+            case TAG_DOUBLE:
+                return _buffer.getDouble();
+            case TAG_CHAR:
+                return _buffer.getChar();
+            case TAG_STRING:
+                return readString();
+            case TAG_ENUM:
+                final Class enumClass = Class.forName(readString());
+                return Enum.valueOf(enumClass, readString());
+            case TAG_BYTES:
+                return readBytes();
+            case TAG_DATE:
+                return new Date(_buffer.getLong());
+            case TAG_ARRAY:
+                final Class<?> component = readClassName();
+                final int length = readVarInt();
+                final Object array = Array.newInstance(component, length);
+                for (int j = 0; j < length; j++) {
+                    Array.set(array, j, readValue());
+                }
+                return array;
+            case TAG_LIST:
+            case TAG_SET:
+                final int size = readVarInt();
+                final Collection collection = tag == TAG_SET ? new LinkedHashSet(size * 2) : new ArrayList(size);
+                for (int j = 0; j < size; j++) {
+                    collection.add(readValue());
+                }
+                return collection;
+            case TAG_MAP:
+                final int entries = readVarInt();
+                final Map map = new LinkedHashMap(entries * 2);
+                for (int j = 0; j < entries; j++) {
+                    final Object key = readValue();
+                    map.put(key, readValue());
+                }
+                return map;
+            case TAG_OBJECT:
+                return readObject(readClass());
+            default:
+                throw new CloudRuntimeException("Unknown value tag " + tag);
+            }
+        }
+
+        Object readObject(final ClassDescriptor descriptor) throws ClassNotFoundException {
+            final ClassSchema schema = descriptor._schema;
+            final Object object;
+            try {
+                object = schema._constructor.newInstance();
+            } catch (final Exception e) {
+                throw new CloudRuntimeException("Unable to create " + schema._clazz.getName(), e);
+            }
+            for (final Field field : descriptor._fields) {
+                final Object value = readValue();
+                // Like Gson, null leaves the value given by the constructor
+                if (field == null || value == null) {
+                    continue;
+                }
+                try {
+                    field.set(object, coerce(value, field.getType()));
+                } catch (final Exception e) {
+                    throw new CloudRuntimeException("Unable to set " + schema._clazz.getName() + "." + field.getName(), e);
+                }
+            }
+            return object;
+        }
+
+        /**
+         * Converts a decoded container to the concrete type of the field it goes to.
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Object coerce(final Object value, final Class<?> type) throws InstantiationException, IllegalAccessException {
+            if (type.isPrimitive() || type.isInstance(value)) {
+                return value;
+            }
+            if (value instanceof Map && Map.class.isAssignableFrom(type) && !type.isInterface() && !Modifier.isAbstract(type.getModifiers())) {
+                final Map map = (Map)type.newInstance();
+                map.putAll((Map)value);
+                return map;
+            }
+            if (value instanceof Collection && Collection.class.isAssignableFrom(type) && !type.isInterface() && !Modifier.isAbstract(type.getModifiers())) {
+                final Collection collection = (Collection)type.newInstance();
+                collection.addAll((Collection)value);
+                return collection;
+            }
+            if (value instanceof Collection && Set.class.isAssignableFrom(type)) {
+                return new LinkedHashSet((Collection)value);
+            }
+            if (value instanceof Collection && Collection.class.isAssignableFrom(type)) {
+                return new ArrayList((Collection)value);
+            }
+            return value;
+        }
+    }
+
+    protected static class ClassDescriptor {
+        final ClassSchema _schema;
+        final Field[] _fields;
+
+        ClassDescriptor(final ClassSchema schema, final Field[] fields) {
+            _schema = schema;
+            _fields = fields;
+        }
+    }
+}
@@ -72,6 +72,11 @@ import com.cloud.utils.exception.CloudRuntimeException;
  * 6. AgentId - 8 bytes;
  * 7. Data Package.
  *
+ * Peers advertise that they can parse Version.v4 by setting FLAG_BINARY_CODEC
+ * on everything they send.  Once a peer has seen the flag it may send its own
+ * requests as v4, whose data package is written by BinaryCommandCodec instead
+ * of Gson.  Responses keep the version of the request they answer.
+ *
  */
 public class Request {
     private static final Logger s_logger = Logger.getLogger(Request.class);
@@ -83,7 +88,8 @@ public class Request {
     public enum Version {
         v1, // using gson to marshall
         v2, // now using gson as marshalled.
-        v3; // Adding routing information into the Request data structure.
+        v3, // Adding routing information into the Request data structure.
+        v4; // Same header as v1, data package marshalled by BinaryCommandCodec.
 
         public static Version get(final byte ver) throws UnsupportedVersionException {
             for (final Version version : Version.values()) {
@@ -102,6 +108,7 @@ public class Request {
     protected static final short FLAG_FROM_SERVER = 0x20;
     protected static final short FLAG_CONTROL = 0x40;
     protected static final short FLAG_COMPRESSED = 0x80;
+    protected static final short FLAG_BINARY_CODEC = 0x100;
 
     protected Version _ver;
     protected long _session;
@@ -217,6 +224,21 @@ public class Request {
         return _ver;
     }
 
+    /**
+     * Only set Version.v4 when the receiving peer supports it.
+     * @see #supportsBinaryCodec()
+     */
+    public void setVersion(Version ver) {
+        _ver = ver;
+    }
+
+    /**
+     * @return true if the peer that sent this request can parse Version.v4.
+     */
+    public boolean supportsBinaryCodec() {
+        return (_flags & FLAG_BINARY_CODEC) > 0;
+    }
+
     public void setAgentId(long agentId) {
         _agentId = agentId;
     }
@@ -326,10 +348,15 @@ public class Request {
         final ByteBuffer[] buffers = new ByteBuffer[2];
         ByteBuffer tmp;
 
-        if (_content == null) {
-            _content = s_gson.toJson(_cmds, _cmds.getClass());
+        if (_ver == Version.v4) {
+            final Command[] cmds = this instanceof Response ? ((Response)this).getAnswers() : getCommands();
+            tmp = ByteBuffer.wrap(BinaryCommandCodec.encode(cmds));
+        } else {
+            if (_content == null) {
+                _content = s_gson.toJson(_cmds, _cmds.getClass());
+            }
+            tmp = ByteBuffer.wrap(_content.getBytes());
         }
-        tmp = ByteBuffer.wrap(_content.getBytes());
         int capacity = tmp.capacity();
         /* Check if we need to compress the data */
         if (capacity >= 8192) {
@@ -357,7 +384,7 @@ public class Request {
     }
 
     protected short getFlags() {
-        return (short)(((this instanceof Response) ? FLAG_RESPONSE : FLAG_REQUEST) | _flags);
+        return (short)(((this instanceof Response) ? FLAG_RESPONSE : FLAG_REQUEST) | FLAG_BINARY_CODEC | _flags);
     }
 
     public void logD(String msg) {
@@ -486,7 +513,7 @@ public class Request {
         ByteBuffer buff = ByteBuffer.wrap(bytes);
         final byte ver = buff.get();
         final Version version = Version.get(ver);
-        if (version.ordinal() != Version.v1.ordinal() && version.ordinal() != Version.v3.ordinal()) {
+        if (version.ordinal() != Version.v1.ordinal() && version.ordinal() != Version.v3.ordinal() && version.ordinal() != Version.v4.ordinal()) {
             throw new UnsupportedVersionException("This version is no longer supported: " + version.toString(), UnsupportedVersionException.IncompatibleVersion);
         }
         buff.get();
@@ -500,7 +527,7 @@ public class Request {
         final long agentId = buff.getLong();
 
         long via;
-        if (version.ordinal() == Version.v1.ordinal()) {
+        if (version.ordinal() == Version.v1.ordinal() || version.ordinal() == Version.v4.ordinal()) {
             via = buff.getLong();
         } else {
             via = agentId;
@@ -510,6 +537,17 @@ public class Request {
             buff = doDecompress(buff, size);
         }
 
+        if (version == Version.v4) {
+            final Command[] cmds = BinaryCommandCodec.decode(buff);
+            if (isRequest) {
+                return new Request(version, seq, agentId, mgmtId, via, flags, cmds);
+            } else {
+                final Answer[] answers = new Answer[cmds.length];
+                System.arraycopy(cmds, 0, answers, 0, cmds.length);
+                return new Response(version, seq, agentId, mgmtId, via, flags, answers);
+            }
+        }
+
         byte[] command = null;
         int offset = 0;
         if (buff.hasArray()) {
@@ -51,6 +51,10 @@ public class Response extends Request {
         super(ver, seq, agentId, mgmtId, via, flags, ans);
     }
 
+    protected Response(Version ver, long seq, long agentId, long mgmtId, long via, short flags, Answer[] answers) {
+        super(ver, seq, agentId, mgmtId, via, flags, answers);
+    }
+
     public Answer getAnswer() {
         Answer[] answers = getAnswers();
         return answers[0];
@@ -0,0 +1,753 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.cloudstack.utils.imagestore.ImageStoreUtil;
+import org.apache.commons.httpclient.Credentials;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.log4j.Logger;
+
+import org.apache.cloudstack.storage.command.DownloadCommand.ResourceType;
+
+import com.cloud.agent.api.storage.Proxy;
+import com.cloud.storage.StorageLayer;
+import com.cloud.utils.Pair;
+import com.cloud.utils.StringUtils;
+import com.cloud.utils.UriUtils;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Download a template file using several concurrent HTTP range requests.
+ *
+ * The file is split in chunks that the streams take in turn and write in place.
+ * The bytes received of every chunk are saved next to the file, so a download
+ * that failed or was restarted continues where it stopped. The MD5 checksum is
+ * computed while the data comes in. Servers that do not accept range requests
+ * are read in a single stream.
+ */
+public class ParallelHttpTemplateDownloader extends TemplateDownloaderBase implements TemplateDownloader {
+    public static final Logger s_logger = Logger.getLogger(ParallelHttpTemplateDownloader.class);
+    private static final MultiThreadedHttpConnectionManager s_httpClientManager = new MultiThreadedHttpConnectionManager();
+    static {
+        s_httpClientManager.getParams().setDefaultMaxConnectionsPerHost(64);
+        s_httpClientManager.getParams().setMaxTotalConnections(256);
+    }
+
+    public static final int DEFAULT_STREAMS = 4;
+    public static final long DEFAULT_CHUNK_SIZE = 64L * 1024 * 1024;
+    public static final String RANGE_MAP_SUFFIX = ".ranges";
+
+    private static final int BUFFER_SIZE = 512 * 1024;
+    private static final int MAX_RETRIES = 3;
+    // the first bytes are checked for a supported format before the rest is downloaded
+    private static final long FORMAT_CHECK_SIZE = 1024 * 1024;
+    private static final long RANGE_MAP_SAVE_INTERVAL = 5000;
+
+    private final HttpClient _client;
+    private final ResourceType _resourceType;
+    private final int _streams;
+    private final long _chunkSize;
+    private final File _rangeMapFile;
+
+    // bytes received of every chunk, guarded by this
+    private long[] _chunkReceived;
+    private int _nextChunk;
+    private long _lastSaved;
+    private String _validator;
+
+    private final Set<GetMethod> _requests = new HashSet<GetMethod>();
+    private volatile boolean _stopped;
+    private volatile String _failure;
+    private volatile boolean _discard;
+    private volatile boolean _formatVerified;
+
+    // the digest covers the bytes before _digestPosition, guarded by _digestLock
+    private final ReentrantLock _digestLock = new ReentrantLock();
+    private MessageDigest _digest;
+    private long _digestPosition;
+    private String _checksum;
+
+    public ParallelHttpTemplateDownloader(StorageLayer storageLayer, String downloadUrl, String toDir, DownloadCompleteCallback callback, long maxTemplateSizeInBytes,
+            String user, String password, Proxy proxy, ResourceType resourceType, int streams, long chunkSize) {
+        super(storageLayer, downloadUrl, toDir, maxTemplateSizeInBytes, callback);
+        _resourceType = resourceType;
+        _streams = Math.max(1, streams);
+        _chunkSize = Math.max(FORMAT_CHECK_SIZE, chunkSize);
+        _client = new HttpClient(s_httpClientManager);
+
+        // named after the url, a download started again for the same template finds what was received before
+        String name = "dnld" + UUID.nameUUIDFromBytes(downloadUrl.getBytes(StringUtils.getPreferredCharset())) + "tmp_";
+        _toFile = new File(toDir, name).getAbsolutePath();
+        _rangeMapFile = new File(_toFile + RANGE_MAP_SUFFIX);
+
+        try {
+            Pair<String, Integer> hostAndPort = UriUtils.validateUrl(downloadUrl);
+
+            if (proxy != null) {
+                _client.getHostConfiguration().setProxy(proxy.getHost(), proxy.getPort());
+                if (proxy.getUserName() != null) {
+                    Credentials proxyCreds = new UsernamePasswordCredentials(proxy.getUserName(), proxy.getPassword());
+                    _client.getState().setProxyCredentials(AuthScope.ANY, proxyCreds);
+                }
+            }
+            if ((user != null) && (password != null)) {
+                _client.getParams().setAuthenticationPreemptive(true);
+                Credentials defaultcreds = new UsernamePasswordCredentials(user, password);
+                _client.getState().setCredentials(new AuthScope(hostAndPort.first(), hostAndPort.second(), AuthScope.ANY_REALM), defaultcreds);
+                s_logger.info("Added username=" + user + " for host " + hostAndPort.first() + ":" + hostAndPort.second());
+            } else {
+                s_logger.info("No credentials configured for host=" + hostAndPort.first() + ":" + hostAndPort.second());
+            }
+        } catch (IllegalArgumentException iae) {
+            _errorString = iae.getMessage();
+            _status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+            _inited = false;
+        }
+    }
+
+    @Override
+    public long download(boolean resume, DownloadCompleteCallback callback) {
+        switch (_status) {
+            case ABORTED:
+            case UNRECOVERABLE_ERROR:
+            case DOWNLOAD_FINISHED:
+                return 0;
+            default:
+        }
+
+        _start = System.currentTimeMillis();
+        _resume = resume;
+        _stopped = false;
+        _failure = null;
+        _discard = false;
+
+        File file = new File(_toFile);
+        GetMethod probe = new GetMethod(_downloadUrl);
+        try {
+            _digest = MessageDigest.getInstance("MD5");
+            _digestPosition = 0;
+
+            // a one byte range tells whether the server accepts ranges and the size of the file
+            probe.addRequestHeader("Range", "bytes=0-0");
+            int responseCode = _client.executeMethod(probe);
+            if (responseCode == HttpStatus.SC_PARTIAL_CONTENT) {
+                long size = parseContentRangeSize(probe.getResponseHeader("Content-Range"));
+                if (size < 0) {
+                    return failed("Failed to receive length of download", true);
+                }
+                _validator = getValidator(probe);
+                probe.releaseConnection();
+                if (!checkSize(size)) {
+                    return 0;
+                }
+                downloadRanges(file);
+            } else if (responseCode == HttpStatus.SC_OK) {
+                s_logger.info("HTTP server does not accept range requests, downloading " + _downloadUrl + " in a single stream");
+                Header contentLength = probe.getResponseHeader("Content-Length");
+                long size = contentLength != null ? Long.parseLong(contentLength.getValue()) : 0;
+                if (!checkSize(size)) {
+                    return 0;
+                }
+                downloadStream(file, probe);
+            } else {
+                return failed(" HTTP Server returned " + responseCode + " (expected 200 OK) ", true);
+            }
+
+            if (_status == Status.DOWNLOAD_FINISHED) {
+                return _totalBytes;
+            }
+        } catch (IOException e) {
+            failed(e.getMessage(), false);
+        } catch (NoSuchAlgorithmException e) {
+            failed(e.getMessage(), true);
+        } finally {
+            probe.releaseConnection();
+            if (_status == Status.UNRECOVERABLE_ERROR && _discard) {
+                file.delete();
+                _rangeMapFile.delete();
+            }
+            if (callback != null) {
+                callback.downloadComplete(_status);
+            }
+        }
+        return 0;
+    }
+
+    private boolean checkSize(long size) {
+        _remoteSize = size;
+        if (size > getMaxTemplateSizeInBytes()) {
+            s_logger.info("Remote size is too large: " + size + " , max=" + getMaxTemplateSizeInBytes());
+            failed("Download file size is too large", true);
+            return false;
+        }
+        return true;
+    }
+
+    private long failed(String error, boolean discard) {
+        _status = Status.UNRECOVERABLE_ERROR;
+        _errorString = error;
+        _discard = _discard || discard;
+        return 0;
+    }
+
+    private void downloadRanges(File file) throws IOException {
+        int chunks = (int)((_remoteSize + _chunkSize - 1) / _chunkSize);
+        boolean resumed = loadRangeMap(chunks);
+        if (!resumed) {
+            synchronized (this) {
+                _chunkReceived = new long[chunks];
+                _totalBytes = 0;
+            }
+        }
+        synchronized (this) {
+            _nextChunk = 0;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (!resumed) {
+                raf.setLength(0);
+            }
+            if (_storage != null) {
+                _storage.setWorldReadableAndWriteable(file);
+            }
+            final FileChannel channel = raf.getChannel();
+
+            s_logger.info("Starting download from " + _downloadUrl + " to " + _toFile + " remoteSize=" + _remoteSize + " in " + chunks + " chunks, " +
+                    (resumed ? "resumed at " + _totalBytes + " bytes" : "max size=" + getMaxTemplateSizeInBytes()));
+            _status = Status.IN_PROGRESS;
+            verifyFormat(file);
+
+            int streams = Math.min(_streams, chunks);
+            ExecutorService executor = Executors.newFixedThreadPool(streams, new NamedThreadFactory("Template-Download"));
+            try {
+                for (int i = 0; i < streams; i++) {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            int chunk;
+                            while (!_stopped && (chunk = nextChunk()) >= 0) {
+                                try {
+                                    downloadChunk(channel, chunk);
+                                } catch (IOException e) {
+                                    stop("Failed to download " + _downloadUrl + ": " + e.getMessage(), false);
+                                } catch (RuntimeException e) {
+                                    s_logger.warn("Unexpected exception in template download", e);
+                                    stop("Failed to download " + _downloadUrl + ": " + e.getMessage(), false);
+                                }
+                            }
+                        }
+                    });
+                }
+            } finally {
+                executor.shutdown();
+            }
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                if (_status == Status.ABORTED) {
+                    abortRequests();
+                }
+            }
+
+            if (_status == Status.ABORTED) {
+                return;
+            }
+            if (_failure != null) {
+                if (!_discard) {
+                    saveRangeMap(channel);
+                }
+                failed(_failure, false);
+                return;
+            }
+
+            channel.force(false);
+            finishDigest(channel);
+        } catch (InterruptedException e) {
+            abortRequests();
+            failed("Interrupted while downloading " + _downloadUrl, false);
+            return;
+        }
+
+        _rangeMapFile.delete();
+        finished();
+    }
+
+    private void downloadStream(File file, GetMethod request) throws IOException {
+        synchronized (this) {
+            _chunkReceived = null;
+            _totalBytes = 0;
+        }
+        _rangeMapFile.delete();
+        synchronized (_requests) {
+            _requests.add(request);
+        }
+        long limit = _remoteSize > 0 ? _remoteSize : getMaxTemplateSizeInBytes();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            if (_storage != null) {
+                _storage.setWorldReadableAndWriteable(file);
+            }
+            FileChannel channel = raf.getChannel();
+
+            s_logger.info("Starting download from " + _downloadUrl + " to " + _toFile + " remoteSize=" + _remoteSize + " , max size=" + getMaxTemplateSizeInBytes());
+            _status = Status.IN_PROGRESS;
+            InputStream in = request.getResponseBodyAsStream();
+            byte[] block = new byte[BUFFER_SIZE];
+            long position = 0;
+            int bytes;
+            while (_status != Status.ABORTED && (bytes = fill(in, block, block.length)) > 0) {
+                if (position + bytes > limit) {
+                    failed("Download file size is too large", true);
+                    return;
+                }
+                write(channel, block, bytes, position);
+                _digest.update(block, 0, bytes);
+                _digestPosition += bytes;
+                position += bytes;
+                synchronized (this) {
+                    _totalBytes = position;
+                }
+                if (!_formatVerified && (position >= FORMAT_CHECK_SIZE || position >= _remoteSize && _remoteSize > 0)) {
+                    verifyFormat(file);
+                }
+                if (_failure != null) {
+                    failed(_failure, true);
+                    return;
+                }
+            }
+            if (_status == Status.ABORTED) {
+                return;
+            }
+            if (_remoteSize > 0 && position < _remoteSize) {
+                failed("Connection closed after " + position + " of " + _remoteSize + " bytes", true);
+                return;
+            }
+            if (!_formatVerified) {
+                verifyFormat(file);
+                if (_failure != null) {
+                    failed(_failure, true);
+                    return;
+                }
+            }
+            _remoteSize = position;
+            channel.force(false);
+            _checksum = String.format("%032x", new BigInteger(1, _digest.digest()));
+        } finally {
+            synchronized (_requests) {
+                _requests.remove(request);
+            }
+        }
+        finished();
+    }
+
+    private void finished() {
+        _status = Status.DOWNLOAD_FINISHED;
+        _downloadTime += System.currentTimeMillis() - _start;
+        _errorString = "Downloaded " + _totalBytes + " bytes (download complete remote=" + _remoteSize + "bytes)";
+        s_logger.info(_errorString + " from " + _downloadUrl + " in " + _downloadTime + " ms, md5 " + _checksum);
+    }
+
+    private synchronized int nextChunk() {
+        while (_nextChunk < _chunkReceived.length) {
+            int chunk = _nextChunk++;
+            if (_chunkReceived[chunk] < chunkLength(chunk)) {
+                return chunk;
+            }
+        }
+        return -1;
+    }
+
+    private long chunkLength(int chunk) {
+        return Math.min(_chunkSize, _remoteSize - chunk * _chunkSize);
+    }
+
+    private void downloadChunk(FileChannel channel, int chunk) throws IOException {
+        long start = chunk * _chunkSize;
+        long end = start + chunkLength(chunk);
+        byte[] block = new byte[BUFFER_SIZE];
+
+        for (int attempt = 1;; attempt++) {
+            long position;
+            synchronized (this) {
+                position = start + _chunkReceived[chunk];
+            }
+            if (position >= end) {
+                return;
+            }
+
+            GetMethod request = new GetMethod(_downloadUrl);
+            request.addRequestHeader("Range", "bytes=" + position + "-" + (end - 1));
+            if (_validator != null) {
+                request.addRequestHeader("If-Range", _validator);
+            }
+            synchronized (_requests) {
+                if (_stopped) {
+                    return;
+                }
+                _requests.add(request);
+            }
+            try {
+                int responseCode = _client.executeMethod(request);
+                if (responseCode == HttpStatus.SC_OK) {
+                    // the file changed since the download started, what was received is of no use
+                    stop("Template at " + _downloadUrl + " changed during the download", true);
+                    return;
+                }
+                if (responseCode != HttpStatus.SC_PARTIAL_CONTENT) {
+                    throw new IOException("HTTP Server returned " + responseCode + " (expected 206 Partial Content)");
+                }
+
+                InputStream in = request.getResponseBodyAsStream();
+                while (position < end && !_stopped) {
+                    int bytes = fill(in, block, (int)Math.min(block.length, end - position));
+                    if (bytes <= 0) {
+                        throw new IOException("Connection closed at " + position + ", expected " + end + " bytes");
+                    }
+                    write(channel, block, bytes, position);
+                    received(channel, chunk, bytes);
+                    digest(channel, block, bytes, position);
+                    position += bytes;
+
+                    if (chunk == 0 && !_formatVerified && (position >= FORMAT_CHECK_SIZE || position >= _remoteSize)) {
+                        verifyFormat(new File(_toFile));
+                    }
+                }
+                return;
+            } catch (IOException e) {
+                if (_stopped || attempt >= MAX_RETRIES) {
+                    throw e;
+                }
+                s_logger.warn("Failed to download range " + position + "-" + (end - 1) + " of " + _downloadUrl + ", retrying: " + e.getMessage());
+            } finally {
+                synchronized (_requests) {
+                    _requests.remove(request);
+                }
+                request.releaseConnection();
+            }
+        }
+    }
+
+    private static int fill(InputStream in, byte[] block, int length) throws IOException {
+        int filled = 0;
+        while (filled < length) {
+            int bytes = in.read(block, filled, length - filled);
+            if (bytes < 0) {
+                break;
+            }
+            filled += bytes;
+        }
+        return filled;
+    }
+
+    private static void write(FileChannel channel, byte[] block, int bytes, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(block, 0, bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private void received(FileChannel channel, int chunk, int bytes) throws IOException {
+        boolean save;
+        synchronized (this) {
+            _chunkReceived[chunk] += bytes;
+            _totalBytes += bytes;
+            long now = System.currentTimeMillis();
+            save = now - _lastSaved > RANGE_MAP_SAVE_INTERVAL || _chunkReceived[chunk] == chunkLength(chunk);
+            if (save) {
+                _lastSaved = now;
+            }
+        }
+        if (save) {
+            saveRangeMap(channel);
+        }
+    }
+
+    /**
+     * Adds the bytes just written to the checksum if they are next in the file.
+     * Bytes of later chunks that were written before the checksum got to them
+     * are read back from the file once the chunks before them are complete.
+     * A stream does not wait for another one that is reading back, that one
+     * picks up the new bytes as well.
+     */
+    private void digest(FileChannel channel, byte[] block, int bytes, long position) throws IOException {
+        if (!_digestLock.tryLock()) {
+            return;
+        }
+        try {
+            if (position == _digestPosition) {
+                _digest.update(block, 0, bytes);
+                _digestPosition += bytes;
+            }
+            catchUpDigest(channel);
+        } finally {
+            _digestLock.unlock();
+        }
+    }
+
+    private void catchUpDigest(FileChannel channel) throws IOException {
+        ByteBuffer buffer = null;
+        long end;
+        while ((end = receivedEnd(_digestPosition)) > _digestPosition) {
+            if (buffer == null) {
+                buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            }
+            buffer.clear();
+            buffer.limit((int)Math.min(buffer.capacity(), end - _digestPosition));
+            int bytes = channel.read(buffer, _digestPosition);
+            if (bytes <= 0) {
+                throw new IOException("Unable to read " + _toFile + " at " + _digestPosition);
+            }
+            _digest.update(buffer.array(), 0, bytes);
+            _digestPosition += bytes;
+        }
+    }
+
+    /**
+     * @return the end of the bytes received without a gap from the position on.
+     */
+    private synchronized long receivedEnd(long position) {
+        int chunk = (int)(position / _chunkSize);
+        if (chunk >= _chunkReceived.length) {
+            return position;
+        }
+        return chunk * _chunkSize + _chunkReceived[chunk];
+    }
+
+    private void finishDigest(FileChannel channel) throws IOException {
+        _digestLock.lock();
+        try {
+            catchUpDigest(channel);
+            if (_digestPosition != _remoteSize) {
+                throw new IOException("Checksum covers " + _digestPosition + " of " + _remoteSize + " bytes");
+            }
+            _checksum = String.format("%032x", new BigInteger(1, _digest.digest()));
+        } finally {
+            _digestLock.unlock();
+        }
+    }
+
+    private void verifyFormat(File file) {
+        synchronized (this) {
+            if (_formatVerified || _chunkReceived != null && receivedEnd(0) < Math.min(FORMAT_CHECK_SIZE, _remoteSize)) {
+                return;
+            }
+            _formatVerified = true;
+        }
+
+        String uripath = null;
+        try {
+            URI str = new URI(_downloadUrl);
+            uripath = str.getPath();
+        } catch (URISyntaxException e) {
+            s_logger.warn("Invalid download url: " + _downloadUrl + ", This should not happen since we have validated the url before!!");
+        }
+        String unsupportedFormat = checkTemplateFormat(file.getAbsolutePath(), uripath);
+        if (unsupportedFormat == null || !unsupportedFormat.isEmpty()) {
+            stop("Template content is unsupported, or mismatch between selected format and template content. Found  : " + unsupportedFormat, true);
+            return;
+        }
+        s_logger.debug("Verified format of downloading file " + file.getAbsolutePath() + " is supported");
+    }
+
+    /**
+     * @return empty if the file is of a supported format, what it was found to be otherwise.
+     */
+    protected String checkTemplateFormat(String path, String uripath) {
+        return ImageStoreUtil.checkTemplateFormat(path, uripath);
+    }
+
+    private void stop(String failure, boolean discard) {
+        synchronized (_requests) {
+            if (_failure == null) {
+                _failure = failure;
+            }
+            _discard = _discard || discard;
+            _stopped = true;
+        }
+        abortRequests();
+    }
+
+    private void abortRequests() {
+        synchronized (_requests) {
+            _stopped = true;
+            for (GetMethod request : _requests) {
+                request.abort();
+            }
+        }
+    }
+
+    private static long parseContentRangeSize(Header contentRange) {
+        // bytes 0-0/12345
+        if (contentRange == null) {
+            return -1;
+        }
+        String value = contentRange.getValue();
+        int slash = value.lastIndexOf('/');
+        if (slash < 0 || value.endsWith("*")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String getValidator(GetMethod request) {
+        Header etag = request.getResponseHeader("ETag");
+        // a weak tag does not identify the bytes, a range of it may come from another version
+        if (etag != null && !etag.getValue().startsWith("W/")) {
+            return etag.getValue();
+        }
+        Header lastModified = request.getResponseHeader("Last-Modified");
+        return lastModified != null ? lastModified.getValue() : null;
+    }
+
+    /**
+     * Loads what was received by an earlier run of the download, if it was of
+     * the same file.
+     */
+    private boolean loadRangeMap(int chunks) {
+        if (!_rangeMapFile.exists() || !new File(_toFile).exists()) {
+            return false;
+        }
+        Properties ranges = new Properties();
+        try (FileInputStream in = new FileInputStream(_rangeMapFile)) {
+            ranges.load(in);
+        } catch (IOException e) {
+            s_logger.warn("Unable to read " + _rangeMapFile + ", starting the download over", e);
+            return false;
+        }
+
+        String validator = _validator != null ? _validator : "";
+        if (!_downloadUrl.equals(ranges.getProperty("url")) || !Long.toString(_remoteSize).equals(ranges.getProperty("size")) ||
+                !Long.toString(_chunkSize).equals(ranges.getProperty("chunk.size")) || !validator.equals(ranges.getProperty("validator", ""))) {
+            s_logger.info("Template at " + _downloadUrl + " is not the one partially downloaded to " + _toFile + ", starting the download over");
+            return false;
+        }
+
+        long[] received = new long[chunks];
+        long total = 0;
+        for (int i = 0; i < chunks; i++) {
+            try {
+                received[i] = Math.min(chunkLength(i), Math.max(0, Long.parseLong(ranges.getProperty("chunk." + i, "0"))));
+            } catch (NumberFormatException e) {
+                received[i] = 0;
+            }
+            total += received[i];
+        }
+        synchronized (this) {
+            _chunkReceived = received;
+            _totalBytes = total;
+        }
+        return true;
+    }
+
+    private void saveRangeMap(FileChannel channel) throws IOException {
+        Properties ranges = new Properties();
+        // what the map says was received must be on disk first
+        channel.force(false);
+        synchronized (this) {
+            ranges.setProperty("url", _downloadUrl);
+            ranges.setProperty("size", Long.toString(_remoteSize));
+            ranges.setProperty("chunk.size", Long.toString(_chunkSize));
+            ranges.setProperty("validator", _validator != null ? _validator : "");
+            for (int i = 0; i < _chunkReceived.length; i++) {
+                if (_chunkReceived[i] > 0) {
+                    ranges.setProperty("chunk." + i, Long.toString(_chunkReceived[i]));
+                }
+            }
+        }
+
+        synchronized (_rangeMapFile) {
+            File tmp = new File(_rangeMapFile.getPath() + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                ranges.store(out, null);
+            }
+            if (!tmp.renameTo(_rangeMapFile)) {
+                s_logger.warn("Unable to save the received ranges to " + _rangeMapFile);
+            }
+        }
+    }
+
+    /**
+     * @return the MD5 checksum of the file once the download is finished, null before.
+     */
+    public String getChecksum() {
+        return _status == Status.DOWNLOAD_FINISHED || _status == Status.POST_DOWNLOAD_FINISHED ? _checksum : null;
+    }
+
+    /**
+     * @return whether a failed download left a partial file that a new download of the same url continues.
+     */
+    public boolean isResumable() {
+        return _status == Status.UNRECOVERABLE_ERROR && !_discard && _rangeMapFile.exists();
+    }
+
+    @Override
+    public synchronized long getDownloadedBytes() {
+        return _totalBytes;
+    }
+
+    @Override
+    public synchronized int getDownloadPercent() {
+        return super.getDownloadPercent();
+    }
+
+    @Override
+    public boolean stopDownload() {
+        if (getStatus() != Status.DOWNLOAD_FINISHED) {
+            _status = Status.ABORTED;
+        }
+        abortRequests();
+        _rangeMapFile.delete();
+        return super.stopDownload();
+    }
+
+    public ResourceType getResourceType() {
+        return _resourceType;
+    }
+}
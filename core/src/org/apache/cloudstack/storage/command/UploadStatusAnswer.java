@@ -31,6 +31,8 @@ public class UploadStatusAnswer extends Answer {
     private long physicalSize = 0;
     private String installPath = null;
     private int downloadPercent = 0;
+    private long uploadedBytes = 0;
+    private long uploadRate = 0;
 
     protected UploadStatusAnswer() {
     }
@@ -85,4 +87,23 @@ public class UploadStatusAnswer extends Answer {
     public void setDownloadPercent(int downloadPercent) {
         this.downloadPercent = downloadPercent;
     }
+
+    public long getUploadedBytes() {
+        return uploadedBytes;
+    }
+
+    public void setUploadedBytes(long uploadedBytes) {
+        this.uploadedBytes = uploadedBytes;
+    }
+
+    /**
+     * Returns the average rate of the upload, in bytes per second.
+     */
+    public long getUploadRate() {
+        return uploadRate;
+    }
+
+    public void setUploadRate(long uploadRate) {
+        this.uploadRate = uploadRate;
+    }
 }
@@ -0,0 +1,167 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.resource.virtualnetwork;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.cloud.agent.api.routing.NetworkElementCommand;
+import com.cloud.utils.ExecutionResult;
+
+public class VirtualRouterChannelTest {
+    private static final String MARKER = "#VRCHANNEL-test";
+
+    @Test
+    public void scriptRunsItemsInOrder() {
+        final List<ConfigItem> items = new ArrayList<ConfigItem>();
+        items.add(new FileConfigItem("/var/cache/cloud", "rules.json", "{}"));
+        items.add(new ScriptConfigItem("update_config.py", "rules.json"));
+        items.add(new ScriptConfigItem("checkrouter.sh", null));
+
+        final String script = VirtualRouterChannel.buildScript(items, MARKER);
+        assertEquals("echo \"" + MARKER + "-PID $$\"\n" + "base64 -d 2>&1 > '/var/cache/cloud/rules.json' <<'" + MARKER + "'\n" + "e30=\n" + MARKER + "\n" + "echo \"" + MARKER + " $?\"\n"
+                + "/opt/cloud/bin/update_config.py rules.json < /dev/null 2>&1\n" + "echo \"" + MARKER + " $?\"\n"
+                + "/opt/cloud/bin/checkrouter.sh < /dev/null 2>&1\n" + "echo \"" + MARKER + " $?\"\n", script);
+    }
+
+    @Test
+    public void outputIsSplitByMarker() {
+        final String output = MARKER + " 0\n" + "line 1\nline 2\n" + MARKER + " 1\n" + "no newline" + MARKER + " 0\n";
+        final List<ExecutionResult> results = VirtualRouterChannel.parseOutput(output, MARKER);
+
+        assertEquals(3, results.size());
+        assertTrue(results.get(0).isSuccess());
+        assertEquals("", results.get(0).getDetails());
+        assertFalse(results.get(1).isSuccess());
+        assertEquals("line 1\nline 2\n", results.get(1).getDetails());
+        assertTrue(results.get(2).isSuccess());
+        assertEquals("no newline\n", results.get(2).getDetails());
+    }
+
+    @Test
+    public void itemsWithoutMarkerAreNotReported() {
+        final List<ExecutionResult> results = VirtualRouterChannel.parseOutput(MARKER + "-PID 1234\n" + MARKER + " 0\npartial output", MARKER);
+        assertEquals(1, results.size());
+        assertEquals("1234", VirtualRouterChannel.parsePid(MARKER + "-PID 1234\n" + MARKER + " 0\n", MARKER));
+        assertNull(VirtualRouterChannel.parsePid("partial output", MARKER));
+    }
+
+    @Test
+    public void unreportedItemsAreFailed() {
+        final List<ConfigItem> items = Arrays.<ConfigItem> asList(new ScriptConfigItem("one.sh", null), new ScriptConfigItem("two.sh", null),
+                new ScriptConfigItem("three.sh", null));
+        final List<ExecutionResult> results = VirtualRouterChannel.failUnreported(VirtualRouterChannel.parseOutput(MARKER + " 0\n", MARKER), items, "Timed out");
+
+        assertEquals(3, results.size());
+        assertTrue(results.get(0).isSuccess());
+        assertFalse(results.get(1).isSuccess());
+        assertEquals("Timed out", results.get(1).getDetails());
+        assertFalse(results.get(2).isSuccess());
+    }
+
+    private final List<String> _deployed = new ArrayList<String>();
+    private VirtualRouterChannelPool _pool;
+
+    private VirtualRoutingResource createResource(final List<ExecutionResult> channelResults) {
+        final VirtualRoutingResource resource = new VirtualRoutingResource(new VirtualRouterDeployer() {
+            @Override
+            public ExecutionResult executeInVR(final String routerIp, final String script, final String args) {
+                return executeInVR(routerIp, script, args, 120);
+            }
+
+            @Override
+            public ExecutionResult executeInVR(final String routerIp, final String script, final String args, final int timeout) {
+                _deployed.add(script);
+                return new ExecutionResult(true, null);
+            }
+
+            @Override
+            public ExecutionResult createFileInVR(final String routerIp, final String path, final String filename, final String content) {
+                _deployed.add(filename);
+                return new ExecutionResult(true, null);
+            }
+
+            @Override
+            public ExecutionResult prepareCommand(final NetworkElementCommand cmd) {
+                return new ExecutionResult(true, null);
+            }
+
+            @Override
+            public ExecutionResult cleanupCommand(final NetworkElementCommand cmd) {
+                return new ExecutionResult(true, null);
+            }
+        });
+        _pool = new VirtualRouterChannelPool(new File("/dev/null"), 3922, 1000, 300) {
+            @Override
+            public List<ExecutionResult> execute(final String routerIp, final List<ConfigItem> items, final int timeout) {
+                return channelResults;
+            }
+        };
+        resource.setChannelPool(_pool);
+        return resource;
+    }
+
+    private static List<ConfigItem> createItems() {
+        final List<ConfigItem> items = new ArrayList<ConfigItem>();
+        items.add(new ScriptConfigItem("one.sh", null));
+        items.add(new FileConfigItem("/var/cache/cloud/", "two.json", "{}"));
+        items.add(new ScriptConfigItem("three.sh", "two.json"));
+        return items;
+    }
+
+    @Test
+    public void failedItemsAreNotAppliedAgain() {
+        // the channel timed out during the second item
+        final VirtualRoutingResource resource = createResource(new ArrayList<ExecutionResult>(Arrays.asList(new ExecutionResult(true, "channel"),
+                new ExecutionResult(false, "Timed out"), new ExecutionResult(false, "Not applied: Timed out"))));
+        try {
+            final List<ExecutionResult> results = resource.applyConfigToVR("169.254.3.4", createItems(), 120);
+            assertEquals(3, results.size());
+            assertEquals("channel", results.get(0).getDetails());
+            assertFalse(results.get(1).isSuccess());
+            assertFalse(results.get(2).isSuccess());
+            assertTrue(_deployed.isEmpty());
+        } finally {
+            _pool.shutdown();
+        }
+    }
+
+    @Test
+    public void itemsFallBackToDeployerWhenChannelNeverStarted() {
+        final VirtualRoutingResource resource = createResource(null);
+        try {
+            final List<ExecutionResult> results = resource.applyConfigToVR("169.254.3.4", createItems(), 120);
+            assertEquals(3, results.size());
+            assertTrue(results.get(2).isSuccess());
+            assertEquals(Arrays.asList("one.sh", "two.json", "three.sh"), _deployed);
+        } finally {
+            _pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.transport;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.google.gson.Gson;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.GetVmStatsAnswer;
+import com.cloud.agent.api.GetVmStatsCommand;
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.agent.api.NetworkUsageAnswer;
+import com.cloud.agent.api.NetworkUsageCommand;
+import com.cloud.agent.api.PingRoutingCommand;
+import com.cloud.agent.api.UpdateHostPasswordCommand;
+import com.cloud.agent.api.VmStatsEntry;
+import com.cloud.agent.transport.Request.Version;
+import com.cloud.host.Host;
+import com.cloud.serializer.GsonHelper;
+import com.cloud.vm.VirtualMachine.PowerState;
+
+/**
+ * Round trips through the v4 codec, and a rough size and speed comparison
+ * against the Gson marshalling used by v1.
+ */
+public class BinaryCommandCodecTest extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(BinaryCommandCodecTest.class);
+
+    private static final int VM_COUNT = 200;
+    private static final int ITERATIONS = 500;
+
+    protected PingRoutingCommand createPing() {
+        final Map<String, HostVmStateReportEntry> report = new HashMap<String, HostVmStateReportEntry>();
+        for (int i = 0; i < VM_COUNT; i++) {
+            report.put("i-2-" + i + "-VM", new HostVmStateReportEntry(i % 3 == 0 ? PowerState.PowerOff : PowerState.PowerOn, "host-" + (i % 4)));
+        }
+        final PingRoutingCommand ping = new PingRoutingCommand(Host.Type.Routing, 42, report);
+        ping.setGatewayAccessible(false);
+        return ping;
+    }
+
+    protected GetVmStatsAnswer createStatsAnswer() {
+        final HashMap<String, VmStatsEntry> stats = new HashMap<String, VmStatsEntry>();
+        for (int i = 0; i < VM_COUNT; i++) {
+            stats.put("i-2-" + i + "-VM", new VmStatsEntry(0.5 * i, 10.25, 20.75, 1.5, 2.5, 2, "vm"));
+        }
+        return new GetVmStatsAnswer(new GetVmStatsCommand(null, "guid", "host"), stats);
+    }
+
+    public void testPingRoundTrip() throws Exception {
+        final PingRoutingCommand ping = createPing();
+        final Request sreq = new Request(2, 3, ping, false);
+        sreq.setSequence(1234);
+        sreq.setVersion(Version.v4);
+
+        final Request creq = Request.parse(sreq.getBytes());
+        assertEquals(Version.v4, creq.getVersion());
+        assertEquals(1234, creq.getSequence());
+        assertEquals(2, creq.getAgentId());
+        assertTrue(creq.supportsBinaryCodec());
+
+        final PingRoutingCommand result = (PingRoutingCommand)creq.getCommand();
+        assertEquals(ping.getHostId(), result.getHostId());
+        assertEquals(ping.getHostType(), result.getHostType());
+        assertFalse(result.isGatewayAccessible());
+        assertTrue(result.isVnetAccessible());
+        assertEquals(VM_COUNT, result.getHostVmStateReport().size());
+        for (final Map.Entry<String, HostVmStateReportEntry> entry : ping.getHostVmStateReport().entrySet()) {
+            final HostVmStateReportEntry other = result.getHostVmStateReport().get(entry.getKey());
+            assertNotNull(other);
+            assertEquals(entry.getValue().getState(), other.getState());
+            assertEquals(entry.getValue().getHost(), other.getHost());
+        }
+    }
+
+    public void testResponseKeepsVersion() throws Exception {
+        final NetworkUsageCommand cmd = new NetworkUsageCommand("10.1.1.1", "r-4-VM", "create", true, "10.1.1.254");
+        final Request sreq = new Request(2, 3, new Command[] {cmd}, true, true);
+        sreq.setSequence(77);
+        sreq.setVersion(Version.v4);
+
+        final Request creq = Request.parse(sreq.getBytes());
+        final NetworkUsageCommand received = (NetworkUsageCommand)creq.getCommand();
+        assertEquals("10.1.1.1", received.getPrivateIP());
+        assertEquals("r-4-VM", received.getDomRName());
+        assertEquals("create", received.getOption());
+        assertTrue(received.isForVpc());
+        assertEquals("10.1.1.254", received.getGatewayIP());
+        assertTrue(creq.stopOnError());
+        assertTrue(creq.isFromServer());
+
+        final Response sresp = new Response(creq, new NetworkUsageAnswer(received, "ok", 1000L, 2000L));
+        assertEquals(Version.v4, sresp.getVersion());
+
+        final Request cresp = Request.parse(sresp.getBytes());
+        assertTrue(cresp instanceof Response);
+        final NetworkUsageAnswer answer = (NetworkUsageAnswer)((Response)cresp).getAnswer();
+        assertTrue(answer.getResult());
+        assertEquals("ok", answer.getDetails());
+        assertEquals(Long.valueOf(1000), answer.getBytesSent());
+        assertEquals(Long.valueOf(2000), answer.getBytesReceived());
+    }
+
+    public void testMixedWithJson() throws Exception {
+        assertFalse(BinaryCommandCodec.isRegistered(UpdateHostPasswordCommand.class));
+
+        final Command[] cmds = new Command[] {new UpdateHostPasswordCommand("abc", "def"), createStatsAnswer(), new Answer(null, false, "failed")};
+        final Command[] result = BinaryCommandCodec.decode(ByteBuffer.wrap(BinaryCommandCodec.encode(cmds)));
+        assertEquals(3, result.length);
+
+        final UpdateHostPasswordCommand password = (UpdateHostPasswordCommand)result[0];
+        assertEquals("abc", password.getUsername());
+        assertEquals("def", password.getNewPassword());
+
+        final GetVmStatsAnswer stats = (GetVmStatsAnswer)result[1];
+        assertEquals(VM_COUNT, stats.getVmStatsMap().size());
+        final VmStatsEntry entry = stats.getVmStatsMap().get("i-2-7-VM");
+        assertEquals(3.5, entry.getCPUUtilization());
+        assertEquals(20.75, entry.getNetworkWriteKBs());
+        assertEquals(2.5, entry.getDiskWriteKBs());
+        assertEquals(2, entry.getNumCPUs());
+        assertEquals("vm", entry.getEntityType());
+
+        final Answer answer = (Answer)result[2];
+        assertFalse(answer.getResult());
+        assertEquals("failed", answer.getDetails());
+    }
+
+    public void testSizeAndSpeed() throws Exception {
+        final Gson gson = GsonHelper.getGson();
+        final Command[] cmds = new Command[] {createPing()};
+
+        final byte[] json = gson.toJson(cmds, Command[].class).getBytes("UTF-8");
+        final byte[] binary = BinaryCommandCodec.encode(cmds);
+        s_logger.info("Ping with " + VM_COUNT + " vms: json " + json.length + " bytes, binary " + binary.length + " bytes");
+        assertTrue(binary.length < json.length);
+
+        // warm up both paths before timing them
+        for (int i = 0; i < ITERATIONS; i++) {
+            gson.fromJson(gson.toJson(cmds, Command[].class), Command[].class);
+            BinaryCommandCodec.decode(ByteBuffer.wrap(BinaryCommandCodec.encode(cmds)));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            gson.fromJson(new String(gson.toJson(cmds, Command[].class).getBytes("UTF-8"), "UTF-8"), Command[].class);
+        }
+        final long jsonNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            BinaryCommandCodec.decode(ByteBuffer.wrap(BinaryCommandCodec.encode(cmds)));
+        }
+        final long binaryNanos = System.nanoTime() - start;
+
+        s_logger.info("Encode and decode of ping, per iteration: json " + jsonNanos / ITERATIONS / 1000 + " us, binary " + binaryNanos / ITERATIONS / 1000 + " us");
+    }
+}
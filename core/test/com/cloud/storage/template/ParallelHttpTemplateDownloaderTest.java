@@ -0,0 +1,213 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.storage.template;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.apache.cloudstack.storage.command.DownloadCommand.ResourceType;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class ParallelHttpTemplateDownloaderTest {
+    private static final Logger s_logger = Logger.getLogger(ParallelHttpTemplateDownloaderTest.class);
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+    private static final long CHUNK_SIZE = 2L * 1024 * 1024;
+
+    private byte[] content;
+    private HttpServer server;
+    private File dir;
+
+    private volatile boolean acceptRanges = true;
+    // responses that are cut off half way, and bytes served before all requests fail
+    private final AtomicInteger brokenResponses = new AtomicInteger();
+    private volatile long budget = Long.MAX_VALUE;
+    private final AtomicLong served = new AtomicLong();
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        content = new byte[21 * 1024 * 1024 + 12345];
+        new Random(1).nextBytes(content);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 64);
+        server.createContext("/template.raw", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        dir = Files.createTempDirectory("template").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().add("ETag", "\"v1\"");
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        Matcher matcher = range != null ? RANGE.matcher(range) : null;
+        long start = 0;
+        long end = content.length - 1;
+        if (served.get() >= budget) {
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+            return;
+        }
+        if (acceptRanges && matcher != null && matcher.matches()) {
+            start = Long.parseLong(matcher.group(1));
+            end = Math.min(end, Long.parseLong(matcher.group(2)));
+            rangeRequests.incrementAndGet();
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+            exchange.sendResponseHeaders(206, end - start + 1);
+        } else {
+            exchange.sendResponseHeaders(200, content.length);
+        }
+
+        long length = end - start + 1;
+        if (length > 1 && brokenResponses.getAndDecrement() > 0) {
+            length = length / 2;
+        }
+        OutputStream out = exchange.getResponseBody();
+        try {
+            for (long offset = 0; offset < length; offset += 65536) {
+                int bytes = (int)Math.min(65536, length - offset);
+                if (served.addAndGet(bytes) - bytes >= budget) {
+                    break;
+                }
+                out.write(content, (int)(start + offset), bytes);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/template.raw";
+    }
+
+    private ParallelHttpTemplateDownloader downloader(int streams) {
+        return new ParallelHttpTemplateDownloader(null, url(), dir.getAbsolutePath(), null, TemplateDownloader.DEFAULT_MAX_TEMPLATE_SIZE_IN_BYTES, null, null, null,
+                ResourceType.TEMPLATE, streams, CHUNK_SIZE) {
+            @Override
+            protected String checkTemplateFormat(String path, String uripath) {
+                return "";
+            }
+        };
+    }
+
+    private void assertDownloaded(ParallelHttpTemplateDownloader td) throws Exception {
+        assertEquals(td.getDownloadError(), TemplateDownloader.Status.DOWNLOAD_FINISHED, td.getStatus());
+        assertEquals(content.length, td.getDownloadedBytes());
+        assertEquals(100, td.getDownloadPercent());
+        assertArrayEquals(content, Files.readAllBytes(new File(td.getDownloadLocalPath()).toPath()));
+        assertEquals(String.format("%032x", new BigInteger(1, MessageDigest.getInstance("MD5").digest(content))), td.getChecksum());
+        assertFalse(new File(td.getDownloadLocalPath() + ParallelHttpTemplateDownloader.RANGE_MAP_SUFFIX).exists());
+    }
+
+    @Test
+    public void testParallelDownload() throws Exception {
+        ParallelHttpTemplateDownloader td = downloader(4);
+        long start = System.nanoTime();
+        assertEquals(content.length, td.download(false, null));
+        long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+
+        assertDownloaded(td);
+        // the probe and one request per chunk
+        assertEquals(1 + (content.length + CHUNK_SIZE - 1) / CHUNK_SIZE, rangeRequests.get());
+        s_logger.info("Downloaded " + content.length + " bytes in " + millis + " ms, " + content.length / 1024 * 1000 / 1024 / millis + " MB/s");
+    }
+
+    @Test
+    public void testBrokenRangesAreRetried() throws Exception {
+        brokenResponses.set(3);
+        ParallelHttpTemplateDownloader td = downloader(4);
+        td.download(false, null);
+
+        assertDownloaded(td);
+    }
+
+    @Test
+    public void testDownloadResumesFromRangeMap() throws Exception {
+        budget = content.length / 2;
+        ParallelHttpTemplateDownloader td = downloader(3);
+        td.download(false, null);
+
+        assertEquals(TemplateDownloader.Status.UNRECOVERABLE_ERROR, td.getStatus());
+        assertNull(td.getChecksum());
+        File rangeMap = new File(td.getDownloadLocalPath() + ParallelHttpTemplateDownloader.RANGE_MAP_SUFFIX);
+        assertTrue(rangeMap.exists());
+        assertTrue(td.isResumable());
+        long received = td.getDownloadedBytes();
+        assertTrue(received > 0);
+
+        // the same template downloaded again only fetches what is missing
+        budget = Long.MAX_VALUE;
+        served.set(0);
+        td = downloader(3);
+        td.download(true, null);
+
+        assertDownloaded(td);
+        assertTrue(served.get() <= content.length - received + 1);
+    }
+
+    @Test
+    public void testSingleStreamWithoutRanges() throws Exception {
+        acceptRanges = false;
+        ParallelHttpTemplateDownloader td = downloader(4);
+        td.download(false, null);
+
+        assertDownloaded(td);
+        assertEquals(0, rangeRequests.get());
+    }
+}
@@ -137,6 +137,11 @@ public interface AgentManager {
 
     boolean isAgentAttached(long hostId);
 
+    /**
+     * @return the number of requests sent to the agent of the host that are waiting to be answered, 0 if it is not attached.
+     */
+    int getOutstandingRequests(long hostId);
+
     void disconnectWithoutInvestigation(long hostId, Status.Event event);
 
     public void pullAgentToMaintenance(long hostId);
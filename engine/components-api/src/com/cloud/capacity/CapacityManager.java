@@ -53,6 +53,14 @@ public interface CapacityManager {
             "0.85",
             "Percentage (as a value between 0 and 1) of allocated storage utilization above which allocators will disable using the pool for low allocated storage available.",
             true, ConfigKey.Scope.Zone);
+    static final ConfigKey<Boolean> OptimisticCapacityReservation = new ConfigKey<Boolean>(Boolean.class, "capacity.reservation.optimistic", "Advanced", "false",
+        "Whether vm cpu and memory are allocated on and released from hosts with a single conditional update instead of locking the host capacity rows", true,
+        ConfigKey.Scope.Global, null);
+    static final ConfigKey<Boolean> CapacityIndexEnabled = new ConfigKey<Boolean>(Boolean.class, "capacity.index.enabled", "Advanced", "true",
+        "Whether the deployment planners order pods and clusters from an in-memory copy of the host capacities instead of querying the database", true,
+        ConfigKey.Scope.Global, null);
+    static final ConfigKey<Integer> CapacityIndexReconcileInterval = new ConfigKey<Integer>(Integer.class, "capacity.index.reconcile.interval", "Advanced", "60",
+        "Interval (in seconds) at which the in-memory host capacities are reloaded from the database", false, ConfigKey.Scope.Global, null);
 
     public boolean releaseVmCapacity(VirtualMachine vm, boolean moveFromReserved, boolean moveToReservered, Long hostId);
 
@@ -106,4 +114,10 @@ public interface CapacityManager {
     long getUsedBytes(StoragePoolVO pool);
 
     long getUsedIops(StoragePoolVO pool);
+
+    /**
+     * @return the in-memory host capacities, or null if capacity.index.enabled
+     * is false or they are not loaded yet, in which case CapacityDao has to be queried.
+     */
+    HostCapacityIndex getHostCapacityIndex();
 }
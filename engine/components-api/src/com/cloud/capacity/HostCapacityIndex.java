@@ -0,0 +1,51 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.utils.Pair;
+
+/**
+ * In-memory view of the cpu and memory rows of op_host_capacity.  The
+ * methods answer the same questions as the CapacityDao methods of the same
+ * name, so the deployment planners can order pods and clusters without
+ * going to the database.
+ */
+public interface HostCapacityIndex {
+
+    List<Long> listClustersInZoneOrPodByHostCapacities(long id, int requiredCpu, long requiredRam, boolean isZone);
+
+    /**
+     * @param capacityType Capacity.CAPACITY_TYPE_CPU or Capacity.CAPACITY_TYPE_MEMORY
+     */
+    Pair<List<Long>, Map<Long, Double>> orderClustersByAggregateCapacity(long id, short capacityType, boolean isZone);
+
+    List<Long> listPodsByHostCapacities(long zoneId, int requiredCpu, long requiredRam);
+
+    /**
+     * @param capacityType Capacity.CAPACITY_TYPE_CPU or Capacity.CAPACITY_TYPE_MEMORY
+     */
+    Pair<List<Long>, Map<Long, Double>> orderPodsByAggregateCapacity(long zoneId, short capacityType);
+
+    /**
+     * Lists the clusters whose allocated capacity would cross their
+     * cluster.cpu/memory.allocated.capacity.disablethreshold.
+     */
+    List<Long> listClustersCrossingThreshold(short capacityType, long zoneId, long computeRequested);
+}
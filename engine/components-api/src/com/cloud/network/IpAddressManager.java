@@ -101,6 +101,11 @@ public interface IpAddressManager {
 
     public String acquireGuestIpAddress(Network network, String requestedIp);
 
+    /**
+     * Lets the address of a removed NIC be handed out again by acquireGuestIpAddress.
+     */
+    void releaseGuestIpAddress(Network network, String ip);
+
     boolean applyStaticNats(List<? extends StaticNat> staticNats, boolean continueOnError, boolean forRevoke) throws ResourceUnavailableException;
 
     IpAddress assignSystemIp(long networkId, Account owner, boolean forElasticLb, boolean forElasticIp) throws InsufficientAddressCapacityException;
@@ -18,17 +18,14 @@ package com.cloud.agent.manager;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
@@ -57,6 +54,8 @@ import com.cloud.agent.transport.Response;
 import com.cloud.exception.AgentUnavailableException;
 import com.cloud.exception.OperationTimedoutException;
 import com.cloud.host.Status;
+import com.cloud.utils.concurrency.HashedWheelTimer;
+import com.cloud.utils.concurrency.HashedWheelTimer.Timeout;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 
 /**
@@ -65,47 +64,23 @@ import com.cloud.utils.concurrency.NamedThreadFactory;
 public abstract class AgentAttache {
     private static final Logger s_logger = Logger.getLogger(AgentAttache.class);
 
-    private static final ScheduledExecutorService s_listenerExecutor = Executors.newScheduledThreadPool(10, new NamedThreadFactory("ListenerTimer"));
+    // Listener timeouts are usually cancelled long before they fire, the wheel keeps
+    // scheduling and cancelling them cheap and runs the ones that do fire on the pool.
+    private static final HashedWheelTimer s_listenerTimer = new HashedWheelTimer("ListenerTimerWheel", 100, TimeUnit.MILLISECONDS, 512,
+        Executors.newFixedThreadPool(10, new NamedThreadFactory("ListenerTimer")));
     private static final Random s_rand = new Random(System.currentTimeMillis());
 
-    protected static final Comparator<Request> s_reqComparator = new Comparator<Request>() {
-        @Override
-        public int compare(final Request o1, final Request o2) {
-            long seq1 = o1.getSequence();
-            long seq2 = o2.getSequence();
-            if (seq1 < seq2) {
-                return -1;
-            } else if (seq1 > seq2) {
-                return 1;
-            } else {
-                return 0;
-            }
-        }
-    };
-
-    protected static final Comparator<Object> s_seqComparator = new Comparator<Object>() {
-        @Override
-        public int compare(final Object o1, final Object o2) {
-            long seq1 = ((Request)o1).getSequence();
-            long seq2 = (Long)o2;
-            if (seq1 < seq2) {
-                return -1;
-            } else if (seq1 > seq2) {
-                return 1;
-            } else {
-                return 0;
-            }
-        }
-    };
-
     protected final long _id;
     protected String _name = null;
     protected final ConcurrentHashMap<Long, Listener> _waitForList;
-    protected final LinkedList<Request> _requests;
-    protected Long _currentSequence;
+    protected final ConcurrentHashMap<Long, Timeout> _timeouts;
+    /* Requests waiting for the current in-sequence request, ordered by sequence */
+    protected final ConcurrentSkipListMap<Long, Request> _requests;
+    protected volatile Long _currentSequence;
     protected Status _status = Status.Connecting;
     protected boolean _maintenance;
     protected long _nextSequence;
+    protected volatile boolean _binaryCodec;
 
     protected AgentManagerImpl _agentMgr;
 
@@ -123,9 +98,10 @@ public abstract class AgentAttache {
         _id = id;
         _name = name;
         _waitForList = new ConcurrentHashMap<Long, Listener>();
+        _timeouts = new ConcurrentHashMap<Long, Timeout>();
         _currentSequence = null;
         _maintenance = maintenance;
-        _requests = new LinkedList<Request>();
+        _requests = new ConcurrentSkipListMap<Long, Request>();
         _agentMgr = agentMgr;
         _nextSequence = new Long(s_rand.nextInt(Short.MAX_VALUE)).longValue() << 48;
     }
@@ -154,6 +130,17 @@ public abstract class AgentAttache {
         return false;
     }
 
+    /**
+     * Called once the agent has shown it can parse requests in the binary format.
+     */
+    public void enableBinaryCodec() {
+        _binaryCodec = true;
+    }
+
+    public boolean isBinaryCodecEnabled() {
+        return _binaryCodec;
+    }
+
     protected void checkAvailability(final Command[] cmds) throws AgentUnavailableException {
         if (!_maintenance && _status != Status.Connecting) {
             return;
@@ -176,10 +163,9 @@ public abstract class AgentAttache {
         }
     }
 
-    protected synchronized void addRequest(final Request req) {
-        int index = findRequest(req);
-        assert (index < 0) : "How can we get index again? " + index + ":" + req.toString();
-        _requests.add(-index - 1, req);
+    protected void addRequest(final Request req) {
+        final Request previous = _requests.putIfAbsent(req.getSequence(), req);
+        assert (previous == null) : "How can we get the sequence again? " + req.toString();
     }
 
     protected void cancel(final Request req) {
@@ -187,26 +173,20 @@ public abstract class AgentAttache {
         cancel(seq);
     }
 
-    protected synchronized void cancel(final long seq) {
+    protected void cancel(final long seq) {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug(log(seq, "Cancelling."));
         }
         final Listener listener = _waitForList.remove(seq);
+        cancelTimeout(seq);
         if (listener != null) {
             listener.processDisconnect(_id, Status.Disconnected);
         }
-        int index = findRequest(seq);
-        if (index >= 0) {
-            _requests.remove(index);
-        }
+        _requests.remove(seq);
     }
 
-    protected synchronized int findRequest(final Request req) {
-        return Collections.binarySearch(_requests, req, s_reqComparator);
-    }
-
-    protected synchronized int findRequest(final long seq) {
-        return Collections.binarySearch(_requests, seq, s_seqComparator);
+    protected boolean hasRequest(final long seq) {
+        return _requests.containsKey(seq);
     }
 
     protected String log(final long seq, final String msg) {
@@ -217,19 +197,30 @@ public abstract class AgentAttache {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace(log(seq, "Registering listener"));
         }
+        _waitForList.put(seq, listener);
         if (listener.getTimeout() != -1) {
-            s_listenerExecutor.schedule(new Alarm(seq), listener.getTimeout(), TimeUnit.SECONDS);
+            final Timeout previous = _timeouts.put(seq, s_listenerTimer.schedule(new Alarm(seq), listener.getTimeout(), TimeUnit.SECONDS));
+            if (previous != null) {
+                previous.cancel();
+            }
         }
-        _waitForList.put(seq, listener);
     }
 
     protected Listener unregisterListener(final long sequence) {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace(log(sequence, "Unregistering listener"));
         }
+        cancelTimeout(sequence);
         return _waitForList.remove(sequence);
     }
 
+    private void cancelTimeout(final long sequence) {
+        final Timeout timeout = _timeouts.remove(sequence);
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
     protected Listener getListener(final long sequence) {
         return _waitForList.get(sequence);
     }
@@ -314,6 +305,7 @@ public abstract class AgentAttache {
             while (it.hasNext()) {
                 final Map.Entry<Long, Listener> entry = it.next();
                 it.remove();
+                cancelTimeout(entry.getKey());
                 final Listener monitor = entry.getValue();
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug(log(entry.getKey(), "Sending disconnect to " + monitor.getClass()));
@@ -352,39 +344,48 @@ public abstract class AgentAttache {
             s_logger.debug(log(seq, "Routed from " + req.getManagementServerId()));
         }
 
-        synchronized (this) {
-            try {
+        try {
+            if (req.executeInSequence()) {
+                sendInSequence(req);
+            } else {
                 if (isClosed()) {
                     throw new AgentUnavailableException("The link to the agent " + _name + " has been closed", _id);
                 }
+                req.logD("Sending ", true);
+                send(req);
+            }
+        } catch (AgentUnavailableException e) {
+            s_logger.info(log(seq, "Unable to send due to " + e.getMessage()));
+            cancel(seq);
+            throw e;
+        } catch (Exception e) {
+            s_logger.warn(log(seq, "Unable to send due to "), e);
+            cancel(seq);
+            throw new AgentUnavailableException("Problem due to other exception " + e.getMessage(), _id);
+        }
+    }
 
-                if (req.executeInSequence() && _currentSequence != null) {
-                    req.logD("Waiting for Seq " + _currentSequence + " Scheduling: ", true);
-                    addRequest(req);
-                    return;
-                }
+    /**
+     * Only the in-sequence requests need the attache monitor, to decide
+     * between sending now and queueing behind the current sequence.
+     */
+    protected synchronized void sendInSequence(final Request req) throws AgentUnavailableException {
+        if (isClosed()) {
+            throw new AgentUnavailableException("The link to the agent " + _name + " has been closed", _id);
+        }
 
-                // If we got to here either we're not suppose to set
-                // the _currentSequence or it is null already.
+        if (_currentSequence != null) {
+            req.logD("Waiting for Seq " + _currentSequence + " Scheduling: ", true);
+            addRequest(req);
+            return;
+        }
 
-                req.logD("Sending ", true);
-                send(req);
+        req.logD("Sending ", true);
+        send(req);
 
-                if (req.executeInSequence() && _currentSequence == null) {
-                    _currentSequence = seq;
-                    if (s_logger.isTraceEnabled()) {
-                        s_logger.trace(log(seq, " is current sequence"));
-                    }
-                }
-            } catch (AgentUnavailableException e) {
-                s_logger.info(log(seq, "Unable to send due to " + e.getMessage()));
-                cancel(seq);
-                throw e;
-            } catch (Exception e) {
-                s_logger.warn(log(seq, "Unable to send due to "), e);
-                cancel(seq);
-                throw new AgentUnavailableException("Problem due to other exception " + e.getMessage(), _id);
-            }
+        _currentSequence = req.getSequence();
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace(log(req.getSequence(), " is current sequence"));
         }
     }
 
@@ -457,14 +458,15 @@ public abstract class AgentAttache {
 
     protected synchronized void sendNext(final long seq) {
         _currentSequence = null;
-        if (_requests.isEmpty()) {
+        final Map.Entry<Long, Request> next = _requests.pollFirstEntry();
+        if (next == null) {
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug(log(seq, "No more commands found"));
             }
             return;
         }
 
-        Request req = _requests.pop();
+        final Request req = next.getValue();
         if (s_logger.isDebugEnabled()) {
             s_logger.debug(log(req.getSequence(), "Sending now.  is current sequence."));
         }
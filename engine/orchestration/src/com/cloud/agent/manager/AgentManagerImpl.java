@@ -69,6 +69,7 @@ import com.cloud.agent.api.StartupSecondaryStorageCommand;
 import com.cloud.agent.api.StartupStorageCommand;
 import com.cloud.agent.api.UnsupportedAnswer;
 import com.cloud.agent.transport.Request;
+import com.cloud.agent.transport.Request.Version;
 import com.cloud.agent.transport.Response;
 import com.cloud.alert.AlertManager;
 import com.cloud.dc.ClusterVO;
@@ -112,6 +113,7 @@ import com.cloud.utils.nio.Link;
 import com.cloud.utils.nio.NioServer;
 import com.cloud.utils.nio.Task;
 import com.cloud.utils.time.InaccurateClock;
+import com.cloud.vm.VirtualMachinePowerStateSync;
 
 /**
  * Implementation of the Agent Manager. This class controls the connection to the agents.
@@ -157,6 +159,8 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
 
     @Inject
     protected HypervisorGuruManager _hvGuruMgr;
+    @Inject
+    protected VirtualMachinePowerStateSync _vmPowerStateSync;
 
     protected int _retry = 2;
 
@@ -179,6 +183,12 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
     protected final ConfigKey<Integer> Workers = new ConfigKey<Integer>("Advanced", Integer.class, "workers", "5",
             "Number of worker threads handling remote agent connections.", false);
     protected final ConfigKey<Integer> Port = new ConfigKey<Integer>("Advanced", Integer.class, "port", "8250", "Port to listen on for remote agent connections.", false);
+    protected final ConfigKey<Integer> Selectors = new ConfigKey<Integer>("Advanced", Integer.class, "agent.selectors", "1",
+            "Number of selector threads serving remote agent connections. With more than one, SSL handshakes run on a separate pool.", false);
+    protected final ConfigKey<Integer> TaskQueueSize = new ConfigKey<Integer>("Advanced", Integer.class, "agent.task.queue.size", "0",
+            "Maximum number of remote agent tasks waiting for a worker thread, 0 for unbounded.", false);
+    protected final ConfigKey<Integer> TaskBacklogPerAgent = new ConfigKey<Integer>("Advanced", Integer.class, "agent.task.backlog", "0",
+            "Number of tasks a remote agent connection may have waiting before reading from it is suspended, 0 to never suspend.", false);
     protected final ConfigKey<Integer> PingInterval = new ConfigKey<Integer>("Advanced", Integer.class, "ping.interval", "60",
             "Interval to send application level pings to make sure the connection is still working", false);
     protected final ConfigKey<Float> PingTimeout = new ConfigKey<Float>("Advanced", Float.class, "ping.timeout", "2.5",
@@ -220,8 +230,8 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
         //allow core threads to time out even when there are no items in the queue
         _connectExecutor.allowCoreThreadTimeOut(true);
 
-        _connection = new NioServer("AgentManager", Port.value(), Workers.value() + 10, this);
-        s_logger.info("Listening on " + Port.value() + " with " + Workers.value() + " workers");
+        _connection = new NioServer("AgentManager", Port.value(), Workers.value() + 10, this, Selectors.value(), TaskQueueSize.value(), TaskBacklogPerAgent.value());
+        s_logger.info("Listening on " + Port.value() + " with " + Workers.value() + " workers and " + Selectors.value() + " selectors");
 
         // executes all agent commands other than cron and ping
         _directAgentExecutor = new ScheduledThreadPoolExecutor(DirectAgentPoolSize.value(), new NamedThreadFactory("DirectAgent"));
@@ -450,6 +460,9 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
 
         final Request req = new Request(hostId, agent.getName(), _nodeId, cmds, commands.stopOnError(), true);
         req.setSequence(agent.getNextSequence());
+        if (agent.isBinaryCodecEnabled()) {
+            req.setVersion(Version.v4);
+        }
         final Answer[] answers = agent.send(req, timeout);
         notifyAnswersToMonitors(hostId, req.getSequence(), answers);
         commands.setAnswers(answers);
@@ -500,6 +513,9 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
 
         final Request req = new Request(hostId, agent.getName(), _nodeId, cmds, commands.stopOnError(), true);
         req.setSequence(agent.getNextSequence());
+        if (agent.isBinaryCodecEnabled()) {
+            req.setVersion(Version.v4);
+        }
 
         agent.send(req, listener);
         return req.getSequence();
@@ -1023,6 +1039,12 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
         return agentAttache != null;
     }
 
+    @Override
+    public int getOutstandingRequests(final long hostId) {
+        final AgentAttache agentAttache = findAttache(hostId);
+        return agentAttache == null ? 0 : agentAttache.getQueueSize();
+    }
+
     protected AgentAttache createAttacheForConnect(final HostVO host, final Link link) throws ConnectionException {
         s_logger.debug("create ConnectedAgentAttache for " + host.getId());
         final AgentAttache attache = new ConnectedAgentAttache(this, host.getId(), host.getName(), link, host.isInMaintenanceStates());
@@ -1260,7 +1282,12 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
                                             "; can't find the host in the DB");
                                 }
                             }
-                            answer = new PingAnswer((PingCommand)cmd);
+                            final PingAnswer pingAnswer = new PingAnswer((PingCommand)cmd);
+                            if (cmd instanceof PingRoutingCommand && _vmPowerStateSync != null) {
+                                // the next ping may carry the VM state changes only once the last report is known here
+                                pingAnswer.setDeltaReportAccepted(_vmPowerStateSync.hasHostVmStateReport(cmdHostId));
+                            }
+                            answer = pingAnswer;
                         } else if (cmd instanceof ReadyAnswer) {
                             final HostVO host = _hostDao.findById(attache.getId());
                             if (host == null) {
@@ -1313,6 +1340,10 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
                     final byte[] data = task.getData();
                     try {
                         final Request event = Request.parse(data);
+                        final AgentAttache attache = (AgentAttache)task.getLink().attachment();
+                        if (attache != null && event.supportsBinaryCodec() && !attache.isBinaryCodecEnabled()) {
+                            attache.enableBinaryCodec();
+                        }
                         if (event instanceof Response) {
                             processResponse(task.getLink(), (Response)event);
                         } else {
@@ -1650,7 +1681,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {CheckTxnBeforeSending, Workers, Port, PingInterval, PingTimeout, Wait, AlertWait, DirectAgentLoadSize, DirectAgentPoolSize, DirectAgentThreadCap};
+        return new ConfigKey<?>[] {CheckTxnBeforeSending, Workers, Port, Selectors, TaskQueueSize, TaskBacklogPerAgent, PingInterval, PingTimeout, Wait, AlertWait, DirectAgentLoadSize, DirectAgentPoolSize, DirectAgentThreadCap};
     }
 
 }
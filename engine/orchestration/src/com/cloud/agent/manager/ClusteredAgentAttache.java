@@ -16,14 +16,10 @@
 // under the License.
 package com.cloud.agent.manager;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
-import java.nio.channels.SocketChannel;
-import java.util.Collections;
-import java.util.LinkedList;
-
-import javax.net.ssl.SSLEngine;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import org.apache.log4j.Logger;
 
@@ -39,7 +35,7 @@ public class ClusteredAgentAttache extends ConnectedAgentAttache implements Rout
     private static ClusteredAgentManagerImpl s_clusteredAgentMgr;
     protected ByteBuffer _buffer = ByteBuffer.allocate(2048);
     private boolean _forward = false;
-    protected final LinkedList<Request> _transferRequests;
+    protected final ConcurrentSkipListMap<Long, Request> _transferRequests;
     protected boolean _transferMode = false;
 
     static public void initialize(final ClusteredAgentManagerImpl agentMgr) {
@@ -49,13 +45,13 @@ public class ClusteredAgentAttache extends ConnectedAgentAttache implements Rout
     public ClusteredAgentAttache(final AgentManagerImpl agentMgr, final long id, final String name) {
         super(agentMgr, id, name, null, false);
         _forward = true;
-        _transferRequests = new LinkedList<Request>();
+        _transferRequests = new ConcurrentSkipListMap<Long, Request>();
     }
 
     public ClusteredAgentAttache(final AgentManagerImpl agentMgr, final long id, final String name, final Link link, final boolean maintenance) {
         super(agentMgr, id, name, link, maintenance);
         _forward = link == null;
-        _transferRequests = new LinkedList<Request>();
+        _transferRequests = new ConcurrentSkipListMap<Long, Request>();
     }
 
     @Override
@@ -105,6 +101,20 @@ public class ClusteredAgentAttache extends ConnectedAgentAttache implements Rout
         super.cancel(seq);
     }
 
+    /**
+     * The request could not be written to the peer, so there is nothing to
+     * cancel there.  The next request in sequence goes first, then the
+     * listener is told, so the waiting sender does not start it again.
+     */
+    public void undelivered(final long seq) {
+        s_logger.info(log(seq, "Unable to forward to the peer, cancelling"));
+        final Long current = _currentSequence;
+        if (current != null && current == seq) {
+            sendNext(seq);
+        }
+        super.cancel(seq);
+    }
+
     @Override
     public void routeToAgent(final byte[] data) throws AgentUnavailableException {
         if (s_logger.isDebugEnabled()) {
@@ -165,7 +175,6 @@ public class ClusteredAgentAttache extends ConnectedAgentAttache implements Rout
         }
 
         int i = 0;
-        SocketChannel ch = null;
         boolean error = true;
         try {
             while (i++ < 5) {
@@ -174,38 +183,19 @@ public class ClusteredAgentAttache extends ConnectedAgentAttache implements Rout
                     throw new AgentUnavailableException("Unable to find peer", _id);
                 }
 
-                ch = s_clusteredAgentMgr.connectToPeer(peerName, ch);
-                if (ch == null) {
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug(log(seq, "Unable to forward " + req.toString()));
-                    }
-                    continue;
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug(log(seq, "Forwarding " + req.toString() + " to " + peerName));
                 }
-
-                SSLEngine sslEngine = s_clusteredAgentMgr.getSSLEngine(peerName);
-                if (sslEngine == null) {
-                    throw new AgentUnavailableException("Unable to get SSLEngine of peer " + peerName, _id);
+                if (req.executeInSequence() && listener != null && listener instanceof SynchronousListener) {
+                    SynchronousListener synchronous = (SynchronousListener)listener;
+                    synchronous.setPeer(peerName);
                 }
-
-                try {
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug(log(seq, "Forwarding " + req.toString() + " to " + peerName));
-                    }
-                    if (req.executeInSequence() && listener != null && listener instanceof SynchronousListener) {
-                        SynchronousListener synchronous = (SynchronousListener)listener;
-                        synchronous.setPeer(peerName);
-                    }
-                    Link.write(ch, req.toBytes(), sslEngine);
+                if (s_clusteredAgentMgr.routeToPeer(peerName, req.getBytes())) {
                     error = false;
                     return;
-                } catch (IOException e) {
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug(log(seq, "Error on connecting to management node: " + req.toString() + " try = " + i));
-                    }
-
-                    if (s_logger.isInfoEnabled()) {
-                        s_logger.info("IOException " + e.getMessage() + " when sending data to peer " + peerName + ", close peer connection and let it re-open");
-                    }
+                }
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug(log(seq, "Error on forwarding to management node " + peerName + ": " + req.toString() + " try = " + i));
                 }
             }
         } finally {
@@ -225,21 +215,13 @@ public class ClusteredAgentAttache extends ConnectedAgentAttache implements Rout
     }
 
     public Request getRequestToTransfer() {
-        if (_transferRequests.isEmpty()) {
-            return null;
-        } else {
-            return _transferRequests.pop();
-        }
-    }
-
-    protected synchronized void addRequestToTransfer(final Request req) {
-        int index = findTransferRequest(req);
-        assert (index < 0) : "How can we get index again? " + index + ":" + req.toString();
-        _transferRequests.add(-index - 1, req);
+        final Map.Entry<Long, Request> next = _transferRequests.pollFirstEntry();
+        return next == null ? null : next.getValue();
     }
 
-    protected synchronized int findTransferRequest(final Request req) {
-        return Collections.binarySearch(_transferRequests, req, s_reqComparator);
+    protected void addRequestToTransfer(final Request req) {
+        final Request previous = _transferRequests.putIfAbsent(req.getSequence(), req);
+        assert (previous == null) : "How can we get the sequence again? " + req.toString();
     }
 
     @Override
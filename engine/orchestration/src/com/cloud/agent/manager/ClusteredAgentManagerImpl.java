@@ -16,12 +16,7 @@
 // under the License.
 package com.cloud.agent.manager;
 
-import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
@@ -32,24 +27,26 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLEngine;
 
 import org.apache.cloudstack.framework.config.ConfigDepot;
 import org.apache.cloudstack.framework.config.ConfigKey;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.PublishScope;
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.managed.context.ManagedContextTimerTask;
 import org.apache.cloudstack.utils.identity.ManagementServerNode;
-import org.apache.cloudstack.utils.security.SSLUtils;
 import org.apache.log4j.Logger;
 
 import com.cloud.agent.AgentManager;
@@ -58,6 +55,7 @@ import com.cloud.agent.api.CancelCommand;
 import com.cloud.agent.api.ChangeAgentAnswer;
 import com.cloud.agent.api.ChangeAgentCommand;
 import com.cloud.agent.api.Command;
+import com.cloud.agent.api.InvalidateQueryCacheCommand;
 import com.cloud.agent.api.PropagateResourceEventCommand;
 import com.cloud.agent.api.ScheduleHostScanTaskCommand;
 import com.cloud.agent.api.TransferAgentCommand;
@@ -87,9 +85,10 @@ import com.cloud.serializer.GsonHelper;
 import com.cloud.utils.DateUtil;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.QueryBuilder;
+import com.cloud.utils.db.QueryCache;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.TransactionLegacy;
-import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.exception.NioConnectionException;
 import com.cloud.utils.exception.TaskExecutionException;
 import com.cloud.utils.nio.Link;
 import com.cloud.utils.nio.Task;
@@ -106,10 +105,11 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
     public final static int ACQUIRE_GLOBAL_LOCK_TIMEOUT_FOR_COOPERATION = 5; // 5 seconds
     protected Set<Long> _agentToTransferIds = new HashSet<Long>();
     Gson _gson;
-    protected HashMap<String, SocketChannel> _peers;
-    protected HashMap<String, SSLEngine> _sslEngines;
+    protected PeerChannelPool _peerChannels;
     private final Timer _timer = new Timer("ClusteredAgentManager Timer");
     boolean _agentLbHappened = false;
+    protected final QueryCacheInvalidator _queryCacheInvalidator = new QueryCacheInvalidator();
+    protected final PeerSendCallback _peerSendCallback = new PeerSendCallback();
 
     @Inject
     protected ClusterManager _clusterMgr = null;
@@ -123,6 +123,8 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
     ConfigurationDao _configDao;
     @Inject
     ConfigDepot _configDepot;
+    @Inject
+    protected MessageBus _messageBus;
 
     protected ClusteredAgentManagerImpl() {
         super();
@@ -136,11 +138,23 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
             "How many agents to connect to in each round", true);
     protected final ConfigKey<Integer> ScanInterval = new ConfigKey<Integer>(Integer.class, "direct.agent.scan.interval", "Advanced", "90",
             "Interval between scans to load agents", false, ConfigKey.Scope.Global, 1000);
+    protected final ConfigKey<Integer> PeerChannels = new ConfigKey<Integer>(Integer.class, "agent.peer.channels", "Advanced", "2",
+            "Number of channels kept open to every peer management server to forward agent requests", false);
+    protected final ConfigKey<Integer> PeerConnectWait = new ConfigKey<Integer>(Integer.class, "agent.peer.connect.wait", "Advanced", "30",
+            "Seconds a forwarded request waits for its channel to a peer management server to be connected before it fails", true);
 
     @Override
     public boolean configure(final String name, final Map<String, Object> xmlParams) throws ConfigurationException {
-        _peers = new HashMap<String, SocketChannel>(7);
-        _sslEngines = new HashMap<String, SSLEngine>(7);
+        _peerChannels = new PeerChannelPool("AgentPeerChannels", PeerChannels.value(), PeerConnectWait.value() * 1000L, new PeerChannelPool.PeerResolver() {
+            @Override
+            public InetSocketAddress resolve(final String peerName) {
+                final ManagementServerHost ms = _clusterMgr.getPeer(peerName);
+                if (ms == null) {
+                    return null;
+                }
+                return new InetSocketAddress(ms.getServiceIP(), Port.value());
+            }
+        });
         _nodeId = ManagementServerNode.getManagementServerId();
 
         s_logger.info("Configuring ClusterAgentManagerImpl. management server node id(msid): " + _nodeId);
@@ -160,10 +174,17 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
         if (!super.start()) {
             return false;
         }
+        try {
+            _peerChannels.start();
+        } catch (final NioConnectionException e) {
+            s_logger.error("Unable to start the channels to peer management servers", e);
+            return false;
+        }
         _timer.schedule(new DirectAgentScanTimerTask(), STARTUP_DELAY, ScanInterval.value());
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Scheduled direct agent scan task to run at an interval of " + ScanInterval.value() + " seconds");
         }
+        QueryCache.addListener(_queryCacheInvalidator);
 
         // Schedule tasks for agent rebalancing
         if (isAgentRebalanceEnabled()) {
@@ -405,51 +426,36 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
                 (Request.isRequest(bytes) ? "Req: " : "Resp: ") + msg);
     }
 
+    /**
+     * Queues the message on the channel to the peer, without waiting for the
+     * channel to be up.  A request of this management server that is not
+     * written to the peer in time is cancelled, so its listener does not
+     * wait for the answer.
+     *
+     * @return false if the message could not be queued.
+     */
     public boolean routeToPeer(final String peer, final byte[] bytes) {
-        int i = 0;
-        SocketChannel ch = null;
-        SSLEngine sslEngine = null;
-        while (i++ < 5) {
-            ch = connectToPeer(peer, ch);
-            if (ch == null) {
-                try {
-                    logD(bytes, "Unable to route to peer: " + Request.parse(bytes).toString());
-                } catch (ClassNotFoundException | UnsupportedVersionException e) {
-                    // Request.parse thrown exception when we try to log it, log as much as we can
-                    logD(bytes, "Unable to route to peer, and Request.parse further caught exception" + e.getMessage());
-                }
-                return false;
-            }
-            sslEngine = getSSLEngine(peer);
-            if (sslEngine == null) {
-                logD(bytes, "Unable to get SSLEngine of peer: " + peer);
-                return false;
-            }
-            try {
-                if (s_logger.isDebugEnabled()) {
-                    logD(bytes, "Routing to peer");
-                }
-                Link.write(ch, new ByteBuffer[] {ByteBuffer.wrap(bytes)}, sslEngine);
-                return true;
-            } catch (final IOException e) {
-                try {
-                    logI(bytes, "Unable to route to peer: " + Request.parse(bytes).toString() + " due to " + e.getMessage());
-                } catch (ClassNotFoundException | UnsupportedVersionException ex) {
-                    // Request.parse thrown exception when we try to log it, log as much as we can
-                    logI(bytes, "Unable to route to peer due to" + e.getMessage()
-                            + ". Also caught exception when parsing request: " + ex.getMessage());
-                }
-            }
+        if (s_logger.isDebugEnabled()) {
+            logD(bytes, "Routing to peer");
         }
+        if (_peerChannels.send(peer, bytes, _peerSendCallback)) {
+            return true;
+        }
+        logUnroutable(peer, bytes);
         return false;
     }
 
-    public String findPeer(final long hostId) {
-        return getPeerName(hostId);
+    protected void logUnroutable(final String peer, final byte[] bytes) {
+        try {
+            logI(bytes, "Unable to route to peer " + peer + ": " + Request.parse(bytes).toString());
+        } catch (ClassNotFoundException | UnsupportedVersionException e) {
+            // Request.parse thrown exception when we try to log it, log as much as we can
+            logI(bytes, "Unable to route to peer " + peer + ", and Request.parse further caught exception" + e.getMessage());
+        }
     }
 
-    public SSLEngine getSSLEngine(final String peerName) {
-        return _sslEngines.get(peerName);
+    public String findPeer(final long hostId) {
+        return getPeerName(hostId);
     }
 
     public void cancel(final String peerName, final long hostId, final long sequence, final String reason) {
@@ -460,94 +466,11 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
     }
 
     public void closePeer(final String peerName) {
-        synchronized (_peers) {
-            final SocketChannel ch = _peers.get(peerName);
-            if (ch != null) {
-                try {
-                    ch.close();
-                } catch (final IOException e) {
-                    s_logger.warn("Unable to close peer socket connection to " + peerName);
-                }
-            }
-            _peers.remove(peerName);
-            _sslEngines.remove(peerName);
-        }
-    }
-
-    public SocketChannel connectToPeer(final String peerName, final SocketChannel prevCh) {
-        synchronized (_peers) {
-            final SocketChannel ch = _peers.get(peerName);
-            SSLEngine sslEngine = null;
-            if (prevCh != null) {
-                try {
-                    prevCh.close();
-                } catch (final Exception e) {
-                    s_logger.info("[ignored]"
-                            + "failed to get close resource for previous channel Socket: " + e.getLocalizedMessage());
-                }
-            }
-            if (ch == null || ch == prevCh) {
-                final ManagementServerHost ms = _clusterMgr.getPeer(peerName);
-                if (ms == null) {
-                    s_logger.info("Unable to find peer: " + peerName);
-                    return null;
-                }
-                final String ip = ms.getServiceIP();
-                InetAddress addr;
-                try {
-                    addr = InetAddress.getByName(ip);
-                } catch (final UnknownHostException e) {
-                    throw new CloudRuntimeException("Unable to resolve " + ip);
-                }
-                SocketChannel ch1 = null;
-                try {
-                    ch1 = SocketChannel.open(new InetSocketAddress(addr, Port.value()));
-                    ch1.configureBlocking(true); // make sure we are working at blocking mode
-                    ch1.socket().setKeepAlive(true);
-                    ch1.socket().setSoTimeout(60 * 1000);
-                    try {
-                        final SSLContext sslContext = Link.initSSLContext(true);
-                        sslEngine = sslContext.createSSLEngine(ip, Port.value());
-                        sslEngine.setUseClientMode(true);
-                        sslEngine.setEnabledProtocols(SSLUtils.getSupportedProtocols(sslEngine.getEnabledProtocols()));
-
-                        Link.doHandshake(ch1, sslEngine, true);
-                        s_logger.info("SSL: Handshake done");
-                    } catch (final Exception e) {
-                        ch1.close();
-                        throw new IOException("SSL: Fail to init SSL! " + e);
-                    }
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("Connection to peer opened: " + peerName + ", ip: " + ip);
-                    }
-                    _peers.put(peerName, ch1);
-                    _sslEngines.put(peerName, sslEngine);
-                    return ch1;
-                } catch (final IOException e) {
-                    try {
-                        ch1.close();
-                    } catch (final IOException ex) {
-                        s_logger.error("failed to close failed peer socket: " + ex);
-                    }
-                    s_logger.warn("Unable to connect to peer management server: " + peerName + ", ip: " + ip + " due to " + e.getMessage(), e);
-                    return null;
-                }
-            }
-
-            if (s_logger.isTraceEnabled()) {
-                s_logger.trace("Found open channel for peer: " + peerName);
-            }
-            return ch;
-        }
+        _peerChannels.close(peerName);
     }
 
-    public SocketChannel connectToPeer(final long hostId, final SocketChannel prevCh) {
-        final String peerName = getPeerName(hostId);
-        if (peerName == null) {
-            return null;
-        }
-
-        return connectToPeer(peerName, prevCh);
+    public PeerChannelsMBean getPeerChannelStats(final String peerName) {
+        return _peerChannels.getStats(peerName);
     }
 
     @Override
@@ -578,16 +501,11 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
 
     @Override
     public boolean stop() {
-        if (_peers != null) {
-            for (final SocketChannel ch : _peers.values()) {
-                try {
-                    s_logger.info("Closing: " + ch.toString());
-                    ch.close();
-                } catch (final IOException e) {
-                    s_logger.info("[ignored] error on closing channel: " +ch.toString(), e);
-                }
-            }
+        if (_peerChannels != null) {
+            _peerChannels.stop();
         }
+        QueryCache.removeListener(_queryCacheInvalidator);
+        _queryCacheInvalidator.shutdown();
         _timer.cancel();
 
         // cancel all transfer tasks
@@ -620,7 +538,7 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
 
                 final byte[] data = task.getData();
                 final Version ver = Request.getVersion(data);
-                if (ver.ordinal() != Version.v1.ordinal() && ver.ordinal() != Version.v3.ordinal()) {
+                if (ver.ordinal() != Version.v1.ordinal() && ver.ordinal() != Version.v3.ordinal() && ver.ordinal() != Version.v4.ordinal()) {
                     s_logger.warn("Wrong version for clustered agent request");
                     super.doTask(task);
                     return;
@@ -738,6 +656,7 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
             _hostDao.markHostsAsDisconnected(vo.getMsid(), lastPing);
             s_logger.info("Deleting entries from op_host_transfer table for Management server " + vo.getMsid());
             cleanupTransferMap(vo.getMsid());
+            QueryCache.removePeers(vo.getMsid() + "/");
         }
     }
 
@@ -1250,6 +1169,103 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
         return _gson.toJson(answers);
     }
 
+    /**
+     * Cancels the requests of this management server that could not be
+     * written to the peer owning their agent.
+     */
+    protected class PeerSendCallback implements PeerChannelPool.SendCallback {
+        @Override
+        public void sent(final String peerName, final byte[] bytes) {
+        }
+
+        @Override
+        public void failed(final String peerName, final byte[] bytes) {
+            logUnroutable(peerName, bytes);
+            if (!Request.isRequest(bytes) || Request.isControl(bytes) || Request.getManagementServerId(bytes) != _nodeId) {
+                // answers and requests of other management servers time out where they wait
+                return;
+            }
+            final AgentAttache attache = findAttache(Request.getAgentId(bytes));
+            if (attache instanceof ClusteredAgentAttache) {
+                ((ClusteredAgentAttache)attache).undelivered(Request.getSequence(bytes));
+            }
+        }
+    }
+
+    /**
+     * Tells the MS peers which cached tables were written here, and relays
+     * the invalidations of the local and peer writes on the MessageBus.  The
+     * local writes are collected and sent by a single thread, so a burst of
+     * writes results in a few broadcasts.
+     */
+    protected class QueryCacheInvalidator implements QueryCache.InvalidationListener {
+        private final ConcurrentHashMap<String, Long> _pending = new ConcurrentHashMap<String, Long>();
+        private final AtomicBoolean _scheduled = new AtomicBoolean();
+        private final ExecutorService _executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("QueryCache-Invalidator"));
+
+        @Override
+        public void onInvalidate(final String table, final long version) {
+            while (true) {
+                final Long pending = _pending.putIfAbsent(table, version);
+                if (pending == null || pending >= version || _pending.replace(table, pending, version)) {
+                    break;
+                }
+            }
+            if (_scheduled.compareAndSet(false, true)) {
+                try {
+                    _executor.execute(new ManagedContextRunnable() {
+                        @Override
+                        protected void runInContext() {
+                            _scheduled.set(false);
+                            flush();
+                        }
+                    });
+                } catch (final RejectedExecutionException e) {
+                    _scheduled.set(false);
+                }
+            }
+        }
+
+        protected void flush() {
+            final Map<String, Long> versions = new HashMap<String, Long>();
+            for (final String table : _pending.keySet()) {
+                final Long version = _pending.remove(table);
+                if (version != null) {
+                    versions.put(table, version);
+                }
+            }
+            if (versions.isEmpty()) {
+                return;
+            }
+
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Notifying other MS nodes of the writes to cached tables " + versions);
+            }
+            final Command[] cmds = new Command[] {new InvalidateQueryCacheCommand(_nodeId, _clusterMgr.getCurrentRunId(), versions)};
+            try {
+                _clusterMgr.broadcast(0, _gson.toJson(cmds));
+            } catch (final Exception e) {
+                s_logger.warn("Unable to notify other MS nodes of the writes to " + versions.keySet(), e);
+            }
+            for (final String table : versions.keySet()) {
+                _messageBus.publish(null, QueryCache.MESSAGE_TABLE_INVALIDATED_EVENT, PublishScope.LOCAL, table);
+            }
+        }
+
+        protected void handle(final InvalidateQueryCacheCommand cmd) {
+            final String peer = cmd.getMsid() + "/" + cmd.getRunId();
+            for (final Map.Entry<String, Long> entry : cmd.getVersions().entrySet()) {
+                if (QueryCache.invalidateFromPeer(peer, entry.getKey(), entry.getValue())) {
+                    _messageBus.publish(null, QueryCache.MESSAGE_TABLE_INVALIDATED_EVENT, PublishScope.LOCAL, entry.getKey());
+                }
+            }
+        }
+
+        protected void shutdown() {
+            _executor.shutdown();
+        }
+    }
+
     public Answer[] sendToAgent(final Long hostId, final Command[] cmds, final boolean stopOnError) throws AgentUnavailableException, OperationTimedoutException {
         final Commands commands = new Commands(stopOnError ? Command.OnError.Stop : Command.OnError.Continue);
         for (final Command cmd : cmds) {
@@ -1344,6 +1360,9 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
                 final ScheduleHostScanTaskCommand cmd = (ScheduleHostScanTaskCommand)cmds[0];
                 final String response = handleScheduleHostScanTaskCommand(cmd);
                 return response;
+            } else if (cmds.length == 1 && cmds[0] instanceof InvalidateQueryCacheCommand) {
+                _queryCacheInvalidator.handle((InvalidateQueryCacheCommand)cmds[0]);
+                return null;
             }
 
             try {
@@ -1454,6 +1473,8 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
         keysLst.add(EnableLB);
         keysLst.add(ConnectedAgentThreshold);
         keysLst.add(LoadSize);
+        keysLst.add(PeerChannels);
+        keysLst.add(PeerConnectWait);
         keysLst.add(ScanInterval);
         return keysLst.toArray(new ConfigKey<?>[keysLst.size()]);
     }
@@ -0,0 +1,592 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.transport.Request;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.exception.NioConnectionException;
+import com.cloud.utils.mgmt.JmxUtil;
+import com.cloud.utils.nio.HandlerFactory;
+import com.cloud.utils.nio.Link;
+import com.cloud.utils.nio.NioMultiClient;
+import com.cloud.utils.nio.Task;
+
+/**
+ * PeerChannelPool keeps a few persistent channels to every peer management
+ * server, used to forward agent requests and answers to the peer that owns
+ * the agent.
+ *
+ * Messages are queued on a channel and written by the selector thread of a
+ * NioMultiClient, so callers do not wait for the socket and messages are
+ * pipelined on each channel.  All messages for the same agent take the same
+ * channel, which keeps them in order.
+ *
+ * A message stays queued on its channel until the selector thread has written
+ * it.  When a channel fails, it is reconnected in the background and the
+ * messages that were not written are sent again, in order, ahead of the new
+ * ones.  Callers never wait for a channel: a message that cannot be written
+ * before the connect wait expires is reported to its callback as failed.
+ */
+public class PeerChannelPool implements HandlerFactory {
+    private static final Logger s_logger = Logger.getLogger(PeerChannelPool.class);
+
+    // how often the channels that are down with messages queued are reconnected
+    protected static final long RETRY_INTERVAL = 1000;
+
+    public interface PeerResolver {
+        /**
+         * @return address to connect to, or null if the peer is not known.
+         */
+        InetSocketAddress resolve(String peerName);
+    }
+
+    /**
+     * Tells the sender what became of a message.  The methods are called
+     * without any lock of the pool held, sent() on the selector thread so it
+     * must not block.
+     */
+    public interface SendCallback {
+        /**
+         * The message was written to a channel to the peer.
+         */
+        void sent(String peerName, byte[] bytes);
+
+        /**
+         * The message was not written, and will not be.
+         */
+        void failed(String peerName, byte[] bytes);
+    }
+
+    private final String _name;
+    private final int _channelsPerPeer;
+    private final long _connectWait;
+    private final PeerResolver _resolver;
+    private final NioMultiClient _client;
+    private final ExecutorService _connectExecutor;
+    private final ScheduledExecutorService _retryExecutor;
+    private final ConcurrentHashMap<String, Peer> _peers = new ConcurrentHashMap<String, Peer>();
+    private volatile boolean _stopped;
+
+    /**
+     * @param name used for the threads and the JMX beans.
+     * @param channelsPerPeer channels kept open to every peer.
+     * @param connectWait milliseconds a message waits for its channel to come up before it fails.
+     * @param resolver gives the address of a peer.
+     */
+    public PeerChannelPool(final String name, final int channelsPerPeer, final long connectWait, final PeerResolver resolver) {
+        _name = name;
+        _channelsPerPeer = Math.max(1, channelsPerPeer);
+        _connectWait = connectWait;
+        _resolver = resolver;
+        _client = new NioMultiClient(name, 1, this);
+        _connectExecutor = Executors.newCachedThreadPool(new NamedThreadFactory(name + "-Connect"));
+        _retryExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(name + "-Retry"));
+    }
+
+    public void start() throws NioConnectionException {
+        _client.start();
+        _retryExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final long now = System.currentTimeMillis();
+                    for (final Peer peer : _peers.values()) {
+                        peer.retry(now);
+                    }
+                } catch (final Throwable e) {
+                    s_logger.warn("Unable to retry the channels to the peers", e);
+                }
+            }
+        }, RETRY_INTERVAL, RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        _stopped = true;
+        _retryExecutor.shutdownNow();
+        for (final String peerName : _peers.keySet()) {
+            close(peerName);
+        }
+        _connectExecutor.shutdownNow();
+        _client.stop();
+    }
+
+    /**
+     * Queues the message on the channel of its agent, without waiting for
+     * the channel to be up.
+     *
+     * @param callback told when the message is written or has failed, may be null.
+     * @return false if the pool is stopped, the message is not queued then.
+     */
+    public boolean send(final String peerName, final byte[] bytes, final SendCallback callback) {
+        if (_stopped) {
+            return false;
+        }
+        final Peer peer = getPeer(peerName);
+        if (!peer.send(bytes, callback)) {
+            peer._failedSends.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Closes the channels to the peer, the next send opens new ones.  The
+     * messages that were not written yet fail.
+     */
+    public void close(final String peerName) {
+        final Peer peer = _peers.remove(peerName);
+        if (peer == null) {
+            return;
+        }
+        peer.close();
+        try {
+            JmxUtil.unregisterMBean("PeerChannels", _name + " " + peerName);
+        } catch (final Exception e) {
+            s_logger.debug("Unable to unregister channels of peer " + peerName + " from JMX: " + e.getMessage());
+        }
+    }
+
+    public PeerChannelsMBean getStats(final String peerName) {
+        return _peers.get(peerName);
+    }
+
+    protected Peer getPeer(final String peerName) {
+        Peer peer = _peers.get(peerName);
+        if (peer != null) {
+            return peer;
+        }
+        peer = new Peer(peerName);
+        final Peer existing = _peers.putIfAbsent(peerName, peer);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            JmxUtil.registerMBean("PeerChannels", _name + " " + peerName, peer);
+        } catch (final Exception e) {
+            s_logger.warn("Unable to register channels of peer " + peerName + " to JMX", e);
+        }
+        return peer;
+    }
+
+    @Override
+    public Task create(final Task.Type type, final Link link, final byte[] data) {
+        return new PeerTask(type, link, data);
+    }
+
+    protected class PeerTask extends Task {
+        public PeerTask(final Task.Type type, final Link link, final byte[] data) {
+            super(type, link, data);
+        }
+
+        @Override
+        protected void doTask(final Task task) {
+            final PeerLink link = (PeerLink)task.getLink();
+            if (task.getType() == Task.Type.CONNECT) {
+                link._peer.connected(link);
+            } else if (task.getType() == Task.Type.DISCONNECT) {
+                // the peer was told by terminated()
+            } else if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Ignoring " + task.getType() + " on channel " + link._index + " to peer " + link._peer._peerName);
+            }
+        }
+    }
+
+    /**
+     * A message queued on a channel.
+     */
+    protected static class Message {
+        protected final byte[] _bytes;
+        protected final SendCallback _callback;
+        protected final long _queuedAt;
+        protected final long _deadline;
+        // the buffers handed to the current link, written() gets them back
+        protected ByteBuffer[] _data;
+
+        protected Message(final byte[] bytes, final SendCallback callback, final long deadline) {
+            _bytes = bytes;
+            _callback = callback;
+            _queuedAt = System.nanoTime();
+            _deadline = deadline;
+        }
+    }
+
+    /**
+     * One of the channels to a peer, with the messages queued on it in the
+     * order they are sent.  The first _handedOver messages are queued on the
+     * link as well, the others wait for the link to come up.
+     */
+    protected static class Channel {
+        protected final int _index;
+        protected final AtomicBoolean _connecting = new AtomicBoolean();
+        protected final ArrayDeque<Message> _messages = new ArrayDeque<Message>();
+        protected PeerLink _link;
+        protected int _handedOver;
+
+        protected Channel(final int index) {
+            _index = index;
+        }
+
+        /**
+         * Queues the message on the link.
+         * @return false if the link is closed, it is then dropped from the channel.
+         */
+        protected boolean handOver(final Message message) {
+            message._data = new ByteBuffer[] {ByteBuffer.wrap(message._bytes)};
+            try {
+                _link.send(message._data, false);
+                _handedOver++;
+                return true;
+            } catch (final ClosedChannelException e) {
+                _link = null;
+                _handedOver = 0;
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Channels to one peer, and their statistics.
+     */
+    protected class Peer extends StandardMBean implements PeerChannelsMBean {
+        protected final String _peerName;
+        protected final Channel[] _channels;
+        protected final AtomicLong _forwardedMessages = new AtomicLong();
+        protected final AtomicLong _forwardedBytes = new AtomicLong();
+        protected final AtomicLong _failedSends = new AtomicLong();
+        protected final AtomicLong _reconnects = new AtomicLong();
+        protected final AtomicLong _latencyNanos = new AtomicLong();
+        protected final AtomicLong _maxLatencyNanos = new AtomicLong();
+        protected volatile boolean _closed;
+
+        protected Peer(final String peerName) {
+            super(PeerChannelsMBean.class, false);
+            _peerName = peerName;
+            _channels = new Channel[_channelsPerPeer];
+            for (int i = 0; i < _channelsPerPeer; i++) {
+                _channels[i] = new Channel(i);
+            }
+        }
+
+        protected Channel channel(final long key) {
+            return _channels[(int)((key & Long.MAX_VALUE) % _channelsPerPeer)];
+        }
+
+        protected boolean send(final byte[] bytes, final SendCallback callback) {
+            final Channel channel = channel(Request.getAgentId(bytes));
+            final Message message = new Message(bytes, callback, System.currentTimeMillis() + _connectWait);
+            synchronized (channel) {
+                if (_closed) {
+                    return false;
+                }
+                channel._messages.add(message);
+                // the messages ahead of this one are handed over already if the link is up
+                if (channel._link != null && channel.handOver(message)) {
+                    return true;
+                }
+            }
+            connect(channel);
+            return true;
+        }
+
+        protected void connect(final Channel channel) {
+            if (_closed || _stopped || !channel._connecting.compareAndSet(false, true)) {
+                return;
+            }
+            final int index = channel._index;
+            try {
+                _connectExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            final InetSocketAddress addr = _resolver.resolve(_peerName);
+                            if (addr == null) {
+                                s_logger.info("Unable to find peer: " + _peerName);
+                                channel._connecting.set(false);
+                                fail(channel, Long.MAX_VALUE);
+                                return;
+                            }
+                            _client.connect(new PeerLink(addr, Peer.this, index));
+                            // _connecting is cleared by connected()
+                        } catch (final Exception e) {
+                            s_logger.warn("Unable to connect channel " + index + " to peer management server " + _peerName + " due to " + e.getMessage());
+                            channel._connecting.set(false);
+                        }
+                    }
+                });
+            } catch (final Exception e) {
+                channel._connecting.set(false);
+                s_logger.debug("Unable to schedule connecting to peer " + _peerName + ": " + e.getMessage());
+            }
+        }
+
+        protected void connected(final PeerLink link) {
+            final Channel channel = _channels[link._index];
+            final boolean up;
+            synchronized (channel) {
+                channel._connecting.set(false);
+                if (_closed) {
+                    link.close();
+                    return;
+                }
+                channel._link = link;
+                channel._handedOver = 0;
+                // the messages left by the previous link go first
+                for (final Message message : channel._messages) {
+                    if (!channel.handOver(message)) {
+                        break;
+                    }
+                }
+                up = channel._link == link;
+            }
+            if (!up) {
+                disconnected(link);
+                return;
+            }
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Channel " + link._index + " to peer " + _peerName + " is up");
+            }
+        }
+
+        protected void disconnected(final PeerLink link) {
+            if (_closed) {
+                return;
+            }
+            final Channel channel = _channels[link._index];
+            final int unwritten;
+            synchronized (channel) {
+                if (channel._link == link) {
+                    channel._link = null;
+                    channel._handedOver = 0;
+                } else if (channel._link != null || channel._connecting.get()) {
+                    return;
+                }
+                unwritten = channel._messages.size();
+            }
+            s_logger.info("Channel " + link._index + " to peer " + _peerName + " is down with " + unwritten + " messages not written, reconnecting");
+            _reconnects.incrementAndGet();
+            connect(channel);
+        }
+
+        /**
+         * Called by the selector thread once the message at the head of the
+         * channel is written.
+         */
+        protected void written(final PeerLink link, final ByteBuffer[] data) {
+            final Channel channel = _channels[link._index];
+            final Message message;
+            synchronized (channel) {
+                message = channel._messages.peek();
+                if (channel._link != link || message == null || message._data != data) {
+                    // the channel was closed while the link was still writing
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Channel " + link._index + " to peer " + _peerName + " wrote a message that is no longer queued");
+                    }
+                    return;
+                }
+                channel._messages.poll();
+                channel._handedOver--;
+            }
+
+            final long latencyNanos = System.nanoTime() - message._queuedAt;
+            _forwardedMessages.incrementAndGet();
+            _forwardedBytes.addAndGet(message._bytes.length);
+            _latencyNanos.addAndGet(latencyNanos);
+            long max = _maxLatencyNanos.get();
+            while (latencyNanos > max && !_maxLatencyNanos.compareAndSet(max, latencyNanos)) {
+                max = _maxLatencyNanos.get();
+            }
+            if (message._callback != null) {
+                message._callback.sent(_peerName, message._bytes);
+            }
+        }
+
+        /**
+         * Fails the messages of the channels that are down for longer than the
+         * connect wait, and reconnects the channels that have messages left.
+         */
+        protected void retry(final long now) {
+            for (final Channel channel : _channels) {
+                fail(channel, now);
+                final boolean reconnect;
+                synchronized (channel) {
+                    reconnect = channel._link == null && !channel._messages.isEmpty();
+                }
+                if (reconnect) {
+                    connect(channel);
+                }
+            }
+        }
+
+        /**
+         * Fails the messages queued before the deadline on the channel if it is down.
+         */
+        protected void fail(final Channel channel, final long now) {
+            final List<Message> failed = new ArrayList<Message>();
+            synchronized (channel) {
+                if (channel._link != null) {
+                    return;
+                }
+                while (!channel._messages.isEmpty() && channel._messages.peek()._deadline <= now) {
+                    failed.add(channel._messages.poll());
+                }
+            }
+            failed(failed);
+        }
+
+        protected void failed(final List<Message> messages) {
+            if (messages.isEmpty()) {
+                return;
+            }
+            s_logger.warn("Unable to write " + messages.size() + " messages to peer " + _peerName);
+            _failedSends.addAndGet(messages.size());
+            for (final Message message : messages) {
+                if (message._callback != null) {
+                    message._callback.failed(_peerName, message._bytes);
+                }
+            }
+        }
+
+        protected void close() {
+            final List<Message> failed = new ArrayList<Message>();
+            _closed = true;
+            for (final Channel channel : _channels) {
+                synchronized (channel) {
+                    if (channel._link != null) {
+                        channel._link.close();
+                        channel._link = null;
+                    }
+                    channel._handedOver = 0;
+                    failed.addAll(channel._messages);
+                    channel._messages.clear();
+                }
+            }
+            failed(failed);
+        }
+
+        @Override
+        public String getPeerName() {
+            return _peerName;
+        }
+
+        @Override
+        public int getChannels() {
+            return _channelsPerPeer;
+        }
+
+        @Override
+        public int getConnectedChannels() {
+            int count = 0;
+            for (final Channel channel : _channels) {
+                synchronized (channel) {
+                    if (channel._link != null) {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public long getForwardedMessages() {
+            return _forwardedMessages.get();
+        }
+
+        @Override
+        public long getForwardedBytes() {
+            return _forwardedBytes.get();
+        }
+
+        @Override
+        public long getFailedSends() {
+            return _failedSends.get();
+        }
+
+        @Override
+        public long getReconnects() {
+            return _reconnects.get();
+        }
+
+        @Override
+        public int getQueueDepth() {
+            int depth = 0;
+            for (final Channel channel : _channels) {
+                synchronized (channel) {
+                    depth += channel._messages.size();
+                }
+            }
+            return depth;
+        }
+
+        @Override
+        public double getAverageLatency() {
+            final long messages = _forwardedMessages.get();
+            return messages == 0 ? 0 : _latencyNanos.get() / 1000000.0 / messages;
+        }
+
+        @Override
+        public double getMaxLatency() {
+            return _maxLatencyNanos.get() / 1000000.0;
+        }
+    }
+
+    /**
+     * A channel to a peer, telling the peer which of its messages are written.
+     */
+    protected class PeerLink extends Link {
+        protected final Peer _peer;
+        protected final int _index;
+
+        protected PeerLink(final InetSocketAddress addr, final Peer peer, final int index) {
+            super(addr, _client);
+            _peer = peer;
+            _index = index;
+        }
+
+        @Override
+        protected void written(final ByteBuffer[] data) {
+            _peer.written(this, data);
+        }
+
+        /**
+         * Called by the selector thread when the link is closed, by either
+         * side.  The peer is told without holding the lock of the link.
+         */
+        @Override
+        public void terminated() {
+            super.terminated();
+            _peer.disconnected(this);
+        }
+    }
+}
@@ -2764,7 +2764,9 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
         for (final Command cmd : cmds) {
             if (cmd instanceof PingRoutingCommand) {
                 final PingRoutingCommand ping = (PingRoutingCommand)cmd;
-                if (ping.getHostVmStateReport() != null) {
+                if (ping.isHostVmStateReportDelta()) {
+                    _syncMgr.processHostVmStateDeltaPingReport(agentId, ping.getHostVmStateReport(), ping.getRemovedVms());
+                } else if (ping.getHostVmStateReport() != null) {
                     _syncMgr.processHostVmStatePingReport(agentId, ping.getHostVmStateReport());
                 }
 
@@ -3722,7 +3724,7 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
 
             // reset VM power state tracking so that we won't lost signal when VM has
             // been translated to
-            _vmDao.resetVmPowerStateTracking(vmId);
+            _syncMgr.resetVmSyncState(vmId);
         }
     }
 
@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.vm;
 
+import java.util.List;
 import java.util.Map;
 
 import com.cloud.agent.api.HostVmStateReportEntry;
@@ -29,5 +30,13 @@ public interface VirtualMachinePowerStateSync {
     // to adapt legacy ping report
     void processHostVmStatePingReport(long hostId, Map<String, HostVmStateReportEntry> report);
 
+    // ping report with only the VMs changed since the last acknowledged ping
+    void processHostVmStateDeltaPingReport(long hostId, Map<String, HostVmStateReportEntry> changedVms, List<String> removedVms);
+
+    // whether the last report of the host is known, so that the next one can be a delta
+    boolean hasHostVmStateReport(long hostId);
+
+    void resetVmSyncState(long vmId);
+
     Map<Long, VirtualMachine.PowerState> convertVmStateReport(Map<String, HostVmStateReportEntry> states);
 }
@@ -18,8 +18,11 @@ package com.cloud.vm;
 
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 
@@ -33,9 +36,19 @@ import com.cloud.utils.DateUtil;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.vm.dao.VMInstanceDao;
 
+/**
+ * The hosts of this management server report the power state of their VMs on every ping. The
+ * power state written to the DB for each VM is kept in memory, so that reports which change
+ * nothing do not reach the DB, and the ids of the reported VMs are kept by instance name.
+ */
 public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStateSync {
     private static final Logger s_logger = Logger.getLogger(VirtualMachinePowerStateSyncImpl.class);
 
+    // VMInstanceDao writes the same power state of a VM this many times in a row, then stops
+    private static final int MAX_CONSECUTIVE_SAME_STATE_UPDATE_COUNT = 3;
+    // power states kept in memory are checked against the DB every so many ping intervals
+    private static final int POWER_STATE_RECHECK_PINGS = 10;
+
     @Inject MessageBus _messageBus;
     @Inject VMInstanceDao _instanceDao;
     @Inject VirtualMachineManager _vmMgr;
@@ -43,6 +56,33 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
     protected final ConfigKey<Integer> PingInterval = new ConfigKey<Integer>(Integer.class, "ping.interval", "Advanced", "60",
             "Interval to send application level pings to make sure the connection is still working", false);
 
+    private final Map<String, Long> _vmIdsByName = new ConcurrentHashMap<String, Long>();
+    private final Map<Long, HostVmStates> _hostVmStates = new ConcurrentHashMap<Long, HostVmStates>();
+
+    private static class PowerStateRecord {
+        final VirtualMachine.PowerState powerState;
+        final int updateCount;
+        final long recheckTime;
+
+        PowerStateRecord(VirtualMachine.PowerState powerState, int updateCount, long recheckTime) {
+            this.powerState = powerState;
+            this.updateCount = updateCount;
+            this.recheckTime = recheckTime;
+        }
+    }
+
+    private static class HostVmStates {
+        // the last report of the host, delta reports are applied to it
+        final Map<String, HostVmStateReportEntry> report = new HashMap<String, HostVmStateReportEntry>();
+        boolean reportKnown = false;
+        // power state last written to the DB, by VM id
+        final Map<Long, PowerStateRecord> powerStates = new ConcurrentHashMap<Long, PowerStateRecord>();
+
+        Set<Long> reportedVmIds = new HashSet<Long>();
+        long lastMissingVmScan = 0;
+        boolean missingVmsFound = false;
+    }
+
     public VirtualMachinePowerStateSyncImpl() {
     }
 
@@ -50,6 +90,26 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
     public void resetHostSyncState(long hostId) {
         s_logger.info("Reset VM power state sync for host: " + hostId);
         _instanceDao.resetHostPowerStateTracking(hostId);
+        _hostVmStates.remove(hostId);
+    }
+
+    @Override
+    public void resetVmSyncState(long vmId) {
+        _instanceDao.resetVmPowerStateTracking(vmId);
+        for (HostVmStates hostVmStates : _hostVmStates.values()) {
+            hostVmStates.powerStates.remove(vmId);
+        }
+    }
+
+    @Override
+    public boolean hasHostVmStateReport(long hostId) {
+        HostVmStates hostVmStates = _hostVmStates.get(hostId);
+        if (hostVmStates == null) {
+            return false;
+        }
+        synchronized (hostVmStates) {
+            return hostVmStates.reportKnown;
+        }
     }
 
     @Override
@@ -57,8 +117,7 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
         if (s_logger.isDebugEnabled())
             s_logger.debug("Process host VM state report from ping process. host: " + hostId);
 
-        Map<Long, VirtualMachine.PowerState> translatedInfo = convertVmStateReport(report);
-        processReport(hostId, translatedInfo);
+        processFullReport(hostId, report);
     }
 
     @Override
@@ -66,31 +125,132 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
         if (s_logger.isDebugEnabled())
             s_logger.debug("Process host VM state report from ping process. host: " + hostId);
 
-        Map<Long, VirtualMachine.PowerState> translatedInfo = convertVmStateReport(report);
-        processReport(hostId, translatedInfo);
+        processFullReport(hostId, report);
     }
 
-    private void processReport(long hostId, Map<Long, VirtualMachine.PowerState> translatedInfo) {
+    @Override
+    public void processHostVmStateDeltaPingReport(long hostId, Map<String, HostVmStateReportEntry> changedVms, List<String> removedVms) {
+        if (s_logger.isDebugEnabled())
+            s_logger.debug("Process host VM state delta report from ping process. host: " + hostId + ", changed VMs: " + (changedVms != null ? changedVms.size() : 0) +
+                    ", removed VMs: " + (removedVms != null ? removedVms.size() : 0));
+
+        HostVmStates hostVmStates = getHostVmStates(hostId);
+        synchronized (hostVmStates) {
+            if (!hostVmStates.reportKnown) {
+                // the host will send a full report with the next ping, missing VMs are detected then
+                s_logger.info("No full VM state report from host " + hostId + " yet, process the changed VMs only");
+                processReport(hostId, hostVmStates, convertVmStateReport(changedVms), false);
+                return;
+            }
+
+            if (removedVms != null) {
+                for (String vmName : removedVms) {
+                    hostVmStates.report.remove(vmName);
+                    _vmIdsByName.remove(vmName);
+                }
+            }
+            if (changedVms != null) {
+                hostVmStates.report.putAll(changedVms);
+            }
+            processReport(hostId, hostVmStates, convertVmStateReport(hostVmStates.report), true);
+        }
+    }
+
+    private void processFullReport(long hostId, Map<String, HostVmStateReportEntry> report) {
+        HostVmStates hostVmStates = getHostVmStates(hostId);
+        synchronized (hostVmStates) {
+            for (String vmName : hostVmStates.report.keySet()) {
+                if (report == null || !report.containsKey(vmName)) {
+                    _vmIdsByName.remove(vmName);
+                }
+            }
+            hostVmStates.report.clear();
+            if (report != null) {
+                hostVmStates.report.putAll(report);
+            }
+            hostVmStates.reportKnown = true;
+
+            processReport(hostId, hostVmStates, convertVmStateReport(report), true);
+        }
+    }
+
+    private HostVmStates getHostVmStates(long hostId) {
+        HostVmStates hostVmStates = _hostVmStates.get(hostId);
+        if (hostVmStates == null) {
+            hostVmStates = new HostVmStates();
+            HostVmStates existing = ((ConcurrentHashMap<Long, HostVmStates>)_hostVmStates).putIfAbsent(hostId, hostVmStates);
+            if (existing != null) {
+                hostVmStates = existing;
+            }
+        }
+        return hostVmStates;
+    }
+
+    /**
+     * Writes the power state of the VM unless the DB would not change: the same state was
+     * already written as many times in a row as VMInstanceDao does.
+     */
+    private boolean updatePowerState(HostVmStates hostVmStates, long vmId, long hostId, VirtualMachine.PowerState powerState) {
+        long now = System.currentTimeMillis();
+        PowerStateRecord record = hostVmStates.powerStates.get(vmId);
+        if (record != null && record.powerState == powerState && record.updateCount >= MAX_CONSECUTIVE_SAME_STATE_UPDATE_COUNT && now < record.recheckTime) {
+            return false;
+        }
+
+        boolean updated = _instanceDao.updatePowerState(vmId, hostId, powerState);
+        int updateCount;
+        if (!updated) {
+            updateCount = MAX_CONSECUTIVE_SAME_STATE_UPDATE_COUNT;
+        } else if (record == null || record.powerState != powerState) {
+            updateCount = 1;
+        } else {
+            updateCount = record.updateCount + 1;
+        }
+        hostVmStates.powerStates.put(vmId, new PowerStateRecord(powerState, updateCount, now + PingInterval.value() * 1000L * POWER_STATE_RECHECK_PINGS));
+        return updated;
+    }
+
+    private void processReport(long hostId, HostVmStates hostVmStates, Map<Long, VirtualMachine.PowerState> translatedInfo, boolean completeReport) {
 
         if (s_logger.isDebugEnabled())
             s_logger.debug("Process VM state report. host: " + hostId + ", number of records in report: " + translatedInfo.size());
 
         for (Map.Entry<Long, VirtualMachine.PowerState> entry : translatedInfo.entrySet()) {
 
-            if (s_logger.isDebugEnabled())
-                s_logger.debug("VM state report. host: " + hostId + ", vm id: " + entry.getKey() + ", power state: " + entry.getValue());
+            if (s_logger.isTraceEnabled())
+                s_logger.trace("VM state report. host: " + hostId + ", vm id: " + entry.getKey() + ", power state: " + entry.getValue());
 
-            if (_instanceDao.updatePowerState(entry.getKey(), hostId, entry.getValue())) {
+            if (updatePowerState(hostVmStates, entry.getKey(), hostId, entry.getValue())) {
                 if (s_logger.isDebugEnabled())
                     s_logger.debug("VM state report is updated. host: " + hostId + ", vm id: " + entry.getKey() + ", power state: " + entry.getValue());
 
                 _messageBus.publish(null, VirtualMachineManager.Topics.VM_POWER_STATE, PublishScope.GLOBAL, entry.getKey());
             } else {
-                if (s_logger.isDebugEnabled())
-                    s_logger.debug("VM power state does not change, skip DB writing. vm id: " + entry.getKey());
+                if (s_logger.isTraceEnabled())
+                    s_logger.trace("VM power state does not change, skip DB writing. vm id: " + entry.getKey());
             }
         }
 
+        if (!completeReport) {
+            return;
+        }
+        // VMs that left the host are written again if they come back
+        hostVmStates.powerStates.keySet().retainAll(translatedInfo.keySet());
+
+        // the VMs the DB has on the host are only looked up when the reported VMs changed, while
+        // missing VMs wait for the graceful period, and otherwise once per graceful period
+        long now = System.currentTimeMillis();
+        // 2 times of sync-update interval for graceful period
+        long milliSecondsGracefullPeriod = PingInterval.value() * 2000L;
+        if (!hostVmStates.missingVmsFound && now - hostVmStates.lastMissingVmScan < milliSecondsGracefullPeriod &&
+                hostVmStates.reportedVmIds.equals(translatedInfo.keySet())) {
+            if (s_logger.isDebugEnabled())
+                s_logger.debug("Done with process of VM state report, reported VMs did not change. host: " + hostId);
+            return;
+        }
+        hostVmStates.reportedVmIds = new HashSet<Long>(translatedInfo.keySet());
+        hostVmStates.lastMissingVmScan = now;
+
         // for all running/stopping VMs, we provide monitoring of missing report
         List<VMInstanceVO> vmsThatAreMissingReport = _instanceDao.findByHostInStates(hostId, VirtualMachine.State.Running,
                 VirtualMachine.State.Stopping, VirtualMachine.State.Starting);
@@ -100,15 +260,13 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
             if (translatedInfo.get(instance.getId()) != null)
                 it.remove();
         }
+        hostVmStates.missingVmsFound = vmsThatAreMissingReport.size() > 0;
 
         if (vmsThatAreMissingReport.size() > 0) {
             Date currentTime = DateUtil.currentGMTTime();
             if (s_logger.isDebugEnabled())
                 s_logger.debug("Run missing VM report. current time: " + currentTime.getTime());
 
-            // 2 times of sync-update interval for graceful period
-            long milliSecondsGracefullPeriod = PingInterval.value() * 2000L;
-
             for (VMInstanceVO instance : vmsThatAreMissingReport) {
 
                 // Make sure powerState is up to date for missing VMs
@@ -116,6 +274,7 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
                     if (!_instanceDao.isPowerStateUpToDate(instance.getId())) {
                         s_logger.warn("Detected missing VM but power state is outdated, wait for another process report run for VM id: " + instance.getId());
                         _instanceDao.resetVmPowerStateTracking(instance.getId());
+                        hostVmStates.powerStates.remove(instance.getId());
                         continue;
                     }
                 } catch (CloudRuntimeException e) {
@@ -165,9 +324,9 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
         }
 
         for (Map.Entry<String, HostVmStateReportEntry> entry : states.entrySet()) {
-            VMInstanceVO vm = findVM(entry.getKey());
-            if (vm != null) {
-                map.put(vm.getId(), entry.getValue().getState());
+            Long vmId = findVmId(entry.getKey());
+            if (vmId != null) {
+                map.put(vmId, entry.getValue().getState());
             } else {
                 s_logger.info("Unable to find matched VM in CloudStack DB. name: " + entry.getKey());
             }
@@ -176,7 +335,16 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
         return map;
     }
 
-    private VMInstanceVO findVM(String vmName) {
-        return _instanceDao.findVMByInstanceName(vmName);
+    private Long findVmId(String vmName) {
+        // instance names do not change, the name is forgotten once no host reports it
+        Long vmId = _vmIdsByName.get(vmName);
+        if (vmId == null) {
+            VMInstanceVO vm = _instanceDao.findVMByInstanceName(vmName);
+            if (vm != null) {
+                vmId = vm.getId();
+                _vmIdsByName.put(vmName, vmId);
+            }
+        }
+        return vmId;
     }
 }
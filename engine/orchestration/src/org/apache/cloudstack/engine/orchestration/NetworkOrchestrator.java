@@ -1726,6 +1726,9 @@ public class NetworkOrchestrator extends ManagerBase implements NetworkOrchestra
         NetworkGuru guru = AdapterBase.getAdapterByName(networkGurus, network.getGuruName());
         guru.deallocate(network, profile, vm);
         _nicDao.remove(nic.getId());
+        if (network.getTrafficType() == TrafficType.Guest) {
+            _ipAddrMgr.releaseGuestIpAddress(network, nic.getIPv4Address());
+        }
 
         s_logger.debug("Removed nic id=" + nic.getId());
         //remove the secondary ip addresses corresponding to to this nic
@@ -0,0 +1,259 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.cloud.agent.Listener;
+import com.cloud.agent.api.AgentControlAnswer;
+import com.cloud.agent.api.AgentControlCommand;
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.StartupCommand;
+import com.cloud.agent.transport.Request;
+import com.cloud.host.Host;
+import com.cloud.host.Status;
+
+/**
+ * Drives an attache with many in-flight in-sequence requests from several
+ * threads, checks they go out in sequence order, and logs the time taken.
+ */
+public class AgentAttacheTest {
+    private static final Logger s_logger = Logger.getLogger(AgentAttacheTest.class);
+
+    private static final int REQUESTS = 10000;
+    private static final int THREADS = 8;
+
+    @Test
+    public void testInSequenceRequestsGoOutInOrder() throws Exception {
+        final QueueAttache attache = new QueueAttache();
+        final TestListener listener = new TestListener(3600);
+        final List<Request> requests = createRequests(attache, REQUESTS);
+
+        final long start = System.nanoTime();
+        submit(attache, requests, listener);
+        final long submitted = System.nanoTime();
+
+        // the first request to get in is the current one, the rest wait for it
+        assertEquals(1, attache._sent.size());
+        assertEquals(REQUESTS - 1, attache.getQueueSize());
+        assertEquals(REQUESTS, attache._waitForList.size());
+        assertEquals(REQUESTS, attache._timeouts.size());
+
+        final long current = attache._sent.poll().getSequence();
+        attache.unregisterListener(current);
+        attache.sendNext(current);
+        long previous = -1;
+        Request req;
+        while ((req = attache._sent.poll()) != null) {
+            assertTrue(req.getSequence() > previous);
+            previous = req.getSequence();
+            attache.unregisterListener(previous);
+            attache.sendNext(previous);
+        }
+        final long drained = System.nanoTime();
+
+        assertEquals(0, attache.getQueueSize());
+        assertEquals(0, attache._waitForList.size());
+        assertEquals(0, attache._timeouts.size());
+        assertEquals(0, listener._timeouts.get());
+
+        s_logger.info(REQUESTS + " in-sequence requests from " + THREADS + " threads: queued in " + (submitted - start) / 1000000 + " ms, drained in " +
+            (drained - submitted) / 1000000 + " ms");
+    }
+
+    @Test
+    public void testCancelFromManyThreads() throws Exception {
+        final QueueAttache attache = new QueueAttache();
+        final TestListener listener = new TestListener(3600);
+        final List<Request> requests = createRequests(attache, REQUESTS);
+        submit(attache, requests, listener);
+
+        final long start = System.nanoTime();
+        runConcurrently(requests, new RequestTask() {
+            @Override
+            public void run(final Request req) {
+                attache.cancel(req);
+            }
+        });
+
+        assertEquals(0, attache.getQueueSize());
+        assertEquals(0, attache._waitForList.size());
+        assertEquals(0, attache._timeouts.size());
+        assertEquals(REQUESTS, listener._disconnects.get());
+        s_logger.info("Cancelled " + REQUESTS + " requests from " + THREADS + " threads in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    @Test
+    public void testListenerTimeout() throws Exception {
+        final QueueAttache attache = new QueueAttache();
+        final TestListener listener = new TestListener(1);
+        final Request req = createRequests(attache, 1).get(0);
+        attache.send(req, listener);
+        assertTrue(attache.hasRequest(req.getSequence()) || attache._sent.contains(req));
+
+        assertTrue(listener._timedOut.await(10, TimeUnit.SECONDS));
+        assertEquals(1, listener._timeouts.get());
+        assertFalse(attache._waitForList.containsKey(req.getSequence()));
+        assertFalse(attache._timeouts.containsKey(req.getSequence()));
+    }
+
+    protected List<Request> createRequests(final AgentAttache attache, final int count) {
+        final List<Request> requests = new ArrayList<Request>(count);
+        for (int i = 0; i < count; i++) {
+            final Request req = new Request(attache.getId(), 1, new Command[] {new SequencedCommand()}, true, true);
+            req.setSequence(attache.getNextSequence());
+            requests.add(req);
+        }
+        Collections.shuffle(requests);
+        return requests;
+    }
+
+    protected void submit(final AgentAttache attache, final List<Request> requests, final Listener listener) throws Exception {
+        runConcurrently(requests, new RequestTask() {
+            @Override
+            public void run(final Request req) throws Exception {
+                attache.send(req, listener);
+            }
+        });
+    }
+
+    protected void runConcurrently(final List<Request> requests, final RequestTask task) throws Exception {
+        final ConcurrentLinkedQueue<Request> queue = new ConcurrentLinkedQueue<Request>(requests);
+        final ConcurrentLinkedQueue<Exception> errors = new ConcurrentLinkedQueue<Exception>();
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Request req;
+                        while ((req = queue.poll()) != null) {
+                            task.run(req);
+                        }
+                    } catch (final Exception e) {
+                        errors.add(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        assertTrue(errors.isEmpty());
+    }
+
+    protected interface RequestTask {
+        void run(Request req) throws Exception;
+    }
+
+    protected static class SequencedCommand extends Command {
+        @Override
+        public boolean executeInSequence() {
+            return true;
+        }
+    }
+
+    protected static class QueueAttache extends AgentAttache {
+        final ConcurrentLinkedQueue<Request> _sent = new ConcurrentLinkedQueue<Request>();
+
+        QueueAttache() {
+            super(null, 1, "test", false);
+            ready();
+        }
+
+        @Override
+        public void send(final Request req) {
+            _sent.add(req);
+        }
+
+        @Override
+        public void disconnect(final Status state) {
+        }
+
+        @Override
+        protected boolean isClosed() {
+            return false;
+        }
+    }
+
+    protected static class TestListener implements Listener {
+        final int _timeout;
+        final AtomicInteger _timeouts = new AtomicInteger();
+        final AtomicInteger _disconnects = new AtomicInteger();
+        final CountDownLatch _timedOut = new CountDownLatch(1);
+
+        TestListener(final int timeout) {
+            _timeout = timeout;
+        }
+
+        @Override
+        public boolean processAnswers(final long agentId, final long seq, final Answer[] answers) {
+            return true;
+        }
+
+        @Override
+        public boolean processCommands(final long agentId, final long seq, final Command[] commands) {
+            return false;
+        }
+
+        @Override
+        public AgentControlAnswer processControlCommand(final long agentId, final AgentControlCommand cmd) {
+            return null;
+        }
+
+        @Override
+        public void processConnect(final Host host, final StartupCommand cmd, final boolean forRebalance) {
+        }
+
+        @Override
+        public boolean processDisconnect(final long agentId, final Status state) {
+            _disconnects.incrementAndGet();
+            return true;
+        }
+
+        @Override
+        public boolean isRecurring() {
+            return false;
+        }
+
+        @Override
+        public int getTimeout() {
+            return _timeout;
+        }
+
+        @Override
+        public boolean processTimeout(final long agentId, final long seq) {
+            _timeouts.incrementAndGet();
+            _timedOut.countDown();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.transport.Request;
+import com.cloud.utils.nio.HandlerFactory;
+import com.cloud.utils.nio.Link;
+import com.cloud.utils.nio.NioServer;
+import com.cloud.utils.nio.Task;
+
+/**
+ * Forwards requests for several agents through a pool to a local server and
+ * checks that every agent's requests arrive in order.
+ */
+public class PeerChannelPoolTest {
+    private static final Logger s_logger = Logger.getLogger(PeerChannelPoolTest.class);
+
+    private static final int PORT = 7788;
+    private static final int AGENTS = 16;
+    private static final int REQUESTS = 500;
+
+    private final ConcurrentHashMap<Long, List<Long>> _received = new ConcurrentHashMap<Long, List<Long>>();
+    private final CountDownLatch _done = new CountDownLatch(AGENTS * REQUESTS);
+
+    @Test
+    public void testRequestsOfAnAgentStayInOrder() throws Exception {
+        final NioServer server = new NioServer("PeerChannelPoolTestServer", PORT, 1, new ReceivingHandlerFactory());
+        server.start();
+        final PeerChannelPool pool = new PeerChannelPool("PeerChannelPoolTest", 3, 30000, new PeerChannelPool.PeerResolver() {
+            @Override
+            public InetSocketAddress resolve(final String peerName) {
+                return new InetSocketAddress("127.0.0.1", PORT);
+            }
+        });
+        pool.start();
+        try {
+            forwardAndCheck(pool);
+        } finally {
+            pool.stop();
+            server.stop();
+        }
+    }
+
+    protected void forwardAndCheck(final PeerChannelPool pool) throws Exception {
+        final List<Thread> threads = new ArrayList<Thread>();
+        final long start = System.nanoTime();
+        for (int i = 0; i < AGENTS; i++) {
+            final long agentId = i + 1;
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int seq = 0; seq < REQUESTS; seq++) {
+                        final Request req = new Request(agentId, 1, new Command[0], true, false);
+                        req.setSequence(seq);
+                        assertTrue(pool.send("peer", req.getBytes(), null));
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(_done.await(60, TimeUnit.SECONDS));
+        final long elapsed = System.nanoTime() - start;
+
+        assertEquals(AGENTS, _received.size());
+        for (final List<Long> sequences : _received.values()) {
+            assertEquals(REQUESTS, sequences.size());
+            for (int seq = 0; seq < REQUESTS; seq++) {
+                assertEquals(seq, sequences.get(seq).longValue());
+            }
+        }
+
+        final PeerChannelsMBean stats = pool.getStats("peer");
+        assertNotNull(stats);
+        assertEquals(3, stats.getChannels());
+        assertEquals(AGENTS * REQUESTS, stats.getForwardedMessages());
+        assertEquals(0, stats.getQueueDepth());
+        assertEquals(0, stats.getFailedSends());
+        assertTrue(stats.getForwardedBytes() > 0);
+        s_logger.info("Forwarded " + stats.getForwardedMessages() + " requests, " + stats.getForwardedBytes() + " bytes on " + stats.getConnectedChannels() +
+            " channels in " + elapsed / 1000000 + " ms, average latency " + stats.getAverageLatency() + " ms, max " + stats.getMaxLatency() + " ms");
+    }
+
+    @Test
+    public void testUnknownPeer() throws Exception {
+        final PeerChannelPool pool = new PeerChannelPool("PeerChannelPoolTestUnknown", 1, 100, new PeerChannelPool.PeerResolver() {
+            @Override
+            public InetSocketAddress resolve(final String peerName) {
+                return null;
+            }
+        });
+        pool.start();
+        try {
+            final CountingCallback callback = new CountingCallback(1);
+            assertTrue(pool.send("unknown", new Request(1, 1, new Command[0], true, false).getBytes(), callback));
+            assertTrue(callback._done.await(10, TimeUnit.SECONDS));
+            assertEquals(1, callback._failed.get());
+            assertEquals(0, callback._sent.get());
+            assertEquals(1, pool.getStats("unknown").getFailedSends());
+        } finally {
+            pool.stop();
+        }
+    }
+
+    @Test
+    public void testMessagesWaitForThePeerWithoutBlocking() throws Exception {
+        final int port = PORT + 1;
+        final PeerChannelPool pool = new PeerChannelPool("PeerChannelPoolTestWait", 2, 30000, new PeerChannelPool.PeerResolver() {
+            @Override
+            public InetSocketAddress resolve(final String peerName) {
+                return new InetSocketAddress("127.0.0.1", port);
+            }
+        });
+        pool.start();
+        NioServer server = null;
+        try {
+            // nothing listens on the port yet
+            final CountingCallback callback = new CountingCallback(AGENTS * 10);
+            final long start = System.currentTimeMillis();
+            send(pool, AGENTS, 10, callback);
+            assertTrue(System.currentTimeMillis() - start < 5000);
+            assertEquals(0, callback._sent.get());
+
+            server = new NioServer("PeerChannelPoolTestWaitServer", port, 1, new ReceivingHandlerFactory());
+            server.start();
+            assertTrue(callback._done.await(30, TimeUnit.SECONDS));
+            assertEquals(AGENTS * 10, callback._sent.get());
+            assertEquals(0, callback._failed.get());
+            checkReceived(AGENTS, 10);
+        } finally {
+            pool.stop();
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+
+    @Test
+    public void testMessagesNotWrittenAreResentInOrder() throws Exception {
+        final int port = PORT + 2;
+        final NioServer server = new NioServer("PeerChannelPoolTestResendServer", port, 1, new ReceivingHandlerFactory());
+        server.start();
+        final PeerChannelPool pool = new PeerChannelPool("PeerChannelPoolTestResend", 1, 30000, new PeerChannelPool.PeerResolver() {
+            @Override
+            public InetSocketAddress resolve(final String peerName) {
+                return new InetSocketAddress("127.0.0.1", port);
+            }
+        });
+        pool.start();
+        try {
+            final int agents = 4;
+            final int rounds = 5;
+            final CountingCallback callback = new CountingCallback(agents * REQUESTS);
+            final PeerChannelPool.Peer peer = pool.getPeer("peer");
+            Link broken = null;
+            for (int round = 0; round < rounds; round++) {
+                final int perRound = REQUESTS / rounds;
+                send(pool, agents, round * perRound, perRound, callback);
+                // breaks the channel while the requests of the round are still being written
+                final long deadline = System.currentTimeMillis() + 30000;
+                while ((peer._channels[0]._link == null || peer._channels[0]._link == broken) && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(1);
+                }
+                synchronized (peer._channels[0]) {
+                    broken = peer._channels[0]._link;
+                    assertNotNull(broken);
+                    broken.close();
+                }
+            }
+            assertTrue(callback._done.await(60, TimeUnit.SECONDS));
+            assertEquals(agents * REQUESTS, callback._sent.get());
+            assertEquals(0, callback._failed.get());
+            checkReceived(agents, REQUESTS);
+            assertEquals(0, pool.getStats("peer").getQueueDepth());
+            // the last break may be seen after every request is written
+            final long deadline = System.currentTimeMillis() + 30000;
+            while (pool.getStats("peer").getReconnects() < rounds && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(rounds, pool.getStats("peer").getReconnects());
+        } finally {
+            pool.stop();
+            server.stop();
+        }
+    }
+
+    private void send(final PeerChannelPool pool, final int agents, final int requests, final PeerChannelPool.SendCallback callback) throws Exception {
+        send(pool, agents, 0, requests, callback);
+    }
+
+    private void send(final PeerChannelPool pool, final int agents, final int first, final int requests, final PeerChannelPool.SendCallback callback)
+            throws Exception {
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < agents; i++) {
+            final long agentId = i + 1;
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int seq = first; seq < first + requests; seq++) {
+                        final Request req = new Request(agentId, 1, new Command[0], true, false);
+                        req.setSequence(seq);
+                        assertTrue(pool.send("peer", req.getBytes(), callback));
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    // every request arrived once, and in order
+    private void checkReceived(final int agents, final int requests) throws Exception {
+        final long deadline = System.currentTimeMillis() + 30000;
+        while (_received.size() < agents && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(agents, _received.size());
+        for (final List<Long> sequences : _received.values()) {
+            while (sequences.size() < requests && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(requests, sequences.size());
+            for (int seq = 0; seq < requests; seq++) {
+                assertEquals(seq, sequences.get(seq).longValue());
+            }
+        }
+    }
+
+    protected static class CountingCallback implements PeerChannelPool.SendCallback {
+        final AtomicInteger _sent = new AtomicInteger();
+        final AtomicInteger _failed = new AtomicInteger();
+        final CountDownLatch _done;
+
+        CountingCallback(final int messages) {
+            _done = new CountDownLatch(messages);
+        }
+
+        @Override
+        public void sent(final String peerName, final byte[] bytes) {
+            _sent.incrementAndGet();
+            _done.countDown();
+        }
+
+        @Override
+        public void failed(final String peerName, final byte[] bytes) {
+            _failed.incrementAndGet();
+            _done.countDown();
+        }
+    }
+
+    protected class ReceivingHandlerFactory implements HandlerFactory {
+        @Override
+        public Task create(final Task.Type type, final Link link, final byte[] data) {
+            return new Task(type, link, data) {
+                @Override
+                protected void doTask(final Task task) {
+                    if (task.getType() != Task.Type.DATA) {
+                        return;
+                    }
+                    final byte[] bytes = task.getData();
+                    final Long agentId = Request.getAgentId(bytes);
+                    _received.putIfAbsent(agentId, new ArrayList<Long>());
+                    // a single worker runs the tasks, so they are handled in the order received
+                    _received.get(agentId).add(Request.getSequence(bytes));
+                    _done.countDown();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,136 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.vm;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.vm.VirtualMachine.PowerState;
+import com.cloud.vm.dao.VMInstanceDao;
+
+public class VirtualMachinePowerStateSyncImplTest {
+    private static final long HOST_ID = 1L;
+
+    private final VirtualMachinePowerStateSyncImpl _sync = new VirtualMachinePowerStateSyncImpl();
+    private VMInstanceDao _instanceDao;
+
+    @Before
+    public void setup() {
+        _instanceDao = mock(VMInstanceDao.class);
+        _sync._instanceDao = _instanceDao;
+        _sync._messageBus = mock(MessageBus.class);
+
+        for (long id = 10; id <= 12; id++) {
+            VMInstanceVO vm = new VMInstanceVO(id, 1L, "vm" + id, "i-2-" + id + "-VM", VirtualMachine.Type.User, 1L, HypervisorType.KVM, 1L, 1L, 2L, 2L, false);
+            when(_instanceDao.findVMByInstanceName("i-2-" + id + "-VM")).thenReturn(vm);
+        }
+        when(_instanceDao.updatePowerState(10L, HOST_ID, PowerState.PowerOn)).thenReturn(true);
+        when(_instanceDao.updatePowerState(11L, HOST_ID, PowerState.PowerOn)).thenReturn(true);
+        when(_instanceDao.updatePowerState(11L, HOST_ID, PowerState.PowerOff)).thenReturn(true);
+        when(_instanceDao.updatePowerState(12L, HOST_ID, PowerState.PowerOn)).thenReturn(true);
+    }
+
+    private static Map<String, HostVmStateReportEntry> report(Object... namesAndStates) {
+        Map<String, HostVmStateReportEntry> report = new HashMap<String, HostVmStateReportEntry>();
+        for (int i = 0; i < namesAndStates.length; i += 2) {
+            report.put((String)namesAndStates[i], new HostVmStateReportEntry((PowerState)namesAndStates[i + 1], "host1"));
+        }
+        return report;
+    }
+
+    @Test
+    public void testUnchangedReportsStopReachingTheDb() {
+        Map<String, HostVmStateReportEntry> report = report("i-2-10-VM", PowerState.PowerOn, "i-2-11-VM", PowerState.PowerOn);
+        for (int i = 0; i < 10; i++) {
+            _sync.processHostVmStatePingReport(HOST_ID, report);
+        }
+
+        // the DB counts the same power state three times, and the VM ids are looked up once
+        verify(_instanceDao, times(3)).updatePowerState(10L, HOST_ID, PowerState.PowerOn);
+        verify(_instanceDao, times(3)).updatePowerState(11L, HOST_ID, PowerState.PowerOn);
+        verify(_instanceDao, times(1)).findVMByInstanceName("i-2-10-VM");
+        verify(_instanceDao, times(1)).findVMByInstanceName("i-2-11-VM");
+    }
+
+    @Test
+    public void testChangedPowerStateIsWritten() {
+        for (int i = 0; i < 5; i++) {
+            _sync.processHostVmStatePingReport(HOST_ID, report("i-2-10-VM", PowerState.PowerOn, "i-2-11-VM", PowerState.PowerOn));
+        }
+        _sync.processHostVmStatePingReport(HOST_ID, report("i-2-10-VM", PowerState.PowerOn, "i-2-11-VM", PowerState.PowerOff));
+
+        verify(_instanceDao, times(1)).updatePowerState(11L, HOST_ID, PowerState.PowerOff);
+        verify(_instanceDao, times(3)).updatePowerState(10L, HOST_ID, PowerState.PowerOn);
+    }
+
+    @Test
+    public void testResetVmSyncStateWritesAgain() {
+        Map<String, HostVmStateReportEntry> report = report("i-2-10-VM", PowerState.PowerOn);
+        for (int i = 0; i < 5; i++) {
+            _sync.processHostVmStatePingReport(HOST_ID, report);
+        }
+        _sync.resetVmSyncState(10L);
+        _sync.processHostVmStatePingReport(HOST_ID, report);
+
+        verify(_instanceDao, times(1)).resetVmPowerStateTracking(10L);
+        verify(_instanceDao, times(4)).updatePowerState(10L, HOST_ID, PowerState.PowerOn);
+    }
+
+    @Test
+    public void testDeltaReportIsAppliedToTheLastReport() {
+        Assert.assertFalse(_sync.hasHostVmStateReport(HOST_ID));
+        _sync.processHostVmStatePingReport(HOST_ID, report("i-2-10-VM", PowerState.PowerOn, "i-2-11-VM", PowerState.PowerOn));
+        Assert.assertTrue(_sync.hasHostVmStateReport(HOST_ID));
+
+        _sync.processHostVmStateDeltaPingReport(HOST_ID, report("i-2-12-VM", PowerState.PowerOn), Arrays.asList("i-2-11-VM"));
+        _sync.processHostVmStateDeltaPingReport(HOST_ID, Collections.<String, HostVmStateReportEntry> emptyMap(), Collections.<String> emptyList());
+
+        // the VMs of the last report are counted as if they were reported again
+        verify(_instanceDao, times(3)).updatePowerState(10L, HOST_ID, PowerState.PowerOn);
+        verify(_instanceDao, times(1)).updatePowerState(11L, HOST_ID, PowerState.PowerOn);
+        verify(_instanceDao, times(2)).updatePowerState(12L, HOST_ID, PowerState.PowerOn);
+    }
+
+    @Test
+    public void testDeltaReportWithoutFullReport() {
+        _sync.processHostVmStateDeltaPingReport(HOST_ID, report("i-2-12-VM", PowerState.PowerOn), Arrays.asList("i-2-11-VM"));
+        verify(_instanceDao, times(1)).updatePowerState(12L, HOST_ID, PowerState.PowerOn);
+        verify(_instanceDao, never()).findVMByInstanceName("i-2-11-VM");
+        Assert.assertFalse(_sync.hasHostVmStateReport(HOST_ID));
+
+        _sync.processHostVmStatePingReport(HOST_ID, report("i-2-12-VM", PowerState.PowerOn));
+        _sync.resetHostSyncState(HOST_ID);
+        Assert.assertFalse(_sync.hasHostVmStateReport(HOST_ID));
+    }
+}
@@ -57,5 +57,28 @@ public interface CapacityDao extends GenericDao<CapacityVO, Long> {
 
     float findClusterConsumption(Long clusterId, short capacityType, long computeRequested);
 
+    /**
+     * Adds the cpu and ram of a vm to the used capacity of a host with a
+     * single conditional update of both rows, instead of locking them first.
+     *
+     * @param fromReserved take the cpu and ram out of the reserved capacity,
+     * only done if both the reserved cpu and ram are large enough.
+     * @param checkCapacity only allocate if used plus reserved capacity stays
+     * within the total capacity times the overcommit ratio.
+     * @return false if the condition did not hold or the host has no capacity rows,
+     * in which case nothing was changed.
+     */
+    boolean allocateHostCapacity(long hostId, long cpu, long ram, boolean fromReserved, boolean checkCapacity, float cpuOvercommitRatio, float memoryOvercommitRatio);
+
+    /**
+     * Releases the cpu and ram of a vm from a host with a single update of
+     * both rows, applying the rules of CapacityManager.releaseVmCapacity to
+     * each row.
+     *
+     * @return false if the host has no capacity rows.
+     */
+    boolean releaseHostCapacity(long hostId, long cpu, long ram, boolean moveFromReserved, boolean moveToReserved, float cpuOvercommitRatio,
+        float memoryOvercommitRatio);
+
     List<Long> orderHostsByFreeCapacity(Long clusterId, short capacityType);
 }
@@ -58,6 +58,11 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
     private static final String SUBTRACT_ALLOCATED_SQL =
             "UPDATE `cloud`.`op_host_capacity` SET used_capacity = used_capacity - ? WHERE host_id = ? AND capacity_type = ?";
 
+    // updates the cpu and memory rows of a host together, the join only matches when both exist
+    private static final String UPDATE_HOST_CAPACITY_PART1 = "UPDATE `cloud`.`op_host_capacity` cpu INNER JOIN `cloud`.`op_host_capacity` mem "
+            + "ON (mem.host_id = cpu.host_id AND mem.capacity_type = " + Capacity.CAPACITY_TYPE_MEMORY + ") SET ";
+    private static final String UPDATE_HOST_CAPACITY_PART2 = " WHERE cpu.host_id = ? AND cpu.capacity_type = " + Capacity.CAPACITY_TYPE_CPU;
+
     private static final String LIST_CLUSTERSINZONE_BY_HOST_CAPACITIES_PART1 =
             "SELECT DISTINCT capacity.cluster_id  FROM `cloud`.`op_host_capacity` capacity INNER JOIN `cloud`.`cluster` cluster on (cluster.id = capacity.cluster_id AND cluster.removed is NULL)   INNER JOIN `cloud`.`cluster_details` cluster_details ON (cluster.id = cluster_details.cluster_id ) WHERE ";
     private static final String LIST_CLUSTERSINZONE_BY_HOST_CAPACITIES_PART2 =
@@ -527,6 +532,90 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
         }
     }
 
+    @Override
+    public boolean allocateHostCapacity(long hostId, long cpu, long ram, boolean fromReserved, boolean checkCapacity, float cpuOvercommitRatio,
+        float memoryOvercommitRatio) {
+        StringBuilder sql = new StringBuilder(UPDATE_HOST_CAPACITY_PART1);
+        List<Object> params = new ArrayList<Object>();
+        sql.append("cpu.used_capacity = cpu.used_capacity + ?, mem.used_capacity = mem.used_capacity + ?");
+        params.add(cpu);
+        params.add(ram);
+        if (fromReserved) {
+            sql.append(", cpu.reserved_capacity = cpu.reserved_capacity - ?, mem.reserved_capacity = mem.reserved_capacity - ?");
+            params.add(cpu);
+            params.add(ram);
+        }
+        sql.append(UPDATE_HOST_CAPACITY_PART2);
+        params.add(hostId);
+        if (fromReserved) {
+            sql.append(" AND cpu.reserved_capacity >= ? AND mem.reserved_capacity >= ?");
+            params.add(cpu);
+            params.add(ram);
+        }
+        if (checkCapacity) {
+            sql.append(" AND cpu.used_capacity + cpu.reserved_capacity + ? <= cpu.total_capacity * ? AND mem.used_capacity + mem.reserved_capacity + ? <= mem.total_capacity * ?");
+            params.add(cpu);
+            params.add(cpuOvercommitRatio);
+            params.add(ram);
+            params.add(memoryOvercommitRatio);
+        }
+        return executeHostCapacityUpdate(sql.toString(), params) > 0;
+    }
+
+    @Override
+    public boolean releaseHostCapacity(long hostId, long cpu, long ram, boolean moveFromReserved, boolean moveToReserved, float cpuOvercommitRatio,
+        float memoryOvercommitRatio) {
+        StringBuilder sql = new StringBuilder(UPDATE_HOST_CAPACITY_PART1);
+        List<Object> params = new ArrayList<Object>();
+        // every column is only compared with its own old value, so the order MySQL assigns them in does not matter
+        if (moveFromReserved) {
+            sql.append("cpu.reserved_capacity = IF(cpu.reserved_capacity >= ?, cpu.reserved_capacity - ?, cpu.reserved_capacity), ");
+            sql.append("mem.reserved_capacity = IF(mem.reserved_capacity >= ?, mem.reserved_capacity - ?, mem.reserved_capacity)");
+            params.add(cpu);
+            params.add(cpu);
+            params.add(ram);
+            params.add(ram);
+        } else {
+            sql.append("cpu.used_capacity = IF(cpu.used_capacity >= ?, cpu.used_capacity - ?, cpu.used_capacity), ");
+            sql.append("mem.used_capacity = IF(mem.used_capacity >= ?, mem.used_capacity - ?, mem.used_capacity)");
+            params.add(cpu);
+            params.add(cpu);
+            params.add(ram);
+            params.add(ram);
+            if (moveToReserved) {
+                sql.append(", cpu.reserved_capacity = IF(cpu.reserved_capacity + ? <= cpu.total_capacity * ?, cpu.reserved_capacity + ?, cpu.reserved_capacity)");
+                sql.append(", mem.reserved_capacity = IF(mem.reserved_capacity + ? <= mem.total_capacity * ?, mem.reserved_capacity + ?, mem.reserved_capacity)");
+                params.add(cpu);
+                params.add(cpuOvercommitRatio);
+                params.add(cpu);
+                params.add(ram);
+                params.add(memoryOvercommitRatio);
+                params.add(ram);
+            }
+        }
+        sql.append(UPDATE_HOST_CAPACITY_PART2);
+        params.add(hostId);
+        return executeHostCapacityUpdate(sql.toString(), params) > 0;
+    }
+
+    private int executeHostCapacityUpdate(String sql, List<Object> params) {
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql);
+            for (int i = 0; i < params.size(); i++) {
+                Object param = params.get(i);
+                if (param instanceof Float) {
+                    pstmt.setFloat(i + 1, (Float)param);
+                } else {
+                    pstmt.setLong(i + 1, (Long)param);
+                }
+            }
+            return pstmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + sql, e);
+        }
+    }
+
     @Override
     public CapacityVO findByHostIdType(Long hostId, short capacityType) {
         SearchCriteria<CapacityVO> sc = _hostIdTypeSearch.create();
@@ -31,6 +31,21 @@ public interface UsageEventDao extends GenericDao<UsageEventVO, Long> {
 
     List<UsageEventVO> getRecentEvents(Date endDate);
 
+    /**
+     * Copies the events created up to endDate from the cloud db to the usage db.
+     */
+    void copyRecentEvents(Date endDate);
+
+    /**
+     * Lists a page of the unprocessed events created up to endDate, ordered
+     * like listLatestEvents().
+     *
+     * @param after last event of the previous page, null for the first page.
+     */
+    List<UsageEventVO> listLatestEvents(Date endDate, UsageEventVO after, int limit);
+
+    void markProcessed(List<UsageEventVO> events);
+
     List<UsageEventVO> listDirectIpEvents(Date startDate, Date endDate, long zoneId);
 
     void saveDetails(long eventId, Map<String, String> details);
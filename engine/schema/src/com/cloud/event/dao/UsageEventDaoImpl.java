@@ -18,6 +18,7 @@ package com.cloud.event.dao;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -47,6 +48,8 @@ public class UsageEventDaoImpl extends GenericDaoBase<UsageEventVO, Long> implem
     public static final Logger s_logger = Logger.getLogger(UsageEventDaoImpl.class.getName());
 
     private final SearchBuilder<UsageEventVO> latestEventsSearch;
+    private final SearchBuilder<UsageEventVO> latestEventsPageSearch;
+    private final SearchBuilder<UsageEventVO> idsSearch;
     private final SearchBuilder<UsageEventVO> IpeventsSearch;
     private static final String COPY_EVENTS =
         "INSERT INTO cloud_usage.usage_event (id, type, account_id, created, zone_id, resource_id, resource_name, offering_id, template_id, size, resource_type, virtual_size) "
@@ -68,6 +71,20 @@ public class UsageEventDaoImpl extends GenericDaoBase<UsageEventVO, Long> implem
         latestEventsSearch.and("enddate", latestEventsSearch.entity().getCreateDate(), SearchCriteria.Op.LTEQ);
         latestEventsSearch.done();
 
+        latestEventsPageSearch = createSearchBuilder();
+        latestEventsPageSearch.and("processed", latestEventsPageSearch.entity().isProcessed(), SearchCriteria.Op.EQ);
+        latestEventsPageSearch.and("enddate", latestEventsPageSearch.entity().getCreateDate(), SearchCriteria.Op.LTEQ);
+        latestEventsPageSearch.and().op("createdAfter", latestEventsPageSearch.entity().getCreateDate(), SearchCriteria.Op.GT);
+        latestEventsPageSearch.or().op("createdAt", latestEventsPageSearch.entity().getCreateDate(), SearchCriteria.Op.EQ);
+        latestEventsPageSearch.and("idAfter", latestEventsPageSearch.entity().getId(), SearchCriteria.Op.GT);
+        latestEventsPageSearch.cp();
+        latestEventsPageSearch.cp();
+        latestEventsPageSearch.done();
+
+        idsSearch = createSearchBuilder();
+        idsSearch.and("ids", idsSearch.entity().getId(), SearchCriteria.Op.IN);
+        idsSearch.done();
+
         IpeventsSearch = createSearchBuilder();
         IpeventsSearch.and("startdate", IpeventsSearch.entity().getCreateDate(), SearchCriteria.Op.GTEQ);
         IpeventsSearch.and("enddate", IpeventsSearch.entity().getCreateDate(), SearchCriteria.Op.LTEQ);
@@ -94,9 +111,49 @@ public class UsageEventDaoImpl extends GenericDaoBase<UsageEventVO, Long> implem
         return listAll(filter);
     }
 
+    @Override
+    public List<UsageEventVO> listLatestEvents(Date endDate, UsageEventVO after, int limit) {
+        // page on (created, id) rather than by moving the offset, the previous pages are marked processed meanwhile.
+        // The offset stays 0 as the filter only applies the limit along with an offset.
+        Filter filter = new Filter(UsageEventVO.class, "createDate", Boolean.TRUE, 0L, Long.valueOf(limit));
+        filter.addOrderBy(UsageEventVO.class, "id", true);
+        SearchCriteria<UsageEventVO> sc = latestEventsPageSearch.create();
+        sc.setParameters("processed", false);
+        sc.setParameters("enddate", endDate);
+        Date createdAfter = after == null ? new Date(0) : after.getCreateDate();
+        sc.setParameters("createdAfter", createdAfter);
+        sc.setParameters("createdAt", createdAfter);
+        sc.setParameters("idAfter", after == null ? 0 : after.getId());
+        return listBy(sc, filter);
+    }
+
+    @Override
+    public void markProcessed(List<UsageEventVO> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        List<Long> ids = new ArrayList<Long>(events.size());
+        for (UsageEventVO event : events) {
+            event.setProcessed(true);
+            ids.add(event.getId());
+        }
+        SearchCriteria<UsageEventVO> sc = idsSearch.create();
+        sc.setParameters("ids", ids.toArray());
+        UsageEventVO vo = createForUpdate();
+        vo.setProcessed(true);
+        update(vo, sc);
+    }
+
     @Override
     @DB
     public synchronized List<UsageEventVO> getRecentEvents(Date endDate) {
+        copyRecentEvents(endDate);
+        return findRecentEvents(endDate);
+    }
+
+    @Override
+    @DB
+    public synchronized void copyRecentEvents(Date endDate) {
         long recentEventId = getMostRecentEventId();
         long maxEventId = getMaxEventId(endDate);
         TransactionLegacy txn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
@@ -155,8 +212,6 @@ public class UsageEventDaoImpl extends GenericDaoBase<UsageEventVO, Long> implem
         } finally {
             txn.close();
         }
-
-        return findRecentEvents(endDate);
     }
 
     @DB
@@ -54,5 +54,17 @@ public interface UsageDao extends GenericDao<UsageVO, Long> {
 
     void saveUsageRecords(List<UsageVO> usageRecords);
 
+    /**
+     * Buffers the usage records persisted by the current thread and inserts
+     * them batchSize at a time, until endBatch().
+     */
+    void beginBatch(int batchSize);
+
+    /**
+     * Stops buffering the usage records of the current thread, inserting the
+     * buffered ones if flush is set.
+     */
+    void endBatch(boolean flush);
+
     void removeOldUsageRecords(int days);
 }
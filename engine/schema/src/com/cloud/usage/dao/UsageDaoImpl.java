@@ -70,10 +70,12 @@ public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements Usage
     private static final String INSERT_USAGE_RECORDS = "INSERT INTO cloud_usage.cloud_usage (zone_id, account_id, domain_id, description, usage_display, "
             +
             "usage_type, raw_usage, vm_instance_id, vm_name, offering_id, template_id, "
-            + "usage_id, type, size, network_id, start_date, end_date, virtual_size) VALUES (?,?,?,?,?,?,?,?,?, ?, ?, ?,?,?,?,?,?,?)";
+            + "usage_id, type, size, network_id, start_date, end_date, virtual_size, cpu_cores, cpu_speed, memory) VALUES (?,?,?,?,?,?,?,?,?, ?, ?, ?,?,?,?,?,?,?,?,?,?)";
 
     protected final static TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
 
+    private final ThreadLocal<Batch> _batch = new ThreadLocal<Batch>();
+
     public UsageDaoImpl() {
     }
 
@@ -440,6 +442,21 @@ public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements Usage
                 } else {
                     pstmt.setNull(18, Types.BIGINT);
                 }
+                if (usageRecord.getCpuCores() != null) {
+                    pstmt.setLong(19, usageRecord.getCpuCores());
+                } else {
+                    pstmt.setNull(19, Types.BIGINT);
+                }
+                if (usageRecord.getCpuSpeed() != null) {
+                    pstmt.setLong(20, usageRecord.getCpuSpeed());
+                } else {
+                    pstmt.setNull(20, Types.BIGINT);
+                }
+                if (usageRecord.getMemory() != null) {
+                    pstmt.setLong(21, usageRecord.getMemory());
+                } else {
+                    pstmt.setNull(21, Types.BIGINT);
+                }
                 pstmt.addBatch();
             }
             pstmt.executeBatch();
@@ -451,6 +468,34 @@ public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements Usage
         }
     }
 
+    @Override
+    public UsageVO persist(UsageVO usageRecord) {
+        Batch batch = _batch.get();
+        if (batch == null) {
+            return super.persist(usageRecord);
+        }
+        batch.records.add(usageRecord);
+        if (batch.records.size() >= batch.size) {
+            saveUsageRecords(batch.records);
+            batch.records.clear();
+        }
+        return usageRecord;
+    }
+
+    @Override
+    public void beginBatch(int batchSize) {
+        _batch.set(new Batch(batchSize));
+    }
+
+    @Override
+    public void endBatch(boolean flush) {
+        Batch batch = _batch.get();
+        _batch.remove();
+        if (flush && batch != null && !batch.records.isEmpty()) {
+            saveUsageRecords(batch.records);
+        }
+    }
+
     @Override
     public void removeOldUsageRecords(int days) {
         String sql = DELETE_ALL_BY_INTERVAL;
@@ -469,4 +514,13 @@ public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements Usage
             txn.close();
         }
     }
+
+    private static class Batch {
+        final int size;
+        final List<UsageVO> records = new ArrayList<UsageVO>();
+
+        Batch(int size) {
+            this.size = size;
+        }
+    }
 }
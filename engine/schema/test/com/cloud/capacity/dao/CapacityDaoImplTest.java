@@ -0,0 +1,181 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.cloud.utils.db.TransactionLegacy;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CapacityDaoImplTest {
+    private static final long HOST_ID = 7L;
+
+    @Mock
+    private DataSource dataSource;
+
+    @Mock
+    private Connection connection;
+
+    @Mock
+    private PreparedStatement statement;
+
+    private final CapacityDaoImpl capacityDao = new CapacityDaoImpl();
+    private DataSource backup;
+    private TransactionLegacy txn;
+
+    @Before
+    public void setup() throws Exception {
+        Field dsField = TransactionLegacy.class.getDeclaredField("s_ds");
+        dsField.setAccessible(true);
+        backup = (DataSource)dsField.get(null);
+        dsField.set(null, dataSource);
+
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(statement);
+        when(statement.executeUpdate()).thenReturn(2);
+        txn = TransactionLegacy.open("CapacityDaoImplTest");
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        txn.close();
+        Field dsField = TransactionLegacy.class.getDeclaredField("s_ds");
+        dsField.setAccessible(true);
+        dsField.set(null, backup);
+    }
+
+    /**
+     * @return the executed update with the bound parameters written in place of the ?s.
+     */
+    private String executedSql() throws SQLException {
+        ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+        verify(connection).prepareStatement(sql.capture());
+
+        Map<Integer, Object> params = new HashMap<Integer, Object>();
+        ArgumentCaptor<Integer> longIndexes = ArgumentCaptor.forClass(Integer.class);
+        ArgumentCaptor<Long> longs = ArgumentCaptor.forClass(Long.class);
+        verify(statement, atLeast(0)).setLong(longIndexes.capture(), longs.capture());
+        putAll(params, longIndexes.getAllValues(), longs.getAllValues());
+        ArgumentCaptor<Integer> floatIndexes = ArgumentCaptor.forClass(Integer.class);
+        ArgumentCaptor<Float> floats = ArgumentCaptor.forClass(Float.class);
+        verify(statement, atLeast(0)).setFloat(floatIndexes.capture(), floats.capture());
+        putAll(params, floatIndexes.getAllValues(), floats.getAllValues());
+
+        StringBuilder result = new StringBuilder();
+        int index = 0;
+        for (char c : sql.getValue().toCharArray()) {
+            if (c == '?') {
+                result.append(params.get(++index));
+            } else {
+                result.append(c);
+            }
+        }
+        assertEquals(params.size(), index);
+        return result.toString();
+    }
+
+    private static void putAll(Map<Integer, Object> params, List<Integer> indexes, List<? extends Object> values) {
+        for (int i = 0; i < indexes.size(); i++) {
+            params.put(indexes.get(i), values.get(i));
+        }
+    }
+
+    @Test
+    public void testAllocateFromReserved() throws Exception {
+        assertTrue(capacityDao.allocateHostCapacity(HOST_ID, 1000, 512, true, false, 2f, 1.5f));
+
+        String sql = executedSql();
+        assertTrue(sql, sql.contains("SET cpu.used_capacity = cpu.used_capacity + 1000, mem.used_capacity = mem.used_capacity + 512, "
+            + "cpu.reserved_capacity = cpu.reserved_capacity - 1000, mem.reserved_capacity = mem.reserved_capacity - 512 WHERE"));
+        assertTrue(sql, sql.endsWith(" WHERE cpu.host_id = 7 AND cpu.capacity_type = 1 AND cpu.reserved_capacity >= 1000 AND mem.reserved_capacity >= 512"));
+    }
+
+    @Test
+    public void testAllocateWithinOvercommit() throws Exception {
+        when(statement.executeUpdate()).thenReturn(0);
+        assertFalse(capacityDao.allocateHostCapacity(HOST_ID, 1000, 512, false, true, 2f, 1.5f));
+
+        String sql = executedSql();
+        assertTrue(sql, sql.contains("SET cpu.used_capacity = cpu.used_capacity + 1000, mem.used_capacity = mem.used_capacity + 512 WHERE"));
+        assertTrue(sql, sql.endsWith(" WHERE cpu.host_id = 7 AND cpu.capacity_type = 1 AND cpu.used_capacity + cpu.reserved_capacity + 1000 <= cpu.total_capacity * 2.0"
+            + " AND mem.used_capacity + mem.reserved_capacity + 512 <= mem.total_capacity * 1.5"));
+    }
+
+    @Test
+    public void testAllocateUnconditionally() throws Exception {
+        assertTrue(capacityDao.allocateHostCapacity(HOST_ID, 1000, 512, false, false, 2f, 1.5f));
+
+        String sql = executedSql();
+        assertTrue(sql, sql.endsWith("SET cpu.used_capacity = cpu.used_capacity + 1000, mem.used_capacity = mem.used_capacity + 512"
+            + " WHERE cpu.host_id = 7 AND cpu.capacity_type = 1"));
+    }
+
+    @Test
+    public void testReleaseFromReserved() throws Exception {
+        assertTrue(capacityDao.releaseHostCapacity(HOST_ID, 1000, 512, true, false, 2f, 1.5f));
+
+        String sql = executedSql();
+        assertTrue(sql, sql.endsWith("SET cpu.reserved_capacity = IF(cpu.reserved_capacity >= 1000, cpu.reserved_capacity - 1000, cpu.reserved_capacity), "
+            + "mem.reserved_capacity = IF(mem.reserved_capacity >= 512, mem.reserved_capacity - 512, mem.reserved_capacity) WHERE cpu.host_id = 7 AND cpu.capacity_type = 1"));
+    }
+
+    @Test
+    public void testReleaseToReserved() throws Exception {
+        assertTrue(capacityDao.releaseHostCapacity(HOST_ID, 1000, 512, false, true, 2f, 1.5f));
+
+        String sql = executedSql();
+        assertTrue(sql, sql.endsWith("SET cpu.used_capacity = IF(cpu.used_capacity >= 1000, cpu.used_capacity - 1000, cpu.used_capacity), "
+            + "mem.used_capacity = IF(mem.used_capacity >= 512, mem.used_capacity - 512, mem.used_capacity), "
+            + "cpu.reserved_capacity = IF(cpu.reserved_capacity + 1000 <= cpu.total_capacity * 2.0, cpu.reserved_capacity + 1000, cpu.reserved_capacity), "
+            + "mem.reserved_capacity = IF(mem.reserved_capacity + 512 <= mem.total_capacity * 1.5, mem.reserved_capacity + 512, mem.reserved_capacity)"
+            + " WHERE cpu.host_id = 7 AND cpu.capacity_type = 1"));
+    }
+
+    @Test
+    public void testReleaseUsed() throws Exception {
+        when(statement.executeUpdate()).thenReturn(0);
+        assertFalse(capacityDao.releaseHostCapacity(HOST_ID, 1000, 512, false, false, 2f, 1.5f));
+
+        String sql = executedSql();
+        assertTrue(sql, sql.endsWith("SET cpu.used_capacity = IF(cpu.used_capacity >= 1000, cpu.used_capacity - 1000, cpu.used_capacity), "
+            + "mem.used_capacity = IF(mem.used_capacity >= 512, mem.used_capacity - 512, mem.used_capacity) WHERE cpu.host_id = 7 AND cpu.capacity_type = 1"));
+    }
+}
@@ -0,0 +1,162 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.event.dao;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.cloud.event.UsageEventVO;
+import com.cloud.utils.DateUtil;
+import com.cloud.utils.db.TransactionLegacy;
+
+@RunWith(MockitoJUnitRunner.class)
+public class UsageEventDaoImplTest {
+    @Mock
+    private DataSource dataSource;
+
+    @Mock
+    private Connection connection;
+
+    @Mock
+    private PreparedStatement statement;
+
+    @Mock
+    private ResultSet resultSet;
+
+    private final UsageEventDaoImpl usageEventDao = new UsageEventDaoImpl();
+    private DataSource backup;
+    private TransactionLegacy txn;
+
+    @Before
+    public void setup() throws Exception {
+        Field dsField = TransactionLegacy.class.getDeclaredField("s_ds");
+        dsField.setAccessible(true);
+        backup = (DataSource)dsField.get(null);
+        dsField.set(null, dataSource);
+
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(statement);
+        when(statement.executeQuery()).thenReturn(resultSet);
+        when(statement.executeUpdate()).thenReturn(3);
+        txn = TransactionLegacy.open("UsageEventDaoImplTest");
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        txn.close();
+        Field dsField = TransactionLegacy.class.getDeclaredField("s_ds");
+        dsField.setAccessible(true);
+        dsField.set(null, backup);
+    }
+
+    private String executedSql() throws Exception {
+        ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+        verify(connection).prepareStatement(sql.capture());
+        return sql.getValue();
+    }
+
+    private static String gmt(Date date) {
+        return DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), date);
+    }
+
+    @Test
+    public void listLatestEventsFirstPage() throws Exception {
+        Date endDate = new Date(1400000000000L);
+        usageEventDao.listLatestEvents(endDate, null, 100);
+
+        String sql = executedSql();
+        assertTrue(sql, sql.contains("WHERE usage_event.processed = ?  AND usage_event.created <= ?  AND  ( usage_event.created > ?  OR  ( usage_event.created = ?  AND usage_event.id > ?  )  )"));
+        assertTrue(sql, sql.endsWith(" ORDER BY usage_event.created ASC , usage_event.id ASC  LIMIT 0, 100"));
+        verify(statement).setObject(1, false);
+        verify(statement).setString(2, gmt(endDate));
+        verify(statement).setString(3, gmt(new Date(0)));
+        verify(statement).setString(4, gmt(new Date(0)));
+        verify(statement).setObject(5, 0L);
+    }
+
+    @Test
+    public void listLatestEventsNextPageSharingTimestamp() throws Exception {
+        // the events left of the previous page may have been created within the same second as its last event
+        Date endDate = new Date(1400000000000L);
+        Date lastCreated = new Date(1399999990000L);
+        UsageEventVO last = mock(UsageEventVO.class);
+        when(last.getCreateDate()).thenReturn(lastCreated);
+        when(last.getId()).thenReturn(5L);
+        usageEventDao.listLatestEvents(endDate, last, 100);
+
+        String sql = executedSql();
+        assertTrue(sql, sql.contains("( usage_event.created > ?  OR  ( usage_event.created = ?  AND usage_event.id > ?  )  )"));
+        assertTrue(sql, sql.endsWith(" LIMIT 0, 100"));
+        verify(statement).setString(3, gmt(lastCreated));
+        verify(statement).setString(4, gmt(lastCreated));
+        verify(statement).setObject(5, 5L);
+    }
+
+    @Test
+    public void markProcessed() throws Exception {
+        List<UsageEventVO> events = Arrays.asList(event(3L), event(4L), event(9L));
+        usageEventDao.markProcessed(events);
+
+        String sql = executedSql();
+        assertTrue(sql, sql.startsWith("UPDATE usage_event SET usage_event.processed=? WHERE"));
+        assertTrue(sql, sql.contains("usage_event.id IN (?,?,?)"));
+        verify(statement).setObject(1, true);
+        verify(statement).setObject(2, 3L);
+        verify(statement).setObject(3, 4L);
+        verify(statement).setObject(4, 9L);
+        verify(statement).executeUpdate();
+        for (UsageEventVO event : events) {
+            verify(event).setProcessed(true);
+        }
+    }
+
+    @Test
+    public void markProcessedNothing() throws Exception {
+        usageEventDao.markProcessed(Collections.<UsageEventVO> emptyList());
+        verify(dataSource, never()).getConnection();
+    }
+
+    private static UsageEventVO event(long id) {
+        UsageEventVO event = mock(UsageEventVO.class);
+        when(event.getId()).thenReturn(id);
+        return event;
+    }
+}
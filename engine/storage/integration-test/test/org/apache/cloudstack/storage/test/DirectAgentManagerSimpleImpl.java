@@ -277,6 +277,11 @@ public class DirectAgentManagerSimpleImpl extends ManagerBase implements AgentMa
         return false;
     }
 
+    @Override
+    public int getOutstandingRequests(long hostId) {
+        return 0;
+    }
+
     @Override
     public boolean handleDirectConnectAgent(Host host, StartupCommand[] cmds, ServerResource resource, boolean forRebalance) throws ConnectionException {
         // TODO Auto-generated method stub
@@ -26,7 +26,10 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 
 import org.apache.log4j.Logger;
@@ -44,16 +47,26 @@ import org.apache.cloudstack.engine.subsystem.api.storage.VolumeInfo;
 import org.apache.cloudstack.storage.LocalHostEndpoint;
 import org.apache.cloudstack.storage.RemoteHostEndPoint;
 
+import com.cloud.agent.AgentManager;
+import com.cloud.agent.Listener;
+import com.cloud.agent.api.AgentControlAnswer;
+import com.cloud.agent.api.AgentControlCommand;
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.StartupCommand;
+import com.cloud.exception.ConnectionException;
 import com.cloud.host.Host;
 import com.cloud.host.HostVO;
 import com.cloud.host.Status;
 import com.cloud.host.dao.HostDao;
 import com.cloud.hypervisor.Hypervisor;
+import com.cloud.resource.ResourceState;
 import com.cloud.storage.DataStoreRole;
 import com.cloud.storage.ScopeType;
 import com.cloud.storage.Storage.TemplateType;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.QueryBuilder;
+import com.cloud.utils.db.QueryCache;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.utils.exception.CloudRuntimeException;
@@ -64,6 +77,13 @@ public class DefaultEndPointSelector implements EndPointSelector {
     private static final Logger s_logger = Logger.getLogger(DefaultEndPointSelector.class);
     @Inject
     HostDao hostDao;
+    @Inject
+    AgentManager agentMgr;
+    // hosts that reach a primary storage pool within a scope, kept until the pool hosts change. Hosts are
+    // written on every ping, so host status changes only clear it on connect and disconnect, or expire it
+    private final QueryCache<Long> poolHostCache = new QueryCache<Long>("EndPointSelector", new String[] {"storage_pool_host_ref"}, 4096, 600);
+    private final Random random = new Random();
+    private int hostListenerId = -1;
     private final String findOneHostOnPrimaryStorage =
         "select h.id from host h, storage_pool_host_ref s  where h.status = 'Up' and h.type = 'Routing' and h.resource_state = 'Enabled' and"
             + " h.id = s.host_id and s.pool_id = ? ";
@@ -99,8 +119,59 @@ public class DefaultEndPointSelector implements EndPointSelector {
         }
     }
 
-    @DB
+    @PostConstruct
+    public void init() {
+        hostListenerId = agentMgr.registerForHostEvents(new PoolHostListener(), true, false, false);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (hostListenerId != -1) {
+            agentMgr.unregisterForHostEvents(hostListenerId);
+        }
+        poolHostCache.close();
+    }
+
     protected EndPoint findEndPointInScope(Scope scope, String sqlBase, Long poolId) {
+        String key = poolId + "-" + scope.getScopeType() + "-" + scope.getScopeId();
+        HostVO host = null;
+        // the view may be behind a host that went down since, look once more in the database then
+        for (int attempt = 0; attempt < 2 && host == null; attempt++) {
+            List<Long> hostIds = attempt == 0 ? poolHostCache.get(key) : null;
+            boolean cached = hostIds != null;
+            if (!cached) {
+                long stamp = poolHostCache.stamp();
+                hostIds = listHostsInScope(scope, sqlBase, poolId);
+                // results read inside a transaction may see its uncommitted changes
+                if (!hostIds.isEmpty() && !TransactionLegacy.currentTxn().dbTxnStarted()) {
+                    poolHostCache.put(key, stamp, hostIds);
+                }
+            }
+
+            while (!hostIds.isEmpty()) {
+                Long hostId = pickLeastLoadedHost(hostIds);
+                host = hostDao.findById(hostId);
+                if (host != null && host.getStatus() == Status.Up && host.getResourceState() == ResourceState.Enabled) {
+                    break;
+                }
+                host = null;
+                hostIds.remove(hostId);
+            }
+            if (host != null || !cached) {
+                break;
+            }
+            poolHostCache.clear();
+        }
+
+        if (host == null) {
+            return null;
+        }
+
+        return RemoteHostEndPoint.getHypervisorHostEndPoint(host);
+    }
+
+    @DB
+    protected List<Long> listHostsInScope(Scope scope, String sqlBase, Long poolId) {
         StringBuilder sbuilder = new StringBuilder();
         sbuilder.append(sqlBase);
 
@@ -114,17 +185,14 @@ public class DefaultEndPointSelector implements EndPointSelector {
             sbuilder.append(" and h.data_center_id = ");
             sbuilder.append(scope.getScopeId());
         }
-        // TODO: order by rand() is slow if there are lot of hosts
-        sbuilder.append(" ORDER by rand() limit 1");
         String sql = sbuilder.toString();
-        HostVO host = null;
+        List<Long> hostIds = new ArrayList<Long>();
         TransactionLegacy txn = TransactionLegacy.currentTxn();
         try(PreparedStatement pstmt = txn.prepareStatement(sql);) {
             pstmt.setLong(1, poolId);
             try(ResultSet rs = pstmt.executeQuery();) {
                 while (rs.next()) {
-                    long id = rs.getLong(1);
-                    host = hostDao.findById(id);
+                    hostIds.add(rs.getLong(1));
                 }
             }catch (SQLException e) {
                 s_logger.warn("can't find endpoint", e);
@@ -132,11 +200,77 @@ public class DefaultEndPointSelector implements EndPointSelector {
         } catch (SQLException e) {
             s_logger.warn("can't find endpoint", e);
         }
-        if (host == null) {
+        return hostIds;
+    }
+
+    /**
+     * Picks the less loaded of two random hosts, by the number of requests
+     * outstanding on their agents.  Comparing two instead of taking the least
+     * loaded of all keeps concurrent selections, made before their commands
+     * reach the agents, from all going to the same host.
+     */
+    protected Long pickLeastLoadedHost(List<Long> hostIds) {
+        int size = hostIds.size();
+        if (size == 1) {
+            return hostIds.get(0);
+        }
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+        Long firstId = hostIds.get(first);
+        Long secondId = hostIds.get(second);
+        return agentMgr.getOutstandingRequests(secondId) < agentMgr.getOutstandingRequests(firstId) ? secondId : firstId;
+    }
+
+    /**
+     * Drops the cached hosts when a host connects or disconnects, the cache
+     * does not follow the writes to the host table.
+     */
+    protected class PoolHostListener implements Listener {
+        @Override
+        public boolean processAnswers(long agentId, long seq, Answer[] answers) {
+            return false;
+        }
+
+        @Override
+        public boolean processCommands(long agentId, long seq, Command[] commands) {
+            return false;
+        }
+
+        @Override
+        public AgentControlAnswer processControlCommand(long agentId, AgentControlCommand cmd) {
             return null;
         }
 
-        return RemoteHostEndPoint.getHypervisorHostEndPoint(host);
+        @Override
+        public void processConnect(Host host, StartupCommand cmd, boolean forRebalance) throws ConnectionException {
+            if (host.getType() == Host.Type.Routing) {
+                poolHostCache.clear();
+            }
+        }
+
+        @Override
+        public boolean processDisconnect(long agentId, Status state) {
+            poolHostCache.clear();
+            return true;
+        }
+
+        @Override
+        public boolean isRecurring() {
+            return false;
+        }
+
+        @Override
+        public int getTimeout() {
+            return -1;
+        }
+
+        @Override
+        public boolean processTimeout(long agentId, long seq) {
+            return false;
+        }
     }
 
     protected EndPoint findEndPointForImageMove(DataStore srcStore, DataStore destStore) {
@@ -0,0 +1,56 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.storage.endpoint;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.agent.AgentManager;
+
+public class DefaultEndPointSelectorTest {
+    @Test
+    public void testPickLeastLoadedHost() {
+        DefaultEndPointSelector selector = new DefaultEndPointSelector();
+        selector.agentMgr = mock(AgentManager.class);
+        when(selector.agentMgr.getOutstandingRequests(1L)).thenReturn(10);
+        when(selector.agentMgr.getOutstandingRequests(2L)).thenReturn(0);
+        when(selector.agentMgr.getOutstandingRequests(3L)).thenReturn(1);
+        when(selector.agentMgr.getOutstandingRequests(4L)).thenReturn(1);
+
+        Assert.assertEquals(Long.valueOf(1L), selector.pickLeastLoadedHost(Arrays.asList(1L)));
+
+        List<Long> hostIds = Arrays.asList(1L, 2L, 3L, 4L);
+        Map<Long, Integer> picks = new HashMap<Long, Integer>();
+        for (int i = 0; i < 1000; i++) {
+            Long hostId = selector.pickLeastLoadedHost(hostIds);
+            picks.put(hostId, picks.containsKey(hostId) ? picks.get(hostId) + 1 : 1);
+        }
+        // the most loaded host loses every comparison, the others all get work
+        Assert.assertNull(picks.get(1L));
+        Assert.assertTrue(picks.get(2L) > picks.get(3L));
+        Assert.assertTrue(picks.get(3L) > 0);
+        Assert.assertTrue(picks.get(4L) > 0);
+    }
+}
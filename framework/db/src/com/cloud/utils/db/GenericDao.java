@@ -199,6 +199,14 @@ public interface GenericDao<T, ID extends Serializable> {
      **/
     T persist(T entity);
 
+    /**
+     * Persist the entity beans with JDBC batches.  Unlike persist(), the id
+     * fields of the entities are not updated and the entities are not read
+     * back, so this is meant for rows that are only inserted.
+     * @param entities the beans to persist.
+     */
+    void persistInBatch(List<T> entities);
+
     /**
      * remove the entity bean.  This will call delete automatically if
      * the entity bean does not have a removed field.
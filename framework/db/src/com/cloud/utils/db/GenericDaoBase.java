@@ -41,6 +41,7 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
@@ -77,6 +78,7 @@ import com.cloud.utils.component.ComponentMethodInterceptable;
 import com.cloud.utils.crypt.DBEncryptionUtil;
 import com.cloud.utils.db.SearchCriteria.SelectType;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.net.Ip;
 import com.cloud.utils.net.NetUtils;
 
@@ -394,6 +396,18 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
         final String sql = str.toString();
 
+        // searches in a transaction may see its own changes, and locks have to reach the db
+        String cacheKey = null;
+        long cacheStamp = 0;
+        if (_queryCache != null && lock == null && joins == null && !txn.dbTxnStarted()) {
+            cacheKey = buildQueryCacheKey(sql, clause != null ? sc.getValues() : null, groupByValues);
+            cacheStamp = _queryCache.stamp();
+            final List<T> cached = _queryCache.get(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
         PreparedStatement pstmt = null;
         final List<T> result = new ArrayList<T>();
         try {
@@ -422,6 +436,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             while (rs.next()) {
                 result.add(toEntityBean(rs, cache));
             }
+            if (cacheKey != null) {
+                _queryCache.put(cacheKey, cacheStamp, result);
+            }
             return result;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -430,6 +447,44 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         }
     }
 
+    protected static String buildQueryCacheKey(final String sql, final List<Pair<Attribute, Object>> values, final List<Object> groupByValues) {
+        final StringBuilder key = new StringBuilder(sql);
+        if (values != null) {
+            for (final Pair<Attribute, Object> value : values) {
+                appendQueryCacheKey(key, value.second());
+            }
+        }
+        if (groupByValues != null) {
+            for (final Object value : groupByValues) {
+                appendQueryCacheKey(key, value);
+            }
+        }
+        return key.toString();
+    }
+
+    private static void appendQueryCacheKey(final StringBuilder key, final Object value) {
+        key.append('\0');
+        if (value == null) {
+            key.append('\1');
+        } else if (value instanceof Object[]) {
+            key.append(Arrays.deepToString((Object[])value));
+        } else if (value instanceof Date) {
+            key.append(((Date)value).getTime());
+        } else {
+            key.append(value);
+        }
+    }
+
+    /**
+     * Invalidates the cached searches on the tables of this DAO once the
+     * current transaction commits.
+     */
+    protected void invalidateQueryCache() {
+        for (final String table : _idAttributes.keySet()) {
+            QueryCache.invalidateAfterCommit(table);
+        }
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public <M> List<M> customSearchIncludingRemoved(SearchCriteria<M> sc, final Filter filter) {
@@ -843,6 +898,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             }
 
             int result = pstmt.executeUpdate();
+            if (result > 0) {
+                invalidateQueryCache();
+            }
             txn.commit();
             ub.clear();
             return result;
@@ -1171,6 +1229,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
                 pstmt.executeUpdate();
             }
 
+            invalidateQueryCache();
             txn.commit();
             if (_cache != null) {
                 _cache.remove(id);
@@ -1206,7 +1265,11 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             for (final Pair<Attribute, Object> value : sc.getValues()) {
                 prepareAttribute(++i, pstmt, value.first(), value.second());
             }
-            return pstmt.executeUpdate();
+            final int result = pstmt.executeUpdate();
+            if (result > 0) {
+                invalidateQueryCache();
+            }
+            return result;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
         } catch (final Throwable e) {
@@ -1402,6 +1465,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
                 insertElementCollection(entity, _idAttributes.get(_table)[0], id, ecAttributes);
             }
+            invalidateQueryCache();
             txn.commit();
         } catch (final SQLException e) {
             if (e.getSQLState().equals("23000") && e.getErrorCode() == 1062) {
@@ -1418,6 +1482,41 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         return _idField != null ? findByIdIncludingRemoved(id) : null;
     }
 
+    @Override
+    public void persistInBatch(final List<T> entities) {
+        if (entities.isEmpty()) {
+            return;
+        }
+        if (_insertSqls.size() > 1 || (_ecAttributes != null && _ecAttributes.size() > 0)) {
+            // the secondary tables and the element collections need the id generated for every entity
+            for (final T entity : entities) {
+                persist(entity);
+            }
+            return;
+        }
+
+        final TransactionLegacy txn = TransactionLegacy.currentTxn();
+        final Pair<String, Attribute[]> pair = _insertSqls.get(0);
+        PreparedStatement pstmt = null;
+        try {
+            txn.start();
+            pstmt = txn.prepareAutoCloseStatement(pair.first());
+            for (final T entity : entities) {
+                prepareAttributes(pstmt, entity, pair.second(), 1);
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+            invalidateQueryCache();
+            txn.commit();
+        } catch (final SQLException e) {
+            if ("23000".equals(e.getSQLState()) && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists: ", e);
+            } else {
+                throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+            }
+        }
+    }
+
     protected void insertElementCollection(T entity, Attribute idAttribute, ID id, Map<Attribute, Object> ecAttributes) throws SQLException {
         TransactionLegacy txn = TransactionLegacy.currentTxn();
         txn.start();
@@ -1733,6 +1832,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             pstmt = txn.prepareAutoCloseStatement(sql.toString());
 
             pstmt.executeUpdate();
+            invalidateQueryCache();
             txn.commit();
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on " + pstmt, e);
@@ -1772,6 +1872,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             }
 
             final int result = pstmt.executeUpdate();
+            if (result > 0) {
+                invalidateQueryCache();
+            }
             txn.commit();
             if (_cache != null) {
                 _cache.remove(id);
@@ -1796,6 +1899,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     }
 
     protected Cache _cache;
+    protected QueryCache<T> _queryCache;
 
     @DB()
     protected void createCache(final Map<String, ? extends Object> params) {
@@ -1812,6 +1916,30 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         } else {
             _cache = null;
         }
+
+        final String querySize = (String)params.get("cache.query.size");
+        if (querySize != null) {
+            final int live = NumbersUtil.parseInt((String)params.get("cache.query.time.to.live"), 300);
+            final Set<String> tables = _idAttributes.keySet();
+            _queryCache = new QueryCache<T>(getName(), tables.toArray(new String[tables.size()]), NumbersUtil.parseInt(querySize, 0), live) {
+                @Override
+                protected void peerInvalidated() {
+                    super.peerInvalidated();
+                    // the entities may have been changed by the peer as well
+                    if (_cache != null) {
+                        _cache.removeAll();
+                    }
+                }
+            };
+            try {
+                JmxUtil.registerMBean("QueryCache", getName(), _queryCache);
+            } catch (final Exception e) {
+                s_logger.warn("Unable to register the query cache of " + getName() + " to JMX", e);
+            }
+            s_logger.info("Query cache created for " + _queryCache.getTables());
+        } else {
+            _queryCache = null;
+        }
     }
 
     @Override
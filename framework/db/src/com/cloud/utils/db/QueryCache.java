@@ -0,0 +1,365 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * QueryCache keeps the results of the searches of a DAO, keyed by the SQL
+ * and its parameters.
+ *
+ * Every table read by a cache has a version that is bumped after each
+ * committed write to the table, through any DAO, and when a peer management
+ * server reports a write.  A result is only served if the versions of its
+ * tables did not change since it was read, so a search running concurrently
+ * with a write never caches what it read before the write.
+ *
+ * Like the entity cache, the entities are shared between the callers, so the
+ * cache is meant for read mostly tables written through GenericDaoBase only.
+ */
+public class QueryCache<T> extends StandardMBean implements QueryCacheMBean {
+    private static final Logger s_logger = Logger.getLogger(QueryCache.class);
+
+    /**
+     * Published on the MessageBus with the table name as argument when a
+     * cached table is written by this or a peer management server.
+     */
+    public static final String MESSAGE_TABLE_INVALIDATED_EVENT = "Message.QueryCache.TableInvalidated.Event";
+
+    // only tables read by a cache have a version
+    private static final ConcurrentHashMap<String, AtomicLong> s_versions = new ConcurrentHashMap<String, AtomicLong>();
+    private static final ConcurrentHashMap<String, List<QueryCache<?>>> s_caches = new ConcurrentHashMap<String, List<QueryCache<?>>>();
+    private static final List<InvalidationListener> s_listeners = new CopyOnWriteArrayList<InvalidationListener>();
+    // last version received from every peer for every table, by "peer:table"
+    private static final ConcurrentHashMap<String, Long> s_peerVersions = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Notified after a local write to a cached table, to tell the peers.
+     */
+    public interface InvalidationListener {
+        void onInvalidate(String table, long version);
+    }
+
+    private final String _name;
+    private final String[] _tables;
+    private final int _maxEntries;
+    private final long _timeToLive;
+    private final Map<String, Entry<T>> _entries;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _staleResults = new AtomicLong();
+    private final AtomicLong _peerInvalidations = new AtomicLong();
+
+    /**
+     * @param name name of the DAO.
+     * @param tables every table the results are read from.
+     * @param maxEntries number of results kept, the least recently used are evicted.
+     * @param timeToLive seconds a result is kept, -1 to keep it until invalidated.
+     */
+    public QueryCache(final String name, final String[] tables, final int maxEntries, final int timeToLive) {
+        super(QueryCacheMBean.class, false);
+        _name = name;
+        _tables = tables.clone();
+        _maxEntries = maxEntries;
+        _timeToLive = timeToLive < 0 ? -1 : timeToLive * 1000L;
+        _entries = new LinkedHashMap<String, Entry<T>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Entry<T>> eldest) {
+                return size() > _maxEntries;
+            }
+        };
+
+        for (final String table : _tables) {
+            s_versions.putIfAbsent(table, new AtomicLong());
+            s_caches.putIfAbsent(table, new CopyOnWriteArrayList<QueryCache<?>>());
+            s_caches.get(table).add(this);
+        }
+    }
+
+    /**
+     * @return a stamp of the versions of the tables, to be taken before the
+     * search and handed to put().
+     */
+    public long stamp() {
+        long stamp = 0;
+        for (final String table : _tables) {
+            stamp += s_versions.get(table).get();
+        }
+        return stamp;
+    }
+
+    /**
+     * @return a copy of the cached result, or null if there is none that is current.
+     */
+    public List<T> get(final String key) {
+        final long now = System.currentTimeMillis();
+        final long stamp = stamp();
+        synchronized (_entries) {
+            final Entry<T> entry = _entries.get(key);
+            if (entry != null) {
+                if (entry.stamp == stamp && (entry.expires == -1 || entry.expires > now)) {
+                    _hits.incrementAndGet();
+                    return new ArrayList<T>(entry.result);
+                }
+                _entries.remove(key);
+            }
+        }
+        _misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches the result unless one of its tables was written since the stamp was taken.
+     */
+    public void put(final String key, final long stamp, final List<T> result) {
+        if (_maxEntries <= 0) {
+            return;
+        }
+        if (stamp != stamp()) {
+            _staleResults.incrementAndGet();
+            return;
+        }
+        final Entry<T> entry = new Entry<T>(stamp, _timeToLive == -1 ? -1 : System.currentTimeMillis() + _timeToLive, new ArrayList<T>(result));
+        synchronized (_entries) {
+            _entries.put(key, entry);
+        }
+    }
+
+    /**
+     * Called when a peer wrote one of the tables.  The results are already
+     * stale by then, this is for caches that are not versioned.
+     */
+    protected void peerInvalidated() {
+        _peerInvalidations.incrementAndGet();
+        clear();
+    }
+
+    public void close() {
+        for (final String table : _tables) {
+            s_caches.get(table).remove(this);
+        }
+        clear();
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * Versions the table without caching searches on it, for the caches kept
+     * outside of the DAOs that compare the version of the table instead.
+     */
+    public static void addTable(final String table) {
+        s_versions.putIfAbsent(table, new AtomicLong());
+        s_caches.putIfAbsent(table, new CopyOnWriteArrayList<QueryCache<?>>());
+    }
+
+    public static boolean isCached(final String table) {
+        return s_versions.containsKey(table);
+    }
+
+    public static long getVersion(final String table) {
+        final AtomicLong version = s_versions.get(table);
+        return version == null ? 0 : version.get();
+    }
+
+    /**
+     * Invalidates the cached results of the table after a local write and
+     * notifies the listeners.
+     *
+     * @return the new version of the table, 0 if the table is not cached.
+     */
+    public static long invalidate(final String table) {
+        final AtomicLong version = s_versions.get(table);
+        if (version == null) {
+            return 0;
+        }
+        final long value = version.incrementAndGet();
+        for (final InvalidationListener listener : s_listeners) {
+            try {
+                listener.onInvalidate(table, value);
+            } catch (final Throwable e) {
+                s_logger.warn("Unable to notify the invalidation of " + table, e);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Invalidates the cached results of the table once the current
+     * transaction commits, for the writes that bypass GenericDaoBase.
+     */
+    public static void invalidateAfterCommit(final String table) {
+        if (!isCached(table)) {
+            return;
+        }
+        TransactionLegacy.currentTxn().runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                invalidate(table);
+            }
+        });
+    }
+
+    /**
+     * Invalidates the cached results of the table after a peer wrote it.  The
+     * versions are those of the peer, an invalidation that is not newer than
+     * the last one received from the peer is ignored.
+     *
+     * @return true if the invalidation was applied.
+     */
+    public static boolean invalidateFromPeer(final String peer, final String table, final long version) {
+        final AtomicLong local = s_versions.get(table);
+        if (local == null) {
+            return false;
+        }
+        final String key = peer + ":" + table;
+        while (true) {
+            final Long last = s_peerVersions.get(key);
+            if (last == null) {
+                if (s_peerVersions.putIfAbsent(key, version) == null) {
+                    break;
+                }
+            } else if (last >= version) {
+                return false;
+            } else if (s_peerVersions.replace(key, last, version)) {
+                break;
+            }
+        }
+
+        local.incrementAndGet();
+        for (final QueryCache<?> cache : s_caches.get(table)) {
+            cache.peerInvalidated();
+        }
+        return true;
+    }
+
+    /**
+     * Forgets the versions received from the peers whose name starts with the
+     * prefix, e.g. the runs of a management server that left the cluster.
+     */
+    public static void removePeers(final String prefix) {
+        for (final String key : s_peerVersions.keySet()) {
+            if (key.startsWith(prefix)) {
+                s_peerVersions.remove(key);
+            }
+        }
+    }
+
+    public static void addListener(final InvalidationListener listener) {
+        s_listeners.add(listener);
+    }
+
+    public static void removeListener(final InvalidationListener listener) {
+        s_listeners.remove(listener);
+    }
+
+    @Override
+    public String getTables() {
+        return Arrays.toString(_tables);
+    }
+
+    @Override
+    public int getEntries() {
+        synchronized (_entries) {
+            return _entries.size();
+        }
+    }
+
+    @Override
+    public int getMaxEntries() {
+        return _maxEntries;
+    }
+
+    @Override
+    public long getTimeToLive() {
+        return _timeToLive == -1 ? -1 : _timeToLive / 1000;
+    }
+
+    @Override
+    public long getVersion() {
+        return stamp();
+    }
+
+    @Override
+    public long getHits() {
+        return _hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    @Override
+    public double getHitRatio() {
+        final long hits = _hits.get();
+        final long total = hits + _misses.get();
+        return total == 0 ? 0 : (double)hits / total;
+    }
+
+    @Override
+    public long getStaleResults() {
+        return _staleResults.get();
+    }
+
+    @Override
+    public long getPeerInvalidations() {
+        return _peerInvalidations.get();
+    }
+
+    @Override
+    public void clear() {
+        synchronized (_entries) {
+            _entries.clear();
+        }
+    }
+
+    @Override
+    public void resetStatistics() {
+        _hits.set(0);
+        _misses.set(0);
+        _staleResults.set(0);
+        _peerInvalidations.set(0);
+    }
+
+    protected static class Entry<T> {
+        final long stamp;
+        final long expires;
+        final List<T> result;
+
+        Entry(final long stamp, final long expires, final List<T> result) {
+            this.stamp = stamp;
+            this.expires = expires;
+            this.result = result;
+        }
+    }
+}
@@ -25,6 +25,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Savepoint;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -95,6 +96,7 @@ public class TransactionLegacy implements Closeable {
     private long _id;
 
     private final LinkedList<Pair<String, Long>> _lockTimes = new LinkedList<Pair<String, Long>>();
+    private List<Runnable> _afterCommitTasks;
 
     private String _name;
     private Connection _conn;
@@ -198,6 +200,37 @@ public class TransactionLegacy implements Closeable {
         return _txn;
     }
 
+    /**
+     * Runs the task once the changes of the current DB transaction are
+     * committed, or right away if no DB transaction is started.  The task is
+     * dropped if the whole transaction is rolled back.
+     */
+    public void runAfterCommit(final Runnable task) {
+        if (!_txn) {
+            task.run();
+            return;
+        }
+        if (_afterCommitTasks == null) {
+            _afterCommitTasks = new ArrayList<Runnable>();
+        }
+        _afterCommitTasks.add(task);
+    }
+
+    protected void runAfterCommitTasks() {
+        final List<Runnable> tasks = _afterCommitTasks;
+        _afterCommitTasks = null;
+        if (tasks == null) {
+            return;
+        }
+        for (final Runnable task : tasks) {
+            try {
+                task.run();
+            } catch (final Throwable e) {
+                s_logger.warn("Unable to run task after commit", e);
+            }
+        }
+    }
+
     public static Connection getStandaloneConnectionWithException() throws SQLException {
         Connection conn = s_ds.getConnection();
         if (s_connLogger.isTraceEnabled()) {
@@ -631,6 +664,7 @@ public class TransactionLegacy implements Closeable {
         }
         _txn = false;
         _name = null;
+        _afterCommitTasks = null;
 
         closeConnection();
 
@@ -724,6 +758,7 @@ public class TransactionLegacy implements Closeable {
                 clearLockTimes();
                 closeConnection();
             }
+            runAfterCommitTasks();
             return true;
         } catch (final SQLException e) {
             rollbackTransaction();
@@ -833,6 +868,7 @@ public class TransactionLegacy implements Closeable {
         }
         assert (!hasTxnInStack()) : "Who's rolling back transaction when there's still txn in stack?";
         _txn = false;
+        _afterCommitTasks = null;
         try {
             if (_conn != null) {
                 if (s_logger.isDebugEnabled()) {
@@ -859,6 +895,7 @@ public class TransactionLegacy implements Closeable {
         if (!hasTxnInStack()) {
             _txn = false;
             closeConnection();
+            runAfterCommitTasks();
         }
     }
 
@@ -910,6 +947,7 @@ public class TransactionLegacy implements Closeable {
         if (!hasTxnInStack()) {
             _txn = false;
             closeConnection();
+            runAfterCommitTasks();
         }
     }
 
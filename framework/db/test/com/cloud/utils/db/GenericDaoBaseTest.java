@@ -16,10 +16,31 @@
 // under the License.
 package com.cloud.utils.db;
 
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+import javax.persistence.CollectionTable;
+import javax.persistence.Column;
+import javax.persistence.ElementCollection;
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.PrimaryKeyJoinColumn;
+import javax.persistence.Table;
+import javax.sql.DataSource;
+
+import org.junit.After;
 import org.junit.Assert;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
@@ -30,6 +51,31 @@ import org.mockito.runners.MockitoJUnitRunner;
 public class GenericDaoBaseTest {
     @Mock
     ResultSet resultSet;
+    @Mock
+    DataSource dataSource;
+    @Mock
+    Connection connection;
+    @Mock
+    PreparedStatement statement;
+
+    DataSource backup;
+
+    @Before
+    public void setup() throws Exception {
+        Field dsField = TransactionLegacy.class.getDeclaredField("s_ds");
+        dsField.setAccessible(true);
+        backup = (DataSource)dsField.get(null);
+        dsField.set(null, dataSource);
+        Mockito.when(dataSource.getConnection()).thenReturn(connection);
+        Mockito.when(connection.prepareStatement(Mockito.anyString())).thenReturn(statement);
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        Field dsField = TransactionLegacy.class.getDeclaredField("s_ds");
+        dsField.setAccessible(true);
+        dsField.set(null, backup);
+    }
 
     @Test
     public void getObjectBoolean() throws SQLException {
@@ -148,4 +194,87 @@ public class GenericDaoBaseTest {
         Mockito.verify(resultSet).getByte(1);
     }
 
+    @Test
+    public void persistInBatch() throws SQLException {
+        DbTestVO first = new DbTestVO();
+        first.fieldInt = 1;
+        first.fieldLong = 10L;
+        DbTestVO second = new DbTestVO();
+        second.fieldInt = 2;
+        second.fieldLong = 20L;
+
+        TransactionLegacy txn = TransactionLegacy.open("persistInBatch");
+        try {
+            new DbTestDao().persistInBatch(Arrays.asList(first, second));
+        } finally {
+            txn.close();
+        }
+        Mockito.verify(connection).prepareStatement(Mockito.startsWith("INSERT INTO test "));
+        Mockito.verify(statement).setObject(1, 1);
+        Mockito.verify(statement).setObject(1, 2);
+        Mockito.verify(statement, Mockito.times(2)).addBatch();
+        Mockito.verify(statement).executeBatch();
+        Mockito.verify(statement, Mockito.never()).executeUpdate();
+    }
+
+    @Test
+    public void persistInBatchWithJoinedTable() throws SQLException {
+        // the row of the joined table needs the id generated for the row of the parent table
+        JoinedTableDao dao = new JoinedTableDao();
+        List<JoinedTableVO> entities = Arrays.asList(new JoinedTableVO(), new JoinedTableVO());
+        dao.persistInBatch(entities);
+        Assert.assertEquals(entities, dao.persisted);
+        Mockito.verify(dataSource, Mockito.never()).getConnection();
+    }
+
+    @Test
+    public void persistInBatchWithElementCollection() throws SQLException {
+        ElementCollectionDao dao = new ElementCollectionDao();
+        List<ElementCollectionVO> entities = Arrays.asList(new ElementCollectionVO(), new ElementCollectionVO());
+        dao.persistInBatch(entities);
+        Assert.assertEquals(entities, dao.persisted);
+        Mockito.verify(dataSource, Mockito.never()).getConnection();
+    }
+
+    @Entity
+    @Table(name = "test_joined")
+    @PrimaryKeyJoinColumn(name = "id")
+    static class JoinedTableVO extends DbTestVO {
+        @Column(name = "detail")
+        String detail;
+    }
+
+    @Entity
+    @Table(name = "test")
+    static class ElementCollectionVO {
+        @Id
+        @GeneratedValue(strategy = GenerationType.IDENTITY)
+        @Column(name = "id")
+        long id;
+
+        @ElementCollection(targetClass = String.class, fetch = FetchType.EAGER)
+        @Column(name = "tag")
+        @CollectionTable(name = "test_tags", joinColumns = @JoinColumn(name = "test_id"))
+        List<String> tags;
+    }
+
+    static class JoinedTableDao extends GenericDaoBase<JoinedTableVO, Long> {
+        final List<JoinedTableVO> persisted = new ArrayList<JoinedTableVO>();
+
+        @Override
+        public JoinedTableVO persist(JoinedTableVO entity) {
+            persisted.add(entity);
+            return entity;
+        }
+    }
+
+    static class ElementCollectionDao extends GenericDaoBase<ElementCollectionVO, Long> {
+        final List<ElementCollectionVO> persisted = new ArrayList<ElementCollectionVO>();
+
+        @Override
+        public ElementCollectionVO persist(ElementCollectionVO entity) {
+            persisted.add(entity);
+            return entity;
+        }
+    }
 }
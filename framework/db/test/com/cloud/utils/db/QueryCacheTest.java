@@ -0,0 +1,145 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class QueryCacheTest {
+
+    @Test
+    public void hitsAndMisses() {
+        final QueryCache<String> cache = new QueryCache<String>("hits", new String[] {"qc_hits"}, 10, -1);
+        Assert.assertNull(cache.get("q1"));
+        cache.put("q1", cache.stamp(), Arrays.asList("a", "b"));
+
+        final List<String> result = cache.get("q1");
+        Assert.assertEquals(Arrays.asList("a", "b"), result);
+        result.clear();
+        Assert.assertEquals("callers get a copy", Arrays.asList("a", "b"), cache.get("q1"));
+
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(2.0 / 3, cache.getHitRatio(), 0.001);
+        cache.resetStatistics();
+        Assert.assertEquals(0, cache.getHitRatio(), 0);
+        cache.close();
+    }
+
+    @Test
+    public void writeInvalidates() {
+        final QueryCache<String> cache = new QueryCache<String>("write", new String[] {"qc_write"}, 10, -1);
+        cache.put("q1", cache.stamp(), Arrays.asList("a"));
+        Assert.assertTrue(QueryCache.invalidate("qc_write") > 0);
+        Assert.assertNull(cache.get("q1"));
+        Assert.assertEquals(0, cache.getEntries());
+
+        Assert.assertEquals(0, QueryCache.invalidate("qc_not_cached"));
+        cache.close();
+    }
+
+    @Test
+    public void resultReadBeforeWriteIsNotCached() {
+        final QueryCache<String> cache = new QueryCache<String>("stale", new String[] {"qc_stale"}, 10, -1);
+        final long stamp = cache.stamp();
+        // a write commits while the search runs
+        QueryCache.invalidate("qc_stale");
+        cache.put("q1", stamp, Arrays.asList("old"));
+
+        Assert.assertNull(cache.get("q1"));
+        Assert.assertEquals(1, cache.getStaleResults());
+        cache.close();
+    }
+
+    @Test
+    public void everyTableIsVersioned() {
+        final QueryCache<String> cache = new QueryCache<String>("joined", new String[] {"qc_child", "qc_parent"}, 10, -1);
+        cache.put("q1", cache.stamp(), Arrays.asList("a"));
+        QueryCache.invalidate("qc_parent");
+        Assert.assertNull(cache.get("q1"));
+        cache.close();
+    }
+
+    @Test
+    public void peerInvalidationsAreVersioned() {
+        final QueryCache<String> cache = new QueryCache<String>("peer", new String[] {"qc_peer"}, 10, -1);
+        cache.put("q1", cache.stamp(), Arrays.asList("a"));
+
+        Assert.assertTrue(QueryCache.invalidateFromPeer("1/100", "qc_peer", 5));
+        Assert.assertNull(cache.get("q1"));
+        Assert.assertEquals(1, cache.getPeerInvalidations());
+
+        cache.put("q1", cache.stamp(), Arrays.asList("b"));
+        Assert.assertFalse("out of order", QueryCache.invalidateFromPeer("1/100", "qc_peer", 4));
+        Assert.assertFalse("duplicate", QueryCache.invalidateFromPeer("1/100", "qc_peer", 5));
+        Assert.assertEquals(Arrays.asList("b"), cache.get("q1"));
+
+        Assert.assertTrue("another run of the peer", QueryCache.invalidateFromPeer("1/200", "qc_peer", 1));
+        QueryCache.removePeers("1/");
+        Assert.assertTrue(QueryCache.invalidateFromPeer("1/100", "qc_peer", 1));
+        Assert.assertFalse(QueryCache.invalidateFromPeer("2/100", "qc_not_cached", 1));
+        cache.close();
+    }
+
+    @Test
+    public void listenersAreNotifiedOfLocalWritesOnly() {
+        final QueryCache<String> cache = new QueryCache<String>("listener", new String[] {"qc_listener"}, 10, -1);
+        final List<String> notified = new ArrayList<String>();
+        final QueryCache.InvalidationListener listener = new QueryCache.InvalidationListener() {
+            @Override
+            public void onInvalidate(final String table, final long version) {
+                notified.add(table + ":" + version);
+            }
+        };
+        QueryCache.addListener(listener);
+        try {
+            final long version = QueryCache.invalidate("qc_listener");
+            QueryCache.invalidateFromPeer("3/1", "qc_listener", 1);
+            Assert.assertEquals(Arrays.asList("qc_listener:" + version), notified);
+        } finally {
+            QueryCache.removeListener(listener);
+            cache.close();
+        }
+    }
+
+    @Test
+    public void leastRecentlyUsedAreEvicted() {
+        final QueryCache<String> cache = new QueryCache<String>("lru", new String[] {"qc_lru"}, 2, -1);
+        cache.put("q1", cache.stamp(), Arrays.asList("1"));
+        cache.put("q2", cache.stamp(), Arrays.asList("2"));
+        Assert.assertNotNull(cache.get("q1"));
+        cache.put("q3", cache.stamp(), Arrays.asList("3"));
+
+        Assert.assertEquals(2, cache.getEntries());
+        Assert.assertNull(cache.get("q2"));
+        Assert.assertNotNull(cache.get("q1"));
+        Assert.assertNotNull(cache.get("q3"));
+        cache.close();
+    }
+
+    @Test
+    public void resultsExpire() {
+        final QueryCache<String> cache = new QueryCache<String>("ttl", new String[] {"qc_ttl"}, 10, 0);
+        cache.put("q1", cache.stamp(), Arrays.asList("1"));
+        Assert.assertNull(cache.get("q1"));
+        cache.close();
+    }
+}
@@ -25,29 +25,69 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.Logger;
 
 import org.apache.cloudstack.framework.serializer.MessageSerializer;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.mgmt.JmxUtil;
 
+/**
+ * Subjects are dot separated paths, a message published on a subject is
+ * delivered to the subscribers of the subject and of each of its parents,
+ * nearest first, down to the root subject "/".
+ *
+ * Subscriptions are kept in copy-on-write trees, one per top level token
+ * of the subject.  Publishers walk a snapshot without taking any lock,
+ * subscribe and unsubscribe copy the path they change under the lock of
+ * that tree only.  A subscriber added or removed while a message is being
+ * delivered takes effect from the next message.
+ *
+ * By default messages are delivered on the publishing thread.  With
+ * asyncDelivery set, every subscriber gets a bounded mailbox drained by a
+ * shared pool, one message at a time and in publish order, so a slow
+ * subscriber only holds up its own messages.  When a mailbox stays full
+ * for longer than queueFullWaitMs the message is delivered on the
+ * publishing thread instead, giving up ordering for that message rather
+ * than dropping it.
+ */
 public class MessageBusBase implements MessageBus {
+    private static final Logger s_logger = Logger.getLogger(MessageBusBase.class);
 
-    private final Gate _gate;
-    private final List<ActionRecord> _pendingActions;
+    private static final MessageSubscriber[] NO_SUBSCRIBERS = new MessageSubscriber[0];
+    private static final SubscriptionNode EMPTY_NODE = new SubscriptionNode(NO_SUBSCRIBERS, Collections.<String, SubscriptionNode> emptyMap());
 
-    private final SubscriptionNode _subscriberRoot;
+    private final ConcurrentHashMap<String, Shard> _shards = new ConcurrentHashMap<String, Shard>();
+    private final Shard _root = new Shard();
     private MessageSerializer _messageSerializer;
 
-    private static final Logger s_logger = Logger.getLogger(MessageBusBase.class);
+    private volatile boolean _asyncDelivery;
+    private int _deliveryThreads = 4;
+    private int _subscriberQueueSize = 1000;
+    private long _queueFullWaitMs = 1000;
+    private ExecutorService _deliveryExecutor;
+    // async mode only: mailbox of each subscriber with the number of subjects it is subscribed to
+    private final ConcurrentHashMap<MessageSubscriber, Mailbox> _mailboxes = new ConcurrentHashMap<MessageSubscriber, Mailbox>();
 
-    public MessageBusBase() {
-        _gate = new Gate();
-        _pendingActions = new ArrayList<ActionRecord>();
+    private final MessageBusStats _stats = new MessageBusStats(this);
 
-        _subscriberRoot = new SubscriptionNode(null, "/", null);
+    public MessageBusBase() {
+        try {
+            JmxUtil.registerMBean("MessageBus", getClass().getSimpleName(), _stats);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register message bus statistics to JMX: " + e.getMessage());
+        }
     }
 
     @Override
@@ -60,100 +100,164 @@ public class MessageBusBase implements MessageBus {
         return _messageSerializer;
     }
 
+    public boolean isAsyncDelivery() {
+        return _asyncDelivery;
+    }
+
+    /**
+     * Switches between delivery on the publishing thread and delivery through
+     * per-subscriber mailboxes.  Messages already in a mailbox are still delivered.
+     */
+    public synchronized void setAsyncDelivery(boolean asyncDelivery) {
+        if (asyncDelivery && _deliveryExecutor == null) {
+            _deliveryExecutor = Executors.newFixedThreadPool(_deliveryThreads, new NamedThreadFactory("MessageBus-Delivery"));
+        } else if (!asyncDelivery && _deliveryExecutor != null) {
+            // lets the queued mailboxes drain
+            _deliveryExecutor.shutdown();
+            _deliveryExecutor = null;
+        }
+        _asyncDelivery = asyncDelivery;
+    }
+
+    public int getDeliveryThreads() {
+        return _deliveryThreads;
+    }
+
+    /**
+     * Size of the delivery pool, takes effect when asyncDelivery is turned on.
+     */
+    public void setDeliveryThreads(int deliveryThreads) {
+        _deliveryThreads = Math.max(1, deliveryThreads);
+    }
+
+    public int getSubscriberQueueSize() {
+        return _subscriberQueueSize;
+    }
+
+    /**
+     * Capacity of the mailboxes created from now on.
+     */
+    public void setSubscriberQueueSize(int subscriberQueueSize) {
+        _subscriberQueueSize = Math.max(1, subscriberQueueSize);
+    }
+
+    public long getQueueFullWaitMs() {
+        return _queueFullWaitMs;
+    }
+
+    public void setQueueFullWaitMs(long queueFullWaitMs) {
+        _queueFullWaitMs = Math.max(0, queueFullWaitMs);
+    }
+
+    public MessageBusStatsMBean getStats() {
+        return _stats;
+    }
+
     @Override
     public void subscribe(String subject, MessageSubscriber subscriber) {
         assert (subject != null);
         assert (subscriber != null);
-        if (_gate.enter()) {
-            if (s_logger.isTraceEnabled()) {
-                s_logger.trace("Enter gate in message bus subscribe");
+
+        String[] tokens = tokenize(subject);
+        if (tokens == null) {
+            synchronized (_root) {
+                if (!contains(_root._node._subscribers, subscriber)) {
+                    _root._node = _root._node.withSubscribers(add(_root._node._subscribers, subscriber));
+                    addMailboxRef(subscriber);
+                }
             }
-            try {
-                SubscriptionNode current = locate(subject, null, true);
-                assert (current != null);
-                current.addSubscriber(subscriber);
-            } finally {
-                _gate.leave();
+            return;
+        }
+
+        while (true) {
+            Shard shard = _shards.get(tokens[0]);
+            if (shard == null) {
+                Shard newShard = new Shard();
+                shard = _shards.putIfAbsent(tokens[0], newShard);
+                if (shard == null)
+                    shard = newShard;
             }
-        } else {
-            synchronized (_pendingActions) {
-                _pendingActions.add(new ActionRecord(ActionType.Subscribe, subject, subscriber));
+            synchronized (shard) {
+                // pruned or cleared in between, retry with the shard that replaces it
+                if (shard._removed)
+                    continue;
+
+                SubscriptionNode node = subscribe(shard._node, tokens, 1, subscriber);
+                if (node != shard._node) {
+                    shard._node = node;
+                    addMailboxRef(subscriber);
+                }
+                return;
             }
         }
     }
 
     @Override
     public void unsubscribe(String subject, MessageSubscriber subscriber) {
-        if (_gate.enter()) {
-            if (s_logger.isTraceEnabled()) {
-                s_logger.trace("Enter gate in message bus unsubscribe");
-            }
-            try {
-                if (subject != null) {
-                    SubscriptionNode current = locate(subject, null, false);
-                    if (current != null)
-                        current.removeSubscriber(subscriber, false);
-                } else {
-                    _subscriberRoot.removeSubscriber(subscriber, true);
+        if (subject == null) {
+            synchronized (_root) {
+                if (contains(_root._node._subscribers, subscriber)) {
+                    _root._node = _root._node.withSubscribers(remove(_root._node._subscribers, subscriber));
+                    releaseMailboxRef(subscriber, 1);
                 }
-            } finally {
-                _gate.leave();
             }
-        } else {
-            synchronized (_pendingActions) {
-                _pendingActions.add(new ActionRecord(ActionType.Unsubscribe, subject, subscriber));
+            for (Shard shard : _shards.values()) {
+                synchronized (shard) {
+                    int[] removed = new int[1];
+                    shard._node = unsubscribeAll(shard._node, subscriber, removed);
+                    releaseMailboxRef(subscriber, removed[0]);
+                }
             }
+            return;
         }
-    }
 
-    @Override
-    public void clearAll() {
-        if (_gate.enter()) {
-            if (s_logger.isTraceEnabled()) {
-                s_logger.trace("Enter gate in message bus clearAll");
-            }
-            try {
-                _subscriberRoot.clearAll();
-                doPrune();
-            } finally {
-                _gate.leave();
+        String[] tokens = tokenize(subject);
+        if (tokens == null) {
+            synchronized (_root) {
+                if (contains(_root._node._subscribers, subscriber)) {
+                    _root._node = _root._node.withSubscribers(remove(_root._node._subscribers, subscriber));
+                    releaseMailboxRef(subscriber, 1);
+                }
             }
-        } else {
-            synchronized (_pendingActions) {
-                _pendingActions.add(new ActionRecord(ActionType.ClearAll, null, null));
+            return;
+        }
+
+        Shard shard = _shards.get(tokens[0]);
+        if (shard == null)
+            return;
+        synchronized (shard) {
+            SubscriptionNode node = unsubscribe(shard._node, tokens, 1, subscriber);
+            if (node != shard._node) {
+                shard._node = node;
+                releaseMailboxRef(subscriber, 1);
             }
         }
     }
 
     @Override
-    public void prune() {
-        if (_gate.enter()) {
-            if (s_logger.isTraceEnabled()) {
-                s_logger.trace("Enter gate in message bus prune");
-            }
-            try {
-                doPrune();
-            } finally {
-                _gate.leave();
-            }
-        } else {
-            synchronized (_pendingActions) {
-                _pendingActions.add(new ActionRecord(ActionType.Prune, null, null));
+    public void clearAll() {
+        synchronized (_root) {
+            _root._node = EMPTY_NODE;
+        }
+        for (Map.Entry<String, Shard> entry : _shards.entrySet()) {
+            Shard shard = entry.getValue();
+            synchronized (shard) {
+                shard._removed = true;
+                _shards.remove(entry.getKey(), shard);
             }
         }
+        _mailboxes.clear();
     }
 
-    private void doPrune() {
-        List<SubscriptionNode> trimNodes = new ArrayList<SubscriptionNode>();
-        _subscriberRoot.prune(trimNodes);
-
-        while (trimNodes.size() > 0) {
-            SubscriptionNode node = trimNodes.remove(0);
-            SubscriptionNode parent = node.getParent();
-            if (parent != null) {
-                parent.removeChild(node.getNodeKey());
-                if (parent.isTrimmable()) {
-                    trimNodes.add(parent);
+    @Override
+    public void prune() {
+        for (Map.Entry<String, Shard> entry : _shards.entrySet()) {
+            Shard shard = entry.getValue();
+            synchronized (shard) {
+                shard._node = prune(shard._node);
+                if (shard._node == null) {
+                    shard._removed = true;
+                    _shards.remove(entry.getKey(), shard);
                 }
             }
         }
@@ -166,101 +270,90 @@ public class MessageBusBase implements MessageBus {
             String errMsg = "NO EVENT PUBLISH CAN BE WRAPPED WITHIN DB TRANSACTION!";
             s_logger.error(errMsg, new CloudRuntimeException(errMsg));
         }
-        if (_gate.enter(true)) {
-            if (s_logger.isTraceEnabled()) {
-                s_logger.trace("Enter gate in message bus publish");
-            }
-            try {
-                List<SubscriptionNode> chainFromTop = new ArrayList<SubscriptionNode>();
-                SubscriptionNode current = locate(subject, chainFromTop, false);
 
-                if (current != null)
-                    current.notifySubscribers(senderAddress, subject, args);
-
-                Collections.reverse(chainFromTop);
-                for (SubscriptionNode node : chainFromTop)
-                    node.notifySubscribers(senderAddress, subject, args);
-            } finally {
-                _gate.leave();
+        long start = System.nanoTime();
+        MessageBusStats.SubjectStats stats = _stats.getSubjectStats(subject);
+        stats.published();
+        try {
+            for (MessageSubscriber[] subscribers : match(subject)) {
+                for (MessageSubscriber subscriber : subscribers) {
+                    deliver(subscriber, senderAddress, subject, args, start, stats);
+                }
             }
+        } finally {
+            stats.publishTime(System.nanoTime() - start);
         }
     }
 
-    private void onGateOpen() {
-        synchronized (_pendingActions) {
-            ActionRecord record = null;
-            while (_pendingActions.size() > 0) {
-                record = _pendingActions.remove(0);
-                switch (record.getType()) {
-                    case Subscribe: {
-                        SubscriptionNode current = locate(record.getSubject(), null, true);
-                        assert (current != null);
-                        current.addSubscriber(record.getSubscriber());
-                    }
-                        break;
-
-                    case Unsubscribe:
-                        if (record.getSubject() != null) {
-                            SubscriptionNode current = locate(record.getSubject(), null, false);
-                            if (current != null)
-                                current.removeSubscriber(record.getSubscriber(), false);
-                        } else {
-                            _subscriberRoot.removeSubscriber(record.getSubscriber(), true);
-                        }
+    /**
+     * @return subscribers of the subject first, then of its parents up to the root.
+     */
+    private List<MessageSubscriber[]> match(String subject) {
+        List<MessageSubscriber[]> matched = new ArrayList<MessageSubscriber[]>(4);
+        String[] tokens = tokenize(subject);
+        if (tokens != null) {
+            Shard shard = _shards.get(tokens[0]);
+            if (shard != null) {
+                SubscriptionNode node = shard._node;
+                List<MessageSubscriber[]> chain = new ArrayList<MessageSubscriber[]>(tokens.length);
+                chain.add(node._subscribers);
+                for (int i = 1; i < tokens.length; i++) {
+                    node = node._children.get(tokens[i]);
+                    if (node == null)
                         break;
-
-                    case ClearAll:
-                        _subscriberRoot.clearAll();
-                        break;
-
-                    case Prune:
-                        doPrune();
-                        break;
-
-                    default:
-                        assert (false);
-                        break;
-
+                    chain.add(node._subscribers);
                 }
+                Collections.reverse(chain);
+                matched.addAll(chain);
             }
         }
+        matched.add(_root._node._subscribers);
+        return matched;
     }
 
-    private SubscriptionNode locate(String subject, List<SubscriptionNode> chainFromTop, boolean createPath) {
-
-        assert (subject != null);
-        // "/" is special name for root node
-        if (subject.equals("/"))
-            return _subscriberRoot;
+    private void deliver(MessageSubscriber subscriber, String senderAddress, String subject, Object args, long publishTime, MessageBusStats.SubjectStats stats) {
+        if (_asyncDelivery) {
+            Mailbox mailbox = _mailboxes.get(subscriber);
+            if (mailbox != null && mailbox.post(new Delivery(senderAddress, subject, args, publishTime, stats))) {
+                return;
+            }
+        }
 
-        String[] subjectPathTokens = subject.split("\\.");
-        return locate(subjectPathTokens, _subscriberRoot, chainFromTop, createPath);
+        subscriber.onPublishMessage(senderAddress, subject, args);
+        stats.delivered(System.nanoTime() - publishTime);
     }
 
-    private static SubscriptionNode locate(String[] subjectPathTokens, SubscriptionNode current, List<SubscriptionNode> chainFromTop, boolean createPath) {
-
-        assert (current != null);
-        assert (subjectPathTokens != null);
-        assert (subjectPathTokens.length > 0);
-
-        if (chainFromTop != null)
-            chainFromTop.add(current);
+    private void addMailboxRef(MessageSubscriber subscriber) {
+        synchronized (_mailboxes) {
+            Mailbox mailbox = _mailboxes.get(subscriber);
+            if (mailbox == null) {
+                mailbox = new Mailbox(subscriber, _subscriberQueueSize);
+                _mailboxes.put(subscriber, mailbox);
+            }
+            mailbox._subscriptions++;
+        }
+    }
 
-        SubscriptionNode next = current.getChild(subjectPathTokens[0]);
-        if (next == null) {
-            if (createPath) {
-                next = new SubscriptionNode(current, subjectPathTokens[0], null);
-                current.addChild(subjectPathTokens[0], next);
-            } else {
-                return null;
+    private void releaseMailboxRef(MessageSubscriber subscriber, int count) {
+        if (count == 0)
+            return;
+        synchronized (_mailboxes) {
+            Mailbox mailbox = _mailboxes.get(subscriber);
+            if (mailbox != null) {
+                mailbox._subscriptions -= count;
+                // messages already queued are still delivered, the mailbox holds them
+                if (mailbox._subscriptions <= 0)
+                    _mailboxes.remove(subscriber);
             }
         }
+    }
 
-        if (subjectPathTokens.length > 1) {
-            return locate(Arrays.copyOfRange(subjectPathTokens, 1, subjectPathTokens.length), next, chainFromTop, createPath);
-        } else {
-            return next;
+    int getPendingDeliveries() {
+        int pending = 0;
+        for (Mailbox mailbox : _mailboxes.values()) {
+            pending += mailbox._queue.size();
         }
+        return pending;
     }
 
     private boolean noDbTxn() {
@@ -268,182 +361,225 @@ public class MessageBusBase implements MessageBus {
         return !txn.dbTxnStarted();
     }
 
-    //
-    // Support inner classes
-    //
-    private static enum ActionType {
-        Subscribe, Unsubscribe, ClearAll, Prune
+    /**
+     * @return the tokens of the subject, or null for the root subject "/".
+     */
+    private static String[] tokenize(String subject) {
+        assert (subject != null);
+        // "/" is special name for root node
+        if (subject.equals("/"))
+            return null;
+        return subject.split("\\.");
     }
 
-    private static class ActionRecord {
-        private final ActionType _type;
-        private final String _subject;
-        private final MessageSubscriber _subscriber;
-
-        public ActionRecord(ActionType type, String subject, MessageSubscriber subscriber) {
-            _type = type;
-            _subject = subject;
-            _subscriber = subscriber;
+    private static SubscriptionNode subscribe(SubscriptionNode node, String[] tokens, int index, MessageSubscriber subscriber) {
+        if (index == tokens.length) {
+            if (contains(node._subscribers, subscriber))
+                return node;
+            return node.withSubscribers(add(node._subscribers, subscriber));
         }
 
-        public ActionType getType() {
-            return _type;
-        }
+        SubscriptionNode child = node._children.get(tokens[index]);
+        SubscriptionNode newChild = subscribe(child != null ? child : EMPTY_NODE, tokens, index + 1, subscriber);
+        if (newChild == child)
+            return node;
+        return node.withChild(tokens[index], newChild);
+    }
 
-        public String getSubject() {
-            return _subject;
+    private static SubscriptionNode unsubscribe(SubscriptionNode node, String[] tokens, int index, MessageSubscriber subscriber) {
+        if (index == tokens.length) {
+            if (!contains(node._subscribers, subscriber))
+                return node;
+            return node.withSubscribers(remove(node._subscribers, subscriber));
         }
 
-        public MessageSubscriber getSubscriber() {
-            return _subscriber;
-        }
+        SubscriptionNode child = node._children.get(tokens[index]);
+        if (child == null)
+            return node;
+        SubscriptionNode newChild = unsubscribe(child, tokens, index + 1, subscriber);
+        if (newChild == child)
+            return node;
+        return node.withChild(tokens[index], newChild);
     }
 
-    private class Gate {
-        private int _reentranceCount;
-        private Thread _gateOwner;
-
-        public Gate() {
-            _reentranceCount = 0;
-            _gateOwner = null;
+    private static SubscriptionNode unsubscribeAll(SubscriptionNode node, MessageSubscriber subscriber, int[] removed) {
+        SubscriptionNode result = node;
+        for (Map.Entry<String, SubscriptionNode> entry : node._children.entrySet()) {
+            SubscriptionNode newChild = unsubscribeAll(entry.getValue(), subscriber, removed);
+            if (newChild != entry.getValue())
+                result = result.withChild(entry.getKey(), newChild);
         }
+        if (contains(result._subscribers, subscriber)) {
+            removed[0]++;
+            result = result.withSubscribers(remove(result._subscribers, subscriber));
+        }
+        return result;
+    }
 
-        public boolean enter() {
-            return enter(false);
+    /**
+     * @return the node without its empty branches, or null if nothing is left.
+     */
+    private static SubscriptionNode prune(SubscriptionNode node) {
+        SubscriptionNode result = node;
+        for (Map.Entry<String, SubscriptionNode> entry : node._children.entrySet()) {
+            SubscriptionNode newChild = prune(entry.getValue());
+            if (newChild != entry.getValue())
+                result = result.withChild(entry.getKey(), newChild);
         }
+        if (result._children.isEmpty() && result._subscribers.length == 0)
+            return null;
+        return result;
+    }
 
-        public boolean enter(boolean wait) {
-            while (true) {
-                synchronized (this) {
-                    if (_reentranceCount == 0) {
-                        assert (_gateOwner == null);
+    private static boolean contains(MessageSubscriber[] subscribers, MessageSubscriber subscriber) {
+        for (MessageSubscriber s : subscribers) {
+            if (s.equals(subscriber))
+                return true;
+        }
+        return false;
+    }
 
-                        _reentranceCount++;
-                        _gateOwner = Thread.currentThread();
-                        return true;
-                    } else {
-                        if (wait) {
-                            try {
-                                wait();
-                            } catch (InterruptedException e) {
-                                s_logger.debug("[ignored] interupted while guarding re-entrance on message bus.");
-                            }
-                        } else {
-                            break;
-                        }
-                    }
-                }
-            }
+    private static MessageSubscriber[] add(MessageSubscriber[] subscribers, MessageSubscriber subscriber) {
+        MessageSubscriber[] result = Arrays.copyOf(subscribers, subscribers.length + 1);
+        result[subscribers.length] = subscriber;
+        return result;
+    }
 
-            return false;
+    private static MessageSubscriber[] remove(MessageSubscriber[] subscribers, MessageSubscriber subscriber) {
+        List<MessageSubscriber> result = new ArrayList<MessageSubscriber>(subscribers.length);
+        for (MessageSubscriber s : subscribers) {
+            if (!s.equals(subscriber))
+                result.add(s);
         }
+        return result.isEmpty() ? NO_SUBSCRIBERS : result.toArray(new MessageSubscriber[result.size()]);
+    }
 
-        public void leave() {
-            synchronized (this) {
-                if (_reentranceCount > 0) {
-                    try {
-                        assert (_gateOwner == Thread.currentThread());
-
-                        onGateOpen();
-                    } finally {
-                        if (s_logger.isTraceEnabled()) {
-                            s_logger.trace("Open gate of message bus");
-                        }
-                        _reentranceCount--;
-                        assert (_reentranceCount == 0);
-                        _gateOwner = null;
-
-                        notifyAll();
-                    }
-                }
-            }
-        }
+    //
+    // Support inner classes
+    //
+    private static class Shard {
+        // the node of the top level token, replaced as a whole on every change
+        private volatile SubscriptionNode _node = EMPTY_NODE;
+        private boolean _removed;
     }
 
+    /**
+     * Immutable node of the subscription tree.
+     */
     private static class SubscriptionNode {
-        private final String _nodeKey;
-        private final List<MessageSubscriber> _subscribers;
+        private final MessageSubscriber[] _subscribers;
         private final Map<String, SubscriptionNode> _children;
-        private final SubscriptionNode _parent;
 
-        public SubscriptionNode(SubscriptionNode parent, String nodeKey, MessageSubscriber subscriber) {
-            assert (nodeKey != null);
-            _parent = parent;
-            _nodeKey = nodeKey;
-            _subscribers = new ArrayList<MessageSubscriber>();
-
-            if (subscriber != null)
-                _subscribers.add(subscriber);
-
-            _children = new HashMap<String, SubscriptionNode>();
+        public SubscriptionNode(MessageSubscriber[] subscribers, Map<String, SubscriptionNode> children) {
+            _subscribers = subscribers;
+            _children = children;
         }
 
-        public SubscriptionNode getParent() {
-            return _parent;
+        public SubscriptionNode withSubscribers(MessageSubscriber[] subscribers) {
+            return new SubscriptionNode(subscribers, _children);
         }
 
-        public String getNodeKey() {
-            return _nodeKey;
-        }
-
-        @SuppressWarnings("unused")
-        public List<MessageSubscriber> getSubscriber() {
-            return _subscribers;
+        /**
+         * @param child the new child, or null to drop it.
+         */
+        public SubscriptionNode withChild(String key, SubscriptionNode child) {
+            Map<String, SubscriptionNode> children = new HashMap<String, SubscriptionNode>(_children);
+            if (child != null)
+                children.put(key, child);
+            else
+                children.remove(key);
+            return new SubscriptionNode(_subscribers, children.isEmpty() ? Collections.<String, SubscriptionNode> emptyMap() : Collections.unmodifiableMap(children));
         }
+    }
 
-        public void addSubscriber(MessageSubscriber subscriber) {
-            if (!_subscribers.contains(subscriber))
-                _subscribers.add(subscriber);
-        }
+    private static class Delivery {
+        private final String _senderAddress;
+        private final String _subject;
+        private final Object _args;
+        private final long _publishTime;
+        private final MessageBusStats.SubjectStats _stats;
 
-        public void removeSubscriber(MessageSubscriber subscriber, boolean recursively) {
-            if (recursively) {
-                for (Map.Entry<String, SubscriptionNode> entry : _children.entrySet()) {
-                    entry.getValue().removeSubscriber(subscriber, true);
-                }
-            }
-            _subscribers.remove(subscriber);
+        public Delivery(String senderAddress, String subject, Object args, long publishTime, MessageBusStats.SubjectStats stats) {
+            _senderAddress = senderAddress;
+            _subject = subject;
+            _args = args;
+            _publishTime = publishTime;
+            _stats = stats;
         }
+    }
 
-        public SubscriptionNode getChild(String key) {
-            return _children.get(key);
-        }
+    /**
+     * Messages waiting for one subscriber.  At most one delivery thread drains
+     * a mailbox at any time, which keeps the messages in publish order.
+     */
+    private class Mailbox extends ManagedContextRunnable {
+        private static final int MAX_BATCH = 64;
 
-        public void addChild(String key, SubscriptionNode childNode) {
-            _children.put(key, childNode);
-        }
+        private final MessageSubscriber _subscriber;
+        private final LinkedBlockingQueue<Delivery> _queue;
+        private final AtomicBoolean _scheduled = new AtomicBoolean();
+        // guarded by _mailboxes
+        private int _subscriptions;
 
-        public void removeChild(String key) {
-            _children.remove(key);
+        public Mailbox(MessageSubscriber subscriber, int capacity) {
+            _subscriber = subscriber;
+            _queue = new LinkedBlockingQueue<Delivery>(capacity);
         }
 
-        public void clearAll() {
-            // depth-first
-            for (Map.Entry<String, SubscriptionNode> entry : _children.entrySet()) {
-                entry.getValue().clearAll();
+        /**
+         * @return false if the message could not be queued and has to be delivered by the caller.
+         */
+        public boolean post(Delivery delivery) {
+            boolean queued = _queue.offer(delivery);
+            if (!queued) {
+                try {
+                    queued = _queue.offer(delivery, _queueFullWaitMs, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    s_logger.debug("[ignored] interrupted while waiting for the mailbox of " + _subscriber);
+                }
             }
-            _subscribers.clear();
-        }
-
-        public void prune(List<SubscriptionNode> trimNodes) {
-            assert (trimNodes != null);
-
-            for (Map.Entry<String, SubscriptionNode> entry : _children.entrySet()) {
-                entry.getValue().prune(trimNodes);
+            if (!queued) {
+                _stats.overflowed();
+                s_logger.warn("Mailbox of message subscriber " + _subscriber + " is full, delivering message on " + delivery._subject + " on the publishing thread");
+                return false;
             }
-
-            if (isTrimmable())
-                trimNodes.add(this);
+            schedule();
+            return true;
         }
 
-        public void notifySubscribers(String senderAddress, String subject, Object args) {
-            for (MessageSubscriber subscriber : _subscribers) {
-                subscriber.onPublishMessage(senderAddress, subject, args);
+        private void schedule() {
+            if (!_scheduled.compareAndSet(false, true))
+                return;
+            try {
+                ExecutorService executor = _deliveryExecutor;
+                if (executor == null)
+                    throw new RejectedExecutionException("Asynchronous delivery is turned off");
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // delivery pool is gone, drain on the publishing thread
+                run();
             }
         }
 
-        public boolean isTrimmable() {
-            return _children.size() == 0 && _subscribers.size() == 0;
+        @Override
+        protected void runInContext() {
+            try {
+                Delivery delivery;
+                int count = 0;
+                while (count++ < MAX_BATCH && (delivery = _queue.poll()) != null) {
+                    try {
+                        _subscriber.onPublishMessage(delivery._senderAddress, delivery._subject, delivery._args);
+                    } catch (Throwable e) {
+                        s_logger.warn("Message subscriber " + _subscriber + " failed on message " + delivery._subject, e);
+                    }
+                    delivery._stats.delivered(System.nanoTime() - delivery._publishTime);
+                }
+            } finally {
+                _scheduled.set(false);
+            }
+            // more came in while this run was finishing, or the batch limit was hit
+            if (!_queue.isEmpty())
+                schedule();
         }
     }
 }
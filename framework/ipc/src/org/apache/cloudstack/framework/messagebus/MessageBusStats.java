@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.cloudstack.framework.messagebus;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import com.cloud.utils.LatencyHistogram;
+
+public class MessageBusStats extends StandardMBean implements MessageBusStatsMBean {
+    // subjects beyond this many are counted together, in case subjects carry ids
+    static final int MAX_SUBJECTS = 1000;
+    static final String OTHER_SUBJECTS = "*";
+
+    private static final long[] MICROS_BOUNDS = {10, 50, 100, 500, 1000, 5000, 10000, 50000, 100000, 500000, 1000000, 5000000, 30000000};
+
+    private final MessageBusBase _bus;
+    private final ConcurrentHashMap<String, SubjectStats> _subjects = new ConcurrentHashMap<String, SubjectStats>();
+    private final AtomicLong _overflowed = new AtomicLong();
+
+    public MessageBusStats(MessageBusBase bus) {
+        super(MessageBusStatsMBean.class, false);
+        _bus = bus;
+    }
+
+    SubjectStats getSubjectStats(String subject) {
+        SubjectStats stats = _subjects.get(subject);
+        if (stats != null)
+            return stats;
+
+        String key = _subjects.size() < MAX_SUBJECTS ? subject : OTHER_SUBJECTS;
+        stats = new SubjectStats();
+        SubjectStats existing = _subjects.putIfAbsent(key, stats);
+        return existing != null ? existing : stats;
+    }
+
+    void overflowed() {
+        _overflowed.incrementAndGet();
+    }
+
+    @Override
+    public boolean isAsyncDelivery() {
+        return _bus.isAsyncDelivery();
+    }
+
+    @Override
+    public long getPublishedMessages() {
+        long count = 0;
+        for (SubjectStats stats : _subjects.values()) {
+            count += stats._published.get();
+        }
+        return count;
+    }
+
+    @Override
+    public long getDeliveredMessages() {
+        long count = 0;
+        for (SubjectStats stats : _subjects.values()) {
+            count += stats._deliveryLatency.getCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getOverflowedDeliveries() {
+        return _overflowed.get();
+    }
+
+    @Override
+    public int getPendingDeliveries() {
+        return _bus.getPendingDeliveries();
+    }
+
+    @Override
+    public String[] getSubjects() {
+        Set<String> subjects = new TreeSet<String>(_subjects.keySet());
+        return subjects.toArray(new String[subjects.size()]);
+    }
+
+    @Override
+    public String getSubjectStatistics(String subject) {
+        SubjectStats stats = _subjects.get(subject);
+        if (stats == null)
+            return null;
+        return stats.toString();
+    }
+
+    @Override
+    public void resetStatistics() {
+        _subjects.clear();
+        _overflowed.set(0);
+    }
+
+    public static class SubjectStats {
+        private final AtomicLong _published = new AtomicLong();
+        private final LatencyHistogram _publishTime = new LatencyHistogram(MICROS_BOUNDS);
+        private final LatencyHistogram _deliveryLatency = new LatencyHistogram(MICROS_BOUNDS);
+
+        void published() {
+            _published.incrementAndGet();
+        }
+
+        void publishTime(long nanos) {
+            _publishTime.record(nanos / 1000);
+        }
+
+        void delivered(long latencyNanos) {
+            _deliveryLatency.record(latencyNanos / 1000);
+        }
+
+        public long getPublished() {
+            return _published.get();
+        }
+
+        public long getDelivered() {
+            return _deliveryLatency.getCount();
+        }
+
+        public LatencyHistogram getPublishTime() {
+            return _publishTime;
+        }
+
+        public LatencyHistogram getDeliveryLatency() {
+            return _deliveryLatency;
+        }
+
+        @Override
+        public String toString() {
+            return "published=" + _published.get() + ", delivered=" + _deliveryLatency.getCount() + ", publish us avg/p99/max=" + (long)_publishTime.getAverage() + "/" +
+                _publishTime.getPercentile(99) + "/" + _publishTime.getMax() + ", delivery us avg/p99/max=" + (long)_deliveryLatency.getAverage() + "/" +
+                _deliveryLatency.getPercentile(99) + "/" + _deliveryLatency.getMax();
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.cloudstack.messagebus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cloudstack.framework.messagebus.MessageBusBase;
+import org.apache.cloudstack.framework.messagebus.MessageBusStatsMBean;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
+import org.apache.cloudstack.framework.messagebus.PublishScope;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.utils.db.TransactionLegacy;
+
+public class MessageBusBaseTest {
+    private MessageBusBase _bus;
+    private TransactionLegacy _txn;
+
+    @Before
+    public void setUp() {
+        _bus = new MessageBusBase();
+        _txn = TransactionLegacy.open("MessageBusBaseTest");
+    }
+
+    @After
+    public void tearDown() {
+        _txn.close();
+        _bus.setAsyncDelivery(false);
+        _bus.clearAll();
+    }
+
+    @Test
+    public void testNearestSubscribersFirst() {
+        final List<String> received = new ArrayList<String>();
+        MessageSubscriber root = new RecordingSubscriber("root", received);
+        MessageSubscriber host = new RecordingSubscriber("host", received);
+        MessageSubscriber host1 = new RecordingSubscriber("host1", received);
+        _bus.subscribe("/", root);
+        _bus.subscribe("Host", host);
+        _bus.subscribe("Host.1", host1);
+        _bus.subscribe("Host.1", host1);
+
+        _bus.publish(null, "Host.1.Status", PublishScope.LOCAL, null);
+        assertEquals("[host1, host, root]", received.toString());
+
+        received.clear();
+        _bus.publish(null, "VM.1", PublishScope.LOCAL, null);
+        assertEquals("[root]", received.toString());
+
+        received.clear();
+        _bus.unsubscribe(null, host1);
+        _bus.unsubscribe("/", root);
+        _bus.publish(null, "Host.1", PublishScope.LOCAL, null);
+        assertEquals("[host]", received.toString());
+
+        received.clear();
+        _bus.unsubscribe("Host", host);
+        _bus.prune();
+        _bus.publish(null, "Host.1", PublishScope.LOCAL, null);
+        assertEquals("[]", received.toString());
+    }
+
+    @Test
+    public void testSubscribeWhilePublishing() throws Exception {
+        final int messages = 20000;
+        final AtomicInteger received = new AtomicInteger();
+        _bus.subscribe("Host", new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                received.incrementAndGet();
+            }
+        });
+
+        final AtomicBoolean done = new AtomicBoolean();
+        List<Thread> churners = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final String subject = "Host." + i;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!done.get()) {
+                        MessageSubscriber subscriber = new RecordingSubscriber(subject, new ArrayList<String>());
+                        _bus.subscribe(subject, subscriber);
+                        _bus.subscribe("Other", subscriber);
+                        _bus.unsubscribe(null, subscriber);
+                    }
+                }
+            });
+            thread.start();
+            churners.add(thread);
+        }
+
+        List<Thread> publishers = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final String subject = "Host." + i;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    TransactionLegacy txn = TransactionLegacy.open("MessageBusBaseTest.publisher");
+                    try {
+                        for (int j = 0; j < messages / 4; j++) {
+                            _bus.publish(null, subject, PublishScope.LOCAL, null);
+                        }
+                    } finally {
+                        txn.close();
+                    }
+                }
+            });
+            thread.start();
+            publishers.add(thread);
+        }
+        for (Thread thread : publishers) {
+            thread.join();
+        }
+        done.set(true);
+        for (Thread thread : churners) {
+            thread.join();
+        }
+
+        assertEquals(messages, received.get());
+        assertEquals(messages, _bus.getStats().getPublishedMessages());
+    }
+
+    @Test
+    public void testAsyncDeliveryKeepsOrder() throws Exception {
+        _bus.setAsyncDelivery(true);
+        final int messages = 1000;
+        final CountDownLatch latch = new CountDownLatch(messages * 2);
+        final List<Integer> fast = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> slow = Collections.synchronizedList(new ArrayList<Integer>());
+        _bus.subscribe("VM", new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                fast.add((Integer)args);
+                latch.countDown();
+            }
+        });
+        _bus.subscribe("VM", new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                if ((Integer)args % 100 == 0) {
+                    sleep(20);
+                }
+                slow.add((Integer)args);
+                latch.countDown();
+            }
+        });
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < messages; i++) {
+            _bus.publish(null, "VM.Start", PublishScope.LOCAL, i);
+        }
+        long publishTime = System.currentTimeMillis() - start;
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+
+        // the slow subscriber sleeps 200ms in total, the publisher must not wait for it
+        assertTrue("publishing took " + publishTime + " ms", publishTime < 200);
+        for (int i = 0; i < messages; i++) {
+            assertEquals(i, fast.get(i).intValue());
+            assertEquals(i, slow.get(i).intValue());
+        }
+
+        MessageBusStatsMBean stats = _bus.getStats();
+        assertEquals(0, stats.getOverflowedDeliveries());
+        assertEquals(messages * 2, stats.getDeliveredMessages());
+        assertEquals(0, stats.getPendingDeliveries());
+        assertTrue(stats.getSubjectStatistics("VM.Start").startsWith("published=" + messages + ", delivered=" + messages * 2));
+    }
+
+    @Test
+    public void testFullMailboxDeliversOnPublisher() throws Exception {
+        _bus.setSubscriberQueueSize(1);
+        _bus.setQueueFullWaitMs(10);
+        _bus.setAsyncDelivery(true);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+        _bus.subscribe("Host", new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(String senderAddress, String subject, Object args) {
+                if ((Integer)args == 0) {
+                    blocked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                received.add((Integer)args);
+            }
+        });
+
+        _bus.publish(null, "Host", PublishScope.LOCAL, 0);
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        // 1 is queued, 2 does not fit and is delivered here
+        _bus.publish(null, "Host", PublishScope.LOCAL, 1);
+        _bus.publish(null, "Host", PublishScope.LOCAL, 2);
+        assertEquals(Collections.singletonList(2), new ArrayList<Integer>(received));
+        assertEquals(1, _bus.getStats().getOverflowedDeliveries());
+        assertEquals(1, _bus.getStats().getPendingDeliveries());
+
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (received.size() < 3 && System.currentTimeMillis() < deadline) {
+            sleep(10);
+        }
+        assertEquals(3, received.size());
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class RecordingSubscriber implements MessageSubscriber {
+        private final String _name;
+        private final List<String> _received;
+
+        public RecordingSubscriber(String name, List<String> received) {
+            _name = name;
+            _received = received;
+        }
+
+        @Override
+        public void onPublishMessage(String senderAddress, String subject, Object args) {
+            _received.add(_name);
+        }
+    }
+}
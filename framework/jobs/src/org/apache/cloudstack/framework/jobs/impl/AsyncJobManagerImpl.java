@@ -21,11 +21,14 @@ import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -50,6 +53,7 @@ import org.apache.cloudstack.framework.jobs.dao.AsyncJobJournalDao;
 import org.apache.cloudstack.framework.jobs.dao.SyncQueueItemDao;
 import org.apache.cloudstack.framework.messagebus.MessageBus;
 import org.apache.cloudstack.framework.messagebus.MessageDetector;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
 import org.apache.cloudstack.framework.messagebus.PublishScope;
 import org.apache.cloudstack.jobs.JobInfo;
 import org.apache.cloudstack.jobs.JobInfo.Status;
@@ -123,6 +127,17 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     private volatile long _executionRunNumber = 1;
 
     private final ScheduledExecutorService _heartbeatScheduler = Executors.newScheduledThreadPool(1, new NamedThreadFactory("AsyncJobMgr-Heartbeat"));
+    // sync queues that may have an item ready to run, drained by the queue dispatcher
+    private final LinkedBlockingQueue<Long> _readyQueues = new LinkedBlockingQueue<Long>();
+    private final ExecutorService _queueDispatcher = Executors.newSingleThreadExecutor(new NamedThreadFactory("AsyncJobMgr-QueueDispatcher"));
+    private final SyncQueueStats _queueStats = new SyncQueueStats();
+    private final MessageSubscriber _queueReadySubscriber = new MessageSubscriber() {
+        @Override
+        public void onPublishMessage(String senderAddress, String subject, Object args) {
+            _queueStats.notified();
+            _readyQueues.offer((Long)args);
+        }
+    };
     private ExecutorService _apiJobExecutor;
     private ExecutorService _workerJobExecutor;
 
@@ -199,21 +214,25 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                 throw new CloudRuntimeException("Failed to acquire lock in submitting async job: " + job.getCmd() + " with timeout value = " + VmJobLockTimeout.value());
             }
 
+            SyncQueueVO queue;
             try {
                 // lock is acquired
-                return Transaction.execute(new TransactionCallback<Long>() {
+                queue = Transaction.execute(new TransactionCallback<SyncQueueVO>() {
                     @Override
-                    public Long doInTransaction(TransactionStatus status) {
+                    public SyncQueueVO doInTransaction(TransactionStatus status) {
                         job.setInitMsid(getMsid());
                         dao.persist(job);
 
-                        syncAsyncJobExecution(job, syncObjType, syncObjId, 1);
-                        return job.getId();
+                        return queueJob(job, syncObjType, syncObjId, 1);
                     }
                 });
             } finally {
                 _vmInstanceDao.unlockFromLockTable(String.valueOf(syncObjId));
             }
+
+            // the item was queued within the transaction above, kick the queue now that it is committed
+            _queueMgr.notifyQueueReady(queue.getId());
+            return job.getId();
         } catch (Exception e) {
             String errMsg = "Unable to schedule async job for command " + job.getCmd() + ", unexpected exception.";
             s_logger.warn(errMsg, e);
@@ -407,6 +426,10 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
     @Override
     public void syncAsyncJobExecution(AsyncJob job, String syncObjType, long syncObjId, long queueSizeLimit) {
+        queueJob(job, syncObjType, syncObjId, queueSizeLimit);
+    }
+
+    private SyncQueueVO queueJob(AsyncJob job, String syncObjType, long syncObjId, long queueSizeLimit) {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Sync job-" + job.getId() + " execution on object " + syncObjType + "." + syncObjId);
         }
@@ -415,6 +438,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         queue = _queueMgr.queue(syncObjType, syncObjId, SyncQueueItem.AsyncJobContentType, job.getId(), queueSizeLimit);
         if (queue == null)
             throw new CloudRuntimeException("Unable to insert queue item into database, DB is full?");
+        return queue;
     }
 
     @Override
@@ -589,7 +613,11 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         return signals;
     }
 
-    private void executeQueueItem(SyncQueueItemVO item, boolean fromPreviousSession) {
+    private void executeQueueItem(SyncQueueItemVO item, boolean onNotify) {
+        if (item.getCreated() != null && item.getLastProcessTime() != null) {
+            _queueStats.dispatched(onNotify, item.getLastProcessTime().getTime() - item.getCreated().getTime());
+        }
+
         AsyncJobVO job = _jobDao.findById(item.getContentId());
         if (job != null) {
             if (s_logger.isDebugEnabled()) {
@@ -655,8 +683,8 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                     "-" + executionContext.getSyncSource().getContentId());
             }
 
+            // purging the active item notifies the queue dispatcher to run the next one
             _queueMgr.purgeItem(executionContext.getSyncSource().getId());
-            checkQueue(executionContext.getSyncSource().getQueueId());
         }
     }
 
@@ -712,7 +740,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                         s_logger.debug("Executing sync queue item: " + item.toString());
                     }
 
-                    executeQueueItem(item, false);
+                    executeQueueItem(item, true);
                 } else {
                     break;
                 }
@@ -723,6 +751,34 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         }
     }
 
+    private Runnable getQueueDispatcherTask() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    final Set<Long> queueIds = new LinkedHashSet<Long>();
+                    try {
+                        queueIds.add(_readyQueues.take());
+                    } catch (InterruptedException e) {
+                        s_logger.info("Sync queue dispatcher is stopped");
+                        return;
+                    }
+                    // several notifications for the same queue are served by one check
+                    _readyQueues.drainTo(queueIds);
+
+                    new ManagedContextRunnable() {
+                        @Override
+                        protected void runInContext() {
+                            for (Long queueId : queueIds) {
+                                checkQueue(queueId);
+                            }
+                        }
+                    }.run();
+                }
+            }
+        };
+    }
+
     private Runnable getHeartbeatTask() {
         return new ManagedContextRunnable() {
 
@@ -1021,6 +1077,16 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     public boolean start() {
         cleanupLeftOverJobs(getMsid());
 
+        _messageBus.subscribe(SyncQueueManager.Topics.QUEUE_READY, _queueReadySubscriber);
+        _queueDispatcher.submit(getQueueDispatcherTask());
+        try {
+            JmxUtil.registerMBean("AsyncJobManager", "SyncQueue", _queueStats);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register sync queue statistics to JMX", e);
+        }
+
+        // the heartbeat scan stays as a safety net for items that were not notified,
+        // e.g. queued within an outer DB transaction or left by a management server that went away
         _heartbeatScheduler.scheduleAtFixedRate(getHeartbeatTask(), HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
         _heartbeatScheduler.scheduleAtFixedRate(getGCTask(), GC_INTERVAL, GC_INTERVAL, TimeUnit.MILLISECONDS);
 
@@ -1029,6 +1095,8 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
     @Override
     public boolean stop() {
+        _messageBus.unsubscribe(SyncQueueManager.Topics.QUEUE_READY, _queueReadySubscriber);
+        _queueDispatcher.shutdownNow();
         _heartbeatScheduler.shutdown();
         _apiJobExecutor.shutdown();
         _workerJobExecutor.shutdown();
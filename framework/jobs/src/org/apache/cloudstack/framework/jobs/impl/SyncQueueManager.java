@@ -21,6 +21,13 @@ import java.util.List;
 import com.cloud.utils.component.Manager;
 
 public interface SyncQueueManager extends Manager {
+    public static interface Topics {
+        /**
+         * Published locally with the queue id when the queue may have an item ready to run.
+         */
+        public static final String QUEUE_READY = "syncqueue.ready";
+    }
+
     public SyncQueueVO queue(String syncObjType, long syncObjId, String itemType, long itemId, long queueSizeLimit);
 
     public SyncQueueItemVO dequeueFromOne(long queueId, Long msid);
@@ -38,4 +45,10 @@ public interface SyncQueueManager extends Manager {
     void purgeAsyncJobQueueItemId(long asyncJobId);
 
     public void cleanupActiveQueueItems(Long msid, boolean exclusive);
+
+    /**
+     * Publishes Topics.QUEUE_READY for the queue.  Nothing is published while a DB
+     * transaction is open, the item is then left to the periodic queue scan.
+     */
+    public void notifyQueueReady(long queueId);
 }
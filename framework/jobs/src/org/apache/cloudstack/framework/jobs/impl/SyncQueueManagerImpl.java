@@ -26,12 +26,15 @@ import org.apache.log4j.Logger;
 
 import org.apache.cloudstack.framework.jobs.dao.SyncQueueDao;
 import org.apache.cloudstack.framework.jobs.dao.SyncQueueItemDao;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.PublishScope;
 import com.cloud.utils.DateUtil;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.db.TransactionCallback;
 import com.cloud.utils.db.TransactionCallbackNoReturn;
+import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.utils.db.TransactionStatus;
 import com.cloud.utils.exception.CloudRuntimeException;
 
@@ -42,12 +45,14 @@ public class SyncQueueManagerImpl extends ManagerBase implements SyncQueueManage
     private SyncQueueDao _syncQueueDao;
     @Inject
     private SyncQueueItemDao _syncQueueItemDao;
+    @Inject
+    private MessageBus _messageBus;
 
     @Override
     @DB
     public SyncQueueVO queue(final String syncObjType, final long syncObjId, final String itemType, final long itemId, final long queueSizeLimit) {
         try {
-            return Transaction.execute(new TransactionCallback<SyncQueueVO>() {
+            SyncQueueVO queue = Transaction.execute(new TransactionCallback<SyncQueueVO>() {
                 @Override
                 public SyncQueueVO doInTransaction(TransactionStatus status) {
                     _syncQueueDao.ensureQueue(syncObjType, syncObjId);
@@ -69,6 +74,8 @@ public class SyncQueueManagerImpl extends ManagerBase implements SyncQueueManage
                     return queueVO;
                 }
             });
+            notifyQueueReady(queue.getId());
+            return queue;
         } catch (Exception e) {
             s_logger.error("Unexpected exception: ", e);
         }
@@ -179,9 +186,9 @@ public class SyncQueueManagerImpl extends ManagerBase implements SyncQueueManage
     @DB
     public void purgeItem(final long queueItemId) {
         try {
-            Transaction.execute(new TransactionCallbackNoReturn() {
+            Long freedQueueId = Transaction.execute(new TransactionCallback<Long>() {
                 @Override
-                public void doInTransactionWithoutResult(TransactionStatus status) {
+                public Long doInTransaction(TransactionStatus status) {
                     SyncQueueItemVO itemVO = _syncQueueItemDao.findById(queueItemId);
                     if(itemVO != null) {
                         SyncQueueVO queueVO = _syncQueueDao.findById(itemVO.getQueueId());
@@ -195,10 +202,16 @@ public class SyncQueueManagerImpl extends ManagerBase implements SyncQueueManage
                             assert (queueVO.getQueueSize() > 0) : "Count reduce happens when it's already <= 0!";
                             queueVO.setQueueSize(queueVO.getQueueSize() - 1);
                             _syncQueueDao.update(queueVO.getId(), queueVO);
+                            return queueVO.getId();
                         }
                     }
+                    return null;
                 }
             });
+            // an active item gave up its slot, the next item of the queue can run
+            if (freedQueueId != null) {
+                notifyQueueReady(freedQueueId);
+            }
         } catch (Exception e) {
             s_logger.error("Unexpected exception: ", e);
         }
@@ -242,6 +255,18 @@ public class SyncQueueManagerImpl extends ManagerBase implements SyncQueueManage
         return _syncQueueItemDao.getBlockedQueueItems(thresholdMs, exclusive);
     }
 
+    @Override
+    public void notifyQueueReady(long queueId) {
+        // message bus refuses to publish within a DB transaction
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        if (txn != null && txn.dbTxnStarted()) {
+            if (s_logger.isTraceEnabled())
+                s_logger.trace("Sync queue (" + queueId + ") changed within a DB transaction, leave it to the queue scan");
+            return;
+        }
+        _messageBus.publish(null, Topics.QUEUE_READY, PublishScope.LOCAL, queueId);
+    }
+
     private boolean queueReadyToProcess(SyncQueueVO queueVO) {
         int nActiveItems = _syncQueueItemDao.getActiveQueueItemCount(queueVO.getId());
         if (nActiveItems < queueVO.getQueueSizeLimit())
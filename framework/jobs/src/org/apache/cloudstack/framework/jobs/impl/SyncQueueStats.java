@@ -0,0 +1,101 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.jobs.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import com.cloud.utils.LatencyHistogram;
+
+public class SyncQueueStats extends StandardMBean implements SyncQueueStatsMBean {
+    private final AtomicLong _notifications = new AtomicLong();
+    private final AtomicLong _dispatchedOnNotify = new AtomicLong();
+    private final AtomicLong _dispatchedByScan = new AtomicLong();
+    private final LatencyHistogram _waitTime = new LatencyHistogram();
+
+    public SyncQueueStats() {
+        super(SyncQueueStatsMBean.class, false);
+    }
+
+    public void notified() {
+        _notifications.incrementAndGet();
+    }
+
+    public void dispatched(boolean onNotify, long waitMs) {
+        if (onNotify)
+            _dispatchedOnNotify.incrementAndGet();
+        else
+            _dispatchedByScan.incrementAndGet();
+        _waitTime.record(waitMs);
+    }
+
+    @Override
+    public long getQueueNotifications() {
+        return _notifications.get();
+    }
+
+    @Override
+    public long getItemsDispatchedOnNotify() {
+        return _dispatchedOnNotify.get();
+    }
+
+    @Override
+    public long getItemsDispatchedByScan() {
+        return _dispatchedByScan.get();
+    }
+
+    @Override
+    public long getWaitTimeCount() {
+        return _waitTime.getCount();
+    }
+
+    @Override
+    public double getAverageWaitTime() {
+        return _waitTime.getAverage();
+    }
+
+    @Override
+    public long getMaxWaitTime() {
+        return _waitTime.getMax();
+    }
+
+    @Override
+    public long getWaitTime50thPercentile() {
+        return _waitTime.getPercentile(50);
+    }
+
+    @Override
+    public long getWaitTime95thPercentile() {
+        return _waitTime.getPercentile(95);
+    }
+
+    @Override
+    public long getWaitTime99thPercentile() {
+        return _waitTime.getPercentile(99);
+    }
+
+    @Override
+    public String getWaitTimeHistogram() {
+        return _waitTime.toString();
+    }
+
+    @Override
+    public void resetWaitTime() {
+        _waitTime.reset();
+    }
+}
@@ -0,0 +1,45 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.jobs.impl;
+
+/**
+ * Dispatch statistics of the sync queue items run by this management server.
+ * Wait times are in milliseconds, from queueing an item until it is dispatched.
+ */
+public interface SyncQueueStatsMBean {
+    public long getQueueNotifications();
+
+    public long getItemsDispatchedOnNotify();
+
+    public long getItemsDispatchedByScan();
+
+    public long getWaitTimeCount();
+
+    public double getAverageWaitTime();
+
+    public long getMaxWaitTime();
+
+    public long getWaitTime50thPercentile();
+
+    public long getWaitTime95thPercentile();
+
+    public long getWaitTime99thPercentile();
+
+    public String getWaitTimeHistogram();
+
+    public void resetWaitTime();
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.cloudstack.mom.rabbitmq;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.apache.log4j.Logger;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Keeps the idle publishing channels open, up to the size of the pool, instead of opening a
+ * channel for every event. A channel is only used by one thread at a time.
+ */
+public class ChannelPool {
+    private static final Logger s_logger = Logger.getLogger(ChannelPool.class);
+
+    public interface ChannelFactory {
+        Channel createChannel() throws Exception;
+    }
+
+    private final ChannelFactory _factory;
+    private final ArrayBlockingQueue<Channel> _idle;
+
+    public ChannelPool(int size, ChannelFactory factory) {
+        _factory = factory;
+        _idle = new ArrayBlockingQueue<Channel>(size);
+    }
+
+    /**
+     * @return an idle channel, or a new one if there is none open.
+     */
+    public Channel borrow() throws Exception {
+        Channel channel;
+        while ((channel = _idle.poll()) != null) {
+            if (channel.isOpen()) {
+                return channel;
+            }
+        }
+        return _factory.createChannel();
+    }
+
+    /**
+     * Gives back a channel that is still usable, it is closed if the pool is full.
+     */
+    public void release(Channel channel) {
+        if (channel.isOpen() && _idle.offer(channel)) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (Exception e) {
+            s_logger.debug("Failed to close channel due to " + e.getMessage());
+        }
+    }
+
+    /**
+     * Discards a channel that failed.
+     */
+    public void invalidate(Channel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.abort();
+        } catch (Exception e) {
+            s_logger.debug("Failed to abort channel due to " + e.getMessage());
+        }
+    }
+
+    /**
+     * Discards the idle channels, after the connection they belong to is lost.
+     */
+    public void clear() {
+        Channel channel;
+        while ((channel = _idle.poll()) != null) {
+            invalidate(channel);
+        }
+    }
+}
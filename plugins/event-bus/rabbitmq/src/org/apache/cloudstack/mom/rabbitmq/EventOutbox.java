@@ -0,0 +1,366 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.cloudstack.mom.rabbitmq;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded queue of the events waiting to be published to the AMQP server, so that the threads
+ * raising the events do not wait for the server.
+ *
+ * When the queue is full, the overflow policy decides what becomes of a new event. With the Spill
+ * policy the events are appended to a file and read back in order once there is room again. The
+ * events left in memory are spilled as well when the outbox is closed, and are published after
+ * the next start.
+ */
+public class EventOutbox {
+    private static final Logger s_logger = Logger.getLogger(EventOutbox.class);
+
+    static final String SPILL_FILE_NAME = "events.spill";
+
+    public enum OverflowPolicy {
+        // the caller waits for room, up to the block timeout, then the event is dropped
+        Block,
+        // the event is dropped
+        Drop,
+        // the event is written to the spill file
+        Spill;
+
+        public static OverflowPolicy fromString(String policy) {
+            for (OverflowPolicy value : values()) {
+                if (value.name().equalsIgnoreCase(policy)) {
+                    return value;
+                }
+            }
+            return null;
+        }
+    }
+
+    public static class Message {
+        private final String _routingKey;
+        private final byte[] _body;
+
+        public Message(String routingKey, byte[] body) {
+            _routingKey = routingKey;
+            _body = body;
+        }
+
+        public String getRoutingKey() {
+            return _routingKey;
+        }
+
+        public byte[] getBody() {
+            return _body;
+        }
+    }
+
+    private final int _capacity;
+    private final OverflowPolicy _policy;
+    private final long _blockTimeout;
+    private final File _spillFile;
+
+    private final ArrayDeque<Message> _queue = new ArrayDeque<Message>();
+    private FileOutputStream _spillOut;
+    // bytes written to the spill file, and read back from it
+    private long _spillLength;
+    private long _spillOffset;
+    private long _dropped;
+    private boolean _closed;
+
+    public EventOutbox(int capacity, OverflowPolicy policy, long blockTimeout, File spillDirectory) throws IOException {
+        _capacity = capacity;
+        _policy = policy;
+        _blockTimeout = blockTimeout;
+
+        if (spillDirectory != null) {
+            if (!spillDirectory.isDirectory() && !spillDirectory.mkdirs()) {
+                throw new IOException("Unable to create the spill directory " + spillDirectory);
+            }
+            _spillFile = new File(spillDirectory, SPILL_FILE_NAME);
+            _spillLength = _spillFile.length();
+            if (_spillLength > 0) {
+                s_logger.info("Found " + _spillLength + " bytes of events spilled to " + _spillFile + " before the last stop");
+            }
+        } else {
+            _spillFile = null;
+        }
+    }
+
+    /**
+     * @return false if the event was dropped, as the outbox is full or closed.
+     */
+    public synchronized boolean offer(Message message) throws InterruptedException {
+        if (_closed) {
+            return false;
+        }
+
+        // once events are spilled, the new ones follow them to keep the order
+        if (_spillLength > _spillOffset) {
+            return spill(message);
+        }
+
+        if (_queue.size() >= _capacity) {
+            switch (_policy) {
+            case Spill:
+                return spill(message);
+            case Block:
+                long deadline = System.currentTimeMillis() + _blockTimeout;
+                while (_queue.size() >= _capacity && !_closed) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        break;
+                    }
+                    wait(wait);
+                }
+                if (_queue.size() < _capacity && !_closed) {
+                    break;
+                }
+                // still full, the event is dropped
+            default:
+                _dropped++;
+                return false;
+            }
+        }
+
+        _queue.add(message);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Waits up to the timeout for events to publish.
+     *
+     * @return up to max events, in the order they were offered, empty if there were none.
+     */
+    public synchronized List<Message> take(int max, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        refill();
+        while (_queue.isEmpty()) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0 || _closed) {
+                return Collections.emptyList();
+            }
+            wait(wait);
+            refill();
+        }
+
+        List<Message> batch = new ArrayList<Message>(Math.min(max, _queue.size()));
+        while (batch.size() < max && !_queue.isEmpty()) {
+            batch.add(_queue.poll());
+        }
+        // there is room for the blocked callers
+        notifyAll();
+        return batch;
+    }
+
+    /**
+     * Puts back events that could not be published, ahead of the others.
+     */
+    public synchronized void requeue(List<Message> batch) {
+        if (_closed) {
+            _dropped += batch.size();
+            return;
+        }
+        for (int i = batch.size() - 1; i >= 0; i--) {
+            _queue.addFirst(batch.get(i));
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return _queue.isEmpty() && _spillLength == _spillOffset;
+    }
+
+    /**
+     * @return the events kept in memory.
+     */
+    public synchronized int size() {
+        return _queue.size();
+    }
+
+    /**
+     * @return the events dropped since the outbox was created.
+     */
+    public synchronized long getDropped() {
+        return _dropped;
+    }
+
+    /**
+     * Closes the outbox, the events left in memory are written to the spill file if there is one.
+     *
+     * @return the events that are lost.
+     */
+    public synchronized int close() {
+        _closed = true;
+        notifyAll();
+
+        int lost = _queue.size();
+        if (_spillFile != null && !_queue.isEmpty()) {
+            try {
+                writeSpillFile();
+                lost = 0;
+            } catch (IOException e) {
+                s_logger.warn("Unable to spill the events to " + _spillFile + " due to " + e.getMessage());
+            }
+        }
+        _queue.clear();
+        closeSpillOut();
+        _dropped += lost;
+        return lost;
+    }
+
+    // the events in memory are older than the ones already spilled, they go first
+    private void writeSpillFile() throws IOException {
+        closeSpillOut();
+        File tmp = new File(_spillFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            for (Message message : _queue) {
+                out.write(encode(message));
+            }
+            if (_spillLength > _spillOffset) {
+                FileInputStream in = new FileInputStream(_spillFile);
+                try {
+                    in.getChannel().transferTo(_spillOffset, _spillLength - _spillOffset, out.getChannel());
+                } finally {
+                    in.close();
+                }
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(_spillFile)) {
+            throw new IOException("Unable to rename " + tmp + " to " + _spillFile);
+        }
+        _spillLength = _spillFile.length();
+        _spillOffset = 0;
+    }
+
+    private boolean spill(Message message) {
+        if (_spillFile == null) {
+            _dropped++;
+            return false;
+        }
+        try {
+            if (_spillOut == null) {
+                _spillOut = new FileOutputStream(_spillFile, true);
+            }
+            byte[] record = encode(message);
+            _spillOut.write(record);
+            _spillLength += record.length;
+            notifyAll();
+            return true;
+        } catch (IOException e) {
+            s_logger.warn("Unable to spill event " + message.getRoutingKey() + " to " + _spillFile + " due to " + e.getMessage());
+            _dropped++;
+            return false;
+        }
+    }
+
+    // moves the spilled events back to memory while there is room
+    private void refill() {
+        if (_spillLength == _spillOffset || _queue.size() >= _capacity) {
+            return;
+        }
+
+        try {
+            FileInputStream in = new FileInputStream(_spillFile);
+            try {
+                in.getChannel().position(_spillOffset);
+                DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+                while (_queue.size() < _capacity && _spillOffset < _spillLength) {
+                    String routingKey = data.readUTF();
+                    byte[] body = new byte[data.readInt()];
+                    data.readFully(body);
+                    _queue.add(new Message(routingKey, body));
+                    _spillOffset += recordLength(routingKey, body);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (EOFException e) {
+            s_logger.warn("The spill file " + _spillFile + " ends with an incomplete event, " + (_spillLength - _spillOffset) + " bytes are dropped");
+            _spillOffset = _spillLength;
+        } catch (IOException e) {
+            s_logger.warn("Unable to read the spilled events from " + _spillFile + " due to " + e.getMessage() + ", " + (_spillLength - _spillOffset) + " bytes are dropped");
+            _spillOffset = _spillLength;
+        }
+
+        if (_spillOffset == _spillLength) {
+            closeSpillOut();
+            if (!_spillFile.delete() && _spillFile.exists()) {
+                s_logger.warn("Unable to delete the spill file " + _spillFile);
+            }
+            _spillLength = 0;
+            _spillOffset = 0;
+        }
+    }
+
+    private void closeSpillOut() {
+        if (_spillOut != null) {
+            try {
+                _spillOut.close();
+            } catch (IOException e) {
+                s_logger.warn("Unable to close the spill file " + _spillFile + " due to " + e.getMessage());
+            }
+            _spillOut = null;
+        }
+    }
+
+    private static byte[] encode(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.getBody().length + message.getRoutingKey().length() + 8);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(message.getRoutingKey());
+        out.writeInt(message.getBody().length);
+        out.write(message.getBody());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static long recordLength(String routingKey, byte[] body) {
+        // as written by DataOutputStream.writeUTF(), the length then the modified UTF-8 bytes
+        long length = 2 + 4 + body.length;
+        for (int i = 0; i < routingKey.length(); i++) {
+            char c = routingKey.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length += 1;
+            } else if (c > 0x07FF) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+}
@@ -19,13 +19,18 @@
 
 package org.apache.cloudstack.mom.rabbitmq;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.ConnectException;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
@@ -82,6 +87,25 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
 
     private static Integer retryInterval;
 
+    // events are queued in an outbox and published by a background thread when true
+    private static String asyncPublish;
+
+    // idle channels kept open for publishing
+    private static Integer publishChannels;
+
+    // events held in memory by the outbox, and what happens to new events once it is full
+    private static Integer outboxSize;
+    private static String overflowPolicy;
+
+    // directory where the events overflowing the outbox, or left in it on stop, are written
+    private static String spillDirectory;
+
+    // events published before waiting for the confirms of the AMQP server
+    private static Integer confirmBatchSize;
+
+    // milliseconds to wait for the confirms, or for room in a full outbox
+    private static Integer publishTimeout;
+
     // hashmap to book keep the registered subscribers
     private static ConcurrentHashMap<String, Ternary<String, Channel, EventSubscriber>> s_subscribers;
 
@@ -93,6 +117,13 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
 
     private ExecutorService executorService;
     private static DisconnectHandler disconnectHandler;
+
+    private ChannelPool channelPool;
+    private EventOutbox outbox;
+    private Future<?> outboxPublisher;
+    private volatile boolean stopping = false;
+    private volatile long stopDeadline;
+
     private static final Logger s_logger = Logger.getLogger(RabbitMQEventBus.class);
 
     @Override
@@ -129,6 +160,32 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
                 retryInterval = 10000;// default to 10s to try out reconnect
             }
 
+            if (asyncPublish != null && !asyncPublish.isEmpty()) {
+                if (!asyncPublish.equalsIgnoreCase("true") && !asyncPublish.equalsIgnoreCase("false")) {
+                    throw new ConfigurationException("Invalid configuration parameter for 'asyncPublish'.");
+                }
+            }
+
+            if (publishChannels == null) {
+                publishChannels = 4;
+            }
+
+            if (outboxSize == null) {
+                outboxSize = 10000;
+            }
+
+            if (confirmBatchSize == null) {
+                confirmBatchSize = 100;
+            }
+
+            if (publishTimeout == null) {
+                publishTimeout = 10000;
+            }
+
+            if (publishChannels <= 0 || outboxSize <= 0 || confirmBatchSize <= 0 || publishTimeout <= 0) {
+                throw new ConfigurationException("Invalid configuration parameter for the publishing of events, the sizes and timeout must be positive.");
+            }
+
         } catch (NumberFormatException e) {
             throw new ConfigurationException("Invalid port number/retry interval");
         }
@@ -136,6 +193,39 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         s_subscribers = new ConcurrentHashMap<String, Ternary<String, Channel, EventSubscriber>>();
         executorService = Executors.newCachedThreadPool();
         disconnectHandler = new DisconnectHandler();
+        channelPool = new ChannelPool(publishChannels, new ChannelPool.ChannelFactory() {
+            @Override
+            public Channel createChannel() throws Exception {
+                Channel channel = RabbitMQEventBus.this.createChannel(getConnection());
+                channel.confirmSelect();
+                createExchange(channel, amqpExchangeName);
+                return channel;
+            }
+        });
+
+        if (asyncPublish == null || asyncPublish.isEmpty() || asyncPublish.equalsIgnoreCase("true")) {
+            EventOutbox.OverflowPolicy policy = EventOutbox.OverflowPolicy.Drop;
+            if (overflowPolicy != null && !overflowPolicy.isEmpty()) {
+                policy = EventOutbox.OverflowPolicy.fromString(overflowPolicy);
+                if (policy == null) {
+                    throw new ConfigurationException("Invalid configuration parameter for 'overflowPolicy', it must be block, drop or spill.");
+                }
+            }
+            File spillDir = null;
+            if (spillDirectory != null && !spillDirectory.isEmpty()) {
+                spillDir = new File(spillDirectory);
+            } else if (policy == EventOutbox.OverflowPolicy.Spill) {
+                throw new ConfigurationException("Unable to get the spill directory details for the 'spill' overflow policy");
+            }
+
+            try {
+                outbox = new EventOutbox(outboxSize, policy, publishTimeout, spillDir);
+            } catch (IOException e) {
+                throw new ConfigurationException("Unable to create the event outbox due to " + e.getMessage());
+            }
+        } else {
+            outbox = null;
+        }
 
         return true;
     }
@@ -173,6 +263,34 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         RabbitMQEventBus.retryInterval = retryInterval;
     }
 
+    public static void setAsyncPublish(String asyncPublish) {
+        RabbitMQEventBus.asyncPublish = asyncPublish;
+    }
+
+    public static void setPublishChannels(Integer publishChannels) {
+        RabbitMQEventBus.publishChannels = publishChannels;
+    }
+
+    public static void setOutboxSize(Integer outboxSize) {
+        RabbitMQEventBus.outboxSize = outboxSize;
+    }
+
+    public static void setOverflowPolicy(String overflowPolicy) {
+        RabbitMQEventBus.overflowPolicy = overflowPolicy;
+    }
+
+    public static void setSpillDirectory(String spillDirectory) {
+        RabbitMQEventBus.spillDirectory = spillDirectory;
+    }
+
+    public static void setConfirmBatchSize(Integer confirmBatchSize) {
+        RabbitMQEventBus.confirmBatchSize = confirmBatchSize;
+    }
+
+    public static void setPublishTimeout(Integer publishTimeout) {
+        RabbitMQEventBus.publishTimeout = publishTimeout;
+    }
+
     /** Call to subscribe to interested set of events
      *
      * @param topic defines category and type of the events being subscribed to
@@ -259,27 +377,76 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         }
     }
 
-    // publish event on to the exchange created on AMQP server
+    /** publish event on to the exchange created on AMQP server
+     *
+     *  with the outbox, the event is only queued and the caller does not wait for the AMQP server
+     */
     @Override
     public void publish(Event event) throws EventBusException {
 
         String routingKey = createRoutingKey(event);
         String eventDescription = event.getDescription();
+        if (eventDescription == null) {
+            throw new EventBusException("Failed to publish event " + routingKey + " to message broker as it has no description");
+        }
 
+        if (outbox != null) {
+            boolean queued;
+            try {
+                queued = outbox.offer(new EventOutbox.Message(routingKey, eventDescription.getBytes()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                queued = false;
+            }
+            if (!queued) {
+                throw new EventBusException("Failed to publish event " + routingKey + " to message broker as the outbox is full");
+            }
+            return;
+        }
+
+        Channel channel = null;
         try {
-            Connection connection = getConnection();
-            Channel channel = createChannel(connection);
-            createExchange(channel, amqpExchangeName);
-            publishEventToExchange(channel, amqpExchangeName, routingKey, eventDescription);
-            channel.close();
+            channel = channelPool.borrow();
+            publishEventToExchange(channel, amqpExchangeName, routingKey, eventDescription.getBytes());
+            channelPool.release(channel);
         } catch (AlreadyClosedException e) {
+            channelPool.invalidate(channel);
             closeConnection();
             throw new EventBusException("Failed to publish event to message broker as connection to AMQP broker in lost");
         } catch (Exception e) {
+            channelPool.invalidate(channel);
             throw new EventBusException("Failed to publish event to message broker due to " + e.getMessage());
         }
     }
 
+    /** publishes a batch of events from the outbox, then waits for the AMQP server to confirm them all
+     *
+     * @return false if the events have to be published again, some of them may have been delivered
+     */
+    private boolean publishBatch(List<EventOutbox.Message> batch) {
+        Channel channel = null;
+        try {
+            channel = channelPool.borrow();
+            for (EventOutbox.Message message : batch) {
+                publishEventToExchange(channel, amqpExchangeName, message.getRoutingKey(), message.getBody());
+            }
+            channel.waitForConfirmsOrDie(publishTimeout);
+            channelPool.release(channel);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (TimeoutException e) {
+            s_logger.warn("Timed out waiting for message broker to confirm " + batch.size() + " events");
+        } catch (AlreadyClosedException e) {
+            closeConnection();
+            s_logger.warn("Failed to publish " + batch.size() + " events to message broker as connection to AMQP broker in lost");
+        } catch (Exception e) {
+            s_logger.warn("Failed to publish " + batch.size() + " events to message broker due to " + e.getMessage());
+        }
+        channelPool.invalidate(channel);
+        return false;
+    }
+
     /** creates a routing key from the event details.
      *  created routing key will be used while publishing the message to exchange on AMQP server
      */
@@ -367,7 +534,7 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
 
     private synchronized Connection createConnection() throws Exception {
         try {
-            ConnectionFactory factory = new ConnectionFactory();
+            ConnectionFactory factory = newConnectionFactory();
             factory.setUsername(username);
             factory.setPassword(password);
             factory.setHost(amqpHost);
@@ -391,6 +558,10 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         }
     }
 
+    protected ConnectionFactory newConnectionFactory() {
+        return new ConnectionFactory();
+    }
+
     private synchronized void closeConnection() {
         try {
             if (s_connection != null) {
@@ -440,9 +611,8 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         }
     }
 
-    private void publishEventToExchange(Channel channel, String exchangeName, String routingKey, String eventDescription) throws Exception {
+    private void publishEventToExchange(Channel channel, String exchangeName, String routingKey, byte[] messageBodyBytes) throws Exception {
         try {
-            byte[] messageBodyBytes = eventDescription.getBytes();
             channel.basicPublish(exchangeName, routingKey, MessageProperties.PERSISTENT_TEXT_PLAIN, messageBodyBytes);
         } catch (Exception e) {
             s_logger.error("Failed to publish event " + routingKey + " on exchange " + exchangeName + "  of message broker due to " + e.getMessage());
@@ -484,29 +654,62 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
     public boolean start() {
         ReconnectionTask reconnect = new ReconnectionTask(); // initiate connection to AMQP server
         executorService.submit(reconnect);
+        if (outbox != null) {
+            stopping = false;
+            outboxPublisher = executorService.submit(new OutboxPublisher());
+        }
         return true;
     }
 
     @Override
-    public synchronized boolean stop() {
-        if (s_connection.isOpen()) {
-            for (String subscriberId : s_subscribers.keySet()) {
-                Ternary<String, Channel, EventSubscriber> subscriberDetails = s_subscribers.get(subscriberId);
-                Channel channel = subscriberDetails.second();
-                String queueName = subscriberId;
-                try {
-                    channel.queueDelete(queueName);
-                    channel.abort();
-                } catch (IOException ioe) {
-                    s_logger.warn("Failed to delete queue: " + queueName + " on AMQP server due to " + ioe.getMessage());
+    public boolean stop() {
+        // outside of the lock, the publisher needs it to connect
+        if (outboxPublisher != null) {
+            stopOutboxPublisher();
+        }
+        // the reconnection attempts end with the executor
+        executorService.shutdownNow();
+
+        synchronized (this) {
+            if (s_connection != null && s_connection.isOpen()) {
+                for (String subscriberId : s_subscribers.keySet()) {
+                    Ternary<String, Channel, EventSubscriber> subscriberDetails = s_subscribers.get(subscriberId);
+                    Channel channel = subscriberDetails.second();
+                    String queueName = subscriberId;
+                    try {
+                        channel.queueDelete(queueName);
+                        channel.abort();
+                    } catch (IOException ioe) {
+                        s_logger.warn("Failed to delete queue: " + queueName + " on AMQP server due to " + ioe.getMessage());
+                    }
                 }
             }
-        }
 
-        closeConnection();
+            channelPool.clear();
+            closeConnection();
+        }
         return true;
     }
 
+    // gives the publisher the publish timeout to empty the outbox, what is left is spilled or lost
+    private void stopOutboxPublisher() {
+        stopDeadline = System.currentTimeMillis() + publishTimeout;
+        stopping = true;
+        try {
+            outboxPublisher.get(2L * publishTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            outboxPublisher.cancel(true);
+        } catch (Exception e) {
+            s_logger.warn("Failed to stop the event publisher due to " + e.getMessage());
+        }
+        outboxPublisher = null;
+
+        int lost = outbox.close();
+        if (lost > 0) {
+            s_logger.warn("Dropped " + lost + " events that were not published to message broker before stop");
+        }
+    }
+
     // logic to deal with loss of connection to AMQP server
     private class DisconnectHandler implements ShutdownListener {
 
@@ -520,6 +723,7 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
                     s_subscribers.put(subscriberId, subscriberDetails);
                 }
 
+                channelPool.clear();
                 abortConnection(); // disconnected to AMQP server, so abort the connection and channels
                 s_logger.warn("Connection has been shutdown by AMQP server. Attempting to reconnect.");
 
@@ -530,6 +734,40 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         }
     }
 
+    // publishes the events of the outbox in batches, in the order they were raised
+    private class OutboxPublisher extends ManagedContextRunnable {
+
+        @Override
+        protected void runInContext() {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (stopping && (outbox.isEmpty() || System.currentTimeMillis() >= stopDeadline)) {
+                    break;
+                }
+
+                List<EventOutbox.Message> batch;
+                try {
+                    batch = outbox.take(confirmBatchSize, 1000);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (batch.isEmpty() || publishBatch(batch)) {
+                    continue;
+                }
+
+                // retry the batch once the AMQP server is back
+                outbox.requeue(batch);
+                long wait = stopping ? Math.min(retryInterval, stopDeadline - System.currentTimeMillis()) : retryInterval;
+                try {
+                    if (wait > 0) {
+                        Thread.sleep(wait);
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
+
     // retry logic to connect back to AMQP server after loss of connection
     private class ReconnectionTask extends ManagedContextRunnable {
 
@@ -545,6 +783,9 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
                 } catch (InterruptedException ie) {
                     // ignore timer interrupts
                 }
+                if (executorService.isShutdown()) {
+                    break;
+                }
 
                 try {
                     try {
@@ -0,0 +1,458 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.cloudstack.mom.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+
+import org.apache.cloudstack.framework.events.Event;
+import org.apache.cloudstack.framework.events.EventBusException;
+import org.apache.cloudstack.framework.events.EventSubscriber;
+import org.apache.cloudstack.framework.events.EventTopic;
+
+public class RabbitMQEventBusTest {
+    private static final long TIMEOUT = 10000;
+
+    /**
+     * Stands in for the AMQP server, with the part of the connection and channel API the event
+     * bus uses. Messages are routed to the bound queues of the topic exchanges as they are
+     * published. The server can be made slow to confirm, down, or to nack.
+     */
+    private static class InProcessBroker {
+        final List<String> published = new CopyOnWriteArrayList<String>();
+        final AtomicInteger channelsCreated = new AtomicInteger();
+        final AtomicInteger confirmWaits = new AtomicInteger();
+        final AtomicInteger nacks = new AtomicInteger();
+        volatile long latency = 0;
+        volatile boolean down = false;
+
+        // queue name to binding key and consumer
+        private final Map<String, String> bindings = new HashMap<String, String>();
+        private final Map<String, Consumer> consumers = new HashMap<String, Consumer>();
+
+        private Object proxy(Class<?> type, InvocationHandler handler) {
+            return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {type}, handler);
+        }
+
+        Connection newConnection() throws IOException {
+            if (down) {
+                throw new IOException("Connection refused");
+            }
+            return (Connection)proxy(Connection.class, new InvocationHandler() {
+                boolean open = true;
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    String name = method.getName();
+                    if (name.equals("createChannel")) {
+                        if (down) {
+                            throw new IOException("Connection reset");
+                        }
+                        channelsCreated.incrementAndGet();
+                        return newChannel();
+                    } else if (name.equals("isOpen")) {
+                        return open;
+                    } else if (name.equals("close") || name.equals("abort")) {
+                        open = false;
+                        return null;
+                    } else if (name.equals("addShutdownListener")) {
+                        return null;
+                    }
+                    return objectMethod(proxy, method, args);
+                }
+            });
+        }
+
+        private Channel newChannel() {
+            return (Channel)proxy(Channel.class, new InvocationHandler() {
+                boolean open = true;
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    String name = method.getName();
+                    if (name.equals("isOpen")) {
+                        return open;
+                    } else if (name.equals("close") || name.equals("abort")) {
+                        open = false;
+                        return null;
+                    }
+                    if (!open) {
+                        throw new IOException("Channel is closed");
+                    }
+                    if (down) {
+                        open = false;
+                        throw new IOException("Connection reset");
+                    }
+
+                    if (name.equals("exchangeDeclare") || name.equals("confirmSelect") || name.equals("queueDeclare") || name.equals("queueDelete")) {
+                        return null;
+                    } else if (name.equals("queueBind")) {
+                        synchronized (InProcessBroker.this) {
+                            bindings.put((String)args[0], (String)args[2]);
+                        }
+                        return null;
+                    } else if (name.equals("basicConsume")) {
+                        synchronized (InProcessBroker.this) {
+                            consumers.put((String)args[0], (Consumer)args[3]);
+                        }
+                        return args[2];
+                    } else if (name.equals("basicPublish")) {
+                        deliver((String)args[1], (byte[])args[3]);
+                        return null;
+                    } else if (name.equals("waitForConfirmsOrDie")) {
+                        confirmWaits.incrementAndGet();
+                        Thread.sleep(latency);
+                        if (nacks.get() > 0) {
+                            nacks.decrementAndGet();
+                            open = false;
+                            throw new IOException("nacks received");
+                        }
+                        return null;
+                    }
+                    return objectMethod(proxy, method, args);
+                }
+            });
+        }
+
+        private void deliver(String routingKey, byte[] body) throws IOException {
+            published.add(routingKey + " " + new String(body));
+            Map<String, Consumer> matched = new HashMap<String, Consumer>();
+            synchronized (this) {
+                for (Map.Entry<String, String> binding : bindings.entrySet()) {
+                    if (matches(binding.getValue(), routingKey) && consumers.containsKey(binding.getKey())) {
+                        matched.put(binding.getKey(), consumers.get(binding.getKey()));
+                    }
+                }
+            }
+            for (Map.Entry<String, Consumer> consumer : matched.entrySet()) {
+                consumer.getValue().handleDelivery(consumer.getKey(), new Envelope(published.size(), false, "cloudstack-events", routingKey), null, body);
+            }
+        }
+
+        private static boolean matches(String bindingKey, String routingKey) {
+            String[] binding = bindingKey.split("\\.");
+            String[] routing = routingKey.split("\\.");
+            if (binding.length != routing.length) {
+                return false;
+            }
+            for (int i = 0; i < binding.length; i++) {
+                if (!binding[i].equals("*") && !binding[i].equals(routing[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static Object objectMethod(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("equals")) {
+                return proxy == args[0];
+            } else if (method.getName().equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (method.getName().equals("toString")) {
+                return "InProcessBroker" + method.getDeclaringClass().getSimpleName();
+            }
+            throw new UnsupportedOperationException(method.getName());
+        }
+
+        boolean awaitConfirmWaits(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (confirmWaits.get() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            return confirmWaits.get() >= count;
+        }
+
+        boolean awaitPublished(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (published.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            return published.size() >= count;
+        }
+    }
+
+    private InProcessBroker _broker;
+    private File _spillDirectory;
+    private List<RabbitMQEventBus> _buses = new ArrayList<RabbitMQEventBus>();
+
+    private RabbitMQEventBus eventBus() throws Exception {
+        RabbitMQEventBus eventBus = new RabbitMQEventBus() {
+            @Override
+            protected ConnectionFactory newConnectionFactory() {
+                return new ConnectionFactory() {
+                    @Override
+                    public Connection newConnection() throws IOException {
+                        return _broker.newConnection();
+                    }
+                };
+            }
+        };
+        eventBus.configure("EventBus", Collections.<String, Object> emptyMap());
+        eventBus.start();
+        _buses.add(eventBus);
+        return eventBus;
+    }
+
+    private static Event event(int i) {
+        Event event = new Event("ManagementServer", "ActionEvent", "VM.CREATE", "VirtualMachine", "uuid-" + i);
+        event.setDescription("{\"event\":" + i + "}");
+        return event;
+    }
+
+    private static String published(int i) {
+        return "ManagementServer.ActionEvent.VM-CREATE.VirtualMachine.uuid-" + i + " {\"event\":" + i + "}";
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        _broker = new InProcessBroker();
+        _spillDirectory = File.createTempFile("rabbitmq-spill", "");
+        _spillDirectory.delete();
+
+        RabbitMQEventBus.setServer("localhost");
+        RabbitMQEventBus.setPort(5672);
+        RabbitMQEventBus.setUsername("guest");
+        RabbitMQEventBus.setPassword("guest");
+        RabbitMQEventBus.setExchange("cloudstack-events");
+        RabbitMQEventBus.setRetryInterval(50);
+        RabbitMQEventBus.setAsyncPublish(null);
+        RabbitMQEventBus.setPublishChannels(2);
+        RabbitMQEventBus.setOutboxSize(1000);
+        RabbitMQEventBus.setOverflowPolicy(null);
+        RabbitMQEventBus.setSpillDirectory(null);
+        RabbitMQEventBus.setConfirmBatchSize(100);
+        RabbitMQEventBus.setPublishTimeout(1000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (RabbitMQEventBus eventBus : _buses) {
+            eventBus.stop();
+        }
+        File[] files = _spillDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        _spillDirectory.delete();
+    }
+
+    @Test
+    public void testPublishDoesNotWaitForTheBroker() throws Exception {
+        _broker.latency = 200;
+        RabbitMQEventBus eventBus = eventBus();
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 50; i++) {
+            eventBus.publish(event(i));
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("publishing took " + elapsed + " ms", elapsed < 200);
+
+        assertTrue(_broker.awaitPublished(50));
+        for (int i = 0; i < 50; i++) {
+            assertEquals(published(i), _broker.published.get(i));
+        }
+        // one pooled channel for all the events
+        assertEquals(1, _broker.channelsCreated.get());
+    }
+
+    @Test
+    public void testConfirmsAreWaitedForOncePerBatch() throws Exception {
+        _broker.down = true;
+        RabbitMQEventBus eventBus = eventBus();
+        for (int i = 0; i < 250; i++) {
+            eventBus.publish(event(i));
+        }
+        int failedWaits = _broker.confirmWaits.get();
+
+        _broker.down = false;
+        assertTrue(_broker.awaitPublished(250));
+        assertTrue(_broker.awaitConfirmWaits(failedWaits + 3));
+        Thread.sleep(100);
+        assertEquals(3, _broker.confirmWaits.get() - failedWaits);
+        for (int i = 0; i < 250; i++) {
+            assertEquals(published(i), _broker.published.get(i));
+        }
+    }
+
+    @Test
+    public void testNackedBatchesArePublishedAgain() throws Exception {
+        _broker.nacks.set(2);
+        RabbitMQEventBus eventBus = eventBus();
+        for (int i = 0; i < 10; i++) {
+            eventBus.publish(event(i));
+        }
+
+        // published at least once, the nacked events are published again
+        assertTrue(_broker.awaitConfirmWaits(3));
+        assertTrue(_broker.awaitPublished(10));
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (new HashSet<String>(_broker.published).size() < 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, _broker.nacks.get());
+        assertEquals(10, new HashSet<String>(_broker.published).size());
+    }
+
+    @Test
+    public void testSynchronousPublishUsesPooledChannels() throws Exception {
+        RabbitMQEventBus.setAsyncPublish("false");
+        RabbitMQEventBus eventBus = eventBus();
+        for (int i = 0; i < 20; i++) {
+            eventBus.publish(event(i));
+        }
+        // published by the callers, without waiting for the confirms
+        assertEquals(20, _broker.published.size());
+        assertEquals(0, _broker.confirmWaits.get());
+        assertEquals(1, _broker.channelsCreated.get());
+    }
+
+    @Test
+    public void testFullOutboxDropsEvents() throws Exception {
+        _broker.down = true;
+        RabbitMQEventBus.setOutboxSize(10);
+        RabbitMQEventBus eventBus = eventBus();
+
+        int dropped = 0;
+        for (int i = 0; i < 15; i++) {
+            try {
+                eventBus.publish(event(i));
+            } catch (EventBusException e) {
+                dropped++;
+            }
+        }
+        assertTrue(dropped > 0);
+
+        _broker.down = false;
+        assertTrue(_broker.awaitPublished(15 - dropped));
+        Thread.sleep(100);
+        assertEquals(15 - dropped, _broker.published.size());
+    }
+
+    @Test
+    public void testBlockedPublishTimesOut() throws Exception {
+        _broker.down = true;
+        RabbitMQEventBus.setOutboxSize(5);
+        RabbitMQEventBus.setOverflowPolicy("block");
+        RabbitMQEventBus.setPublishTimeout(100);
+        // no room is made by the publisher retrying meanwhile
+        RabbitMQEventBus.setRetryInterval(1000);
+        RabbitMQEventBus eventBus = eventBus();
+
+        long start = System.currentTimeMillis();
+        try {
+            for (int i = 0; i < 20; i++) {
+                eventBus.publish(event(i));
+            }
+            fail("the outbox should be full");
+        } catch (EventBusException e) {
+            assertTrue(System.currentTimeMillis() - start >= 100);
+        }
+    }
+
+    @Test
+    public void testOverflowIsSpilledAndPublishedInOrder() throws Exception {
+        _broker.down = true;
+        RabbitMQEventBus.setOutboxSize(10);
+        RabbitMQEventBus.setOverflowPolicy("spill");
+        RabbitMQEventBus.setSpillDirectory(_spillDirectory.getPath());
+        RabbitMQEventBus eventBus = eventBus();
+
+        for (int i = 0; i < 100; i++) {
+            eventBus.publish(event(i));
+        }
+        assertTrue(new File(_spillDirectory, EventOutbox.SPILL_FILE_NAME).length() > 0);
+
+        _broker.down = false;
+        assertTrue(_broker.awaitPublished(100));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(published(i), _broker.published.get(i));
+        }
+        assertFalse(new File(_spillDirectory, EventOutbox.SPILL_FILE_NAME).exists());
+    }
+
+    @Test
+    public void testEventsLeftOnStopArePublishedAfterRestart() throws Exception {
+        _broker.down = true;
+        RabbitMQEventBus.setOutboxSize(10);
+        RabbitMQEventBus.setSpillDirectory(_spillDirectory.getPath());
+        RabbitMQEventBus.setPublishTimeout(100);
+        RabbitMQEventBus eventBus = eventBus();
+        for (int i = 0; i < 10; i++) {
+            eventBus.publish(event(i));
+        }
+        eventBus.stop();
+        _buses.remove(eventBus);
+        assertEquals(0, _broker.published.size());
+
+        _broker.down = false;
+        eventBus();
+        assertTrue(_broker.awaitPublished(10));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(published(i), _broker.published.get(i));
+        }
+    }
+
+    @Test
+    public void testSubscriberReceivesPublishedEvents() throws Exception {
+        RabbitMQEventBus eventBus = eventBus();
+        final List<Event> received = new CopyOnWriteArrayList<Event>();
+        eventBus.subscribe(new EventTopic("ActionEvent", null, "VirtualMachine", null, null), new EventSubscriber() {
+            @Override
+            public void onEvent(Event event) {
+                received.add(event);
+            }
+        });
+
+        eventBus.publish(event(1));
+        assertTrue(_broker.awaitPublished(1));
+        assertEquals(1, received.size());
+        assertEquals("uuid-1", received.get(0).getResourceUUID());
+        assertEquals("{\"event\":1}", received.get(0).getDescription());
+    }
+}
@@ -85,6 +85,7 @@ import com.cloud.agent.api.to.IpAddressTO;
 import com.cloud.agent.api.to.NfsTO;
 import com.cloud.agent.api.to.NicTO;
 import com.cloud.agent.api.to.VirtualMachineTO;
+import com.cloud.agent.resource.virtualnetwork.VirtualRouterChannelPool;
 import com.cloud.agent.resource.virtualnetwork.VirtualRouterDeployer;
 import com.cloud.agent.resource.virtualnetwork.VirtualRoutingResource;
 import com.cloud.dc.Vlan;
@@ -243,6 +244,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
     private final Map <String, String> _pifs = new HashMap<String, String>();
     private final Map<String, VmStats> _vmStats = new ConcurrentHashMap<String, VmStats>();
+    private final LibvirtDomainDefCache _domainDefs = new LibvirtDomainDefCache();
 
     protected static final HashMap<DomainState, PowerState> s_powerStatesTable;
     static {
@@ -258,6 +260,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     protected List<String> _vmsKilled = new ArrayList<String>();
 
     private VirtualRoutingResource _virtRouterResource;
+    private VirtualRouterChannelPool _vrChannelPool;
 
     private String _pingTestPath;
 
@@ -781,6 +784,13 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         value = (String)params.get("cmds.timeout");
         _cmdsTimeout = NumbersUtil.parseInt(value, 7200) * 1000;
 
+        value = (String)params.get("router.control.channel");
+        if (value == null || Boolean.parseBoolean(value)) {
+            value = (String)params.get("router.control.channel.idle.timeout");
+            _vrChannelPool = new VirtualRouterChannelPool(new File("/root/.ssh/id_rsa.cloud"), 3922, 10000, NumbersUtil.parseInt(value, 300));
+            _virtRouterResource.setChannelPool(_vrChannelPool);
+        }
+
         value = (String) params.get("vm.memballoon.disable");
         if (Boolean.parseBoolean(value)) {
             _noMemBalloon = true;
@@ -1289,6 +1299,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
                 }
             }
 
+            invalidateDomainDef(vmName);
             conn.domainCreateXML(domainXML, 0);
         } catch (final LibvirtException e) {
             throw e;
@@ -1298,6 +1309,9 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
     @Override
     public boolean stop() {
+        if (_vrChannelPool != null) {
+            _vrChannelPool.shutdown();
+        }
         try {
             final Connect conn = LibvirtConnection.getConnection();
             conn.close();
@@ -1503,6 +1517,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
         final Domain vm = getDomain(conn, vmName);
         vm.attachDevice(getVifDriver(nicTO.getType()).plug(nicTO, "Other PV", "").toString());
+        invalidateDomainDef(vmName);
     }
 
 
@@ -1514,6 +1529,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         for (final InterfaceDef pluggedNic : pluggedNics) {
             if (pluggedNic.getMacAddress().equalsIgnoreCase(macAddr)) {
                 vm.detachDevice(pluggedNic.toString());
+                invalidateDomainDef(vmName);
                 // We don't know which "traffic type" is associated with
                 // each interface at this point, so inform all vif drivers
                 for (final VifDriver vifDriver : getAllVifDrivers()) {
@@ -2339,6 +2355,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
             }
             throw e;
         } finally {
+            invalidateDomainDef(vmName);
             if (dm != null) {
                 try {
                     dm.free();
@@ -2752,6 +2769,7 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     }
 
     protected String stopVM(final Connect conn, final String vmName, final boolean force) {
+        invalidateDomainDef(vmName);
         Domain dm = null;
         try {
             dm = conn.domainLookupByName(vmName);
@@ -2907,13 +2925,19 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         return conn.domainLookupByName(vmName);
     }
 
+    /**
+     * Drops the cached interfaces and disks of the domain, to be called
+     * whenever its devices change.
+     */
+    public void invalidateDomainDef(final String vmName) {
+        _domainDefs.invalidate(vmName);
+    }
+
     public List<InterfaceDef> getInterfaces(final Connect conn, final String vmName) {
-        final LibvirtDomainXMLParser parser = new LibvirtDomainXMLParser();
         Domain dm = null;
         try {
             dm = conn.domainLookupByName(vmName);
-            parser.parseDomainXML(dm.getXMLDesc(0));
-            return parser.getInterfaces();
+            return new ArrayList<InterfaceDef>(_domainDefs.get(dm).getInterfaces());
 
         } catch (final LibvirtException e) {
             s_logger.debug("Failed to get dom xml: " + e.toString());
@@ -2930,12 +2954,10 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     }
 
     public List<DiskDef> getDisks(final Connect conn, final String vmName) {
-        final LibvirtDomainXMLParser parser = new LibvirtDomainXMLParser();
         Domain dm = null;
         try {
             dm = conn.domainLookupByName(vmName);
-            parser.parseDomainXML(dm.getXMLDesc(0));
-            return parser.getDisks();
+            return new ArrayList<DiskDef>(_domainDefs.get(dm).getDisks());
 
         } catch (final LibvirtException e) {
             s_logger.debug("Failed to get dom xml: " + e.toString());
@@ -3004,6 +3026,30 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     }
 
     public VmStatsEntry getVmStat(final Connect conn, final String vmName) throws LibvirtException {
+        return getVmStat(conn, vmName, null, Calendar.getInstance());
+    }
+
+    /**
+     * Gathers the stats of the domains in one pass, reading the host info
+     * once and using the cached definitions of the domains.
+     *
+     * @return the stats by VM name, without the VMs that are gone.
+     */
+    public Map<String, VmStatsEntry> getVmStats(final Connect conn, final List<String> vmNames) throws LibvirtException {
+        final Map<String, VmStatsEntry> stats = new HashMap<String, VmStatsEntry>();
+        final NodeInfo node = conn.nodeInfo();
+        final Calendar now = Calendar.getInstance();
+        for (final String vmName : vmNames) {
+            try {
+                stats.put(vmName, getVmStat(conn, vmName, node, now));
+            } catch (final LibvirtException e) {
+                s_logger.debug("Unable to get the stats of " + vmName + ": " + e.toString());
+            }
+        }
+        return stats;
+    }
+
+    private VmStatsEntry getVmStat(final Connect conn, final String vmName, NodeInfo node, final Calendar now) throws LibvirtException {
         Domain dm = null;
         try {
             dm = getDomain(conn, vmName);
@@ -3016,8 +3062,6 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
             /* get cpu utilization */
             VmStats oldStats = null;
 
-            final Calendar now = Calendar.getInstance();
-
             oldStats = _vmStats.get(vmName);
 
             long elapsedTime = 0;
@@ -3025,7 +3069,9 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
                 elapsedTime = now.getTimeInMillis() - oldStats._timestamp.getTimeInMillis();
                 double utilization = (info.cpuTime - oldStats._usedTime) / ((double)elapsedTime * 1000000);
 
-                final NodeInfo node = conn.nodeInfo();
+                if (node == null) {
+                    node = conn.nodeInfo();
+                }
                 utilization = utilization / node.cpus;
                 if (utilization > 0) {
                     stats.setCPUUtilization(utilization * 100);
@@ -3251,6 +3297,39 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         return true;
     }
 
+    /**
+     * Changes the network rules of the vm, provided the rules programmed are
+     * the ones of the base sequence number.
+     */
+    public boolean addNetworkRulesDelta(final String vmName, final String vmId, final String guestIP, final String sig, final String baseSeq, final String seq,
+            final String addRules, final String removeRules, final String vif, final String brname) {
+        if (!_canBridgeFirewall) {
+            return false;
+        }
+
+        final Script cmd = new Script(_securityGroupPath, _timeout, s_logger);
+        cmd.add("add_network_rules_delta");
+        cmd.add("--vmname", vmName);
+        cmd.add("--vmid", vmId);
+        cmd.add("--vmip", guestIP);
+        cmd.add("--sig", sig);
+        cmd.add("--baseseq", baseSeq);
+        cmd.add("--seq", seq);
+        cmd.add("--vif", vif);
+        cmd.add("--brname", brname);
+        if (addRules != null && !addRules.isEmpty()) {
+            cmd.add("--rules", addRules.replace(" ", ";"));
+        }
+        if (removeRules != null && !removeRules.isEmpty()) {
+            cmd.add("--removerules", removeRules.replace(" ", ";"));
+        }
+        final String result = cmd.execute();
+        if (result != null) {
+            return false;
+        }
+        return true;
+    }
+
     public boolean configureNetworkRulesVMSecondaryIP(final Connect conn, final String vmName, final String secIp, final String action) {
 
         if (!_canBridgeFirewall) {
@@ -0,0 +1,125 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+
+import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.DiskDef;
+import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.InterfaceDef;
+
+/**
+ * Caches the interfaces and disks parsed from the XML description of the
+ * domains, keyed by domain UUID, so the stats collector does not parse the
+ * XML of every VM on every poll.
+ *
+ * The entries have to be invalidated when the devices of a domain change.
+ * An entry is also dropped when the id of its domain changed, which happens
+ * whenever the domain is started again.
+ */
+public class LibvirtDomainDefCache {
+    private final Map<String, DomainDef> _defs = new ConcurrentHashMap<String, DomainDef>();
+    // bumped by every invalidation, a definition parsed meanwhile is not cached
+    private final AtomicLong _generation = new AtomicLong();
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+
+    public static class DomainDef {
+        private final int _id;
+        private final String _name;
+        private final List<InterfaceDef> _interfaces;
+        private final List<DiskDef> _disks;
+
+        public DomainDef(final int id, final String name, final List<InterfaceDef> interfaces, final List<DiskDef> disks) {
+            _id = id;
+            _name = name;
+            _interfaces = Collections.unmodifiableList(new ArrayList<InterfaceDef>(interfaces));
+            _disks = Collections.unmodifiableList(new ArrayList<DiskDef>(disks));
+        }
+
+        public int getId() {
+            return _id;
+        }
+
+        public String getName() {
+            return _name;
+        }
+
+        public List<InterfaceDef> getInterfaces() {
+            return _interfaces;
+        }
+
+        public List<DiskDef> getDisks() {
+            return _disks;
+        }
+    }
+
+    public DomainDef get(final Domain dm) throws LibvirtException {
+        final String uuid = dm.getUUIDString();
+        final int id = dm.getID();
+        final DomainDef cached = _defs.get(uuid);
+        if (cached != null && cached.getId() == id) {
+            _hits.incrementAndGet();
+            return cached;
+        }
+
+        _misses.incrementAndGet();
+        final long generation = _generation.get();
+        final LibvirtDomainXMLParser parser = new LibvirtDomainXMLParser();
+        parser.parseDomainXML(dm.getXMLDesc(0));
+        final DomainDef def = new DomainDef(id, dm.getName(), parser.getInterfaces(), parser.getDisks());
+        if (generation == _generation.get()) {
+            _defs.put(uuid, def);
+        }
+        return def;
+    }
+
+    public void invalidate(final String vmName) {
+        _generation.incrementAndGet();
+        final Iterator<DomainDef> it = _defs.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().getName().equals(vmName)) {
+                it.remove();
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        _generation.incrementAndGet();
+        _defs.clear();
+    }
+
+    public int size() {
+        return _defs.size();
+    }
+
+    public long getHits() {
+        return _hits.get();
+    }
+
+    public long getMisses() {
+        return _misses.get();
+    }
+}
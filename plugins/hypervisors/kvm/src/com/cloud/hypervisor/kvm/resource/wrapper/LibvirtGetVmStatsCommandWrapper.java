@@ -19,8 +19,11 @@
 
 package com.cloud.hypervisor.kvm.resource.wrapper;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.libvirt.Connect;
@@ -44,17 +47,21 @@ public final class LibvirtGetVmStatsCommandWrapper extends CommandWrapper<GetVmS
         final List<String> vmNames = command.getVmNames();
         try {
             final HashMap<String, VmStatsEntry> vmStatsNameMap = new HashMap<String, VmStatsEntry>();
-            for (final String vmName : vmNames) {
-
-                final LibvirtUtilitiesHelper libvirtUtilitiesHelper = libvirtComputingResource.getLibvirtUtilitiesHelper();
+            final LibvirtUtilitiesHelper libvirtUtilitiesHelper = libvirtComputingResource.getLibvirtUtilitiesHelper();
 
+            // gather the stats of all the VMs of a connection in one pass
+            final Map<Connect, List<String>> vmNamesByConnection = new LinkedHashMap<Connect, List<String>>();
+            for (final String vmName : vmNames) {
                 final Connect conn = libvirtUtilitiesHelper.getConnectionByVmName(vmName);
-                final VmStatsEntry statEntry = libvirtComputingResource.getVmStat(conn, vmName);
-                if (statEntry == null) {
-                    continue;
+                List<String> names = vmNamesByConnection.get(conn);
+                if (names == null) {
+                    names = new ArrayList<String>();
+                    vmNamesByConnection.put(conn, names);
                 }
-
-                vmStatsNameMap.put(vmName, statEntry);
+                names.add(vmName);
+            }
+            for (final Map.Entry<Connect, List<String>> entry : vmNamesByConnection.entrySet()) {
+                vmStatsNameMap.putAll(libvirtComputingResource.getVmStats(entry.getKey(), entry.getValue()));
             }
             return new GetVmStatsAnswer(command, vmStatsNameMap);
         } catch (final LibvirtException e) {
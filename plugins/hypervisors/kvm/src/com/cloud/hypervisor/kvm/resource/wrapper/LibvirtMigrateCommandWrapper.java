@@ -157,6 +157,7 @@ public final class LibvirtMigrateCommandWrapper extends CommandWrapper<MigrateCo
             s_logger.debug("Timed out while migrating domain: " + e.getMessage());
             result = e.getMessage();
         } finally {
+            libvirtComputingResource.invalidateDomainDef(vmName);
             try {
                 if (dm != null) {
                     if (dm.isPersistent() == 1) {
@@ -0,0 +1,73 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.hypervisor.kvm.resource.wrapper;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.libvirt.Connect;
+import org.libvirt.LibvirtException;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.SecurityGroupRuleAnswer;
+import com.cloud.agent.api.SecurityGroupRuleAnswer.FailureReason;
+import com.cloud.agent.api.SecurityGroupRulesDeltaCmd;
+import com.cloud.hypervisor.kvm.resource.LibvirtComputingResource;
+import com.cloud.hypervisor.kvm.resource.LibvirtVMDef.InterfaceDef;
+import com.cloud.resource.CommandWrapper;
+import com.cloud.resource.ResourceWrapper;
+
+@ResourceWrapper(handles =  SecurityGroupRulesDeltaCmd.class)
+public final class LibvirtSecurityGroupRulesDeltaCommandWrapper extends CommandWrapper<SecurityGroupRulesDeltaCmd, Answer, LibvirtComputingResource> {
+
+    private static final Logger s_logger = Logger.getLogger(LibvirtSecurityGroupRulesDeltaCommandWrapper.class);
+
+    @Override
+    public Answer execute(final SecurityGroupRulesDeltaCmd command, final LibvirtComputingResource libvirtComputingResource) {
+        String vif = null;
+        String brname = null;
+        try {
+            final LibvirtUtilitiesHelper libvirtUtilitiesHelper = libvirtComputingResource.getLibvirtUtilitiesHelper();
+
+            final Connect conn = libvirtUtilitiesHelper.getConnectionByVmName(command.getVmName());
+            final List<InterfaceDef> nics = libvirtComputingResource.getInterfaces(conn, command.getVmName());
+
+            vif = nics.get(0).getDevName();
+            brname = nics.get(0).getBrName();
+        } catch (final LibvirtException e) {
+            return new SecurityGroupRuleAnswer(command, false, e.toString());
+        }
+
+        final boolean result = libvirtComputingResource.addNetworkRulesDelta(command.getVmName(), Long.toString(command.getVmId()), command.getGuestIp(),
+                command.getSignature(), Long.toString(command.getBaseSeqNum()), Long.toString(command.getSeqNum()), command.stringifyRules(),
+                command.stringifyRemovedRules(), vif, brname);
+
+        if (!result) {
+            // the complete ruleset is sent next, whether the ruleset was not the base one or the change failed half way
+            s_logger.warn("Failed to change network rules for vm " + command.getVmName() + " from seqno " + command.getBaseSeqNum() + " to " + command.getSeqNum());
+            return new SecurityGroupRuleAnswer(command, false, "changing network rules failed", FailureReason.OUT_OF_SYNC);
+        } else {
+            s_logger.debug("Changed network rules for vm " + command.getVmName() + " guestIp=" + command.getGuestIp() + ",ingress numrules added="
+                    + command.getIngressRuleSet().length + ",removed=" + command.getIngressRulesToRemove().length + ",egress numrules added="
+                    + command.getEgressRuleSet().length + ",removed=" + command.getEgressRulesToRemove().length);
+            return new SecurityGroupRuleAnswer(command);
+        }
+    }
+}
@@ -938,6 +938,7 @@ public class KVMStorageProcessor implements StorageProcessor {
             }
             throw e;
         } finally {
+            resource.invalidateDomainDef(vmName);
             if (dm != null) {
                 try {
                     dm.free();
@@ -0,0 +1,95 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.hypervisor.kvm.resource;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.libvirt.Domain;
+import org.libvirt.LibvirtException;
+
+public class LibvirtDomainDefCacheTest {
+    private static final String VMNAME = "i-2-3-VM";
+    private static final String XML = "<domain type='kvm' id='7'>" +
+            "<name>" + VMNAME + "</name>" +
+            "<devices>" +
+            "<disk type='file' device='disk'>" +
+            "<driver name='qemu' type='qcow2' cache='none'/>" +
+            "<source file='/mnt/pool/volume'/>" +
+            "<target dev='vda' bus='virtio'/>" +
+            "</disk>" +
+            "<interface type='bridge'>" +
+            "<mac address='02:00:4c:5f:00:01'/>" +
+            "<source bridge='cloudbr0'/>" +
+            "<target dev='vnet0'/>" +
+            "<model type='virtio'/>" +
+            "</interface>" +
+            "</devices>" +
+            "</domain>";
+
+    private LibvirtDomainDefCache _cache;
+    private Domain _dm;
+
+    @Before
+    public void setUp() throws LibvirtException {
+        _cache = new LibvirtDomainDefCache();
+        _dm = mock(Domain.class);
+        when(_dm.getUUIDString()).thenReturn("4d2c1526-865d-4fc9-a1ac-dbd1801a22d0");
+        when(_dm.getID()).thenReturn(7);
+        when(_dm.getName()).thenReturn(VMNAME);
+        when(_dm.getXMLDesc(0)).thenReturn(XML);
+    }
+
+    @Test
+    public void definitionIsParsedOnce() throws LibvirtException {
+        final LibvirtDomainDefCache.DomainDef def = _cache.get(_dm);
+        Assert.assertEquals(1, def.getInterfaces().size());
+        Assert.assertEquals("vnet0", def.getInterfaces().get(0).getDevName());
+        Assert.assertEquals(1, def.getDisks().size());
+        Assert.assertEquals("vda", def.getDisks().get(0).getDiskLabel());
+
+        Assert.assertSame(def, _cache.get(_dm));
+        verify(_dm, times(1)).getXMLDesc(0);
+        Assert.assertEquals(1, _cache.getHits());
+        Assert.assertEquals(1, _cache.getMisses());
+    }
+
+    @Test
+    public void restartedDomainIsParsedAgain() throws LibvirtException {
+        _cache.get(_dm);
+        when(_dm.getID()).thenReturn(8);
+        Assert.assertEquals(8, _cache.get(_dm).getId());
+        verify(_dm, times(2)).getXMLDesc(0);
+    }
+
+    @Test
+    public void invalidatedDomainIsParsedAgain() throws LibvirtException {
+        _cache.get(_dm);
+        _cache.invalidate("some-other-VM");
+        Assert.assertEquals(1, _cache.size());
+
+        _cache.invalidate(VMNAME);
+        Assert.assertEquals(0, _cache.size());
+        _cache.get(_dm);
+        verify(_dm, times(2)).getXMLDesc(0);
+    }
+}
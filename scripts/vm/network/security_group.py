@@ -890,6 +890,71 @@ def add_network_rules(vm_name, vm_id, vm_ip, signature, seqno, vmMac, rules, vif
   except:
     logging.exception("Failed to network rule !")
 
+def network_rule_specs(vm_name, rules):
+    # same rules as add_network_rules programs, as (chain, rule) pairs
+    specs = []
+    if rules == "" or rules == None:
+        return specs
+    for line in rules.split(';')[:-1]:
+        tokens = line.split(':')
+        if len(tokens) != 5:
+          continue
+        ruletype = tokens[0]
+        protocol = tokens[1]
+        start = tokens[2]
+        end = tokens[3]
+        ips = tokens[4].split(",")
+        ips.pop()
+        if ruletype == 'E':
+            vmchain = egress_chain_name(vm_name)
+            direction = "-d"
+            action = "RETURN"
+        else:
+            vmchain = vm_name
+            action = "ACCEPT"
+            direction = "-s"
+        for ip in ips:
+            allow_any = ip == '0.0.0.0/0'
+            if protocol == 'all':
+                rule = "-m state --state NEW " + direction + " " + ip + " -j " + action
+            elif protocol != 'icmp':
+                rule = "-p " + protocol + " -m " + protocol + " --dport " + start + ":" + end + " -m state --state NEW "
+                if not allow_any:
+                    rule = rule + direction + " " + ip + " "
+                rule = rule + "-j " + action
+            else:
+                range = start + "/" + end
+                if start == "-1":
+                    range = "any"
+                rule = "-p icmp --icmp-type " + range + " "
+                if not allow_any:
+                    rule = rule + direction + " " + ip + " "
+                rule = rule + "-j " + action
+            specs.append((vmchain, rule))
+    return specs
+
+def add_network_rules_delta(vm_name, vm_id, vm_ip, signature, baseseq, seqno, rules, removerules):
+    domId = getvmId(vm_name)
+    # the rules programmed must be the ones of the base seqno, for the same vm and domain
+    changes = check_rule_log_for_vm(vm_name, vm_id, vm_ip, domId, signature, baseseq)
+    if changes[0] or changes[1] or changes[2] or changes[3] or changes[5]:
+        logging.debug("Rules programmed for vm " + vm_name + " are not the ones of seqno " + str(baseseq) + ", the complete rules are needed")
+        return False
+
+    logging.debug("    changing network rules for IP: " + vm_ip + " vmname=" + vm_name + " seqno=" + str(baseseq) + "->" + str(seqno))
+    try:
+        for (vmchain, rule) in network_rule_specs(vm_name, removerules):
+            execute("iptables -D " + vmchain + " " + rule)
+        for (vmchain, rule) in network_rule_specs(vm_name, rules):
+            execute("iptables -I " + vmchain + " " + rule)
+    except:
+        logging.exception("Failed to change network rules for vm " + vm_name)
+        # the rules are only known to be wrong, let the complete rules reprogram them
+        remove_rule_log_for_vm(vm_name)
+        return False
+
+    return write_rule_log_for_vm(vm_name, vm_id, vm_ip, domId, signature, seqno)
+
 def getVifs(vmName):
     vifs = []
     xmlfile = virshdumpxml(vmName)
@@ -1016,6 +1081,8 @@ if __name__ == '__main__':
     parser.add_option("--sig", dest="sig")
     parser.add_option("--seq", dest="seq")
     parser.add_option("--rules", dest="rules")
+    parser.add_option("--removerules", dest="removeRules")
+    parser.add_option("--baseseq", dest="baseSeq")
     parser.add_option("--brname", dest="brname")
     parser.add_option("--localbrname", dest="localbrname")
     parser.add_option("--dhcpSvr", dest="dhcpSvr")
@@ -1041,6 +1108,9 @@ if __name__ == '__main__':
         get_rule_logs_for_vms()
     elif cmd == "add_network_rules":
         add_network_rules(option.vmName, option.vmID, option.vmIP, option.sig, option.seq, option.vmMAC, option.rules, option.vif, option.brname, option.nicSecIps)
+    elif cmd == "add_network_rules_delta":
+        if not add_network_rules_delta(option.vmName, option.vmID, option.vmIP, option.sig, option.baseSeq, option.seq, option.rules, option.removeRules):
+            sys.exit(1)
     elif cmd == "network_rules_vmSecondaryIp":
         network_rules_vmSecondaryIp(option.vmName, option.nicSecIps, option.action)
     elif cmd == "cleanup_rules":
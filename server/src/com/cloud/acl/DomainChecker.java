@@ -29,7 +29,6 @@ import com.cloud.dc.DataCenter;
 import com.cloud.dc.DedicatedResourceVO;
 import com.cloud.dc.dao.DedicatedResourceDao;
 import com.cloud.domain.Domain;
-import com.cloud.domain.dao.DomainDao;
 import com.cloud.exception.PermissionDeniedException;
 import com.cloud.network.Network;
 import com.cloud.network.NetworkModel;
@@ -42,6 +41,7 @@ import com.cloud.storage.dao.LaunchPermissionDao;
 import com.cloud.template.VirtualMachineTemplate;
 import com.cloud.user.Account;
 import com.cloud.user.AccountService;
+import com.cloud.user.DomainTreeIndex;
 import com.cloud.user.User;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.utils.component.AdapterBase;
@@ -50,8 +50,6 @@ import com.cloud.utils.component.AdapterBase;
 @Local(value = SecurityChecker.class)
 public class DomainChecker extends AdapterBase implements SecurityChecker {
 
-    @Inject
-    DomainDao _domainDao;
     @Inject
     AccountDao _accountDao;
     @Inject
@@ -66,6 +64,8 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
     private DedicatedResourceDao _dedicatedDao;
     @Inject
     AccountService _accountService;
+    @Inject
+    DomainTreeIndex _domainTree;
 
     protected DomainChecker() {
         super();
@@ -82,7 +82,7 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
             if (caller.getDomainId() != domainId) {
                 throw new PermissionDeniedException(caller + " does not have permission to operate within domain id=" + domain.getUuid());
             }
-        } else if (!_domainDao.isChildDomain(caller.getDomainId(), domainId)) {
+        } else if (!_domainTree.isChildDomain(caller.getDomainId(), domainId)) {
             throw new PermissionDeniedException(caller + " does not have permission to operate within domain id=" + domain.getUuid());
         }
 
@@ -185,21 +185,9 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
                     || account.getType() == Account.ACCOUNT_TYPE_PROJECT) {
                 if (account.getDomainId() == dof.getDomainId()) {
                     return true; //disk offering and account at exact node
-                } else {
-                    Domain domainRecord = _domainDao.findById(account.getDomainId());
-                    if (domainRecord != null) {
-                        while (true) {
-                            if (domainRecord.getId() == dof.getDomainId()) {
-                                //found as a child
-                                return true;
-                            }
-                            if (domainRecord.getParent() != null) {
-                                domainRecord = _domainDao.findById(domainRecord.getParent());
-                            } else {
-                                break;
-                            }
-                        }
-                    }
+                } else if (_domainTree.isChildDomain(dof.getDomainId(), account.getDomainId())) {
+                    //found as a child
+                    return true;
                 }
             }
         }
@@ -224,21 +212,9 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
                     || account.getType() == Account.ACCOUNT_TYPE_PROJECT) {
                 if (account.getDomainId() == so.getDomainId()) {
                     return true; //service offering and account at exact node
-                } else {
-                    Domain domainRecord = _domainDao.findById(account.getDomainId());
-                    if (domainRecord != null) {
-                        while (true) {
-                            if (domainRecord.getId() == so.getDomainId()) {
-                                //found as a child
-                                return true;
-                            }
-                            if (domainRecord.getParent() != null) {
-                                domainRecord = _domainDao.findById(domainRecord.getParent());
-                            } else {
-                                break;
-                            }
-                        }
-                    }
+                } else if (_domainTree.isChildDomain(so.getDomainId(), account.getDomainId())) {
+                    //found as a child
+                    return true;
                 }
             }
         }
@@ -272,21 +248,9 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
                 }
                 if (account.getDomainId() == zone.getDomainId()) {
                     return true; //zone and account at exact node
-                } else {
-                    Domain domainRecord = _domainDao.findById(account.getDomainId());
-                    if (domainRecord != null) {
-                        while (true) {
-                            if (domainRecord.getId() == zone.getDomainId()) {
-                                //found as a child
-                                return true;
-                            }
-                            if (domainRecord.getParent() != null) {
-                                domainRecord = _domainDao.findById(domainRecord.getParent());
-                            } else {
-                                break;
-                            }
-                        }
-                    }
+                } else if (_domainTree.isChildDomain(zone.getDomainId(), account.getDomainId())) {
+                    //found as a child
+                    return true;
                 }
                 //not found
                 return false;
@@ -297,26 +261,12 @@ public class DomainChecker extends AdapterBase implements SecurityChecker {
                 if (account.getDomainId() == zone.getDomainId()) {
                     return true; //zone and account at exact node
                 } else {
-                    Domain zoneDomainRecord = _domainDao.findById(zone.getDomainId());
-                    Domain accountDomainRecord = _domainDao.findById(account.getDomainId());
-                    if (accountDomainRecord != null) {
-                        Domain localRecord = accountDomainRecord;
-                        while (true) {
-                            if (localRecord.getId() == zone.getDomainId()) {
-                                //found as a child
-                                return true;
-                            }
-                            if (localRecord.getParent() != null) {
-                                localRecord = _domainDao.findById(localRecord.getParent());
-                            } else {
-                                break;
-                            }
-                        }
+                    if (_domainTree.isChildDomain(zone.getDomainId(), account.getDomainId())) {
+                        //found as a child
+                        return true;
                     }
                     //didn't find in upper tree
-                    if (zoneDomainRecord != null &&
-                            accountDomainRecord != null &&
-                            zoneDomainRecord.getPath().contains(accountDomainRecord.getPath())) {
+                    if (_domainTree.isChildDomain(account.getDomainId(), zone.getDomainId())) {
                         return true;
                     }
                 }
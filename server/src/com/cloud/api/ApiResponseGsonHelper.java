@@ -16,14 +16,17 @@
 // under the License.
 package com.cloud.api;
 
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.apache.cloudstack.acl.RoleType;
 import org.apache.cloudstack.api.ResponseObject;
 import org.apache.cloudstack.context.CallContext;
 
 import com.cloud.serializer.Param;
-import com.cloud.user.Account;
 import com.google.gson.ExclusionStrategy;
 import com.google.gson.FieldAttributes;
+import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
 /**
@@ -31,20 +34,53 @@ import com.google.gson.GsonBuilder;
  */
 public class ApiResponseGsonHelper {
     private static final GsonBuilder s_gBuilder;
+    // the reflective adapters Gson caches are built with the fields the caller may see, so one Gson per account type
+    private static final ConcurrentHashMap<Short, Gson> s_gsons = new ConcurrentHashMap<Short, Gson>();
 
     static {
-        s_gBuilder = new GsonBuilder().setDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
-        s_gBuilder.setVersion(1.3);
-        s_gBuilder.registerTypeAdapter(ResponseObject.class, new ResponseObjectTypeAdapter());
-        s_gBuilder.registerTypeAdapter(String.class, new EncodedStringTypeAdapter());
-        s_gBuilder.setExclusionStrategies(new ExclStrat());
+        s_gBuilder = createBuilder(new ExclStrat(null));
+    }
+
+    private static GsonBuilder createBuilder(ExclStrat exclStrat) {
+        GsonBuilder builder = new GsonBuilder().setDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+        builder.setVersion(1.3);
+        builder.registerTypeAdapter(ResponseObject.class, new ResponseObjectTypeAdapter());
+        builder.registerTypeAdapter(String.class, new EncodedStringTypeAdapter());
+        builder.setExclusionStrategies(exclStrat);
+        builder.excludeFieldsWithModifiers(Modifier.TRANSIENT);
+        // responses used to be unescaped after serialization, write the characters as they are instead
+        builder.disableHtmlEscaping();
+        return builder;
     }
 
     public static GsonBuilder getBuilder() {
         return s_gBuilder;
     }
 
+    /**
+     * The Gson for the account type of the caller, it is thread safe and caches the type adapters of
+     * the response classes, built without the fields the account type is not authorized to see.
+     */
+    public static Gson getGson() {
+        short accountType = CallContext.current().getCallingAccount().getType();
+        Gson gson = s_gsons.get(accountType);
+        if (gson == null) {
+            gson = createBuilder(new ExclStrat(accountType)).create();
+            Gson existing = s_gsons.putIfAbsent(accountType, gson);
+            if (existing != null) {
+                gson = existing;
+            }
+        }
+        return gson;
+    }
+
     private static class ExclStrat implements ExclusionStrategy {
+        // null to check the account of the current caller
+        private final Short _accountType;
+
+        ExclStrat(Short accountType) {
+            _accountType = accountType;
+        }
 
         public boolean shouldSkipClass(Class<?> arg0) {
             return false;
@@ -56,9 +92,9 @@ public class ApiResponseGsonHelper {
                 RoleType[] allowedRoles = param.authorized();
                 if (allowedRoles.length > 0) {
                     boolean permittedParameter = false;
-                    Account caller = CallContext.current().getCallingAccount();
+                    short accountType = _accountType != null ? _accountType : CallContext.current().getCallingAccount().getType();
                     for (RoleType allowedRole : allowedRoles) {
-                        if (allowedRole.getValue() == caller.getType()) {
+                        if (allowedRole.getValue() == accountType) {
                             permittedParameter = true;
                             break;
                         }
@@ -147,6 +147,7 @@ import javax.servlet.http.HttpSession;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.io.Writer;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -474,6 +475,12 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
     @Override
     @SuppressWarnings("rawtypes")
     public String handleRequest(final Map params, final String responseType, final StringBuilder auditTrailSb) throws ServerApiException {
+        return handleRequest(params, responseType, auditTrailSb, null);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public String handleRequest(final Map params, final String responseType, final StringBuilder auditTrailSb, final ResponseStream stream) throws ServerApiException {
         checkCharacterInkParams(params);
 
         String response = null;
@@ -525,8 +532,11 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
                     cmdObj.setHttpMethod(paramMap.get(ApiConstants.HTTPMETHOD).toString());
 
                     // This is where the command is either serialized, or directly dispatched
-                    response = queueCommand(cmdObj, paramMap);
-                    if (annotation.responseHasSensitiveInfo())
+                    final OpenedResponseStream responseStream = stream != null ? new OpenedResponseStream(stream) : null;
+                    response = queueCommand(cmdObj, paramMap, responseStream);
+                    if (responseStream != null && responseStream.isOpened()) {
+                        buildAuditTrail(auditTrailSb, command[0], "(response streamed)");
+                    } else if (annotation.responseHasSensitiveInfo())
                     {
                         buildAuditTrail(auditTrailSb, command[0],
                                 StringUtils.cleanString(response));
@@ -617,7 +627,29 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
         return ApiResponseSerializer.toSerializedString(response, cmd.getResponseType());
     }
 
-    private String queueCommand(final BaseCmd cmdObj, final Map<String, String> params) throws Exception {
+    /**
+     * Remembers whether the response went to the stream.
+     */
+    private static class OpenedResponseStream implements ResponseStream {
+        private final ResponseStream _stream;
+        private boolean _opened = false;
+
+        OpenedResponseStream(final ResponseStream stream) {
+            _stream = stream;
+        }
+
+        @Override
+        public Writer open() throws IOException {
+            _opened = true;
+            return _stream.open();
+        }
+
+        boolean isOpened() {
+            return _opened;
+        }
+    }
+
+    private String queueCommand(final BaseCmd cmdObj, final Map<String, String> params, final ResponseStream stream) throws Exception {
         final CallContext ctx = CallContext.current();
         final Long callerUserId = ctx.getCallingUserId();
         final Account caller = ctx.getCallingAccount();
@@ -717,7 +749,15 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
             }
 
             SerializationContext.current().setUuidTranslation(true);
-            return ApiResponseSerializer.toSerializedString((ResponseObject)cmdObj.getResponseObject(), cmdObj.getResponseType());
+            final ResponseObject responseObject = (ResponseObject)cmdObj.getResponseObject();
+            if (stream != null && responseObject instanceof ListResponse) {
+                // list responses can be large, they are written out while they are serialized
+                final Writer out = stream.open();
+                ApiResponseSerializer.writeSerializedString(responseObject, cmdObj.getResponseType(), out);
+                out.flush();
+                return null;
+            }
+            return ApiResponseSerializer.toSerializedString(responseObject, cmdObj.getResponseType());
         }
     }
 
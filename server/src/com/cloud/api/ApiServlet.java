@@ -44,7 +44,9 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.InetAddress;
 import java.net.URLDecoder;
 import java.util.Arrays;
@@ -129,6 +131,30 @@ public class ApiServlet extends HttpServlet {
         });
     }
 
+    /**
+     * Streams a response to the client once the command has succeeded.
+     */
+    private static class HttpResponseStream implements ApiServerService.ResponseStream {
+        private final HttpServletResponse _resp;
+        private final String _responseType;
+        private boolean _open = false;
+
+        HttpResponseStream(final HttpServletResponse resp, final String responseType) {
+            _resp = resp;
+            _responseType = responseType;
+        }
+
+        @Override
+        public Writer open() throws IOException {
+            _open = true;
+            return HttpUtils.openHttpResponse(_resp, HttpServletResponse.SC_OK, _responseType, ApiServer.getJSONContentType());
+        }
+
+        boolean isOpen() {
+            return _open;
+        }
+    }
+
     void processRequestInContext(final HttpServletRequest req, final HttpServletResponse resp) {
         final String remoteAddress = getClientAddress(req);
         final StringBuilder auditTrailSb = new StringBuilder(128);
@@ -152,6 +178,7 @@ public class ApiServlet extends HttpServlet {
             s_logger.debug("===START=== " + reqStr);
         }
 
+        HttpResponseStream responseStream = null;
         try {
 
             if (HttpUtils.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
@@ -293,8 +320,11 @@ public class ApiServlet extends HttpServlet {
 
                 // Add the HTTP method (GET/POST/PUT/DELETE) as well into the params map.
                 params.put("httpmethod", new String[] {req.getMethod()});
-                final String response = _apiServer.handleRequest(params, responseType, auditTrailSb);
-                HttpUtils.writeHttpResponse(resp, response != null ? response : "", HttpServletResponse.SC_OK, responseType, ApiServer.getJSONContentType());
+                responseStream = new HttpResponseStream(resp, responseType);
+                final String response = _apiServer.handleRequest(params, responseType, auditTrailSb, responseStream);
+                if (!responseStream.isOpen()) {
+                    HttpUtils.writeHttpResponse(resp, response != null ? response : "", HttpServletResponse.SC_OK, responseType, ApiServer.getJSONContentType());
+                }
             } else {
                 if (session != null) {
                     try {
@@ -311,6 +341,15 @@ public class ApiServlet extends HttpServlet {
 
             }
         } catch (final ServerApiException se) {
+            if (responseStream != null && responseStream.isOpen()) {
+                if (resp.isCommitted()) {
+                    // part of the response is out already, the client sees it cut short
+                    s_logger.warn("Failed to stream api response: " + se.getDescription());
+                    auditTrailSb.append(" " + se.getErrorCode() + " " + se.getDescription());
+                    return;
+                }
+                resp.resetBuffer();
+            }
             final String serializedResponseText = _apiServer.getSerializedApiError(se, params, responseType);
             resp.setHeader("X-Description", se.getDescription());
             HttpUtils.writeHttpResponse(resp, serializedResponseText, se.getErrorCode().getHttpCode(), responseType, ApiServer.getJSONContentType());
@@ -204,6 +204,7 @@ import com.cloud.template.VirtualMachineTemplate.TemplateFilter;
 import com.cloud.user.Account;
 import com.cloud.user.AccountManager;
 import com.cloud.user.DomainManager;
+import com.cloud.user.DomainTreeIndex;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.utils.DateUtil;
 import com.cloud.utils.Pair;
@@ -238,6 +239,9 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
     @Inject
     private DomainDao _domainDao;
 
+    @Inject
+    private DomainTreeIndex _domainTree;
+
     @Inject
     private DomainJoinDao _domainJoinDao;
 
@@ -496,8 +500,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
                 sc.setParameters("domainId", domainId);
             }
         } else if (domainId != null) {
-            DomainVO domainVO = _domainDao.findById(domainId);
-            sc.setParameters("domainPath", domainVO.getPath() + "%");
+            sc.setParameters("domainPath", _domainTree.getDomainPath(domainId) + "%");
         }
 
         if (state != null) {
@@ -1367,8 +1370,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
         if (domainId == null && accountId == null && (_accountMgr.isNormalUser(caller.getId()) || !listAll)) {
             accountId = caller.getId();
         } else if (_accountMgr.isDomainAdmin(caller.getId()) || (isRecursive && !listAll)) {
-            DomainVO domain = _domainDao.findById(caller.getDomainId());
-            path = domain.getPath();
+            path = _domainTree.getDomainPath(caller.getDomainId());
         }
 
         if (path != null) {
@@ -1924,7 +1926,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
 
         if (domainId != null) {
             if (isRecursive) {
-                sc.setParameters("path", _domainDao.findById(domainId).getPath() + "%");
+                sc.setParameters("path", _domainTree.getDomainPath(domainId) + "%");
             } else {
                 sc.setParameters("id", domainId);
             }
@@ -2059,8 +2061,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
 
         if (listForDomain) {
             if (isRecursive) {
-                Domain domain = _domainDao.findById(domainId);
-                sc.setParameters("path", domain.getPath() + "%");
+                sc.setParameters("path", _domainTree.getDomainPath(domainId) + "%");
             } else {
                 sc.setParameters("domainId", domainId);
             }
@@ -2127,9 +2128,8 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
         if (!permittedAccounts.isEmpty()) {
             sc.setParameters("accountIdIN", permittedAccounts.toArray());
         } else if (domainId != null) {
-            DomainVO domain = _domainDao.findById(domainId);
             if (isRecursive) {
-                sc.setParameters("path", domain.getPath() + "%");
+                sc.setParameters("path", _domainTree.getDomainPath(domainId) + "%");
             } else {
                 sc.setParameters("domainId", domainId);
             }
@@ -2555,21 +2555,14 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
             if (isRecursive) { // domain + all sub-domains
                 if (account.getType() == Account.ACCOUNT_TYPE_NORMAL)
                     throw new InvalidParameterValueException("Only ROOT admins and Domain admins can list disk offerings with isrecursive=true");
-                DomainVO domainRecord = _domainDao.findById(account.getDomainId());
-                sc.addAnd("domainPath", SearchCriteria.Op.LIKE, domainRecord.getPath() + "%");
+                sc.addAnd("domainPath", SearchCriteria.Op.LIKE, _domainTree.getDomainPath(account.getDomainId()) + "%");
             } else { // domain + all ancestors
                 // find all domain Id up to root domain for this account
-                domainIds = new ArrayList<Long>();
-                DomainVO domainRecord = _domainDao.findById(account.getDomainId());
-                if ( domainRecord == null ){
+                domainIds = _domainTree.getDomainParentIds(account.getDomainId());
+                if (domainIds.isEmpty()) {
                     s_logger.error("Could not find the domainId for account:" + account.getAccountName());
                     throw new CloudAuthenticationException("Could not find the domainId for account:" + account.getAccountName());
                 }
-                domainIds.add(domainRecord.getId());
-                while (domainRecord.getParent() != null ){
-                    domainRecord = _domainDao.findById(domainRecord.getParent());
-                    domainIds.add(domainRecord.getId());
-                }
 
                 SearchCriteria<DiskOfferingJoinVO> spc = _diskOfferingJoinDao.createSearchCriteria();
 
@@ -2723,31 +2716,24 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
             if (isRecursive) { // domain + all sub-domains
                 if (caller.getType() == Account.ACCOUNT_TYPE_NORMAL)
                     throw new InvalidParameterValueException("Only ROOT admins and Domain admins can list service offerings with isrecursive=true");
-                DomainVO domainRecord = _domainDao.findById(caller.getDomainId());
-                sc.addAnd("domainPath", SearchCriteria.Op.LIKE, domainRecord.getPath() + "%");
+                sc.addAnd("domainPath", SearchCriteria.Op.LIKE, _domainTree.getDomainPath(caller.getDomainId()) + "%");
             } else { // domain + all ancestors
                 // find all domain Id up to root domain for this account
-                List<Long> domainIds = new ArrayList<Long>();
-                DomainVO domainRecord;
+                List<Long> domainIds;
                 if (vmId != null) {
                     UserVmVO vmInstance = _userVmDao.findById(vmId);
-                    domainRecord = _domainDao.findById(vmInstance.getDomainId());
-                    if ( domainRecord == null ){
+                    domainIds = _domainTree.getDomainParentIds(vmInstance.getDomainId());
+                    if (domainIds.isEmpty()) {
                         s_logger.error("Could not find the domainId for vmId:" + vmId);
                         throw new CloudAuthenticationException("Could not find the domainId for vmId:" + vmId);
                     }
                 } else {
-                    domainRecord = _domainDao.findById(caller.getDomainId());
-                    if ( domainRecord == null ){
+                    domainIds = _domainTree.getDomainParentIds(caller.getDomainId());
+                    if (domainIds.isEmpty()) {
                         s_logger.error("Could not find the domainId for account:" + caller.getAccountName());
                         throw new CloudAuthenticationException("Could not find the domainId for account:" + caller.getAccountName());
                     }
                 }
-                domainIds.add(domainRecord.getId());
-                while (domainRecord.getParent() != null ){
-                    domainRecord = _domainDao.findById(domainRecord.getParent());
-                    domainIds.add(domainRecord.getId());
-                }
 
                 SearchCriteria<ServiceOfferingJoinVO> spc = _srvOfferingJoinDao.createSearchCriteria();
                 spc.addOr("domainId", SearchCriteria.Op.IN, domainIds.toArray());
@@ -2882,17 +2868,11 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
                 // list
 
                 // find all domain Id up to root domain for this account
-                List<Long> domainIds = new ArrayList<Long>();
-                DomainVO domainRecord = _domainDao.findById(account.getDomainId());
-                if (domainRecord == null) {
+                List<Long> domainIds = _domainTree.getDomainParentIds(account.getDomainId());
+                if (domainIds.isEmpty()) {
                     s_logger.error("Could not find the domainId for account:" + account.getAccountName());
                     throw new CloudAuthenticationException("Could not find the domainId for account:" + account.getAccountName());
                 }
-                domainIds.add(domainRecord.getId());
-                while (domainRecord.getParent() != null) {
-                    domainRecord = _domainDao.findById(domainRecord.getParent());
-                    domainIds.add(domainRecord.getId());
-                }
                 // domainId == null (public zones) or domainId IN [all domain id
                 // up to root domain]
                 SearchCriteria<DataCenterJoinVO> sdc = _dcJoinDao.createSearchCriteria();
@@ -2923,23 +2903,17 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
                 // it was decided to return all zones for the domain admin, and
                 // everything above till root, as well as zones till the domain
                 // leaf
-                List<Long> domainIds = new ArrayList<Long>();
-                DomainVO domainRecord = _domainDao.findById(account.getDomainId());
-                if (domainRecord == null) {
+                List<Long> parentDomainIds = _domainTree.getDomainParentIds(account.getDomainId());
+                if (parentDomainIds.isEmpty()) {
                     s_logger.error("Could not find the domainId for account:" + account.getAccountName());
                     throw new CloudAuthenticationException("Could not find the domainId for account:" + account.getAccountName());
                 }
-                domainIds.add(domainRecord.getId());
+                List<Long> domainIds = new ArrayList<Long>();
+                domainIds.add(account.getDomainId());
                 // find all domain Ids till leaf
-                List<DomainVO> allChildDomains = _domainDao.findAllChildren(domainRecord.getPath(), domainRecord.getId());
-                for (DomainVO domain : allChildDomains) {
-                    domainIds.add(domain.getId());
-                }
+                domainIds.addAll(_domainTree.getDomainChildrenIds(account.getDomainId()));
                 // then find all domain Id up to root domain for this account
-                while (domainRecord.getParent() != null) {
-                    domainRecord = _domainDao.findById(domainRecord.getParent());
-                    domainIds.add(domainRecord.getId());
-                }
+                domainIds.addAll(parentDomainIds.subList(1, parentDomainIds.size()));
 
                 // domainId == null (public zones) or domainId IN [all domain id
                 // up to root domain]
@@ -3014,24 +2988,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
             return true; // account and service offering in same domain
         }
 
-        DomainVO domainRecord = _domainDao.findById(accountDomainId);
-
-        if (domainRecord != null) {
-            while (true) {
-                if (domainRecord.getId() == offeringDomainId) {
-                    return true;
-                }
-
-                // try and move on to the next domain
-                if (domainRecord.getParent() != null) {
-                    domainRecord = _domainDao.findById(domainRecord.getParent());
-                } else {
-                    break;
-                }
-            }
-        }
-
-        return false;
+        return _domainTree.isChildDomain(offeringDomainId, accountDomainId);
     }
 
     @Override
@@ -3143,11 +3100,11 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
             sc.addAnd("id", SearchCriteria.Op.EQ, templateId);
         } else {
 
-            DomainVO domain = null;
+            String domainPath = null;
             if (!permittedAccounts.isEmpty()) {
-                domain = _domainDao.findById(permittedAccounts.get(0).getDomainId());
+                domainPath = _domainTree.getDomainPath(permittedAccounts.get(0).getDomainId());
             } else {
-                domain = _domainDao.findById(Domain.ROOT_DOMAIN);
+                domainPath = _domainTree.getDomainPath(Domain.ROOT_DOMAIN);
             }
 
             // List<HypervisorType> hypers = null;
@@ -3165,7 +3122,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
             // add criteria for domain path in case of domain admin
             if ((templateFilter == TemplateFilter.self || templateFilter == TemplateFilter.selfexecutable)
                     && (caller.getType() == Account.ACCOUNT_TYPE_DOMAIN_ADMIN || caller.getType() == Account.ACCOUNT_TYPE_RESOURCE_DOMAIN_ADMIN)) {
-                sc.addAnd("domainPath", SearchCriteria.Op.LIKE, domain.getPath() + "%");
+                sc.addAnd("domainPath", SearchCriteria.Op.LIKE, domainPath + "%");
             }
 
             List<Long> relatedDomainIds = new ArrayList<Long>();
@@ -3176,26 +3133,13 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
                     boolean publicTemplates = (templateFilter == TemplateFilter.featured || templateFilter == TemplateFilter.community);
 
                     // get all parent domain ID's all the way till root domain
-                    DomainVO domainTreeNode = null;
                     //if template filter is featured, or community, all child domains should be included in search
-                    if (publicTemplates) {
-                        domainTreeNode = _domainDao.findById(Domain.ROOT_DOMAIN);
-
-                    } else {
-                        domainTreeNode = _domainDao.findById(account.getDomainId());
-                    }
-                    relatedDomainIds.add(domainTreeNode.getId());
-                    while (domainTreeNode.getParent() != null) {
-                        domainTreeNode = _domainDao.findById(domainTreeNode.getParent());
-                        relatedDomainIds.add(domainTreeNode.getId());
-                    }
+                    List<Long> parentDomainIds = _domainTree.getDomainParentIds(publicTemplates ? Domain.ROOT_DOMAIN : account.getDomainId());
+                    relatedDomainIds.addAll(parentDomainIds);
 
                     // get all child domain ID's
-                    if (_accountMgr.isAdmin(account.getId()) || publicTemplates) {
-                        List<DomainVO> allChildDomains = _domainDao.findAllChildren(domainTreeNode.getPath(), domainTreeNode.getId());
-                        for (DomainVO childDomain : allChildDomains) {
-                            relatedDomainIds.add(childDomain.getId());
-                        }
+                    if ((_accountMgr.isAdmin(account.getId()) || publicTemplates) && !parentDomainIds.isEmpty()) {
+                        relatedDomainIds.addAll(_domainTree.getDomainChildrenIds(parentDomainIds.get(parentDomainIds.size() - 1)));
                     }
                 }
             }
@@ -3517,9 +3461,8 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
         if (!permittedAccounts.isEmpty()) {
             sc.setParameters("accountIdIN", permittedAccounts.toArray());
         } else if (domainId != null) {
-            DomainVO domain = _domainDao.findById(domainId);
             if (isRecursive) {
-                sc.setParameters("domainPath", domain.getPath() + "%");
+                sc.setParameters("domainPath", _domainTree.getDomainPath(domainId) + "%");
             } else {
                 sc.setParameters("domainId", domainId);
             }
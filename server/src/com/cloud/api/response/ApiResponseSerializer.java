@@ -40,6 +40,9 @@ import org.apache.cloudstack.api.response.SuccessResponse;
 import org.apache.cloudstack.context.CallContext;
 import org.apache.log4j.Logger;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
@@ -47,6 +50,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -62,6 +66,20 @@ public class ApiResponseSerializer {
         }
     }
 
+    /**
+     * Writes the response as it is serialized, without holding the whole of it in memory.
+     */
+    public static void writeSerializedString(ResponseObject result, String responseType, Writer out) throws IOException {
+        s_logger.trace("===Serializing Response===");
+        if (HttpUtils.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
+            if (result != null) {
+                writeJSONSerializedString(result, out);
+            }
+        } else {
+            writeXMLSerializedString(result, out);
+        }
+    }
+
     private static final Pattern s_unicodeEscapePattern = Pattern.compile("\\\\u([0-9A-Fa-f]{4})");
 
     public static String unescape(String escaped) {
@@ -75,101 +93,108 @@ public class ApiResponseSerializer {
 
     public static String toJSONSerializedString(ResponseObject result) {
         if (result != null) {
-            Gson gson = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
-
-            StringBuilder sb = new StringBuilder();
-
-            sb.append("{\"").append(result.getResponseName()).append("\":");
-            if (result instanceof ListResponse) {
-                List<? extends ResponseObject> responses = ((ListResponse)result).getResponses();
-                Integer count = ((ListResponse)result).getCount();
-                boolean nonZeroCount = (count != null && count.longValue() != 0);
-                if (nonZeroCount) {
-                    sb.append("{\"").append(ApiConstants.COUNT).append("\":").append(count);
-                }
+            StringWriter out = new StringWriter();
+            try {
+                writeJSONSerializedString(result, out);
+            } catch (IOException e) {
+                throw new CloudRuntimeException("Unable to serialize the response", e);
+            }
+            return out.toString();
+        }
+        return null;
+    }
 
-                if ((responses != null) && !responses.isEmpty()) {
-                    String jsonStr = gson.toJson(responses.get(0));
-                    jsonStr = unescape(jsonStr);
+    private static void writeJSONSerializedString(ResponseObject result, Writer out) throws IOException {
+        Gson gson = ApiResponseGsonHelper.getGson();
 
-                    if (nonZeroCount) {
-                        sb.append(",\"").append(responses.get(0).getObjectName()).append("\":[").append(jsonStr);
-                    }
+        out.append("{\"").append(result.getResponseName()).append("\":");
+        if (result instanceof ListResponse) {
+            List<? extends ResponseObject> responses = ((ListResponse)result).getResponses();
+            Integer count = ((ListResponse)result).getCount();
+            boolean nonZeroCount = (count != null && count.longValue() != 0);
+            if (nonZeroCount) {
+                out.append("{\"").append(ApiConstants.COUNT).append("\":").append(String.valueOf(count));
+            }
 
-                    for (int i = 1; i < ((ListResponse)result).getResponses().size(); i++) {
-                        jsonStr = gson.toJson(responses.get(i));
-                        jsonStr = unescape(jsonStr);
-                        sb.append(",").append(jsonStr);
-                    }
-                    sb.append("]}");
-                } else  {
-                    if (!nonZeroCount) {
-                        sb.append("{");
+            if (nonZeroCount && (responses != null) && !responses.isEmpty()) {
+                out.append(",\"").append(responses.get(0).getObjectName()).append("\":[");
+                for (int i = 0; i < responses.size(); i++) {
+                    if (i > 0) {
+                        out.append(",");
                     }
-
-                    sb.append("}");
+                    gson.toJson(responses.get(i), out);
                 }
-            } else if (result instanceof SuccessResponse) {
-                sb.append("{\"success\":\"").append(((SuccessResponse)result).getSuccess()).append("\"}");
-            } else if (result instanceof ExceptionResponse) {
-                String jsonErrorText = gson.toJson(result);
-                jsonErrorText = unescape(jsonErrorText);
-                sb.append(jsonErrorText);
+                out.append("]}");
             } else {
-                String jsonStr = gson.toJson(result);
-                if ((jsonStr != null) && !"".equals(jsonStr)) {
-                    jsonStr = unescape(jsonStr);
-                    if (result instanceof AsyncJobResponse || result instanceof CreateCmdResponse || result instanceof AuthenticationCmdResponse) {
-                        sb.append(jsonStr);
-                    } else {
-                        sb.append("{\"").append(result.getObjectName()).append("\":").append(jsonStr).append("}");
-                    }
+                if (!nonZeroCount) {
+                    out.append("{");
+                }
+
+                out.append("}");
+            }
+        } else if (result instanceof SuccessResponse) {
+            out.append("{\"success\":\"").append(String.valueOf(((SuccessResponse)result).getSuccess())).append("\"}");
+        } else if (result instanceof ExceptionResponse) {
+            gson.toJson(result, out);
+        } else {
+            String jsonStr = gson.toJson(result);
+            if ((jsonStr != null) && !"".equals(jsonStr)) {
+                if (result instanceof AsyncJobResponse || result instanceof CreateCmdResponse || result instanceof AuthenticationCmdResponse) {
+                    out.append(jsonStr);
                 } else {
-                    sb.append("{}");
+                    out.append("{\"").append(result.getObjectName()).append("\":").append(jsonStr).append("}");
                 }
+            } else {
+                out.append("{}");
             }
-            sb.append("}");
-            return sb.toString();
         }
-        return null;
+        out.append("}");
     }
 
     private static String toXMLSerializedString(ResponseObject result) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-        sb.append("<").append(result.getResponseName()).append(" cloud-stack-version=\"").append(ApiDBUtils.getVersion()).append("\">");
+        StringWriter out = new StringWriter();
+        try {
+            writeXMLSerializedString(result, out);
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Unable to serialize the response", e);
+        }
+        return out.toString();
+    }
+
+    private static void writeXMLSerializedString(ResponseObject result, Writer out) throws IOException {
+        out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        out.append("<").append(result.getResponseName()).append(" cloud-stack-version=\"").append(ApiDBUtils.getVersion()).append("\">");
 
         if (result instanceof ListResponse) {
             Integer count = ((ListResponse)result).getCount();
 
             if (count != null && count != 0) {
-                sb.append("<").append(ApiConstants.COUNT).append(">").append(((ListResponse)result).getCount()).append("</").append(ApiConstants.COUNT).append(">");
+                out.append("<").append(ApiConstants.COUNT).append(">").append(String.valueOf(count)).append("</").append(ApiConstants.COUNT).append(">");
             }
             List<? extends ResponseObject> responses = ((ListResponse)result).getResponses();
             if ((responses != null) && !responses.isEmpty()) {
                 for (ResponseObject obj : responses) {
-                    serializeResponseObjXML(sb, obj);
+                    serializeResponseObjXML(out, obj);
                 }
             }
         } else {
             if (result instanceof CreateCmdResponse || result instanceof AsyncJobResponse || result instanceof AuthenticationCmdResponse) {
-                serializeResponseObjFieldsXML(sb, result);
+                serializeResponseObjFieldsXML(out, result);
             } else {
-                serializeResponseObjXML(sb, result);
+                serializeResponseObjXML(out, result);
             }
         }
 
-        sb.append("</").append(result.getResponseName()).append(">");
-        return sb.toString();
+        out.append("</").append(result.getResponseName()).append(">");
     }
 
-    private static void serializeResponseObjXML(StringBuilder sb, ResponseObject obj) {
+    private static void serializeResponseObjXML(Writer out, ResponseObject obj) throws IOException {
         if (!(obj instanceof SuccessResponse) && !(obj instanceof ExceptionResponse)) {
-            sb.append("<").append(obj.getObjectName()).append(">");
+            out.append("<").append(obj.getObjectName()).append(">");
         }
-        serializeResponseObjFieldsXML(sb, obj);
+        serializeResponseObjFieldsXML(out, obj);
         if (!(obj instanceof SuccessResponse) && !(obj instanceof ExceptionResponse)) {
-            sb.append("</").append(obj.getObjectName()).append(">");
+            out.append("</").append(obj.getObjectName()).append(">");
         }
     }
 
@@ -182,44 +207,71 @@ public class ApiResponseSerializer {
         return fields.toArray(new Field[] {});
     }
 
-    private static void serializeResponseObjFieldsXML(StringBuilder sb, ResponseObject obj) {
-        boolean isAsync = false;
-        if (obj instanceof AsyncJobResponse)
-            isAsync = true;
+    /**
+     * A field of a response class that is serialized, looked up once per class.
+     */
+    private static class ResponseField {
+        final Field field;
+        final String name;
+        final RoleType[] allowedRoles;
 
-        //Field[] fields = obj.getClass().getDeclaredFields();
-        Field[] fields = getFlattenFields(obj.getClass());
-        for (Field field : fields) {
-            if ((field.getModifiers() & Modifier.TRANSIENT) != 0) {
-                continue; // skip transient fields
-            }
+        ResponseField(Field field, SerializedName serializedName, Param param) {
+            this.field = field;
+            this.name = serializedName.value();
+            this.allowedRoles = param != null ? param.authorized() : new RoleType[0];
+        }
+    }
+
+    private static final ConcurrentHashMap<Class<?>, ResponseField[]> s_responseFields = new ConcurrentHashMap<Class<?>, ResponseField[]>();
 
+    private static ResponseField[] getResponseFields(Class<?> clz) {
+        ResponseField[] responseFields = s_responseFields.get(clz);
+        if (responseFields == null) {
+            List<ResponseField> list = new ArrayList<ResponseField>();
+            for (Field field : getFlattenFields(clz)) {
+                if ((field.getModifiers() & Modifier.TRANSIENT) != 0) {
+                    continue; // skip transient fields
+                }
 
-            SerializedName serializedName = field.getAnnotation(SerializedName.class);
-            if (serializedName == null) {
-                continue; // skip fields w/o serialized name
+                SerializedName serializedName = field.getAnnotation(SerializedName.class);
+                if (serializedName == null) {
+                    continue; // skip fields w/o serialized name
+                }
+
+                field.setAccessible(true);
+                list.add(new ResponseField(field, serializedName, field.getAnnotation(Param.class)));
             }
+            responseFields = list.toArray(new ResponseField[list.size()]);
+            s_responseFields.put(clz, responseFields);
+        }
+        return responseFields;
+    }
 
-            Param param = field.getAnnotation(Param.class);
-            if (param != null) {
-                RoleType[] allowedRoles = param.authorized();
-                if (allowedRoles.length > 0) {
-                    boolean permittedParameter = false;
-                    Account caller = CallContext.current().getCallingAccount();
-                    for (RoleType allowedRole : allowedRoles) {
-                        if (allowedRole.getValue() == caller.getType()) {
-                            permittedParameter = true;
-                            break;
-                        }
-                    }
-                    if (!permittedParameter) {
-                        s_logger.trace("Ignoring paremeter " + param.name() + " as the caller is not authorized to see it");
-                        continue;
+    private static void serializeResponseObjFieldsXML(Writer out, ResponseObject obj) throws IOException {
+        boolean isAsync = false;
+        if (obj instanceof AsyncJobResponse)
+            isAsync = true;
+
+        for (ResponseField responseField : getResponseFields(obj.getClass())) {
+            Field field = responseField.field;
+            String serializedName = responseField.name;
+
+            RoleType[] allowedRoles = responseField.allowedRoles;
+            if (allowedRoles.length > 0) {
+                boolean permittedParameter = false;
+                Account caller = CallContext.current().getCallingAccount();
+                for (RoleType allowedRole : allowedRoles) {
+                    if (allowedRole.getValue() == caller.getType()) {
+                        permittedParameter = true;
+                        break;
                     }
                 }
+                if (!permittedParameter) {
+                    s_logger.trace("Ignoring paremeter " + serializedName + " as the caller is not authorized to see it");
+                    continue;
+                }
             }
 
-            field.setAccessible(true);
             Object fieldValue = null;
             try {
                 fieldValue = field.get(obj);
@@ -232,11 +284,11 @@ public class ApiResponseSerializer {
                 if (fieldValue instanceof ResponseObject) {
                     ResponseObject subObj = (ResponseObject)fieldValue;
                     if (isAsync) {
-                        sb.append("<jobresult>");
+                        out.append("<jobresult>");
                     }
-                    serializeResponseObjXML(sb, subObj);
+                    serializeResponseObjXML(out, subObj);
                     if (isAsync) {
-                        sb.append("</jobresult>");
+                        out.append("</jobresult>");
                     }
                 } else if (fieldValue instanceof Collection<?>) {
                     Collection<?> subResponseList = (Collection<?>)fieldValue;
@@ -244,10 +296,8 @@ public class ApiResponseSerializer {
                     for (Object value : subResponseList) {
                         if (value instanceof ResponseObject) {
                             ResponseObject subObj = (ResponseObject)value;
-                            if (serializedName != null) {
-                                subObj.setObjectName(serializedName.value());
-                            }
-                            serializeResponseObjXML(sb, subObj);
+                            subObj.setObjectName(serializedName);
+                            serializeResponseObjXML(out, subObj);
                         } else if (value instanceof ExceptionProxyObject) {
                             // Only exception reponses carry a list of
                             // ExceptionProxyObject objects.
@@ -255,30 +305,30 @@ public class ApiResponseSerializer {
                             // If this is the first IdentityProxy field
                             // encountered, put in a uuidList tag.
                             if (!usedUuidList) {
-                                sb.append("<" + serializedName.value() + ">");
+                                out.append("<" + serializedName + ">");
                                 usedUuidList = true;
                             }
-                            sb.append("<" + "uuid" + ">" + idProxy.getUuid() + "</" + "uuid" + ">");
+                            out.append("<" + "uuid" + ">" + idProxy.getUuid() + "</" + "uuid" + ">");
                             // Append the new descriptive property also.
                             String idFieldName = idProxy.getDescription();
                             if (idFieldName != null) {
-                                sb.append("<" + "uuidProperty" + ">" + idFieldName + "</" + "uuidProperty" + ">");
+                                out.append("<" + "uuidProperty" + ">" + idFieldName + "</" + "uuidProperty" + ">");
                             }
                         } else if (value instanceof String) {
-                            sb.append("<").append(serializedName.value()).append(">").append(value).append("</").append(serializedName.value()).append(">");
+                            out.append("<").append(serializedName).append(">").append((String)value).append("</").append(serializedName).append(">");
                         }
                     }
                     if (usedUuidList) {
                         // close the uuidList.
-                        sb.append("</").append(serializedName.value()).append(">");
+                        out.append("</").append(serializedName).append(">");
                     }
                 } else if (fieldValue instanceof Date) {
-                    sb.append("<")
-                        .append(serializedName.value())
+                    out.append("<")
+                        .append(serializedName)
                         .append(">")
                         .append(BaseCmd.getDateString((Date)fieldValue))
                         .append("</")
-                        .append(serializedName.value())
+                        .append(serializedName)
                         .append(">");
                 } else {
                     String resultString = escapeSpecialXmlChars(fieldValue.toString());
@@ -286,7 +336,7 @@ public class ApiResponseSerializer {
                         resultString = encodeParam(resultString);
                     }
 
-                    sb.append("<").append(serializedName.value()).append(">").append(resultString).append("</").append(serializedName.value()).append(">");
+                    out.append("<").append(serializedName).append(">").append(resultString).append("</").append(serializedName).append(">");
                 }
             }
         }
@@ -17,11 +17,13 @@
 package com.cloud.capacity;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -39,6 +41,7 @@ import org.apache.cloudstack.framework.config.ConfigDepot;
 import org.apache.cloudstack.framework.config.ConfigKey;
 import org.apache.cloudstack.framework.config.Configurable;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.framework.messagebus.MessageBus;
 import org.apache.cloudstack.framework.messagebus.PublishScope;
 import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
@@ -57,7 +60,9 @@ import com.cloud.configuration.ConfigurationManager;
 import com.cloud.dc.ClusterDetailsDao;
 import com.cloud.dc.ClusterDetailsVO;
 import com.cloud.dc.ClusterVO;
+import com.cloud.dc.HostPodVO;
 import com.cloud.dc.dao.ClusterDao;
+import com.cloud.dc.dao.HostPodDao;
 import com.cloud.deploy.DeploymentClusterPlanner;
 import com.cloud.event.UsageEventVO;
 import com.cloud.exception.ConnectionException;
@@ -87,6 +92,7 @@ import com.cloud.utils.db.DB;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.db.TransactionCallbackNoReturn;
+import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.utils.db.TransactionStatus;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.fsm.StateListener;
@@ -138,6 +144,8 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     @Inject
     ClusterDao _clusterDao;
     @Inject
+    HostPodDao _podDao;
+    @Inject
     ConfigDepot _configDepot;
     @Inject
     DataStoreProviderManager _dataStoreProviderMgr;
@@ -147,6 +155,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     private int _vmCapacityReleaseInterval;
     private ScheduledExecutorService _executor;
     long _extraBytesPerVolume = 0;
+    protected final HostCapacityIndexImpl _capacityIndex = new HostCapacityIndexImpl();
 
     @Inject
     MessageBus _messageBus;
@@ -169,6 +178,9 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     public boolean start() {
         _resourceMgr.registerResourceEvent(ResourceListener.EVENT_PREPARE_MAINTENANCE_AFTER, this);
         _resourceMgr.registerResourceEvent(ResourceListener.EVENT_CANCEL_MAINTENANCE_AFTER, this);
+
+        int reconcileInterval = CapacityIndexReconcileInterval.value();
+        _executor.scheduleWithFixedDelay(new CapacityIndexReconciler(), 0, reconcileInterval, TimeUnit.SECONDS);
         return true;
     }
 
@@ -202,6 +214,22 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
             return false;
         }
 
+        if (OptimisticCapacityReservation.value()) {
+            float cpuOvercommitRatio = Float.parseFloat(_clusterDetailsDao.findDetail(clusterId, "cpuOvercommitRatio").getValue());
+            float memoryOvercommitRatio = Float.parseFloat(_clusterDetailsDao.findDetail(clusterId, "memoryOvercommitRatio").getValue());
+            try {
+                _capacityDao.releaseHostCapacity(hostId, svo.getCpu() * svo.getSpeed(), svo.getRamSize() * 1024L * 1024L, moveFromReserved, moveToReservered,
+                    cpuOvercommitRatio, memoryOvercommitRatio);
+                s_logger.debug("Released capacity of vm " + vm.getId() + " from host: " + hostId + "; movedfromreserved: " + moveFromReserved + ",moveToReservered" +
+                    moveToReservered);
+                refreshCapacityIndex(hostId);
+                return true;
+            } catch (Exception e) {
+                s_logger.debug("Failed to transit vm's state, due to " + e.getMessage());
+                return false;
+            }
+        }
+
         try {
             final Long clusterIdFinal = clusterId;
             final long capacityCpuId = capacityCpu.getId();
@@ -265,6 +293,8 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
 
                     _capacityDao.update(capacityCpu.getId(), capacityCpu);
                     _capacityDao.update(capacityMemory.getId(), capacityMemory);
+                    updateCapacityIndex(capacityCpu);
+                    updateCapacityIndex(capacityMemory);
                 }
             });
 
@@ -297,6 +327,15 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
         final int cpu = svo.getCpu() * svo.getSpeed();
         final long ram = svo.getRamSize() * 1024L * 1024L;
 
+        if (OptimisticCapacityReservation.value()) {
+            try {
+                allocateVmCapacityWithoutLocking(hostId, cpu, ram, fromLastHost, cpuOvercommitRatio, memoryOvercommitRatio);
+            } catch (Exception e) {
+                s_logger.error("Exception allocating VM capacity", e);
+            }
+            return;
+        }
+
         try {
             final long capacityCpuId = capacityCpu.getId();
             final long capacityMemId = capacityMem.getId();
@@ -361,6 +400,8 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
 
                     _capacityDao.update(capacityCpu.getId(), capacityCpu);
                     _capacityDao.update(capacityMem.getId(), capacityMem);
+                    updateCapacityIndex(capacityCpu);
+                    updateCapacityIndex(capacityMem);
                 }
             });
         } catch (Exception e) {
@@ -369,6 +410,72 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
         }
     }
 
+    /**
+     * Same outcome as the locking path of allocateVmCapacity, the vm is
+     * already starting on the host so its capacity is counted even when the
+     * host turns out to be full.
+     */
+    private void allocateVmCapacityWithoutLocking(long hostId, int cpu, long ram, boolean fromLastHost, float cpuOvercommitRatio, float memoryOvercommitRatio) {
+        boolean allocated = false;
+        if (fromLastHost) {
+            allocated = _capacityDao.allocateHostCapacity(hostId, cpu, ram, true, false, cpuOvercommitRatio, memoryOvercommitRatio);
+            if (allocated && s_logger.isDebugEnabled()) {
+                s_logger.debug("Allocated requested CPU: " + cpu + " and RAM: " + ram + " from the reserved capacity of host: " + hostId);
+            }
+        }
+        if (!allocated) {
+            allocated = _capacityDao.allocateHostCapacity(hostId, cpu, ram, false, true, cpuOvercommitRatio, memoryOvercommitRatio);
+        }
+        if (!allocated) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Host: " + hostId + " doesnt seem to have enough free capacity, but increasing the used capacity anyways, " +
+                    "since the VM is already starting on this host");
+            }
+            allocated = _capacityDao.allocateHostCapacity(hostId, cpu, ram, false, false, cpuOvercommitRatio, memoryOvercommitRatio);
+        }
+        if (!allocated) {
+            s_logger.warn("Unable to allocate CPU: " + cpu + " and RAM: " + ram + " on host: " + hostId + ", the host has no capacity entries");
+            return;
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Allocated CPU: " + cpu + " and RAM: " + ram + " on host: " + hostId + ", alloc_from_last:" + fromLastHost);
+        }
+        refreshCapacityIndex(hostId);
+    }
+
+    private void refreshCapacityIndex(final long hostId) {
+        if (!CapacityIndexEnabled.value()) {
+            return;
+        }
+        // the conditional updates change the rows in SQL, they are read back once committed
+        TransactionLegacy.currentTxn().runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                CapacityVO capacityCpu = _capacityDao.findByHostIdType(hostId, Capacity.CAPACITY_TYPE_CPU);
+                CapacityVO capacityMem = _capacityDao.findByHostIdType(hostId, Capacity.CAPACITY_TYPE_MEMORY);
+                if (capacityCpu != null) {
+                    _capacityIndex.update(capacityCpu);
+                }
+                if (capacityMem != null) {
+                    _capacityIndex.update(capacityMem);
+                }
+            }
+        });
+    }
+
+    /**
+     * Updates the capacity index once the current transaction commits, so
+     * the planners never see a change that is rolled back.
+     */
+    private void updateCapacityIndex(final CapacityVO capacity) {
+        TransactionLegacy.currentTxn().runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                _capacityIndex.update(capacity);
+            }
+        });
+    }
+
     @Override
     public boolean checkIfHostHasCpuCapability(long hostId, Integer cpuNum, Integer cpuSpeed) {
 
@@ -741,6 +848,8 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
             try {
                 _capacityDao.update(cpuCap.getId(), cpuCap);
                 _capacityDao.update(memCap.getId(), memCap);
+                updateCapacityIndex(cpuCap);
+                updateCapacityIndex(memCap);
             } catch (Exception e) {
                 s_logger.error("Caught exception while updating cpu/memory capacity for the host " + host.getId(), e);
             }
@@ -757,14 +866,14 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
                             Capacity.CAPACITY_TYPE_MEMORY);
                     capacity.setReservedCapacity(reservedMemoryFinal);
                     capacity.setCapacityState(capacityState);
-                    _capacityDao.persist(capacity);
+                    updateCapacityIndex(_capacityDao.persist(capacity));
 
                     capacity =
                         new CapacityVO(host.getId(), host.getDataCenterId(), host.getPodId(), host.getClusterId(), usedCpuFinal, host.getCpus().longValue() *
                             host.getSpeed().longValue(), Capacity.CAPACITY_TYPE_CPU);
                     capacity.setReservedCapacity(reservedCpuFinal);
                     capacity.setCapacityState(capacityState);
-                    _capacityDao.persist(capacity);
+                    updateCapacityIndex(_capacityDao.persist(capacity));
                 }
             });
 
@@ -884,11 +993,12 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
                         "," + CapacityVOCpu.getTotalCapacity());
                 }
                 _capacityDao.update(CapacityVOCpu.getId(), CapacityVOCpu);
+                updateCapacityIndex(CapacityVOCpu);
             } else {
                 CapacityVO capacity =
                     new CapacityVO(server.getId(), server.getDataCenterId(), server.getPodId(), server.getClusterId(), 0L, server.getCpus().longValue() *
                         server.getSpeed().longValue(), Capacity.CAPACITY_TYPE_CPU);
-                _capacityDao.persist(capacity);
+                updateCapacityIndex(_capacityDao.persist(capacity));
             }
 
             SearchCriteria<CapacityVO> capacityMem = _capacityDao.createSearchCriteria();
@@ -911,11 +1021,12 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
                         "," + CapacityVOMem.getTotalCapacity());
                 }
                 _capacityDao.update(CapacityVOMem.getId(), CapacityVOMem);
+                updateCapacityIndex(CapacityVOMem);
             } else {
                 CapacityVO capacity =
                     new CapacityVO(server.getId(), server.getDataCenterId(), server.getPodId(), server.getClusterId(), 0L, server.getTotalMemory(),
                         Capacity.CAPACITY_TYPE_MEMORY);
-                _capacityDao.persist(capacity);
+                updateCapacityIndex(_capacityDao.persist(capacity));
             }
         }
 
@@ -1049,9 +1160,15 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     }
 
     @Override
-    public void processPrepareMaintenaceEventAfter(Long hostId) {
+    public void processPrepareMaintenaceEventAfter(final Long hostId) {
         _capacityDao.removeBy(Capacity.CAPACITY_TYPE_MEMORY, null, null, null, hostId);
         _capacityDao.removeBy(Capacity.CAPACITY_TYPE_CPU, null, null, null, hostId);
+        TransactionLegacy.currentTxn().runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                _capacityIndex.removeHost(hostId);
+            }
+        });
     }
 
     @Override
@@ -1076,6 +1193,81 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
         return false;
     }
 
+    @Override
+    public HostCapacityIndex getHostCapacityIndex() {
+        if (!CapacityIndexEnabled.value() || !_capacityIndex.isLoaded()) {
+            return null;
+        }
+        return _capacityIndex;
+    }
+
+    protected void reloadCapacityIndex() {
+        long mark = _capacityIndex.mark();
+
+        SearchCriteria<CapacityVO> sc = _capacityDao.createSearchCriteria();
+        sc.addAnd("capacityType", SearchCriteria.Op.IN, Capacity.CAPACITY_TYPE_CPU, Capacity.CAPACITY_TYPE_MEMORY);
+        List<CapacityVO> capacities = _capacityDao.search(sc, null);
+
+        Map<Long, Map<String, String>> details = new HashMap<Long, Map<String, String>>();
+        for (ClusterDetailsVO detail : _clusterDetailsDao.listAll()) {
+            Map<String, String> clusterDetails = details.get(detail.getClusterId());
+            if (clusterDetails == null) {
+                clusterDetails = new HashMap<String, String>();
+                details.put(detail.getClusterId(), clusterDetails);
+            }
+            clusterDetails.put(detail.getName(), detail.getValue());
+        }
+        float cpuThreshold = DeploymentClusterPlanner.ClusterCPUCapacityDisableThreshold.value();
+        float memoryThreshold = DeploymentClusterPlanner.ClusterMemoryCapacityDisableThreshold.value();
+        List<HostCapacityIndexImpl.ClusterSettings> clusters = new ArrayList<HostCapacityIndexImpl.ClusterSettings>();
+        for (ClusterVO cluster : _clusterDao.listAll()) {
+            Map<String, String> clusterDetails = details.get(cluster.getId());
+            if (clusterDetails == null) {
+                clusterDetails = new HashMap<String, String>();
+            }
+            clusters.add(new HostCapacityIndexImpl.ClusterSettings(cluster.getId(), parseFloat(clusterDetails.get("cpuOvercommitRatio"), null),
+                parseFloat(clusterDetails.get("memoryOvercommitRatio"), null),
+                parseFloat(clusterDetails.get(DeploymentClusterPlanner.ClusterCPUCapacityDisableThreshold.key()), cpuThreshold),
+                parseFloat(clusterDetails.get(DeploymentClusterPlanner.ClusterMemoryCapacityDisableThreshold.key()), memoryThreshold)));
+        }
+
+        List<Long> pods = new ArrayList<Long>();
+        for (HostPodVO pod : _podDao.listAll()) {
+            pods.add(pod.getId());
+        }
+
+        _capacityIndex.reload(mark, capacities, clusters, pods);
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Reloaded host capacity index with " + capacities.size() + " capacities of " + clusters.size() + " clusters");
+        }
+    }
+
+    private static Float parseFloat(String value, Float defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Float.parseFloat(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    protected class CapacityIndexReconciler extends ManagedContextRunnable {
+        @Override
+        protected void runInContext() {
+            try {
+                if (CapacityIndexEnabled.value()) {
+                    reloadCapacityIndex();
+                } else if (_capacityIndex.isLoaded()) {
+                    _capacityIndex.clear();
+                }
+            } catch (Throwable e) {
+                s_logger.warn("Unable to reload the host capacity index", e);
+            }
+        }
+    }
+
     @Override
     public String getConfigComponentName() {
         return CapacityManager.class.getSimpleName();
@@ -1084,6 +1276,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     @Override
     public ConfigKey<?>[] getConfigKeys() {
         return new ConfigKey<?>[] {CpuOverprovisioningFactor, MemOverprovisioningFactor, StorageCapacityDisableThreshold, StorageOverprovisioningFactor,
-            StorageAllocatedCapacityDisableThreshold};
+            StorageAllocatedCapacityDisableThreshold, OptimisticCapacityReservation, CapacityIndexEnabled,
+            CapacityIndexReconcileInterval};
     }
 }
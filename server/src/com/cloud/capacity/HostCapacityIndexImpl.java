@@ -0,0 +1,340 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloud.utils.Pair;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Keeps the cpu and memory capacity of every host together with the
+ * overcommit ratios and disable thresholds of the clusters.  CapacityManager
+ * updates a host whenever it changes its capacity rows and reloads the whole
+ * index periodically, which also picks up changes made by other management
+ * servers.
+ *
+ * The queries mirror the SQL in CapacityDaoImpl, including which rows take
+ * part in each of them, so the planners order pods and clusters the same way
+ * whichever of the two answers.
+ */
+public class HostCapacityIndexImpl implements HostCapacityIndex {
+
+    private final ConcurrentHashMap<Long, HostCapacity> _cpu = new ConcurrentHashMap<Long, HostCapacity>();
+    private final ConcurrentHashMap<Long, HostCapacity> _memory = new ConcurrentHashMap<Long, HostCapacity>();
+    private volatile Map<Long, ClusterSettings> _clusters = Collections.emptyMap();
+    private volatile Set<Long> _pods = Collections.emptySet();
+    private volatile boolean _loaded;
+
+    // stamps every change, so a reload does not undo the updates made while it was reading the database
+    private final AtomicLong _version = new AtomicLong();
+
+    public boolean isLoaded() {
+        return _loaded;
+    }
+
+    /**
+     * @return the version to pass to reload() for a snapshot read from now on.
+     */
+    public long mark() {
+        return _version.get();
+    }
+
+    public synchronized void update(CapacityVO capacity) {
+        Map<Long, HostCapacity> hosts = getHostsOrNull(capacity.getCapacityType());
+        if (hosts == null || capacity.getHostOrPoolId() == null) {
+            return;
+        }
+        hosts.put(capacity.getHostOrPoolId(), new HostCapacity(capacity, _version.incrementAndGet()));
+    }
+
+    public synchronized void removeHost(long hostId) {
+        _version.incrementAndGet();
+        _cpu.remove(hostId);
+        _memory.remove(hostId);
+    }
+
+    /**
+     * Replaces the index with a snapshot of the database.  Hosts updated or
+     * removed after mark was taken keep their newer values.
+     *
+     * @param mark version returned by mark() before the snapshot was read.
+     * @param capacities cpu and memory rows of op_host_capacity.
+     * @param clusters the clusters that are not removed.
+     * @param pods ids of the pods that are not removed.
+     */
+    public synchronized void reload(long mark, Collection<CapacityVO> capacities, Collection<ClusterSettings> clusters, Collection<Long> pods) {
+        Map<Long, ClusterSettings> clusterMap = new HashMap<Long, ClusterSettings>();
+        for (ClusterSettings cluster : clusters) {
+            clusterMap.put(cluster.getId(), cluster);
+        }
+        _clusters = clusterMap;
+        _pods = new HashSet<Long>(pods);
+
+        Set<Long> cpuHosts = new HashSet<Long>();
+        Set<Long> memoryHosts = new HashSet<Long>();
+        for (CapacityVO capacity : capacities) {
+            Map<Long, HostCapacity> hosts = getHostsOrNull(capacity.getCapacityType());
+            if (hosts == null || capacity.getHostOrPoolId() == null) {
+                continue;
+            }
+            Long hostId = capacity.getHostOrPoolId();
+            if (hosts == _cpu) {
+                cpuHosts.add(hostId);
+            } else {
+                memoryHosts.add(hostId);
+            }
+            HostCapacity current = hosts.get(hostId);
+            if (current == null || current._version <= mark) {
+                hosts.put(hostId, new HostCapacity(capacity, mark));
+            }
+        }
+        removeStale(_cpu, cpuHosts, mark);
+        removeStale(_memory, memoryHosts, mark);
+        _loaded = true;
+    }
+
+    public synchronized void clear() {
+        _loaded = false;
+        _cpu.clear();
+        _memory.clear();
+        _clusters = Collections.emptyMap();
+        _pods = Collections.emptySet();
+    }
+
+    @Override
+    public List<Long> listClustersInZoneOrPodByHostCapacities(long id, int requiredCpu, long requiredRam, boolean isZone) {
+        Map<Long, ClusterSettings> clusters = _clusters;
+        Set<Long> withCpu = clustersWithHostCapacity(_cpu.values(), clusters, id, isZone, Capacity.CAPACITY_TYPE_CPU, requiredCpu);
+        Set<Long> withMemory = clustersWithHostCapacity(_memory.values(), clusters, id, isZone, Capacity.CAPACITY_TYPE_MEMORY, requiredRam);
+        withCpu.retainAll(withMemory);
+        return new ArrayList<Long>(withCpu);
+    }
+
+    @Override
+    public Pair<List<Long>, Map<Long, Double>> orderClustersByAggregateCapacity(long id, short capacityType, boolean isZone) {
+        Map<Long, ClusterSettings> clusters = _clusters;
+        Map<Long, double[]> sums = new HashMap<Long, double[]>();
+        for (HostCapacity host : getHosts(capacityType).values()) {
+            ClusterSettings cluster = clusters.get(host._clusterId);
+            if (!host.isIn(id, isZone) || cluster == null || cluster.getOvercommitRatio(capacityType) == null) {
+                continue;
+            }
+            add(sums, host._clusterId, host._used + host._reserved, host._total * cluster.getOvercommitRatio(capacityType));
+        }
+        return order(sums);
+    }
+
+    @Override
+    public List<Long> listPodsByHostCapacities(long zoneId, int requiredCpu, long requiredRam) {
+        Set<Long> withCpu = podsWithHostCapacity(_cpu.values(), zoneId, Capacity.CAPACITY_TYPE_CPU, requiredCpu);
+        Set<Long> withMemory = podsWithHostCapacity(_memory.values(), zoneId, Capacity.CAPACITY_TYPE_MEMORY, requiredRam);
+        withCpu.retainAll(withMemory);
+        return new ArrayList<Long>(withCpu);
+    }
+
+    @Override
+    public Pair<List<Long>, Map<Long, Double>> orderPodsByAggregateCapacity(long zoneId, short capacityType) {
+        Map<Long, ClusterSettings> clusters = _clusters;
+        Map<Long, double[]> sums = new HashMap<Long, double[]>();
+        for (HostCapacity host : getHosts(capacityType).values()) {
+            ClusterSettings cluster = clusters.get(host._clusterId);
+            if (host._zoneId != zoneId || cluster == null || cluster.getOvercommitRatio(capacityType) == null) {
+                continue;
+            }
+            add(sums, host._podId, host._used + host._reserved, host._total * cluster.getOvercommitRatio(capacityType));
+        }
+        return order(sums);
+    }
+
+    @Override
+    public List<Long> listClustersCrossingThreshold(short capacityType, long zoneId, long computeRequested) {
+        Map<Long, ClusterSettings> clusters = _clusters;
+        Map<Long, double[]> sums = new HashMap<Long, double[]>();
+        for (HostCapacity host : getHosts(capacityType).values()) {
+            ClusterSettings cluster = clusters.get(host._clusterId);
+            if (host._zoneId != zoneId || host._total <= 0 || !host._enabled || cluster == null || cluster.getOvercommitRatio(capacityType) == null) {
+                continue;
+            }
+            add(sums, host._clusterId, host._used + host._reserved, host._total * cluster.getOvercommitRatio(capacityType));
+        }
+
+        List<Long> crossing = new ArrayList<Long>();
+        for (Map.Entry<Long, double[]> entry : sums.entrySet()) {
+            double[] sum = entry.getValue();
+            if ((sum[0] + computeRequested) / sum[1] > clusters.get(entry.getKey()).getDisableThreshold(capacityType)) {
+                crossing.add(entry.getKey());
+            }
+        }
+        return crossing;
+    }
+
+    private Map<Long, HostCapacity> getHosts(short capacityType) {
+        Map<Long, HostCapacity> hosts = getHostsOrNull(capacityType);
+        if (hosts == null) {
+            throw new CloudRuntimeException("Invalid capacityType - " + capacityType);
+        }
+        return hosts;
+    }
+
+    private Map<Long, HostCapacity> getHostsOrNull(short capacityType) {
+        if (capacityType == Capacity.CAPACITY_TYPE_CPU) {
+            return _cpu;
+        } else if (capacityType == Capacity.CAPACITY_TYPE_MEMORY) {
+            return _memory;
+        }
+        return null;
+    }
+
+    private static void removeStale(Map<Long, HostCapacity> hosts, Set<Long> inSnapshot, long mark) {
+        for (Map.Entry<Long, HostCapacity> entry : hosts.entrySet()) {
+            if (!inSnapshot.contains(entry.getKey()) && entry.getValue()._version <= mark) {
+                hosts.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static Set<Long> clustersWithHostCapacity(Collection<HostCapacity> hosts, Map<Long, ClusterSettings> clusters, long id, boolean isZone, short capacityType,
+        long required) {
+        Set<Long> result = new HashSet<Long>();
+        for (HostCapacity host : hosts) {
+            ClusterSettings cluster = clusters.get(host._clusterId);
+            if (host.isIn(id, isZone) && cluster != null && host.hasCapacity(cluster.getOvercommitRatio(capacityType), required)) {
+                result.add(host._clusterId);
+            }
+        }
+        return result;
+    }
+
+    private Set<Long> podsWithHostCapacity(Collection<HostCapacity> hosts, long zoneId, short capacityType, long required) {
+        Map<Long, ClusterSettings> clusters = _clusters;
+        Set<Long> pods = _pods;
+        Set<Long> result = new HashSet<Long>();
+        for (HostCapacity host : hosts) {
+            ClusterSettings cluster = clusters.get(host._clusterId);
+            if (host._zoneId == zoneId && pods.contains(host._podId) && cluster != null && host.hasCapacity(cluster.getOvercommitRatio(capacityType), required)) {
+                result.add(host._podId);
+            }
+        }
+        return result;
+    }
+
+    private static void add(Map<Long, double[]> sums, Long id, double allocated, double total) {
+        double[] sum = sums.get(id);
+        if (sum == null) {
+            sum = new double[2];
+            sums.put(id, sum);
+        }
+        sum[0] += allocated;
+        sum[1] += total;
+    }
+
+    private static Pair<List<Long>, Map<Long, Double>> order(Map<Long, double[]> sums) {
+        final Map<Long, Double> ratios = new HashMap<Long, Double>();
+        for (Map.Entry<Long, double[]> entry : sums.entrySet()) {
+            double[] sum = entry.getValue();
+            // SUM(...)/0 is NULL in SQL and read back as 0
+            ratios.put(entry.getKey(), sum[1] == 0 ? 0 : sum[0] / sum[1]);
+        }
+        List<Long> ids = new ArrayList<Long>(ratios.keySet());
+        Collections.sort(ids, new Comparator<Long>() {
+            @Override
+            public int compare(Long o1, Long o2) {
+                int result = Double.compare(ratios.get(o1), ratios.get(o2));
+                return result != 0 ? result : o1.compareTo(o2);
+            }
+        });
+        return new Pair<List<Long>, Map<Long, Double>>(ids, ratios);
+    }
+
+    /**
+     * Overcommit ratios and disable thresholds of a cluster, as found in
+     * cluster_details or the global configuration.
+     */
+    public static class ClusterSettings {
+        private final long _id;
+        private final Float _cpuOvercommitRatio;
+        private final Float _memoryOvercommitRatio;
+        private final float _cpuDisableThreshold;
+        private final float _memoryDisableThreshold;
+
+        /**
+         * @param cpuOvercommitRatio null when the cluster has no cpuOvercommitRatio detail.
+         * @param memoryOvercommitRatio null when the cluster has no memoryOvercommitRatio detail.
+         */
+        public ClusterSettings(long id, Float cpuOvercommitRatio, Float memoryOvercommitRatio, float cpuDisableThreshold, float memoryDisableThreshold) {
+            _id = id;
+            _cpuOvercommitRatio = cpuOvercommitRatio;
+            _memoryOvercommitRatio = memoryOvercommitRatio;
+            _cpuDisableThreshold = cpuDisableThreshold;
+            _memoryDisableThreshold = memoryDisableThreshold;
+        }
+
+        public long getId() {
+            return _id;
+        }
+
+        public Float getOvercommitRatio(short capacityType) {
+            return capacityType == Capacity.CAPACITY_TYPE_CPU ? _cpuOvercommitRatio : _memoryOvercommitRatio;
+        }
+
+        public float getDisableThreshold(short capacityType) {
+            return capacityType == Capacity.CAPACITY_TYPE_CPU ? _cpuDisableThreshold : _memoryDisableThreshold;
+        }
+    }
+
+    private static class HostCapacity {
+        final long _zoneId;
+        final long _podId;
+        final long _clusterId;
+        final long _total;
+        final long _used;
+        final long _reserved;
+        final boolean _enabled;
+        final long _version;
+
+        HostCapacity(CapacityVO capacity, long version) {
+            _zoneId = capacity.getDataCenterId() == null ? -1 : capacity.getDataCenterId();
+            _podId = capacity.getPodId() == null ? -1 : capacity.getPodId();
+            _clusterId = capacity.getClusterId() == null ? -1 : capacity.getClusterId();
+            _total = capacity.getTotalCapacity();
+            _used = capacity.getUsedCapacity();
+            _reserved = capacity.getReservedCapacity();
+            _enabled = capacity.getCapacityState() == CapacityState.Enabled;
+            _version = version;
+        }
+
+        boolean isIn(long id, boolean isZone) {
+            return (isZone ? _zoneId : _podId) == id;
+        }
+
+        boolean hasCapacity(Float overcommitRatio, long required) {
+            // same expression as CapacityDaoImpl, reserved capacity is added back
+            return overcommitRatio != null && _total * overcommitRatio - _used + _reserved >= required;
+        }
+    }
+}
@@ -350,6 +350,22 @@ public enum Config {
             "100",
             "The number of outstanding security group work items that can be queued to a host. If exceeded, work items will get dropped to conserve memory. Security Group Sync will take care of ensuring that the host gets updated eventually",
             null),
+    SecurityGroupIncrementalUpdates(
+            "Network",
+            ManagementServer.class,
+            Boolean.class,
+            "network.securitygroups.incremental.updates",
+            "true",
+            "If true, the ruleset updates are sent to KVM hosts as the changes to the ruleset they programmed last, the complete ruleset is sent when they are out of sync",
+            null),
+    SecurityGroupMembershipCacheTtl(
+            "Network",
+            ManagementServer.class,
+            Integer.class,
+            "network.securitygroups.membership.cache.ttl",
+            "300",
+            "Time (seconds) the running members of a security group are cached to compute the rulesets of the vms, they are reloaded as soon as a member changes on any management server",
+            null),
 
     SecurityGroupDefaultAdding(
             "Network",
@@ -1341,6 +1357,30 @@ public enum Config {
             "Interval (in days) to check sanity of usage data",
             null),
     UsageAggregationTimezone("Usage", ManagementServer.class, String.class, "usage.aggregation.timezone", "GMT", "The timezone to use for usage stats aggregation", null),
+    UsageParseThreads(
+            "Usage",
+            ManagementServer.class,
+            Integer.class,
+            "usage.parse.threads",
+            "1",
+            "Number of threads parsing the usage of the accounts in parallel, 1 to parse them sequentially",
+            null),
+    UsageParseBatchSize(
+            "Usage",
+            ManagementServer.class,
+            Integer.class,
+            "usage.parse.batch.size",
+            "500",
+            "Number of usage records inserted at once by each usage parsing thread",
+            null),
+    UsageEventBatchSize(
+            "Usage",
+            ManagementServer.class,
+            Integer.class,
+            "usage.event.batch.size",
+            "500",
+            "Number of usage events read, and of usage helper records inserted, at once by the usage job",
+            null),
     TrafficSentinelIncludeZones(
             "Usage",
             ManagementServer.class,
@@ -36,6 +36,7 @@ import org.apache.log4j.Logger;
 
 import com.cloud.capacity.Capacity;
 import com.cloud.capacity.CapacityManager;
+import com.cloud.capacity.HostCapacityIndex;
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.configuration.Config;
 import com.cloud.dc.ClusterDetailsDao;
@@ -317,6 +318,8 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentClusterPla
         int cpu_requested = offering.getCpu() * offering.getSpeed();
         long ram_requested = offering.getRamSize() * 1024L * 1024L;
 
+        HostCapacityIndex capacityIndex = _capacityMgr.getHostCapacityIndex();
+
         // For each capacity get the cluster list crossing the threshold and
         // remove it from the clusterList that will be used for vm allocation.
         for (short capacity : capacityList) {
@@ -325,10 +328,10 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentClusterPla
                 return;
             }
             if (capacity == Capacity.CAPACITY_TYPE_CPU) {
-                clustersCrossingThreshold =
+                clustersCrossingThreshold = capacityIndex != null ? capacityIndex.listClustersCrossingThreshold(capacity, plan.getDataCenterId(), cpu_requested) :
                     _capacityDao.listClustersCrossingThreshold(capacity, plan.getDataCenterId(), ClusterCPUCapacityDisableThreshold.key(), cpu_requested);
             } else if (capacity == Capacity.CAPACITY_TYPE_MEMORY) {
-                clustersCrossingThreshold =
+                clustersCrossingThreshold = capacityIndex != null ? capacityIndex.listClustersCrossingThreshold(capacity, plan.getDataCenterId(), ram_requested) :
                     _capacityDao.listClustersCrossingThreshold(capacity, plan.getDataCenterId(), ClusterMemoryCapacityDisableThreshold.key(), ram_requested);
             }
 
@@ -453,11 +456,23 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentClusterPla
             capacityType = Capacity.CAPACITY_TYPE_MEMORY;
         }
 
-        List<Long> clusterIdswithEnoughCapacity = _capacityDao.listClustersInZoneOrPodByHostCapacities(id, requiredCpu, requiredRam, capacityType, isZone);
+        // answered from memory when the capacity manager keeps the host capacities
+        HostCapacityIndex capacityIndex = _capacityMgr.getHostCapacityIndex();
+        List<Long> clusterIdswithEnoughCapacity;
+        Pair<List<Long>, Map<Long, Double>> result;
+        if (capacityIndex != null) {
+            clusterIdswithEnoughCapacity = capacityIndex.listClustersInZoneOrPodByHostCapacities(id, requiredCpu, requiredRam, isZone);
+        } else {
+            clusterIdswithEnoughCapacity = _capacityDao.listClustersInZoneOrPodByHostCapacities(id, requiredCpu, requiredRam, capacityType, isZone);
+        }
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("ClusterId List having enough CPU and RAM capacity: " + clusterIdswithEnoughCapacity);
         }
-        Pair<List<Long>, Map<Long, Double>> result = _capacityDao.orderClustersByAggregateCapacity(id, capacityType, isZone);
+        if (capacityIndex != null) {
+            result = capacityIndex.orderClustersByAggregateCapacity(id, capacityType, isZone);
+        } else {
+            result = _capacityDao.orderClustersByAggregateCapacity(id, capacityType, isZone);
+        }
         List<Long> clusterIdsOrderedByAggregateCapacity = result.first();
         //only keep the clusters that have enough capacity to host this VM
         if (s_logger.isTraceEnabled()) {
@@ -487,11 +502,22 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentClusterPla
             capacityType = Capacity.CAPACITY_TYPE_MEMORY;
         }
 
-        List<Long> podIdswithEnoughCapacity = _capacityDao.listPodsByHostCapacities(zoneId, requiredCpu, requiredRam, capacityType);
+        HostCapacityIndex capacityIndex = _capacityMgr.getHostCapacityIndex();
+        List<Long> podIdswithEnoughCapacity;
+        Pair<List<Long>, Map<Long, Double>> result;
+        if (capacityIndex != null) {
+            podIdswithEnoughCapacity = capacityIndex.listPodsByHostCapacities(zoneId, requiredCpu, requiredRam);
+        } else {
+            podIdswithEnoughCapacity = _capacityDao.listPodsByHostCapacities(zoneId, requiredCpu, requiredRam, capacityType);
+        }
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("PodId List having enough CPU and RAM capacity: " + podIdswithEnoughCapacity);
         }
-        Pair<List<Long>, Map<Long, Double>> result = _capacityDao.orderPodsByAggregateCapacity(zoneId, capacityType);
+        if (capacityIndex != null) {
+            result = capacityIndex.orderPodsByAggregateCapacity(zoneId, capacityType);
+        } else {
+            result = _capacityDao.orderPodsByAggregateCapacity(zoneId, capacityType);
+        }
         List<Long> podIdsOrderedByAggregateCapacity = result.first();
         //only keep the clusters that have enough capacity to host this VM
         if (s_logger.isTraceEnabled()) {
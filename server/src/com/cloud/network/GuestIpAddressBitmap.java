@@ -0,0 +1,184 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import com.cloud.utils.net.NetUtils;
+
+/**
+ * One bit per address of the guest CIDR of a network, set when the address is in use.
+ *
+ * Addresses handed out by the bitmap are remembered for a while, so that they survive a
+ * rebuild from the DB that happens before the NIC holding them is persisted.
+ */
+public class GuestIpAddressBitmap {
+    private final long _reservationTimeout;
+    private final Random _rand;
+
+    private String _cidr;
+    private String _gateway;
+    private long _first;
+    private int _size;
+    private long[] _words = new long[0];
+    private int _free;
+    private int _next;
+
+    // addresses handed out by the bitmap, by the time they were handed out
+    private final LinkedHashMap<Long, Long> _reserved = new LinkedHashMap<Long, Long>();
+
+    public GuestIpAddressBitmap(long reservationTimeout, Random rand) {
+        _reservationTimeout = reservationTimeout;
+        _rand = rand;
+    }
+
+    public synchronized boolean isBuiltFor(String cidr, String gateway) {
+        return cidr.equals(_cidr) && (gateway == null ? _gateway == null : gateway.equals(_gateway));
+    }
+
+    /**
+     * Rebuilds the bitmap for the CIDR, with the gateway, the used addresses and the addresses
+     * reserved recently set.
+     */
+    public synchronized void reset(String cidr, String gateway, Collection<String> usedIps) {
+        String[] parts = cidr.split("/");
+        int prefix = Integer.parseInt(parts[1]);
+        long netmask = NetUtils.ip2Long(NetUtils.getCidrNetmask(prefix));
+        // the network and the broadcast address are left out
+        _first = (NetUtils.ip2Long(parts[0]) & netmask) + 1;
+        _size = (int)Math.max(0, (1L << (32 - prefix)) - 2);
+        _words = new long[(_size + 63) >>> 6];
+        _free = _size;
+        _next = _size > 0 ? _rand.nextInt(_size) : 0;
+        _cidr = cidr;
+        _gateway = gateway;
+
+        if (gateway != null) {
+            set(NetUtils.ip2Long(gateway));
+        }
+        for (String ip : usedIps) {
+            set(NetUtils.ip2Long(ip));
+        }
+        expireReservations(System.currentTimeMillis());
+        for (Long ip : _reserved.keySet()) {
+            set(ip);
+        }
+    }
+
+    /**
+     * @return the next free address after the last one handed out, -1 when there is none.
+     */
+    public synchronized long allocate() {
+        if (_free == 0) {
+            return -1;
+        }
+        int index = nextClearBit(_next);
+        if (index < 0) {
+            index = nextClearBit(0);
+        }
+        _next = index + 1 < _size ? index + 1 : 0;
+
+        long ip = _first + index;
+        set(ip);
+        reserve(ip, System.currentTimeMillis());
+        return ip;
+    }
+
+    /**
+     * Takes an address the caller has found to be free in the DB.
+     *
+     * @return false when the bitmap handed the address out recently.
+     */
+    public synchronized boolean take(long ip) {
+        long now = System.currentTimeMillis();
+        expireReservations(now);
+        if (_reserved.containsKey(ip)) {
+            return false;
+        }
+        set(ip);
+        reserve(ip, now);
+        return true;
+    }
+
+    /**
+     * Marks an address found in use, without reserving it.
+     */
+    public synchronized void markUsed(long ip) {
+        set(ip);
+    }
+
+    public synchronized void release(long ip) {
+        if (_gateway != null && ip == NetUtils.ip2Long(_gateway)) {
+            return;
+        }
+        _reserved.remove(ip);
+        long index = ip - _first;
+        if (index >= 0 && index < _size && (_words[(int)(index >>> 6)] & (1L << index)) != 0) {
+            _words[(int)(index >>> 6)] &= ~(1L << index);
+            _free++;
+        }
+    }
+
+    public synchronized int getFreeCount() {
+        return _free;
+    }
+
+    private void set(long ip) {
+        long index = ip - _first;
+        if (index >= 0 && index < _size && (_words[(int)(index >>> 6)] & (1L << index)) == 0) {
+            _words[(int)(index >>> 6)] |= 1L << index;
+            _free--;
+        }
+    }
+
+    private int nextClearBit(int from) {
+        int word = from >>> 6;
+        if (word >= _words.length) {
+            return -1;
+        }
+        long bits = ~_words[word] & (-1L << from);
+        while (bits == 0) {
+            if (++word == _words.length) {
+                return -1;
+            }
+            bits = ~_words[word];
+        }
+        int index = (word << 6) + Long.numberOfTrailingZeros(bits);
+        return index < _size ? index : -1;
+    }
+
+    private void reserve(long ip, long now) {
+        // kept in the order they were reserved
+        _reserved.remove(ip);
+        _reserved.put(ip, now);
+        expireReservations(now);
+    }
+
+    private void expireReservations(long now) {
+        Iterator<Map.Entry<Long, Long>> it = _reserved.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue() < _reservationTimeout) {
+                break;
+            }
+            it.remove();
+        }
+    }
+}
@@ -26,6 +26,7 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 
@@ -36,6 +37,7 @@ import org.apache.cloudstack.engine.orchestration.service.NetworkOrchestrationSe
 import org.apache.cloudstack.framework.config.ConfigKey;
 import org.apache.cloudstack.framework.config.Configurable;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.lb.dao.ApplicationLoadBalancerRuleDao;
 import org.apache.cloudstack.region.PortableIp;
 import org.apache.cloudstack.region.PortableIpDao;
 import org.apache.cloudstack.region.PortableIpVO;
@@ -275,6 +277,8 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
     PortableIpDao _portableIpDao;
     @Inject
     VpcDao _vpcDao;
+    @Inject
+    ApplicationLoadBalancerRuleDao _appLbRuleDao;
     SearchBuilder<IPAddressVO> AssignIpAddressSearch;
     SearchBuilder<IPAddressVO> AssignIpAddressFromPodVlanSearch;
 
@@ -1661,34 +1665,85 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
             return null;
         }
 
-        Set<Long> availableIps = _networkModel.getAvailableIps(network, requestedIp);
-
-        if (availableIps == null || availableIps.isEmpty()) {
-            s_logger.debug("There are no free ips in the  network " + network);
-            return null;
-        }
-
-        Long[] array = availableIps.toArray(new Long[availableIps.size()]);
+        GuestIpAddressBitmap bitmap = getGuestIpAddressBitmap(network);
 
         if (requestedIp != null) {
             // check that requested ip has the same cidr
             String[] cidr = network.getCidr().split("/");
-            boolean isSameCidr = NetUtils.sameSubnetCIDR(requestedIp, NetUtils.long2Ip(array[0]), Integer.parseInt(cidr[1]));
+            boolean isSameCidr = NetUtils.sameSubnetCIDR(requestedIp, cidr[0], Integer.parseInt(cidr[1]));
             if (!isSameCidr) {
                 s_logger.warn("Requested ip address " + requestedIp + " doesn't belong to the network " + network + " cidr");
                 return null;
             } else if (NetUtils.IsIpEqualToNetworkOrBroadCastIp(requestedIp, cidr[0], Integer.parseInt(cidr[1]))) {
                 s_logger.warn("Requested ip address " + requestedIp + " is equal to the to the network/broadcast ip of the network" + network);
                 return null;
+            } else if (isGuestIpAddressInUse(network, requestedIp) || !bitmap.take(NetUtils.ip2Long(requestedIp))) {
+                s_logger.warn("Requested ip address " + requestedIp + " is already in use in network" + network);
+                return null;
             }
             return requestedIp;
         }
 
-        return NetUtils.long2Ip(array[_rand.nextInt(array.length)]);
+        boolean rebuilt = false;
+        while (true) {
+            long ip = bitmap.allocate();
+            if (ip == -1) {
+                if (rebuilt) {
+                    s_logger.debug("There are no free ips in the  network " + network);
+                    return null;
+                }
+                // addresses released without going through the bitmap are found in the DB
+                bitmap.reset(network.getCidr(), network.getGateway(), _networkModel.getUsedIpsInNetwork(network));
+                rebuilt = true;
+                continue;
+            }
+
+            // another management server may have handed the address out
+            String guestIp = NetUtils.long2Ip(ip);
+            if (!isGuestIpAddressInUse(network, guestIp)) {
+                return guestIp;
+            }
+            bitmap.markUsed(ip);
+        }
+    }
+
+    @Override
+    public void releaseGuestIpAddress(Network network, String ip) {
+        GuestIpAddressBitmap bitmap = _guestIpBitmaps.get(network.getId());
+        if (bitmap != null && ip != null && NetUtils.isValidIp(ip)) {
+            bitmap.release(NetUtils.ip2Long(ip));
+        }
+    }
+
+    private GuestIpAddressBitmap getGuestIpAddressBitmap(Network network) {
+        GuestIpAddressBitmap bitmap = _guestIpBitmaps.get(network.getId());
+        if (bitmap == null) {
+            bitmap = new GuestIpAddressBitmap(GUEST_IP_RESERVATION_TIMEOUT, _rand);
+            GuestIpAddressBitmap existing = _guestIpBitmaps.putIfAbsent(network.getId(), bitmap);
+            if (existing != null) {
+                bitmap = existing;
+            }
+        }
+        synchronized (bitmap) {
+            // built from the DB the first time the network is used on this management server
+            if (!bitmap.isBuiltFor(network.getCidr(), network.getGateway())) {
+                bitmap.reset(network.getCidr(), network.getGateway(), _networkModel.getUsedIpsInNetwork(network));
+            }
+        }
+        return bitmap;
+    }
+
+    private boolean isGuestIpAddressInUse(Network network, String ip) {
+        return _nicDao.findByIp4AddressAndNetworkId(ip, network.getId()) != null || _nicSecondaryIpDao.findByIp4AddressAndNetworkId(ip, network.getId()) != null
+                || _appLbRuleDao.countBySourceIp(new Ip(ip), network.getId()) > 0;
     }
 
     Random _rand = new Random(System.currentTimeMillis());
 
+    // addresses handed out are kept in the bitmap for this long before the DB has to know them
+    private static final long GUEST_IP_RESERVATION_TIMEOUT = 10 * 60 * 1000L;
+    private final ConcurrentHashMap<Long, GuestIpAddressBitmap> _guestIpBitmaps = new ConcurrentHashMap<Long, GuestIpAddressBitmap>();
+
     @Override
     public boolean applyStaticNats(List<? extends StaticNat> staticNats, boolean continueOnError, boolean forRevoke) throws ResourceUnavailableException {
         if (staticNats == null || staticNats.size() == 0) {
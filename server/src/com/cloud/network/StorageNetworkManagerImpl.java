@@ -46,6 +46,7 @@ import com.cloud.network.dao.NetworkVO;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.QueryBuilder;
+import com.cloud.utils.db.QueryCache;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.db.TransactionCallbackNoReturn;
@@ -119,6 +120,7 @@ public class StorageNetworkManagerImpl extends ManagerBase implements StorageNet
                 stmt_update.executeUpdate();
             }
         }
+        QueryCache.invalidateAfterCommit("data_center");
     }
 
     @Override
@@ -85,6 +85,7 @@ public class SecurityGroupListener implements Listener {
         for (Answer ans : answers) {
             if (ans instanceof SecurityGroupRuleAnswer) {
                 SecurityGroupRuleAnswer ruleAnswer = (SecurityGroupRuleAnswer)ans;
+                _securityGroupManager.handleRulesetAnswer(ruleAnswer);
                 if (ans.getResult()) {
                     s_logger.debug("Successfully programmed rule " + ruleAnswer.toString() + " into host " + agentId);
                     _workDao.updateStep(ruleAnswer.getVmId(), ruleAnswer.getLogSequenceNumber(), Step.Done);
@@ -94,7 +95,11 @@ public class SecurityGroupListener implements Listener {
                     ;
                     s_logger.debug("Failed to program rule " + ruleAnswer.toString() + " into host " + agentId + " due to " + ruleAnswer.getDetails() +
                         " and updated  jobs");
-                    if (ruleAnswer.getReason() == FailureReason.CANNOT_BRIDGE_FIREWALL) {
+                    if (ruleAnswer.getReason() == FailureReason.OUT_OF_SYNC) {
+                        s_logger.debug("Sending the complete security group rules for vm " + ruleAnswer.getVmId() + " since host " + agentId
+                            + " did not program the ruleset the change was based on");
+                        affectedVms.add(ruleAnswer.getVmId());
+                    } else if (ruleAnswer.getReason() == FailureReason.CANNOT_BRIDGE_FIREWALL) {
                         s_logger.debug("Not retrying security group rules for vm " + ruleAnswer.getVmId() + " on failure since host " + agentId +
                             " cannot do bridge firewalling");
                     } else if (ruleAnswer.getReason() == FailureReason.PROGRAMMING_FAILED) {
@@ -58,6 +58,7 @@ import org.apache.log4j.Logger;
 import com.cloud.agent.AgentManager;
 import com.cloud.agent.api.NetworkRulesSystemVmCommand;
 import com.cloud.agent.api.NetworkRulesVmSecondaryIpCommand;
+import com.cloud.agent.api.SecurityGroupRuleAnswer;
 import com.cloud.agent.api.SecurityGroupRulesCmd;
 import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
 import com.cloud.agent.manager.Commands;
@@ -522,6 +523,12 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
                 egressResult.toArray(new IpPortAndProto[egressResult.size()]), secIps);
     }
 
+    /**
+     * Called with the answers of the hosts to the ruleset updates.
+     */
+    protected void handleRulesetAnswer(SecurityGroupRuleAnswer answer) {
+    }
+
     protected void handleVmStopped(VMInstanceVO vm) {
         if (vm.getType() != VirtualMachine.Type.User || !isVmSecurityGroupEnabled(vm.getId()))
             return;
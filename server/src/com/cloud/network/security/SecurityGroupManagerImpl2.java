@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.network.security;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -30,11 +31,17 @@ import javax.naming.ConfigurationException;
 
 import org.apache.cloudstack.managed.context.ManagedContext;
 
+import com.cloud.agent.api.SecurityGroupRuleAnswer;
+import com.cloud.agent.api.SecurityGroupRuleAnswer.FailureReason;
 import com.cloud.agent.api.SecurityGroupRulesCmd;
+import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
+import com.cloud.agent.api.SecurityGroupRulesDeltaCmd;
 import com.cloud.agent.manager.Commands;
 import com.cloud.configuration.Config;
 import com.cloud.exception.AgentUnavailableException;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
 import com.cloud.network.security.SecurityGroupWork.Step;
+import com.cloud.network.security.SecurityGroupRulesetTracker.VmRuleset;
 import com.cloud.network.security.SecurityRule.SecurityRuleType;
 import com.cloud.uservm.UserVm;
 import com.cloud.utils.NumbersUtil;
@@ -42,6 +49,7 @@ import com.cloud.utils.Profiler;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.vm.NicVO;
+import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine.State;
 
 /**
@@ -60,6 +68,10 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
     WorkerThread[] _workers;
     private Set<Long> _disabledVms = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
     private boolean _schedulerDisabled = false;
+    SecurityGroupMembershipIndex _membershipIndex;
+    SecurityGroupRulesetTracker _rulesetTracker = new SecurityGroupRulesetTracker();
+    // send the rulesets to the KVM hosts as changes of the ruleset they programmed
+    boolean _incrementalUpdates = true;
 
     protected class WorkerThread extends Thread {
         public WorkerThread(String name) {
@@ -192,11 +204,27 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
                 SecurityGroupRulesCmd cmd =
                     generateRulesetCmd(vm.getInstanceName(), vm.getPrivateIpAddress(), vm.getPrivateMacAddress(), vm.getId(), null, work.getLogsequenceNumber(),
                         ingressRules, egressRules, nicSecIps);
+                String signature = cmd.getSignature();
+                if (_incrementalUpdates && vm.getHypervisorType() == HypervisorType.KVM) {
+                    VmRuleset base = _rulesetTracker.getBase(userVmId, agentId, work.getLogsequenceNumber());
+                    // the egress chain ends differently when there is no egress rule
+                    if (base != null && base.getRuleset().getEgress().isEmpty() == egressRules.isEmpty()) {
+                        Map<PortAndProto, Set<String>> baseIngress = base.getRuleset().getIngress();
+                        Map<PortAndProto, Set<String>> baseEgress = base.getRuleset().getEgress();
+                        cmd =
+                            new SecurityGroupRulesDeltaCmd(vm.getPrivateIpAddress(), vm.getPrivateMacAddress(), vm.getInstanceName(), vm.getId(), signature,
+                                base.getSeqNum(), work.getLogsequenceNumber(), toIpPortAndProtos(SecurityGroupRulesetTracker.subtract(ingressRules, baseIngress)),
+                                toIpPortAndProtos(SecurityGroupRulesetTracker.subtract(egressRules, baseEgress)),
+                                toIpPortAndProtos(SecurityGroupRulesetTracker.subtract(baseIngress, ingressRules)),
+                                toIpPortAndProtos(SecurityGroupRulesetTracker.subtract(baseEgress, egressRules)), nicSecIps);
+                    }
+                    _rulesetTracker.sent(userVmId, agentId, work.getLogsequenceNumber(), signature, ingressRules, egressRules);
+                }
                 cmd.setMsId(_serverId);
                 if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("SecurityGroupManager v2: sending ruleset update for vm " + vm.getInstanceName() + ":ingress num rules=" +
-                        cmd.getIngressRuleSet().length + ":egress num rules=" + cmd.getEgressRuleSet().length + " num cidrs=" + cmd.getTotalNumCidrs() + " sig=" +
-                        cmd.getSignature());
+                    s_logger.debug("SecurityGroupManager v2: sending " + (cmd instanceof SecurityGroupRulesDeltaCmd ? "incremental " : "") + "ruleset update for vm "
+                        + vm.getInstanceName() + ":ingress num rules=" + cmd.getIngressRuleSet().length + ":egress num rules=" + cmd.getEgressRuleSet().length
+                        + " num cidrs=" + cmd.getTotalNumCidrs() + " sig=" + cmd.getSignature());
                 }
                 Commands cmds = new Commands(cmd);
                 try {
@@ -245,14 +273,10 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
                     cidrs = new TreeSet<String>(new CidrComparator());
                 }
                 if (rule.getAllowedNetworkId() != null) {
-                    List<SecurityGroupVMMapVO> allowedInstances = _securityGroupVMMapDao.listBySecurityGroup(rule.getAllowedNetworkId(), State.Running);
-                    for (SecurityGroupVMMapVO ngmapVO : allowedInstances) {
-                        //here, we differ from the superclass: instead of creating N more queries to the
-                        //nics table, we use what's already there in the VO since the listBySecurityGroup already
-                        //did a join with the nics table
-                        String cidr = ngmapVO.getGuestIpAddress() + "/32";
-                        cidrs.add(cidr);
-                    }
+                    //here, we differ from the superclass: instead of creating N more queries to the
+                    //nics table, we use the ips the index read with the join on the nics table, once
+                    //for all the members of the group
+                    cidrs.addAll(_membershipIndex.getRunningMemberCidrs(rule.getAllowedNetworkId()));
                 } else if (rule.getAllowedSourceIpCidr() != null) {
                     cidrs.add(rule.getAllowedSourceIpCidr());
                 }
@@ -265,6 +289,64 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
         return allowed;
     }
 
+    private static IpPortAndProto[] toIpPortAndProtos(Map<PortAndProto, Set<String>> rules) {
+        List<IpPortAndProto> result = new ArrayList<IpPortAndProto>(rules.size());
+        for (Map.Entry<PortAndProto, Set<String>> entry : rules.entrySet()) {
+            PortAndProto pAp = entry.getKey();
+            Set<String> cidrs = entry.getValue();
+            result.add(new IpPortAndProto(pAp.getProto(), pAp.getStartPort(), pAp.getEndPort(), cidrs.toArray(new String[cidrs.size()])));
+        }
+        return result.toArray(new IpPortAndProto[result.size()]);
+    }
+
+    @Override
+    protected void handleRulesetAnswer(SecurityGroupRuleAnswer answer) {
+        if (answer.getResult()) {
+            _rulesetTracker.applied(answer.getVmId(), answer.getLogSequenceNumber());
+        } else {
+            // the ruleset programmed is unknown, the next one is sent complete
+            _rulesetTracker.forget(answer.getVmId());
+            if (answer.getReason() == FailureReason.OUT_OF_SYNC && s_logger.isDebugEnabled()) {
+                s_logger.debug("SecurityGroupManager v2: ruleset of vm " + answer.getVmId() + " is out of sync, sending it complete");
+            }
+        }
+    }
+
+    @Override
+    public void handleVmStarted(VMInstanceVO vm) {
+        _membershipIndex.invalidate();
+        _rulesetTracker.forget(vm.getId());
+        super.handleVmStarted(vm);
+    }
+
+    @Override
+    protected void handleVmStopped(VMInstanceVO vm) {
+        _membershipIndex.invalidate();
+        _rulesetTracker.forget(vm.getId());
+        super.handleVmStopped(vm);
+    }
+
+    @Override
+    public boolean addInstanceToGroups(Long userVmId, List<Long> groups) {
+        boolean result = super.addInstanceToGroups(userVmId, groups);
+        _membershipIndex.invalidate();
+        return result;
+    }
+
+    @Override
+    public void removeInstanceFromGroups(long userVmId) {
+        super.removeInstanceFromGroups(userVmId);
+        _membershipIndex.invalidate();
+    }
+
+    public SecurityGroupMembershipIndex getMembershipIndex() {
+        return _membershipIndex;
+    }
+
+    public SecurityGroupRulesetTracker getRulesetTracker() {
+        return _rulesetTracker;
+    }
+
     public int getQueueSize() {
         return _workQueue.size();
     }
@@ -284,6 +366,10 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
         boolean result = super.configure(name, params);
         Map<String, String> configs = _configDao.getConfiguration("Network", params);
         int bufferLength = NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkPerAgentMaxQueueSize.key()), 100);
+        int membershipTtl = NumbersUtil.parseInt(configs.get(Config.SecurityGroupMembershipCacheTtl.key()), 300);
+        _membershipIndex = new SecurityGroupMembershipIndex(_securityGroupVMMapDao, membershipTtl);
+        String value = configs.get(Config.SecurityGroupIncrementalUpdates.key());
+        _incrementalUpdates = value == null || Boolean.parseBoolean(value);
         _workTracker = new SecurityGroupWorkTracker(_agentMgr, _answerListener, bufferLength);
         _answerListener.setWorkDispatcher(_workTracker);
         return result;
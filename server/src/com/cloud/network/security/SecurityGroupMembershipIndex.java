@@ -0,0 +1,124 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloud.network.security.dao.SecurityGroupVMMapDao;
+import com.cloud.utils.db.QueryCache;
+import com.cloud.vm.VirtualMachine.State;
+
+/**
+ * Keeps the cidrs of the running members of the security groups, so the
+ * rulesets of the members of a group are computed from one read of the group
+ * instead of one per member.
+ *
+ * The members are kept with the version of the security_group_vm_map table
+ * they were read at, and are only served while the version is the same.  The
+ * version is bumped after a member starts, stops, joins or leaves a group,
+ * here or on a peer management server, as the writes to the table are
+ * broadcast to the peers like those of the DAO query caches.  A group read
+ * concurrently with a change is stamped with the version before the change,
+ * so it is never served afterwards.
+ */
+public class SecurityGroupMembershipIndex {
+    public static final String MEMBERSHIP_TABLE = "security_group_vm_map";
+
+    private final SecurityGroupVMMapDao _securityGroupVMMapDao;
+    private final long _timeToLive;
+    private final ConcurrentHashMap<Long, Members> _groups = new ConcurrentHashMap<Long, Members>();
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+
+    private static class Members {
+        final long version;
+        final long loaded;
+        final Set<String> cidrs;
+
+        Members(long version, long loaded, Set<String> cidrs) {
+            this.version = version;
+            this.loaded = loaded;
+            this.cidrs = cidrs;
+        }
+    }
+
+    /**
+     * @param timeToLive seconds the members of a group are kept, as a bound on
+     * the changes that do not go through the security group manager.
+     */
+    public SecurityGroupMembershipIndex(SecurityGroupVMMapDao securityGroupVMMapDao, int timeToLive) {
+        _securityGroupVMMapDao = securityGroupVMMapDao;
+        _timeToLive = timeToLive * 1000L;
+        QueryCache.addTable(MEMBERSHIP_TABLE);
+    }
+
+    /**
+     * @return the cidrs of the running members of the group, not to be modified.
+     */
+    public Set<String> getRunningMemberCidrs(long securityGroupId) {
+        long now = System.currentTimeMillis();
+        // taken before the read, a change made meanwhile leaves the members stale
+        long version = QueryCache.getVersion(MEMBERSHIP_TABLE);
+        Members members = _groups.get(securityGroupId);
+        if (members != null && members.version == version && now - members.loaded < _timeToLive) {
+            _hits.incrementAndGet();
+            return members.cidrs;
+        }
+
+        _misses.incrementAndGet();
+        Set<String> cidrs = new HashSet<String>();
+        List<SecurityGroupVMMapVO> allowedInstances = _securityGroupVMMapDao.listBySecurityGroup(securityGroupId, State.Running);
+        for (SecurityGroupVMMapVO ngmapVO : allowedInstances) {
+            if (ngmapVO.getGuestIpAddress() != null) {
+                cidrs.add(ngmapVO.getGuestIpAddress() + "/32");
+            }
+        }
+        Members loaded = new Members(version, now, Collections.unmodifiableSet(cidrs));
+        // never replaces members read at a later version
+        if (members == null) {
+            _groups.putIfAbsent(securityGroupId, loaded);
+        } else if (members.version <= version) {
+            _groups.replace(securityGroupId, members, loaded);
+        }
+        return loaded.cidrs;
+    }
+
+    /**
+     * Invalidates the members of the groups here and on the peers, once the
+     * current transaction commits.
+     */
+    public void invalidate() {
+        QueryCache.invalidateAfterCommit(MEMBERSHIP_TABLE);
+    }
+
+    public int size() {
+        return _groups.size();
+    }
+
+    public long getHits() {
+        return _hits.get();
+    }
+
+    public long getMisses() {
+        return _misses.get();
+    }
+}
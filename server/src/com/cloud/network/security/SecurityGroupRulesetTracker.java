@@ -0,0 +1,174 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.cloud.network.security.SecurityGroupManagerImpl.CidrComparator;
+import com.cloud.network.security.SecurityGroupManagerImpl.PortAndProto;
+
+/**
+ * Tracks the ruleset last sent to every vm and the one its host acknowledged,
+ * so that the next ruleset can be sent as a change of the acknowledged one.
+ *
+ * The members of a group mostly have the same ruleset, the rulesets are shared
+ * between the vms by signature.
+ */
+public class SecurityGroupRulesetTracker {
+
+    public static class Ruleset {
+        private final String _signature;
+        private final Map<PortAndProto, Set<String>> _ingress;
+        private final Map<PortAndProto, Set<String>> _egress;
+        private int _references;
+
+        Ruleset(String signature, Map<PortAndProto, Set<String>> ingress, Map<PortAndProto, Set<String>> egress) {
+            _signature = signature;
+            _ingress = ingress;
+            _egress = egress;
+        }
+
+        public String getSignature() {
+            return _signature;
+        }
+
+        public Map<PortAndProto, Set<String>> getIngress() {
+            return _ingress;
+        }
+
+        public Map<PortAndProto, Set<String>> getEgress() {
+            return _egress;
+        }
+    }
+
+    public static class VmRuleset {
+        private final long _hostId;
+        private final long _seqNum;
+        private final Ruleset _ruleset;
+
+        VmRuleset(long hostId, long seqNum, Ruleset ruleset) {
+            _hostId = hostId;
+            _seqNum = seqNum;
+            _ruleset = ruleset;
+        }
+
+        public long getHostId() {
+            return _hostId;
+        }
+
+        public long getSeqNum() {
+            return _seqNum;
+        }
+
+        public Ruleset getRuleset() {
+            return _ruleset;
+        }
+    }
+
+    private final Map<Long, VmRuleset> _sent = new HashMap<Long, VmRuleset>();
+    private final Map<Long, VmRuleset> _applied = new HashMap<Long, VmRuleset>();
+    private final Map<String, Ruleset> _rulesets = new HashMap<String, Ruleset>();
+
+    /**
+     * Records the ruleset sent to the host of the vm.
+     */
+    public synchronized void sent(long vmId, long hostId, long seqNum, String signature, Map<PortAndProto, Set<String>> ingress,
+            Map<PortAndProto, Set<String>> egress) {
+        Ruleset ruleset = _rulesets.get(signature);
+        if (ruleset == null) {
+            ruleset = new Ruleset(signature, ingress, egress);
+            _rulesets.put(signature, ruleset);
+        }
+        ruleset._references++;
+        release(_sent.put(vmId, new VmRuleset(hostId, seqNum, ruleset)));
+    }
+
+    /**
+     * Records that the host of the vm programmed the ruleset of the sequence number.
+     */
+    public synchronized void applied(long vmId, long seqNum) {
+        VmRuleset sent = _sent.get(vmId);
+        if (sent == null || sent._seqNum != seqNum) {
+            return;
+        }
+        VmRuleset applied = _applied.get(vmId);
+        if (applied == sent) {
+            return;
+        }
+        sent._ruleset._references++;
+        release(_applied.put(vmId, sent));
+    }
+
+    /**
+     * Forgets the rulesets of the vm, its next ruleset is sent complete.
+     */
+    public synchronized void forget(long vmId) {
+        release(_sent.remove(vmId));
+        release(_applied.remove(vmId));
+    }
+
+    /**
+     * @return the ruleset a change to the sequence number can be based on, or
+     * null if the ruleset is to be sent complete: the host of the vm changed,
+     * the sequence numbers diverged or the last ruleset sent is not acknowledged.
+     */
+    public synchronized VmRuleset getBase(long vmId, long hostId, long seqNum) {
+        VmRuleset applied = _applied.get(vmId);
+        if (applied == null || applied._hostId != hostId || applied._seqNum >= seqNum) {
+            return null;
+        }
+        VmRuleset sent = _sent.get(vmId);
+        if (sent != null && sent != applied) {
+            return null;
+        }
+        return applied;
+    }
+
+    public synchronized int getRulesetCount() {
+        return _rulesets.size();
+    }
+
+    private void release(VmRuleset vmRuleset) {
+        if (vmRuleset != null && --vmRuleset._ruleset._references == 0) {
+            _rulesets.remove(vmRuleset._ruleset._signature);
+        }
+    }
+
+    /**
+     * @return the rules of from that are not in to.
+     */
+    public static Map<PortAndProto, Set<String>> subtract(Map<PortAndProto, Set<String>> from, Map<PortAndProto, Set<String>> to) {
+        Map<PortAndProto, Set<String>> result = new TreeMap<PortAndProto, Set<String>>();
+        for (Map.Entry<PortAndProto, Set<String>> entry : from.entrySet()) {
+            Set<String> others = to.get(entry.getKey());
+            Set<String> cidrs = new TreeSet<String>(new CidrComparator());
+            for (String cidr : entry.getValue()) {
+                if (others == null || !others.contains(cidr)) {
+                    cidrs.add(cidr);
+                }
+            }
+            if (!cidrs.isEmpty()) {
+                result.put(entry.getKey(), cidrs);
+            }
+        }
+        return result;
+    }
+}
@@ -64,6 +64,7 @@ import com.cloud.storage.dao.VMTemplateDao;
 import com.cloud.storage.dao.VMTemplateZoneDao;
 import com.cloud.storage.dao.VolumeDao;
 import com.cloud.template.VirtualMachineTemplate;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.Transaction;
@@ -274,6 +275,13 @@ public class ImageStoreUploadMonitorImpl extends ManagerBase implements ImageSto
             }
         }
 
+        private String getUploadRate(UploadStatusAnswer answer) {
+            if (answer.getUploadedBytes() <= 0) {
+                return "";
+            }
+            return ", received " + NumbersUtil.toReadableSize(answer.getUploadedBytes()) + " at " + NumbersUtil.toReadableSize(answer.getUploadRate()) + "/s";
+        }
+
         private void handleVolumeStatusResponse(final UploadStatusAnswer answer, final VolumeVO volume, final VolumeDataStoreVO volumeDataStore) {
             final StateMachine2<Volume.State, Event, Volume> stateMachine = Volume.State.getStateMachine();
             Transaction.execute(new TransactionCallbackNoReturn() {
@@ -300,10 +308,13 @@ public class ImageStoreUploadMonitorImpl extends ManagerBase implements ImageSto
                             _resourceLimitMgr.incrementResourceCount(volume.getAccountId(), Resource.ResourceType.secondary_storage, answer.getVirtualSize());
 
                             if (s_logger.isDebugEnabled()) {
-                                s_logger.debug("Volume " + tmpVolume.getUuid() + " uploaded successfully");
+                                s_logger.debug("Volume " + tmpVolume.getUuid() + " uploaded successfully" + getUploadRate(answer));
                             }
                             break;
                         case IN_PROGRESS:
+                            if (s_logger.isDebugEnabled()) {
+                                s_logger.debug("Volume " + tmpVolume.getUuid() + " upload is " + answer.getDownloadPercent() + "% done" + getUploadRate(answer));
+                            }
                             if (tmpVolume.getState() == Volume.State.NotUploaded) {
                                 tmpVolumeDataStore.setDownloadState(VMTemplateStorageResourceAssoc.Status.DOWNLOAD_IN_PROGRESS);
                                 tmpVolumeDataStore.setDownloadPercent(answer.getDownloadPercent());
@@ -381,10 +392,13 @@ public class ImageStoreUploadMonitorImpl extends ManagerBase implements ImageSto
                             _resourceLimitMgr.incrementResourceCount(template.getAccountId(), Resource.ResourceType.secondary_storage, answer.getVirtualSize());
 
                             if (s_logger.isDebugEnabled()) {
-                                s_logger.debug("Template " + tmpTemplate.getUuid() + " uploaded successfully");
+                                s_logger.debug("Template " + tmpTemplate.getUuid() + " uploaded successfully" + getUploadRate(answer));
                             }
                             break;
                         case IN_PROGRESS:
+                            if (s_logger.isDebugEnabled()) {
+                                s_logger.debug("Template " + tmpTemplate.getUuid() + " upload is " + answer.getDownloadPercent() + "% done" + getUploadRate(answer));
+                            }
                             if (tmpTemplate.getState() == VirtualMachineTemplate.State.NotUploaded) {
                                 tmpTemplateDataStore.setDownloadState(VMTemplateStorageResourceAssoc.Status.DOWNLOAD_IN_PROGRESS);
                                 stateMachine.transitTo(tmpTemplate, VirtualMachineTemplate.Event.UploadRequested, null, _templateDao);
@@ -238,6 +238,8 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
     @Inject
     private DomainDao _domainDao;
     @Inject
+    private DomainTreeIndex _domainTree;
+    @Inject
     private ProjectAccountDao _projectAccountDao;
     @Inject
     private IPAddressDao _ipAddressDao;
@@ -560,11 +562,11 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
         }
 
         for (Map.Entry<Long, List<ControlledEntity>> domain : domains.entrySet()) {
+            Domain d = _domainMgr.getDomain(domain.getKey());
+            if (d == null || d.getRemoved() != null) {
+                throw new PermissionDeniedException("Domain is not found.", caller, domain.getValue());
+            }
             for (SecurityChecker checker : _securityCheckers) {
-                Domain d = _domainMgr.getDomain(domain.getKey());
-                if (d == null || d.getRemoved() != null) {
-                    throw new PermissionDeniedException("Domain is not found.", caller, domain.getValue());
-                }
                 try {
                     checker.checkAccess(caller, d);
                 } catch (PermissionDeniedException e) {
@@ -2397,9 +2399,8 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
         if (!permittedAccounts.isEmpty()) {
             sc.setParameters("accountIdIN", permittedAccounts.toArray());
         } else if (domainId != null) {
-            DomainVO domain = _domainDao.findById(domainId);
             if (isRecursive) {
-                sc.setJoinParameters("domainSearch", "path", domain.getPath() + "%");
+                sc.setJoinParameters("domainSearch", "path", _domainTree.getDomainPath(domainId) + "%");
             } else {
                 sc.setParameters("domainId", domainId);
             }
@@ -2617,9 +2618,8 @@ public class AccountManagerImpl extends ManagerBase implements AccountManager, M
         if (!permittedAccounts.isEmpty()) {
             sc.setParameters("accountIdIN", permittedAccounts.toArray());
         } else if (domainId != null) {
-            DomainVO domain = _domainDao.findById(domainId);
             if (isRecursive) {
-                sc.setParameters("domainPath", domain.getPath() + "%");
+                sc.setParameters("domainPath", _domainTree.getDomainPath(domainId) + "%");
             } else {
                 sc.setParameters("domainId", domainId);
             }
@@ -50,4 +50,6 @@ public interface DomainManager extends DomainService {
 
     public static final String MESSAGE_ADD_DOMAIN_EVENT = "Message.AddDomain.Event";
     public static final String MESSAGE_REMOVE_DOMAIN_EVENT = "Message.RemoveDomain.Event";
+    // published with the domain id after a domain is renamed or deleted
+    public static final String MESSAGE_UPDATE_DOMAIN_EVENT = "Message.UpdateDomain.Event";
 }
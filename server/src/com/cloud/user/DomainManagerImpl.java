@@ -310,6 +310,7 @@ public class DomainManagerImpl extends ManagerBase implements DomainManager, Dom
 
             cleanupDomainOfferings(domain.getId());
             CallContext.current().putContextParameter(Domain.class, domain.getUuid());
+            _messageBus.publish(_name, MESSAGE_UPDATE_DOMAIN_EVENT, PublishScope.LOCAL, domain.getId());
             return true;
         } catch (Exception ex) {
             s_logger.error("Exception deleting domain with id " + domain.getId(), ex);
@@ -640,6 +641,8 @@ public class DomainManagerImpl extends ManagerBase implements DomainManager, Dom
             }
         });
 
+        _messageBus.publish(_name, MESSAGE_UPDATE_DOMAIN_EVENT, PublishScope.LOCAL, domainId);
+
         return _domainDao.findById(domainId);
 
     }
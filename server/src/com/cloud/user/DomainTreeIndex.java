@@ -0,0 +1,293 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.user;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.naming.ConfigurationException;
+
+import org.apache.log4j.Logger;
+import org.springframework.stereotype.Component;
+
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
+
+import com.cloud.domain.Domain;
+import com.cloud.domain.DomainVO;
+import com.cloud.domain.dao.DomainDao;
+import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.db.QueryCache;
+
+/**
+ * Keeps the domain hierarchy in memory, for the access checks and the domain scoped listings.
+ *
+ * The domains are numbered in the order of a depth first walk of the tree, so that a domain is a
+ * child of another if its number falls within the range of the numbers of the other's subtree.
+ *
+ * The tree is rebuilt on the next lookup after a domain is created, updated or removed on this
+ * management server, as told on the MessageBus, or after the version of the domain table changed,
+ * which the query cache also bumps for the writes of the other management servers. A domain that
+ * is not in the tree yet is looked up in the DB.
+ */
+@Component
+public class DomainTreeIndex extends ManagerBase {
+    private static final Logger s_logger = Logger.getLogger(DomainTreeIndex.class);
+
+    private static final String DOMAIN_TABLE = "domain";
+
+    @Inject
+    DomainDao _domainDao;
+    @Inject
+    MessageBus _messageBus;
+
+    // bumped by the domain events of the MessageBus
+    private final AtomicLong _generation = new AtomicLong();
+    private volatile Tree _tree;
+
+    private static class Node {
+        final long id;
+        final Long parentId;
+        final String path;
+        // the domain and its ancestors, up to ROOT
+        List<Long> parentIds;
+        // numbers of the domain and of the last domain of its subtree in the walk
+        int first;
+        int last;
+
+        Node(final long id, final Long parentId, final String path) {
+            this.id = id;
+            this.parentId = parentId;
+            this.path = path;
+        }
+    }
+
+    private static class Tree {
+        final long version;
+        final long generation;
+        final Map<Long, Node> nodes;
+        // the domain ids in the order of the walk
+        final long[] walk;
+
+        Tree(final long version, final long generation, final Map<Long, Node> nodes, final long[] walk) {
+            this.version = version;
+            this.generation = generation;
+            this.nodes = nodes;
+            this.walk = walk;
+        }
+    }
+
+    @Override
+    public boolean configure(final String name, final Map<String, Object> params) throws ConfigurationException {
+        // versions the domain table, the domain DAO does not cache its searches
+        QueryCache.addTable(DOMAIN_TABLE);
+        final MessageSubscriber invalidator = new MessageSubscriber() {
+            @Override
+            public void onPublishMessage(final String senderAddress, final String subject, final Object args) {
+                if (QueryCache.MESSAGE_TABLE_INVALIDATED_EVENT.equals(subject) && !DOMAIN_TABLE.equals(args)) {
+                    return;
+                }
+                _generation.incrementAndGet();
+            }
+        };
+        _messageBus.subscribe(DomainManager.MESSAGE_ADD_DOMAIN_EVENT, invalidator);
+        _messageBus.subscribe(DomainManager.MESSAGE_UPDATE_DOMAIN_EVENT, invalidator);
+        _messageBus.subscribe(DomainManager.MESSAGE_REMOVE_DOMAIN_EVENT, invalidator);
+        _messageBus.subscribe(QueryCache.MESSAGE_TABLE_INVALIDATED_EVENT, invalidator);
+
+        return super.configure(name, params);
+    }
+
+    /**
+     * @return true if the child domain is the parent domain or one of its sub-domains, like
+     * DomainDao.isChildDomain().
+     */
+    public boolean isChildDomain(final Long parentId, final Long childId) {
+        if (parentId == null || childId == null) {
+            return false;
+        }
+        if (parentId.equals(childId)) {
+            return true;
+        }
+
+        final Tree tree = getTree();
+        final Node parent = tree.nodes.get(parentId);
+        final Node child = tree.nodes.get(childId);
+        if (parent == null || child == null) {
+            return _domainDao.isChildDomain(parentId, childId);
+        }
+        return parent.first <= child.first && child.first <= parent.last;
+    }
+
+    /**
+     * @return the path of the domain, null if there is no such domain.
+     */
+    public String getDomainPath(final long domainId) {
+        final Node node = getTree().nodes.get(domainId);
+        if (node != null) {
+            return node.path;
+        }
+        final DomainVO domain = _domainDao.findById(domainId);
+        return domain != null ? domain.getPath() : null;
+    }
+
+    /**
+     * @return the domain and its ancestors up to ROOT, empty if there is no such domain.
+     */
+    public List<Long> getDomainParentIds(final long domainId) {
+        final Node node = getTree().nodes.get(domainId);
+        if (node != null) {
+            return node.parentIds;
+        }
+
+        final List<Long> parentIds = new ArrayList<Long>();
+        DomainVO domain = _domainDao.findById(domainId);
+        while (domain != null) {
+            parentIds.add(domain.getId());
+            domain = domain.getParent() != null ? _domainDao.findById(domain.getParent()) : null;
+        }
+        return parentIds;
+    }
+
+    /**
+     * @return the sub-domains of the domain at every level, without the domain itself.
+     */
+    public List<Long> getDomainChildrenIds(final long domainId) {
+        final Tree tree = getTree();
+        final Node node = tree.nodes.get(domainId);
+        if (node == null) {
+            final DomainVO domain = _domainDao.findById(domainId);
+            if (domain == null) {
+                return Collections.emptyList();
+            }
+            final List<Long> childrenIds = new ArrayList<Long>();
+            for (final DomainVO child : _domainDao.findAllChildren(domain.getPath(), domain.getId())) {
+                childrenIds.add(child.getId());
+            }
+            return childrenIds;
+        }
+
+        final List<Long> childrenIds = new ArrayList<Long>(node.last - node.first);
+        for (int i = node.first + 1; i <= node.last; i++) {
+            childrenIds.add(tree.walk[i]);
+        }
+        return childrenIds;
+    }
+
+    private Tree getTree() {
+        final Tree tree = _tree;
+        if (tree != null && tree.version == QueryCache.getVersion(DOMAIN_TABLE) && tree.generation == _generation.get()) {
+            return tree;
+        }
+        return rebuild();
+    }
+
+    private synchronized Tree rebuild() {
+        // taken before the domains are read, a change made meanwhile rebuilds the tree again
+        final long version = QueryCache.getVersion(DOMAIN_TABLE);
+        final long generation = _generation.get();
+        final Tree current = _tree;
+        if (current != null && current.version == version && current.generation == generation) {
+            return current;
+        }
+
+        final Tree tree = build(version, generation, _domainDao.listAll());
+        _tree = tree;
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Rebuilt the domain tree index with " + tree.walk.length + " domains");
+        }
+        return tree;
+    }
+
+    static Tree build(final long version, final long generation, final Collection<? extends Domain> domains) {
+        final Map<Long, Node> nodes = new HashMap<Long, Node>(domains.size() * 2);
+        for (final Domain domain : domains) {
+            nodes.put(domain.getId(), new Node(domain.getId(), domain.getParent(), domain.getPath()));
+        }
+
+        final List<Node> roots = new ArrayList<Node>();
+        final Map<Long, List<Node>> children = new HashMap<Long, List<Node>>();
+        for (final Node node : nodes.values()) {
+            if (node.parentId == null || !nodes.containsKey(node.parentId)) {
+                roots.add(node);
+            } else {
+                List<Node> siblings = children.get(node.parentId);
+                if (siblings == null) {
+                    siblings = new ArrayList<Node>();
+                    children.put(node.parentId, siblings);
+                }
+                siblings.add(node);
+            }
+        }
+
+        // depth first, each entry of the stack is a domain and the number of its children walked
+        final long[] walk = new long[nodes.size()];
+        int count = 0;
+        final List<Node> stack = new ArrayList<Node>();
+        final List<Integer> walked = new ArrayList<Integer>();
+        for (final Node root : roots) {
+            root.parentIds = Collections.singletonList(root.id);
+            root.first = count;
+            walk[count++] = root.id;
+            stack.add(root);
+            walked.add(0);
+            while (!stack.isEmpty()) {
+                final int top = stack.size() - 1;
+                final Node node = stack.get(top);
+                final List<Node> nodeChildren = children.get(node.id);
+                final int next = walked.get(top);
+                if (nodeChildren == null || next == nodeChildren.size()) {
+                    node.last = count - 1;
+                    stack.remove(top);
+                    walked.remove(top);
+                    continue;
+                }
+                walked.set(top, next + 1);
+
+                final Node child = nodeChildren.get(next);
+                final List<Long> parentIds = new ArrayList<Long>(node.parentIds.size() + 1);
+                parentIds.add(child.id);
+                parentIds.addAll(node.parentIds);
+                child.parentIds = Collections.unmodifiableList(parentIds);
+                child.first = count;
+                walk[count++] = child.id;
+                stack.add(child);
+                walked.add(0);
+            }
+        }
+
+        if (count < walk.length) {
+            // domains in a loop of parents are left to the DB
+            s_logger.warn("The parents of " + (walk.length - count) + " domains do not lead to a root domain");
+            final Iterator<Node> it = nodes.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().parentIds == null) {
+                    it.remove();
+                }
+            }
+        }
+        return new Tree(version, generation, nodes, Arrays.copyOf(walk, count));
+    }
+}
@@ -0,0 +1,247 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api.response;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import org.apache.cloudstack.api.response.ListResponse;
+import org.apache.cloudstack.api.response.NicResponse;
+import org.apache.cloudstack.api.response.ResourceTagResponse;
+import org.apache.cloudstack.api.response.UserVmResponse;
+import org.apache.cloudstack.context.CallContext;
+
+import com.cloud.api.ApiDBUtils;
+import com.cloud.server.ManagementServer;
+import com.cloud.user.Account;
+import com.cloud.user.AccountVO;
+import com.cloud.user.User;
+import com.cloud.user.UserVO;
+import com.cloud.utils.HttpUtils;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class ApiResponseSerializerTest {
+    private static final Logger s_logger = Logger.getLogger(ApiResponseSerializerTest.class);
+
+    /**
+     * Counts what is written without keeping it, like the servlet output does.
+     */
+    private static class CountingWriter extends Writer {
+        long count = 0;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Account account = new AccountVO("testaccount", 1, "networkdomain", Account.ACCOUNT_TYPE_ADMIN, UUID.randomUUID().toString());
+        UserVO user = new UserVO(1, "testuser", "password", "firstname", "lastName", "email", "timezone", UUID.randomUUID().toString(), User.Source.UNKNOWN);
+        CallContext.register(user, account);
+
+        ManagementServer managementServer = Mockito.mock(ManagementServer.class);
+        Mockito.when(managementServer.getVersion()).thenReturn("LATEST-AND-GREATEST");
+        Field smsField = ApiDBUtils.class.getDeclaredField("s_ms");
+        smsField.setAccessible(true);
+        smsField.set(null, managementServer);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        CallContext.unregister();
+        Field smsField = ApiDBUtils.class.getDeclaredField("s_ms");
+        smsField.setAccessible(true);
+        smsField.set(null, null);
+    }
+
+    private static ListResponse<UserVmResponse> listVirtualMachines(int vms) {
+        List<UserVmResponse> responses = new ArrayList<UserVmResponse>();
+        Date created = new Date();
+        for (int i = 0; i < vms; i++) {
+            UserVmResponse vm = new UserVmResponse();
+            vm.setObjectName("virtualmachine");
+            vm.setId(UUID.randomUUID().toString());
+            vm.setName("i-2-" + i + "-VM");
+            vm.setDisplayName("web <" + i + "> & 'db'");
+            vm.setAccountName("admin");
+            vm.setDomainName("ROOT");
+            vm.setCreated(created);
+            vm.setState("Running");
+            vm.setZoneId(UUID.randomUUID().toString());
+            vm.setZoneName("zone1");
+            vm.setTemplateId(UUID.randomUUID().toString());
+            vm.setTemplateName("CentOS 6.5 (64-bit)");
+            vm.setServiceOfferingId(UUID.randomUUID().toString());
+            vm.setServiceOfferingName("Small Instance");
+            vm.setCpuNumber(1);
+            vm.setCpuSpeed(500);
+            vm.setMemory(512);
+            vm.setHypervisor("KVM");
+            vm.setInstanceName("i-2-" + i + "-VM");
+            for (int n = 0; n < 2; n++) {
+                NicResponse nic = new NicResponse();
+                nic.setObjectName("nic");
+                nic.setId(UUID.randomUUID().toString());
+                nic.setNetmask("255.255.0.0");
+                nic.setGateway("10.1.0.1");
+                nic.setType("Shared");
+                nic.setIsDefault(n == 0);
+                nic.setMacAddress("06:00:00:00:" + String.format("%02x:%02x", n, i % 256));
+                vm.addNic(nic);
+            }
+            ResourceTagResponse tag = new ResourceTagResponse();
+            tag.setObjectName("tag");
+            tag.setKey("role");
+            tag.setValue("web=" + i);
+            tag.setResourceType("UserVm");
+            vm.addTag(tag);
+            responses.add(vm);
+        }
+
+        ListResponse<UserVmResponse> response = new ListResponse<UserVmResponse>();
+        response.setResponses(responses, vms);
+        response.setResponseName("listvirtualmachinesresponse");
+        return response;
+    }
+
+    private static String write(ListResponse<UserVmResponse> response, String responseType) throws IOException {
+        StringWriter out = new StringWriter();
+        ApiResponseSerializer.writeSerializedString(response, responseType, out);
+        return out.toString();
+    }
+
+    @Test
+    public void testJsonList() throws Exception {
+        ListResponse<UserVmResponse> response = listVirtualMachines(3);
+        String json = write(response, HttpUtils.RESPONSE_TYPE_JSON);
+        Assert.assertEquals(ApiResponseSerializer.toSerializedString(response, HttpUtils.RESPONSE_TYPE_JSON), json);
+
+        JsonObject list = new JsonParser().parse(json).getAsJsonObject().getAsJsonObject("listvirtualmachinesresponse");
+        Assert.assertEquals(3, list.get("count").getAsInt());
+        Assert.assertEquals(3, list.getAsJsonArray("virtualmachine").size());
+        JsonObject vm = list.getAsJsonArray("virtualmachine").get(1).getAsJsonObject();
+        // written as they are, like the unescaped responses before
+        Assert.assertEquals("web <1> & 'db'", vm.get("displayname").getAsString());
+        Assert.assertTrue(json.contains("\"displayname\":\"web <1> & 'db'\""));
+        Assert.assertEquals(2, vm.getAsJsonArray("nic").size());
+        Assert.assertEquals("web=1", vm.getAsJsonArray("tags").get(0).getAsJsonObject().get("value").getAsString());
+    }
+
+    @Test
+    public void testEmptyJsonList() throws Exception {
+        ListResponse<UserVmResponse> response = new ListResponse<UserVmResponse>();
+        response.setResponses(new ArrayList<UserVmResponse>(), 0);
+        response.setResponseName("listvirtualmachinesresponse");
+        Assert.assertEquals("{\"listvirtualmachinesresponse\":{}}", write(response, HttpUtils.RESPONSE_TYPE_JSON));
+    }
+
+    @Test
+    public void testXmlList() throws Exception {
+        ListResponse<UserVmResponse> response = listVirtualMachines(3);
+        String xml = write(response, HttpUtils.RESPONSE_TYPE_XML);
+        Assert.assertEquals(ApiResponseSerializer.toSerializedString(response, HttpUtils.RESPONSE_TYPE_XML), xml);
+
+        Assert.assertTrue(xml.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?><listvirtualmachinesresponse cloud-stack-version=\"LATEST-AND-GREATEST\"><count>3</count><virtualmachine>"));
+        Assert.assertTrue(xml.endsWith("</virtualmachine></listvirtualmachinesresponse>"));
+        Assert.assertEquals(3, xml.split("<virtualmachine>", -1).length - 1);
+        Assert.assertEquals(6, xml.split("<nic>", -1).length - 1);
+        Assert.assertTrue(xml.contains("<displayname>web &lt;1&gt; &amp; &apos;db&apos;</displayname>"));
+    }
+
+    private static void registerCaller(short accountType) {
+        CallContext.unregister();
+        Account account = new AccountVO("testaccount", 1, "networkdomain", accountType, UUID.randomUUID().toString());
+        UserVO user = new UserVO(1, "testuser", "password", "firstname", "lastName", "email", "timezone", UUID.randomUUID().toString(), User.Source.UNKNOWN);
+        CallContext.register(user, account);
+    }
+
+    @Test
+    public void testAdminOnlyFieldsFollowTheCaller() throws Exception {
+        ListResponse<UserVmResponse> response = listVirtualMachines(1);
+        response.getResponses().get(0).setDisplayVm(true);
+
+        for (int round = 0; round < 2; round++) {
+            registerCaller(Account.ACCOUNT_TYPE_ADMIN);
+            Assert.assertTrue(write(response, HttpUtils.RESPONSE_TYPE_JSON).contains("\"displayvm\":true"));
+            Assert.assertTrue(write(response, HttpUtils.RESPONSE_TYPE_XML).contains("<displayvm>true</displayvm>"));
+
+            // after an admin has listed the VMs
+            registerCaller(Account.ACCOUNT_TYPE_NORMAL);
+            Assert.assertFalse(write(response, HttpUtils.RESPONSE_TYPE_JSON).contains("displayvm"));
+            Assert.assertFalse(write(response, HttpUtils.RESPONSE_TYPE_XML).contains("displayvm"));
+        }
+    }
+
+    /**
+     * Serializes a synthetic listVirtualMachines response the way the servlet receives it, and the
+     * way it was before, to compare their cost. The timings are logged, only the output is checked.
+     */
+    @Test
+    public void testSerializeLargeList() throws Exception {
+        ListResponse<UserVmResponse> response = listVirtualMachines(10000);
+        for (String responseType : new String[] {HttpUtils.RESPONSE_TYPE_JSON, HttpUtils.RESPONSE_TYPE_XML}) {
+            long streamedNanos = Long.MAX_VALUE;
+            long stringNanos = Long.MAX_VALUE;
+            long streamed = 0;
+            long string = 0;
+            // the first rounds warm up the serializer
+            for (int round = 0; round < 5; round++) {
+                long start = System.nanoTime();
+                CountingWriter out = new CountingWriter();
+                ApiResponseSerializer.writeSerializedString(response, responseType, out);
+                streamedNanos = Math.min(streamedNanos, System.nanoTime() - start);
+                streamed = out.count;
+
+                start = System.nanoTime();
+                string = ApiResponseSerializer.toSerializedString(response, responseType).length();
+                stringNanos = Math.min(stringNanos, System.nanoTime() - start);
+            }
+            Assert.assertEquals(string, streamed);
+            s_logger.info("Serialized 10000 VMs as " + responseType + ", " + streamed + " characters: streamed in " + streamedNanos / 1000000 + " ms, as a String in " +
+                    stringNanos / 1000000 + " ms");
+        }
+    }
+}
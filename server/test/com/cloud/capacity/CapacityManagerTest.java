@@ -17,20 +17,36 @@
 
 package com.cloud.capacity;
 
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyFloat;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.framework.config.impl.ConfigDepotImpl;
+import org.apache.cloudstack.framework.config.impl.ConfigurationVO;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.cloud.capacity.HostCapacityIndexImpl.ClusterSettings;
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.dc.ClusterDetailsDao;
 import com.cloud.dc.ClusterDetailsVO;
+import com.cloud.host.HostVO;
+import com.cloud.host.dao.HostDao;
 import com.cloud.service.ServiceOfferingVO;
 import com.cloud.service.dao.ServiceOfferingDao;
+import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.vm.VirtualMachine;
 
 public class CapacityManagerTest {
@@ -44,6 +60,12 @@ public class CapacityManagerTest {
     private VirtualMachine vm = mock(VirtualMachine.class);
     private ClusterDetailsVO clusterDetailCpu = mock(ClusterDetailsVO.class);
     private ClusterDetailsVO clusterDetailRam = mock(ClusterDetailsVO.class);
+    private HostDao hostDao = mock(HostDao.class);
+    private HostVO host = mock(HostVO.class);
+    private TransactionLegacy txn;
+
+    private static final long VM_CPU = 1000;
+    private static final long VM_RAM = 512L * 1024 * 1024;
 
     public CapacityManagerImpl setUp() {
         CapacityManagerImpl capMgr = new CapacityManagerImpl();
@@ -53,6 +75,43 @@ public class CapacityManagerTest {
         return capMgr;
     }
 
+    private CapacityManagerImpl setUpVmCapacity(boolean optimistic) {
+        CapacityManagerImpl capMgr = setUp();
+        capMgr._hostDao = hostDao;
+        when(vm.getId()).thenReturn(3L);
+        when(vm.getHostId()).thenReturn(1L);
+        when(vm.getServiceOfferingId()).thenReturn(2L);
+        when(hostDao.findById(1L)).thenReturn(host);
+        when(host.getClusterId()).thenReturn(10L);
+        when(ClusterDetailsDao.findDetail(10L, "cpuOvercommitRatio")).thenReturn(clusterDetailCpu);
+        when(ClusterDetailsDao.findDetail(10L, "memoryOvercommitRatio")).thenReturn(clusterDetailRam);
+        when(clusterDetailCpu.getValue()).thenReturn("2");
+        when(clusterDetailRam.getValue()).thenReturn("1.5");
+        when(SOfferingDao.findById(3L, 2L)).thenReturn(svo);
+        when(svo.getCpu()).thenReturn(2);
+        when(svo.getSpeed()).thenReturn(500);
+        when(svo.getRamSize()).thenReturn(512);
+        when(CDao.findByHostIdType(1L, Capacity.CAPACITY_TYPE_CPU)).thenReturn(cvoCpu);
+        when(CDao.findByHostIdType(1L, Capacity.CAPACITY_TYPE_MEMORY)).thenReturn(cvoRam);
+
+        String key = CapacityManager.OptimisticCapacityReservation.key();
+        ConfigurationDao configDao = mock(ConfigurationDao.class);
+        when(configDao.findById(key)).thenReturn(new ConfigurationVO("Advanced", "DEFAULT", "CapacityManager", key, String.valueOf(optimistic), null));
+        ConfigDepotImpl configDepot = mock(ConfigDepotImpl.class);
+        when(configDepot.global()).thenReturn(configDao);
+        ConfigKey.init(configDepot);
+        txn = TransactionLegacy.open("CapacityManagerTest");
+        return capMgr;
+    }
+
+    @After
+    public void tearDown() {
+        ConfigKey.init(null);
+        if (txn != null) {
+            txn.close();
+        }
+    }
+
     @Test
     public void allocateCapacityTest() {
         capMgr = setUp();
@@ -76,4 +135,111 @@ public class CapacityManagerTest {
         Assert.assertTrue(hasCapacity);
 
     }
+
+    @Test
+    public void capacityIndexChangedOnlyAfterCommitTest() {
+        capMgr = setUp();
+        CapacityVO cpu = new CapacityVO(1L, 1L, 1L, 10L, 0, 8000, Capacity.CAPACITY_TYPE_CPU);
+        cpu.setCapacityState(CapacityState.Enabled);
+        CapacityVO memory = new CapacityVO(1L, 1L, 1L, 10L, 0, 1024L * 1024 * 1024, Capacity.CAPACITY_TYPE_MEMORY);
+        memory.setCapacityState(CapacityState.Enabled);
+        capMgr._capacityIndex.reload(capMgr._capacityIndex.mark(), Arrays.asList(cpu, memory), Arrays.asList(new ClusterSettings(10, 1f, 1f, 0.85f, 0.85f)),
+            Arrays.asList(1L));
+
+        TransactionLegacy txn = TransactionLegacy.open("capacityIndexChangedOnlyAfterCommitTest");
+        try {
+            txn.start();
+            capMgr.processPrepareMaintenaceEventAfter(1L);
+            Assert.assertEquals(Arrays.asList(10L), capMgr._capacityIndex.listClustersInZoneOrPodByHostCapacities(1L, 1000, 1024, true));
+            txn.rollback();
+            Assert.assertEquals(Arrays.asList(10L), capMgr._capacityIndex.listClustersInZoneOrPodByHostCapacities(1L, 1000, 1024, true));
+
+            txn.start();
+            capMgr.processPrepareMaintenaceEventAfter(1L);
+            Assert.assertEquals(Arrays.asList(10L), capMgr._capacityIndex.listClustersInZoneOrPodByHostCapacities(1L, 1000, 1024, true));
+            txn.commit();
+            Assert.assertEquals(Collections.<Long> emptyList(), capMgr._capacityIndex.listClustersInZoneOrPodByHostCapacities(1L, 1000, 1024, true));
+        } finally {
+            txn.close();
+        }
+    }
+
+    @Test
+    public void allocateVmCapacityFromReservedTest() {
+        capMgr = setUpVmCapacity(true);
+        when(CDao.allocateHostCapacity(1L, VM_CPU, VM_RAM, true, false, 2f, 1.5f)).thenReturn(true);
+
+        capMgr.allocateVmCapacity(vm, true);
+        verify(CDao).allocateHostCapacity(1L, VM_CPU, VM_RAM, true, false, 2f, 1.5f);
+        verify(CDao, never()).allocateHostCapacity(anyLong(), anyLong(), anyLong(), eq(false), anyBoolean(), anyFloat(), anyFloat());
+        verify(CDao, never()).lockRow(anyLong(), anyBoolean());
+    }
+
+    @Test
+    public void allocateVmCapacityWithinOvercommitTest() {
+        capMgr = setUpVmCapacity(true);
+        when(CDao.allocateHostCapacity(1L, VM_CPU, VM_RAM, true, false, 2f, 1.5f)).thenReturn(false);
+        when(CDao.allocateHostCapacity(1L, VM_CPU, VM_RAM, false, true, 2f, 1.5f)).thenReturn(true);
+
+        // not enough reserved capacity left on the last host, it is taken from the free capacity
+        capMgr.allocateVmCapacity(vm, true);
+        verify(CDao).allocateHostCapacity(1L, VM_CPU, VM_RAM, true, false, 2f, 1.5f);
+        verify(CDao).allocateHostCapacity(1L, VM_CPU, VM_RAM, false, true, 2f, 1.5f);
+        verify(CDao, never()).allocateHostCapacity(1L, VM_CPU, VM_RAM, false, false, 2f, 1.5f);
+    }
+
+    @Test
+    public void allocateVmCapacityOverOvercommitTest() {
+        capMgr = setUpVmCapacity(true);
+        when(CDao.allocateHostCapacity(1L, VM_CPU, VM_RAM, false, true, 2f, 1.5f)).thenReturn(false);
+        when(CDao.allocateHostCapacity(1L, VM_CPU, VM_RAM, false, false, 2f, 1.5f)).thenReturn(true);
+
+        // the vm is already starting on the host, so its capacity is counted even when the host is full
+        capMgr.allocateVmCapacity(vm, false);
+        verify(CDao, never()).allocateHostCapacity(anyLong(), anyLong(), anyLong(), eq(true), anyBoolean(), anyFloat(), anyFloat());
+        verify(CDao).allocateHostCapacity(1L, VM_CPU, VM_RAM, false, true, 2f, 1.5f);
+        verify(CDao).allocateHostCapacity(1L, VM_CPU, VM_RAM, false, false, 2f, 1.5f);
+    }
+
+    @Test
+    public void releaseVmCapacityOptimisticTest() {
+        capMgr = setUpVmCapacity(true);
+        when(CDao.releaseHostCapacity(1L, VM_CPU, VM_RAM, false, true, 2f, 1.5f)).thenReturn(true);
+
+        Assert.assertTrue(capMgr.releaseVmCapacity(vm, false, true, 1L));
+        verify(CDao).releaseHostCapacity(1L, VM_CPU, VM_RAM, false, true, 2f, 1.5f);
+        verify(CDao, never()).lockRow(anyLong(), anyBoolean());
+    }
+
+    @Test
+    public void allocateVmCapacityLockingTest() {
+        capMgr = setUpVmCapacity(false);
+        CapacityVO cpu = new CapacityVO(1L, 1L, 1L, 10L, 500, 4000, Capacity.CAPACITY_TYPE_CPU);
+        cpu.setReservedCapacity(VM_CPU);
+        CapacityVO memory = new CapacityVO(1L, 1L, 1L, 10L, 1024L * 1024 * 1024, 8L * 1024 * 1024 * 1024, Capacity.CAPACITY_TYPE_MEMORY);
+        memory.setReservedCapacity(VM_RAM);
+        when(CDao.lockRow(anyLong(), anyBoolean())).thenReturn(cpu, memory);
+
+        capMgr.allocateVmCapacity(vm, true);
+        verify(CDao, never()).allocateHostCapacity(anyLong(), anyLong(), anyLong(), anyBoolean(), anyBoolean(), anyFloat(), anyFloat());
+        Assert.assertEquals(500 + VM_CPU, cpu.getUsedCapacity());
+        Assert.assertEquals(0, cpu.getReservedCapacity());
+        Assert.assertEquals(1024L * 1024 * 1024 + VM_RAM, memory.getUsedCapacity());
+        Assert.assertEquals(0, memory.getReservedCapacity());
+    }
+
+    @Test
+    public void releaseVmCapacityLockingTest() {
+        capMgr = setUpVmCapacity(false);
+        CapacityVO cpu = new CapacityVO(1L, 1L, 1L, 10L, 500 + VM_CPU, 4000, Capacity.CAPACITY_TYPE_CPU);
+        CapacityVO memory = new CapacityVO(1L, 1L, 1L, 10L, VM_RAM, 8L * 1024 * 1024 * 1024, Capacity.CAPACITY_TYPE_MEMORY);
+        when(CDao.lockRow(anyLong(), anyBoolean())).thenReturn(cpu, memory);
+
+        Assert.assertTrue(capMgr.releaseVmCapacity(vm, false, true, 1L));
+        verify(CDao, never()).releaseHostCapacity(anyLong(), anyLong(), anyLong(), anyBoolean(), anyBoolean(), anyFloat(), anyFloat());
+        Assert.assertEquals(500, cpu.getUsedCapacity());
+        Assert.assertEquals(VM_CPU, cpu.getReservedCapacity());
+        Assert.assertEquals(0, memory.getUsedCapacity());
+        Assert.assertEquals(VM_RAM, memory.getReservedCapacity());
+    }
 }
@@ -0,0 +1,140 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+
+package com.cloud.capacity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.capacity.HostCapacityIndexImpl.ClusterSettings;
+import com.cloud.utils.Pair;
+
+public class HostCapacityIndexImplTest {
+    private static final long ZONE = 1;
+    private static final long GB = 1024L * 1024L * 1024L;
+
+    private HostCapacityIndexImpl _index;
+    private List<CapacityVO> _capacities;
+
+    @Before
+    public void setUp() {
+        _index = new HostCapacityIndexImpl();
+        _capacities = new ArrayList<CapacityVO>();
+        // cluster 10 in pod 1: half used
+        addHost(1, 1, 10, 8000, 4000, 16 * GB, 8 * GB);
+        // cluster 11 in pod 1: nearly full
+        addHost(2, 1, 11, 8000, 7000, 16 * GB, 15 * GB);
+        // cluster 12 in pod 2: empty, cpu overcommitted twice
+        addHost(3, 2, 12, 8000, 0, 16 * GB, 0);
+        List<ClusterSettings> clusters = Arrays.asList(new ClusterSettings(10, 1f, 1f, 0.85f, 0.85f), new ClusterSettings(11, 1f, 1f, 0.85f, 0.85f),
+            new ClusterSettings(12, 2f, 1f, 0.85f, 0.85f));
+        _index.reload(_index.mark(), _capacities, clusters, Arrays.asList(1L, 2L));
+    }
+
+    private void addHost(long hostId, long podId, long clusterId, long totalCpu, long usedCpu, long totalMemory, long usedMemory) {
+        CapacityVO cpu = new CapacityVO(hostId, ZONE, podId, clusterId, usedCpu, totalCpu, Capacity.CAPACITY_TYPE_CPU);
+        cpu.setCapacityState(CapacityState.Enabled);
+        CapacityVO memory = new CapacityVO(hostId, ZONE, podId, clusterId, usedMemory, totalMemory, Capacity.CAPACITY_TYPE_MEMORY);
+        memory.setCapacityState(CapacityState.Enabled);
+        _capacities.add(cpu);
+        _capacities.add(memory);
+    }
+
+    private static List<Long> sorted(List<Long> ids) {
+        List<Long> result = new ArrayList<Long>(ids);
+        Collections.sort(result);
+        return result;
+    }
+
+    @Test
+    public void testClustersWithEnoughCapacity() {
+        assertTrue(_index.isLoaded());
+        assertEquals(Arrays.asList(10L, 11L, 12L), sorted(_index.listClustersInZoneOrPodByHostCapacities(ZONE, 1000, GB, true)));
+        assertEquals(Arrays.asList(10L, 12L), sorted(_index.listClustersInZoneOrPodByHostCapacities(ZONE, 2000, GB, true)));
+        assertEquals(Arrays.asList(10L), sorted(_index.listClustersInZoneOrPodByHostCapacities(1, 2000, GB, false)));
+        assertEquals(Arrays.asList(12L), sorted(_index.listClustersInZoneOrPodByHostCapacities(ZONE, 10000, GB, true)));
+        assertEquals(Collections.<Long> emptyList(), _index.listClustersInZoneOrPodByHostCapacities(ZONE, 10000, 20 * GB, true));
+        assertEquals(Collections.<Long> emptyList(), _index.listClustersInZoneOrPodByHostCapacities(2, 1000, GB, true));
+    }
+
+    @Test
+    public void testOrderByAggregateCapacity() {
+        Pair<List<Long>, Map<Long, Double>> clusters = _index.orderClustersByAggregateCapacity(ZONE, Capacity.CAPACITY_TYPE_CPU, true);
+        assertEquals(Arrays.asList(12L, 10L, 11L), clusters.first());
+        assertEquals(0.5, clusters.second().get(10L), 0.0001);
+        assertEquals(0.875, clusters.second().get(11L), 0.0001);
+
+        Pair<List<Long>, Map<Long, Double>> pods = _index.orderPodsByAggregateCapacity(ZONE, Capacity.CAPACITY_TYPE_MEMORY);
+        assertEquals(Arrays.asList(2L, 1L), pods.first());
+        assertEquals(23.0 / 32, pods.second().get(1L), 0.0001);
+        assertEquals(Arrays.asList(1L, 2L), sorted(_index.listPodsByHostCapacities(ZONE, 1000, GB)));
+        assertEquals(Arrays.asList(2L), _index.listPodsByHostCapacities(ZONE, 9000, GB));
+    }
+
+    @Test
+    public void testClustersCrossingThreshold() {
+        assertEquals(Arrays.asList(11L), _index.listClustersCrossingThreshold(Capacity.CAPACITY_TYPE_CPU, ZONE, 0));
+        assertEquals(Arrays.asList(10L, 11L), sorted(_index.listClustersCrossingThreshold(Capacity.CAPACITY_TYPE_CPU, ZONE, 3000)));
+
+        // disabled hosts do not count
+        CapacityVO cpu = _capacities.get(2);
+        cpu.setCapacityState(CapacityState.Disabled);
+        _index.update(cpu);
+        assertEquals(Collections.<Long> emptyList(), _index.listClustersCrossingThreshold(Capacity.CAPACITY_TYPE_CPU, ZONE, 0));
+    }
+
+    @Test
+    public void testUpdatesSurviveReloadOfOlderSnapshot() {
+        long mark = _index.mark();
+        List<CapacityVO> snapshot = new ArrayList<CapacityVO>();
+        for (CapacityVO capacity : _capacities) {
+            snapshot.add(new CapacityVO(capacity.getHostOrPoolId(), ZONE, capacity.getPodId(), capacity.getClusterId(), capacity.getUsedCapacity(),
+                capacity.getTotalCapacity(), capacity.getCapacityType()));
+        }
+
+        // host 3 allocates while the snapshot is being read
+        CapacityVO cpu = new CapacityVO(3L, ZONE, 2L, 12L, 16000, 8000, Capacity.CAPACITY_TYPE_CPU);
+        _index.update(cpu);
+        // host 1 is gone from the snapshot
+        snapshot.remove(0);
+        snapshot.remove(0);
+
+        List<ClusterSettings> clusters = Arrays.asList(new ClusterSettings(10, 1f, 1f, 0.85f, 0.85f), new ClusterSettings(11, 1f, 1f, 0.85f, 0.85f),
+            new ClusterSettings(12, 2f, 1f, 0.85f, 0.85f));
+        _index.reload(mark, snapshot, clusters, Arrays.asList(1L, 2L));
+
+        Pair<List<Long>, Map<Long, Double>> result = _index.orderClustersByAggregateCapacity(ZONE, Capacity.CAPACITY_TYPE_CPU, true);
+        assertEquals(Arrays.asList(11L, 12L), result.first());
+        assertEquals(1.0, result.second().get(12L), 0.0001);
+        assertFalse(_index.listClustersInZoneOrPodByHostCapacities(1, 100, 1, false).contains(10L));
+
+        _index.removeHost(2);
+        assertEquals(Arrays.asList(12L), _index.orderClustersByAggregateCapacity(ZONE, Capacity.CAPACITY_TYPE_CPU, true).first());
+        _index.clear();
+        assertFalse(_index.isLoaded());
+    }
+}
@@ -0,0 +1,161 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.cloud.utils.net.NetUtils;
+
+public class GuestIpAddressBitmapTest {
+    private static final long TIMEOUT = 10 * 60 * 1000L;
+
+    private static GuestIpAddressBitmap bitmap(String cidr, String gateway, String... usedIps) {
+        GuestIpAddressBitmap bitmap = new GuestIpAddressBitmap(TIMEOUT, new Random(1));
+        bitmap.reset(cidr, gateway, Arrays.asList(usedIps));
+        return bitmap;
+    }
+
+    @Test
+    public void testAllocatesEveryFreeAddressOnce() {
+        GuestIpAddressBitmap bitmap = bitmap("10.1.1.0/24", "10.1.1.1", "10.1.1.10", "10.1.1.254");
+        assertEquals(251, bitmap.getFreeCount());
+
+        Set<Long> allocated = new HashSet<Long>();
+        long ip;
+        while ((ip = bitmap.allocate()) != -1) {
+            assertTrue(NetUtils.long2Ip(ip), allocated.add(ip));
+        }
+        assertEquals(251, allocated.size());
+        assertEquals(0, bitmap.getFreeCount());
+        assertFalse(allocated.contains(NetUtils.ip2Long("10.1.1.0")));
+        assertFalse(allocated.contains(NetUtils.ip2Long("10.1.1.1")));
+        assertFalse(allocated.contains(NetUtils.ip2Long("10.1.1.10")));
+        assertFalse(allocated.contains(NetUtils.ip2Long("10.1.1.255")));
+
+        bitmap.release(NetUtils.ip2Long("10.1.1.77"));
+        // the gateway is never handed out
+        bitmap.release(NetUtils.ip2Long("10.1.1.1"));
+        assertEquals(NetUtils.ip2Long("10.1.1.77"), bitmap.allocate());
+        assertEquals(-1, bitmap.allocate());
+    }
+
+    @Test
+    public void testTinyCidrs() {
+        assertEquals(-1, bitmap("10.1.1.0/32", null).allocate());
+        assertEquals(-1, bitmap("10.1.1.0/31", null).allocate());
+        GuestIpAddressBitmap bitmap = bitmap("10.1.1.0/30", "10.1.1.1");
+        assertEquals(NetUtils.ip2Long("10.1.1.2"), bitmap.allocate());
+        assertEquals(-1, bitmap.allocate());
+    }
+
+    @Test
+    public void testResetKeepsRecentReservations() {
+        GuestIpAddressBitmap bitmap = bitmap("10.1.1.0/29", "10.1.1.1");
+        List<Long> allocated = new ArrayList<Long>();
+        for (int i = 0; i < 3; i++) {
+            allocated.add(bitmap.allocate());
+        }
+        // the NICs are not in the DB yet
+        bitmap.reset("10.1.1.0/29", "10.1.1.1", Collections.<String> emptyList());
+        assertEquals(2, bitmap.getFreeCount());
+        for (Long ip : allocated) {
+            assertFalse(bitmap.take(ip));
+        }
+
+        GuestIpAddressBitmap expiring = new GuestIpAddressBitmap(0, new Random(1));
+        expiring.reset("10.1.1.0/29", "10.1.1.1", Collections.<String> emptyList());
+        long ip = expiring.allocate();
+        expiring.reset("10.1.1.0/29", "10.1.1.1", Collections.<String> emptyList());
+        assertEquals(5, expiring.getFreeCount());
+        assertTrue(expiring.take(ip));
+    }
+
+    @Test
+    public void testIsBuiltFor() {
+        GuestIpAddressBitmap bitmap = bitmap("10.1.1.0/24", "10.1.1.1");
+        assertTrue(bitmap.isBuiltFor("10.1.1.0/24", "10.1.1.1"));
+        assertFalse(bitmap.isBuiltFor("10.1.1.0/25", "10.1.1.1"));
+        assertFalse(bitmap.isBuiltFor("10.1.1.0/24", null));
+    }
+
+    @Test
+    public void testConcurrentAllocationsNeverShareAnAddress() throws Exception {
+        final GuestIpAddressBitmap bitmap = bitmap("10.2.0.0/16", "10.2.0.1");
+        final int size = bitmap.getFreeCount();
+        final ConcurrentHashMap<Long, Integer> holders = new ConcurrentHashMap<Long, Integer>();
+        final CountDownLatch start = new CountDownLatch(1);
+        int threads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            results.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    Random rand = new Random(thread);
+                    List<Long> held = new ArrayList<Long>();
+                    start.await();
+                    while (true) {
+                        long ip = bitmap.allocate();
+                        if (ip == -1) {
+                            return null;
+                        }
+                        Integer holder = holders.putIfAbsent(ip, thread);
+                        if (holder != null) {
+                            return NetUtils.long2Ip(ip) + " handed out to " + holder + " and " + thread;
+                        }
+                        held.add(ip);
+                        // NICs come and go while the network fills up
+                        if (rand.nextInt(4) == 0) {
+                            long released = held.remove(rand.nextInt(held.size()));
+                            holders.remove(released);
+                            bitmap.release(released);
+                        }
+                    }
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<String> result : results) {
+            assertNull(result.get(60, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+
+        assertEquals(size, holders.size());
+        assertEquals(0, bitmap.getFreeCount());
+    }
+}
@@ -0,0 +1,122 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.network.security.dao.SecurityGroupVMMapDao;
+import com.cloud.utils.db.QueryCache;
+import com.cloud.vm.VirtualMachine.State;
+
+public class SecurityGroupMembershipIndexTest {
+    private static final long GROUP_ID = 1L;
+
+    private SecurityGroupVMMapDao _securityGroupVMMapDao;
+    private SecurityGroupMembershipIndex _index;
+    private List<SecurityGroupVMMapVO> _members;
+    private final AtomicInteger _reads = new AtomicInteger();
+    private Runnable _duringRead;
+
+    private static SecurityGroupVMMapVO member(long instanceId, String guestIp) {
+        SecurityGroupVMMapVO member = new SecurityGroupVMMapVO(GROUP_ID, instanceId);
+        try {
+            Field field = SecurityGroupVMMapVO.class.getDeclaredField("guestIpAddress");
+            field.setAccessible(true);
+            field.set(member, guestIp);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return member;
+    }
+
+    @Before
+    public void setUp() {
+        _members = new ArrayList<SecurityGroupVMMapVO>(Arrays.asList(member(10, "10.1.1.10")));
+        _securityGroupVMMapDao = Mockito.mock(SecurityGroupVMMapDao.class);
+        Mockito.when(_securityGroupVMMapDao.listBySecurityGroup(GROUP_ID, State.Running)).thenAnswer(new Answer<List<SecurityGroupVMMapVO>>() {
+            @Override
+            public List<SecurityGroupVMMapVO> answer(InvocationOnMock invocation) {
+                _reads.incrementAndGet();
+                List<SecurityGroupVMMapVO> members = new ArrayList<SecurityGroupVMMapVO>(_members);
+                if (_duringRead != null) {
+                    _duringRead.run();
+                    _duringRead = null;
+                }
+                return members;
+            }
+        });
+        _index = new SecurityGroupMembershipIndex(_securityGroupVMMapDao, 300);
+    }
+
+    private static HashSet<String> cidrs(String... cidrs) {
+        return new HashSet<String>(Arrays.asList(cidrs));
+    }
+
+    @Test
+    public void testMembersAreReadOnce() {
+        assertEquals(cidrs("10.1.1.10/32"), _index.getRunningMemberCidrs(GROUP_ID));
+        assertEquals(cidrs("10.1.1.10/32"), _index.getRunningMemberCidrs(GROUP_ID));
+        assertEquals(1, _reads.get());
+        assertEquals(1, _index.getHits());
+    }
+
+    @Test
+    public void testLocalChangeReloadsTheMembers() {
+        _index.getRunningMemberCidrs(GROUP_ID);
+        _members.add(member(11, "10.1.1.11"));
+        _index.invalidate();
+        assertEquals(cidrs("10.1.1.10/32", "10.1.1.11/32"), _index.getRunningMemberCidrs(GROUP_ID));
+        assertEquals(2, _reads.get());
+    }
+
+    @Test
+    public void testPeerChangeReloadsTheMembers() {
+        _index.getRunningMemberCidrs(GROUP_ID);
+        _members.clear();
+        // a vm of the group stopped on another management server
+        QueryCache.invalidateFromPeer("2/" + System.nanoTime(), SecurityGroupMembershipIndex.MEMBERSHIP_TABLE, 1);
+        assertEquals(cidrs(), _index.getRunningMemberCidrs(GROUP_ID));
+        assertEquals(2, _reads.get());
+    }
+
+    @Test
+    public void testChangeDuringReadIsNotKept() {
+        _duringRead = new Runnable() {
+            @Override
+            public void run() {
+                _members.add(member(11, "10.1.1.11"));
+                _index.invalidate();
+            }
+        };
+        assertEquals(cidrs("10.1.1.10/32"), _index.getRunningMemberCidrs(GROUP_ID));
+        assertEquals(cidrs("10.1.1.10/32", "10.1.1.11/32"), _index.getRunningMemberCidrs(GROUP_ID));
+        assertEquals(2, _reads.get());
+    }
+}
@@ -0,0 +1,102 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+import com.cloud.network.security.SecurityGroupManagerImpl.CidrComparator;
+import com.cloud.network.security.SecurityGroupManagerImpl.PortAndProto;
+import com.cloud.network.security.SecurityGroupRulesetTracker.VmRuleset;
+
+public class SecurityGroupRulesetTrackerTest extends TestCase {
+    private static final PortAndProto SSH = new PortAndProto("tcp", 22, 22);
+    private static final PortAndProto HTTP = new PortAndProto("tcp", 80, 80);
+
+    private static Map<PortAndProto, Set<String>> rules(PortAndProto portAndProto, String... cidrs) {
+        Map<PortAndProto, Set<String>> rules = new TreeMap<PortAndProto, Set<String>>();
+        Set<String> set = new TreeSet<String>(new CidrComparator());
+        set.addAll(Arrays.asList(cidrs));
+        rules.put(portAndProto, set);
+        return rules;
+    }
+
+    public void testChangesAreBasedOnTheAppliedRuleset() {
+        SecurityGroupRulesetTracker tracker = new SecurityGroupRulesetTracker();
+        Map<PortAndProto, Set<String>> egress = new TreeMap<PortAndProto, Set<String>>();
+        assertNull("nothing programmed yet", tracker.getBase(1, 10, 1));
+
+        tracker.sent(1, 10, 1, "sig1", rules(SSH, "10.1.1.1/32"), egress);
+        assertNull("not acknowledged", tracker.getBase(1, 10, 2));
+
+        tracker.applied(1, 1);
+        VmRuleset base = tracker.getBase(1, 10, 2);
+        assertNotNull(base);
+        assertEquals(1, base.getSeqNum());
+        assertEquals("sig1", base.getRuleset().getSignature());
+
+        assertNull("other host", tracker.getBase(1, 11, 2));
+        assertNull("sequence numbers diverged", tracker.getBase(1, 10, 1));
+
+        tracker.sent(1, 10, 2, "sig2", rules(SSH, "10.1.1.1/32", "10.1.1.2/32"), egress);
+        assertNull("change in flight", tracker.getBase(1, 10, 3));
+        tracker.applied(1, 1);
+        assertNull("stale acknowledgement", tracker.getBase(1, 10, 3));
+        tracker.applied(1, 2);
+        assertEquals(2, tracker.getBase(1, 10, 3).getSeqNum());
+
+        tracker.forget(1);
+        assertNull(tracker.getBase(1, 10, 3));
+        assertEquals(0, tracker.getRulesetCount());
+    }
+
+    public void testRulesetsAreShared() {
+        SecurityGroupRulesetTracker tracker = new SecurityGroupRulesetTracker();
+        Map<PortAndProto, Set<String>> egress = new TreeMap<PortAndProto, Set<String>>();
+        for (long vmId = 1; vmId <= 100; vmId++) {
+            tracker.sent(vmId, 10, 1, "sig", rules(SSH, "10.1.1.1/32"), egress);
+            tracker.applied(vmId, 1);
+        }
+        assertEquals(1, tracker.getRulesetCount());
+        assertSame(tracker.getBase(1, 10, 2).getRuleset(), tracker.getBase(100, 10, 2).getRuleset());
+
+        for (long vmId = 1; vmId <= 99; vmId++) {
+            tracker.forget(vmId);
+        }
+        assertEquals(1, tracker.getRulesetCount());
+        tracker.forget(100);
+        assertEquals(0, tracker.getRulesetCount());
+    }
+
+    public void testSubtract() {
+        Map<PortAndProto, Set<String>> from = rules(SSH, "10.1.1.1/32", "10.1.1.2/32");
+        from.putAll(rules(HTTP, "0.0.0.0/0"));
+        Map<PortAndProto, Set<String>> to = rules(SSH, "10.1.1.1/32");
+
+        Map<PortAndProto, Set<String>> added = SecurityGroupRulesetTracker.subtract(from, to);
+        assertEquals(2, added.size());
+        assertEquals(Arrays.asList("10.1.1.2/32"), Arrays.asList(added.get(SSH).toArray()));
+        assertEquals(Arrays.asList("0.0.0.0/0"), Arrays.asList(added.get(HTTP).toArray()));
+
+        assertTrue(SecurityGroupRulesetTracker.subtract(to, from).isEmpty());
+    }
+}
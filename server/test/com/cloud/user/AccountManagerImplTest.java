@@ -157,6 +157,8 @@ public class AccountManagerImplTest {
     @Mock
     DomainDao _domainDao;
     @Mock
+    DomainTreeIndex _domainTree;
+    @Mock
     ProjectAccountDao _projectAccountDao;
     @Mock
     IPAddressDao _ipAddressDao;
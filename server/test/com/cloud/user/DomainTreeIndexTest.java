@@ -0,0 +1,154 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.user;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import org.apache.cloudstack.framework.messagebus.MessageBusBase;
+import org.apache.cloudstack.framework.messagebus.PublishScope;
+
+import com.cloud.domain.DomainVO;
+import com.cloud.domain.dao.DomainDao;
+import com.cloud.utils.db.QueryCache;
+
+public class DomainTreeIndexTest {
+    private DomainTreeIndex _index;
+    private DomainDao _domainDao;
+    private MessageBusBase _messageBus;
+    private List<DomainVO> _domains;
+
+    private static DomainVO domain(long id, Long parentId, String path) throws Exception {
+        DomainVO domain = new DomainVO("d" + id, 2, parentId, null);
+        Field idField = DomainVO.class.getDeclaredField("id");
+        idField.setAccessible(true);
+        idField.set(domain, id);
+        domain.setPath(path);
+        return domain;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        // ROOT
+        //  +- 2 a
+        //  |   +- 4 a/c
+        //  |   |   +- 6 a/c/e
+        //  |   +- 5 a/d
+        //  +- 3 b
+        _domains = new ArrayList<DomainVO>(Arrays.asList(domain(1, null, "/"), domain(2, 1L, "/a/"), domain(3, 1L, "/b/"), domain(4, 2L, "/a/c/"),
+                domain(5, 2L, "/a/d/"), domain(6, 4L, "/a/c/e/")));
+        _domainDao = Mockito.mock(DomainDao.class);
+        Mockito.when(_domainDao.listAll()).thenReturn(_domains);
+
+        _messageBus = new MessageBusBase();
+        _index = new DomainTreeIndex();
+        _index._domainDao = _domainDao;
+        _index._messageBus = _messageBus;
+        _index.configure("DomainTreeIndex", Collections.<String, Object> emptyMap());
+    }
+
+    @Test
+    public void testIsChildDomain() {
+        assertTrue(_index.isChildDomain(1L, 6L));
+        assertTrue(_index.isChildDomain(2L, 6L));
+        assertTrue(_index.isChildDomain(4L, 6L));
+        assertTrue(_index.isChildDomain(6L, 6L));
+        assertTrue(_index.isChildDomain(2L, 5L));
+        assertFalse(_index.isChildDomain(6L, 2L));
+        assertFalse(_index.isChildDomain(3L, 6L));
+        assertFalse(_index.isChildDomain(5L, 6L));
+        assertFalse(_index.isChildDomain(null, 6L));
+        assertFalse(_index.isChildDomain(2L, null));
+    }
+
+    @Test
+    public void testPathsParentsAndChildren() {
+        assertEquals("/a/c/", _index.getDomainPath(4));
+        assertEquals(Arrays.asList(6L, 4L, 2L, 1L), _index.getDomainParentIds(6));
+        assertEquals(Arrays.asList(1L), _index.getDomainParentIds(1));
+        assertEquals(new HashSet<Long>(Arrays.asList(4L, 5L, 6L)), new HashSet<Long>(_index.getDomainChildrenIds(2)));
+        assertEquals(5, _index.getDomainChildrenIds(1).size());
+        assertTrue(_index.getDomainChildrenIds(6).isEmpty());
+    }
+
+    @Test
+    public void testRebuiltAfterDomainEvents() throws Exception {
+        Mockito.when(_domainDao.isChildDomain(3L, 7L)).thenReturn(false);
+        assertFalse(_index.isChildDomain(3L, 7L));
+
+        _domains.add(domain(7, 3L, "/b/f/"));
+        _messageBus.publish(null, DomainManager.MESSAGE_ADD_DOMAIN_EVENT, PublishScope.LOCAL, 7L);
+        assertTrue(_index.isChildDomain(3L, 7L));
+        assertEquals(Arrays.asList(7L, 3L, 1L), _index.getDomainParentIds(7));
+
+        // moved under a, as if renamed on another management server
+        _domains.remove(_domains.size() - 1);
+        _domains.add(domain(7, 2L, "/a/f/"));
+        _messageBus.publish(null, DomainManager.MESSAGE_UPDATE_DOMAIN_EVENT, PublishScope.LOCAL, 7L);
+        assertFalse(_index.isChildDomain(3L, 7L));
+        assertTrue(_index.isChildDomain(2L, 7L));
+        assertEquals("/a/f/", _index.getDomainPath(7));
+    }
+
+    @Test
+    public void testRebuiltAfterPeerDomainWrites() throws Exception {
+        assertTrue(QueryCache.isCached("domain"));
+        assertEquals(5, _index.getDomainChildrenIds(1).size());
+
+        // added on another management server, only the version of the table tells
+        _domains.add(domain(7, 3L, "/b/f/"));
+        QueryCache.invalidateFromPeer("2/" + System.nanoTime(), "domain", 1);
+        assertEquals(6, _index.getDomainChildrenIds(1).size());
+        assertTrue(_index.isChildDomain(3L, 7L));
+    }
+
+    @Test
+    public void testUnknownDomainsAreLookedUpInTheDb() throws Exception {
+        Mockito.when(_domainDao.isChildDomain(2L, 8L)).thenReturn(true);
+        assertTrue(_index.isChildDomain(2L, 8L));
+
+        Mockito.when(_domainDao.findById(9L)).thenReturn(null);
+        assertNull(_index.getDomainPath(9));
+        assertTrue(_index.getDomainParentIds(9).isEmpty());
+        assertTrue(_index.getDomainChildrenIds(9).isEmpty());
+    }
+
+    @Test
+    public void testParentLoopsAreLeftOut() throws Exception {
+        _domains.add(domain(10, 11L, "/x/"));
+        _domains.add(domain(11, 10L, "/x/y/"));
+        _messageBus.publish(null, DomainManager.MESSAGE_ADD_DOMAIN_EVENT, PublishScope.LOCAL, 10L);
+
+        Mockito.when(_domainDao.isChildDomain(10L, 11L)).thenReturn(false);
+        assertFalse(_index.isChildDomain(10L, 11L));
+        assertTrue(_index.isChildDomain(1L, 6L));
+        assertEquals(5, _index.getDomainChildrenIds(1).size());
+    }
+}
@@ -22,30 +22,42 @@ import java.util.List;
 import java.util.Map;
 
 import com.cloud.consoleproxy.util.Logger;
+import com.cloud.consoleproxy.util.TileEncoder;
 
 public class AjaxFIFOImageCache {
     private static final Logger s_logger = Logger.getLogger(AjaxFIFOImageCache.class);
 
     private List<Integer> fifoQueue;
     private Map<Integer, byte[]> cache;
+    // when the images not fetched yet were put, to report the round trip to the encoder
+    private Map<Integer, Long> putTicks;
     private int cacheSize;
     private int nextKey = 0;
+    private TileEncoder encoder;
 
     public AjaxFIFOImageCache(int cacheSize) {
+        this(cacheSize, null);
+    }
+
+    public AjaxFIFOImageCache(int cacheSize, TileEncoder encoder) {
         this.cacheSize = cacheSize;
+        this.encoder = encoder;
         fifoQueue = new ArrayList<Integer>();
         cache = new HashMap<Integer, byte[]>();
+        putTicks = new HashMap<Integer, Long>();
     }
 
     public synchronized void clear() {
         fifoQueue.clear();
         cache.clear();
+        putTicks.clear();
     }
 
     public synchronized int putImage(byte[] image) {
         while (cache.size() >= cacheSize) {
             Integer keyToRemove = fifoQueue.remove(0);
             cache.remove(keyToRemove);
+            putTicks.remove(keyToRemove);
 
             if (s_logger.isTraceEnabled())
                 s_logger.trace("Remove image from cache, key: " + keyToRemove);
@@ -58,6 +70,8 @@ public class AjaxFIFOImageCache {
 
         cache.put(key, image);
         fifoQueue.add(key);
+        if (encoder != null)
+            putTicks.put(key, System.currentTimeMillis());
         return key;
     }
 
@@ -69,6 +83,9 @@ public class AjaxFIFOImageCache {
             if (s_logger.isTraceEnabled())
                 s_logger.trace("Retrieve image from cache, key: " + key);
 
+            Long putTick = putTicks.remove(key);
+            if (putTick != null)
+                encoder.onRoundTrip(System.currentTimeMillis() - putTick);
             return cache.get(key);
         }
 
@@ -31,7 +31,6 @@ import java.security.SecureRandom;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.Executor;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.log4j.xml.DOMConfigurator;
@@ -73,6 +72,12 @@ public class ConsoleProxy {
     static int keyboardType = KEYBOARD_RAW;
     static String factoryClzName;
     static boolean standaloneStart = false;
+    static int httpMaxThreads = 500;
+    static int httpQueueSize = 1000;
+    static int httpCmdMaxThreads = 10;
+
+    static ConsoleProxyHttpExecutor httpExecutor;
+    static ConsoleProxyHttpExecutor httpCmdExecutor;
 
     static String encryptorPassword = genDefaultEncryptorPassword();
 
@@ -158,6 +163,24 @@ public class ConsoleProxy {
             readTimeoutSeconds = Integer.parseInt(s);
             s_logger.info("Setting readTimeoutSeconds=" + readTimeoutSeconds);
         }
+
+        s = conf.getProperty("consoleproxy.httpMaxThreads");
+        if (s != null) {
+            httpMaxThreads = Integer.parseInt(s);
+            s_logger.info("Setting httpMaxThreads=" + httpMaxThreads);
+        }
+
+        s = conf.getProperty("consoleproxy.httpQueueSize");
+        if (s != null) {
+            httpQueueSize = Integer.parseInt(s);
+            s_logger.info("Setting httpQueueSize=" + httpQueueSize);
+        }
+
+        s = conf.getProperty("consoleproxy.httpCmdMaxThreads");
+        if (s != null) {
+            httpCmdMaxThreads = Integer.parseInt(s);
+            s_logger.info("Setting httpCmdMaxThreads=" + httpCmdMaxThreads);
+        }
     }
 
     public static ConsoleProxyServerFactory getHttpServerFactory() {
@@ -358,7 +381,8 @@ public class ConsoleProxy {
             server.createContext("/resource/", new ConsoleProxyResourceHandler());
             server.createContext("/ajax", new ConsoleProxyAjaxHandler());
             server.createContext("/ajaximg", new ConsoleProxyAjaxImageHandler());
-            server.setExecutor(new ThreadExecutor()); // creates a default executor
+            httpExecutor = new ConsoleProxyHttpExecutor("HTTP", httpMaxThreads, httpQueueSize);
+            server.setExecutor(httpExecutor);
             server.start();
         } catch (Exception e) {
             s_logger.error(e.getMessage(), e);
@@ -371,7 +395,8 @@ public class ConsoleProxy {
             s_logger.info("Listening for HTTP CMDs on port " + httpCmdListenPort);
             HttpServer cmdServer = HttpServer.create(new InetSocketAddress(httpCmdListenPort), 2);
             cmdServer.createContext("/cmd", new ConsoleProxyCmdHandler());
-            cmdServer.setExecutor(new ThreadExecutor()); // creates a default executor
+            httpCmdExecutor = new ConsoleProxyHttpExecutor("HTTP-CMD", httpCmdMaxThreads, httpCmdMaxThreads);
+            cmdServer.setExecutor(httpCmdExecutor);
             cmdServer.start();
         } catch (Exception e) {
             s_logger.error(e.getMessage(), e);
@@ -530,11 +555,4 @@ public class ConsoleProxy {
     public static void setEncryptorPassword(String password) {
         encryptorPassword = password;
     }
-
-    static class ThreadExecutor implements Executor {
-        @Override
-        public void execute(Runnable r) {
-            new Thread(r).start();
-        }
-    }
 }
@@ -19,6 +19,8 @@ package com.cloud.consoleproxy;
 import java.awt.Image;
 import java.util.List;
 
+import com.cloud.consoleproxy.util.TileEncoder;
+
 /**
  * ConsoleProxyClient defines an standard interface that a console client should implement,
  *
@@ -42,6 +44,8 @@ public interface ConsoleProxyClient {
 
     AjaxFIFOImageCache getAjaxImageCache();
 
+    TileEncoder getTileEncoder();
+
     Image getClientScaledImage(int width, int height);                  // client thumbnail support
 
     String onAjaxClientStart(String title, List<String> languages, String guest);
@@ -22,6 +22,7 @@ import java.util.List;
 
 import org.apache.log4j.Logger;
 
+import com.cloud.consoleproxy.util.TileEncoder;
 import com.cloud.consoleproxy.util.TileInfo;
 import com.cloud.consoleproxy.util.TileTracker;
 import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
@@ -44,7 +45,8 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
     protected boolean dirtyFlag = false;
     protected Object tileDirtyEvent = new Object();
     protected TileTracker tracker;
-    protected AjaxFIFOImageCache ajaxImageCache = new AjaxFIFOImageCache(2);
+    protected TileEncoder tileEncoder = new TileEncoder();
+    protected AjaxFIFOImageCache ajaxImageCache = new AjaxFIFOImageCache(2, tileEncoder);
 
     protected ConsoleProxyClientParam clientParam;
     protected String clientToken;
@@ -85,6 +87,11 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
         return ajaxImageCache;
     }
 
+    @Override
+    public TileEncoder getTileEncoder() {
+        return tileEncoder;
+    }
+
     @Override
     public Image getClientScaledImage(int width, int height) {
         FrameBufferCanvas canvas = getFrameBufferCavas();
@@ -169,7 +176,7 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
     public byte[] getFrameBufferJpeg() {
         FrameBufferCanvas canvas = getFrameBufferCavas();
         if (canvas != null)
-            return canvas.getFrameBufferJpeg();
+            return canvas.getFrameBufferJpeg(tileEncoder);
 
         return null;
     }
@@ -177,7 +184,7 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
     public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight) {
         FrameBufferCanvas canvas = getFrameBufferCavas();
         if (canvas != null)
-            return canvas.getTilesMergedJpeg(tileList, tileWidth, tileHeight);
+            return canvas.getTilesMergedJpeg(tileList, tileWidth, tileHeight, tileEncoder);
         return null;
     }
 
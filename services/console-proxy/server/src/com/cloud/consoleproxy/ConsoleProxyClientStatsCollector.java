@@ -24,6 +24,8 @@ import java.util.Hashtable;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
+import com.cloud.consoleproxy.util.TileEncoder;
+
 /**
  *
  * ConsoleProxyClientStatsCollector collects client stats for console proxy agent to report
@@ -31,12 +33,15 @@ import com.google.gson.GsonBuilder;
 public class ConsoleProxyClientStatsCollector {
 
     ArrayList<ConsoleProxyConnection> connections;
+    ConsoleProxyHttpExecutor.Stats httpExecutor;
 
     public ConsoleProxyClientStatsCollector() {
     }
 
     public ConsoleProxyClientStatsCollector(Hashtable<String, ConsoleProxyClient> connMap) {
         setConnections(connMap);
+        if (ConsoleProxy.httpExecutor != null)
+            httpExecutor = ConsoleProxy.httpExecutor.getStats();
     }
 
     public String getStatsReport() {
@@ -67,6 +72,17 @@ public class ConsoleProxyClientStatsCollector {
                 conn.tag = client.getClientTag();
                 conn.createTime = client.getClientCreateTime();
                 conn.lastUsedTime = client.getClientLastFrontEndActivityTime();
+
+                TileEncoder encoder = client.getTileEncoder();
+                if (encoder != null) {
+                    conn.encodedFrames = encoder.getFrames();
+                    conn.encodeMillis = encoder.getAverageEncodeMillis();
+                    conn.lastEncodeMillis = encoder.getLastEncodeMillis();
+                    conn.bytesPerFrame = encoder.getAverageBytesPerFrame();
+                    conn.lastBytesPerFrame = encoder.getLastBytesPerFrame();
+                    conn.jpegQuality = encoder.getQuality();
+                    conn.roundTripMillis = encoder.getRoundTripMillis();
+                }
                 conns.add(conn);
             }
         }
@@ -81,6 +97,13 @@ public class ConsoleProxyClientStatsCollector {
         public String tag;
         public long createTime;
         public long lastUsedTime;
+        public long encodedFrames;
+        public double encodeMillis;
+        public long lastEncodeMillis;
+        public long bytesPerFrame;
+        public int lastBytesPerFrame;
+        public float jpegQuality;
+        public long roundTripMillis;
 
         public ConsoleProxyConnection() {
         }
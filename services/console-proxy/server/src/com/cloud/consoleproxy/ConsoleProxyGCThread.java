@@ -32,6 +32,8 @@ public class ConsoleProxyGCThread extends Thread {
     private static final Logger s_logger = Logger.getLogger(ConsoleProxyGCThread.class);
 
     private final static int MAX_SESSION_IDLE_SECONDS = 180;
+    // sessions idle for longer give back the images their encoder keeps between frames
+    private final static int ENCODER_IDLE_SECONDS = 30;
 
     private final Hashtable<String, ConsoleProxyClient> connMap;
     private long lastLogScan = 0;
@@ -85,6 +87,9 @@ public class ConsoleProxyGCThread extends Thread {
 
                 long seconds_unused = (System.currentTimeMillis() - client.getClientLastFrontEndActivityTime()) / 1000;
                 if (seconds_unused < MAX_SESSION_IDLE_SECONDS) {
+                    if (seconds_unused >= ENCODER_IDLE_SECONDS) {
+                        client.getTileEncoder().releaseBuffers();
+                    }
                     continue;
                 }
 
@@ -0,0 +1,210 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloud.consoleproxy.util.Logger;
+
+/**
+ *
+ * ConsoleProxyHttpExecutor runs the exchanges of the console proxy HTTP servers on a bounded pool of
+ * threads. Every open console session keeps polling, creating a thread per request does not scale
+ * with the number of sessions.
+ *
+ * When all threads are busy and the queue is full, the exchange runs on the thread of the HTTP
+ * server, which stops accepting requests until it is done.
+ */
+public class ConsoleProxyHttpExecutor implements Executor {
+    private static final Logger s_logger = Logger.getLogger(ConsoleProxyHttpExecutor.class);
+
+    private final String name;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger peakActive = new AtomicInteger();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong saturated = new AtomicLong();
+    private final AtomicLong totalQueueMillis = new AtomicLong();
+    private final AtomicLong totalServiceMillis = new AtomicLong();
+    private final AtomicLong maxServiceMillis = new AtomicLong();
+
+    public ConsoleProxyHttpExecutor(final String name, int maxThreads, int queueSize) {
+        this.name = name;
+
+        final ExchangeQueue queue = new ExchangeQueue(queueSize);
+        executor = new ThreadPoolExecutor(1, maxThreads, 60, TimeUnit.SECONDS, queue, new ThreadFactory() {
+            private final AtomicInteger number = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + number.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                if (executor.isShutdown())
+                    return;
+                if (!queue.force(r)) {
+                    saturated.incrementAndGet();
+                    r.run();
+                }
+            }
+        });
+        queue.executor = this;
+
+        s_logger.info("Created HTTP executor " + name + ", max threads: " + maxThreads + ", queue size: " + queueSize);
+    }
+
+    /**
+     * A plain ThreadPoolExecutor only starts threads beyond its core size once its queue is full,
+     * this queue takes an exchange only if a thread is idle to pick it up or no more threads can
+     * be started, so the pool grows with the number of concurrent exchanges instead.
+     */
+    private static class ExchangeQueue extends LinkedBlockingQueue<Runnable> {
+        private static final long serialVersionUID = 1L;
+
+        ConsoleProxyHttpExecutor executor;
+
+        ExchangeQueue(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        public boolean offer(Runnable r) {
+            ThreadPoolExecutor pool = executor.executor;
+            int threads = pool.getPoolSize();
+            if (threads < pool.getMaximumPoolSize() && executor.inFlight.get() > threads)
+                return false;
+            return super.offer(r);
+        }
+
+        boolean force(Runnable r) {
+            return super.offer(r);
+        }
+    }
+
+    @Override
+    public void execute(final Runnable r) {
+        submitted.incrementAndGet();
+        inFlight.incrementAndGet();
+        final long queuedTick = System.currentTimeMillis();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Thread thread = Thread.currentThread();
+                String threadName = thread.getName();
+
+                long startTick = System.currentTimeMillis();
+                totalQueueMillis.addAndGet(startTick - queuedTick);
+                int n = active.incrementAndGet();
+                while (true) {
+                    int peak = peakActive.get();
+                    if (n <= peak || peakActive.compareAndSet(peak, n))
+                        break;
+                }
+
+                try {
+                    r.run();
+                } catch (RuntimeException e) {
+                    failed.incrementAndGet();
+                    s_logger.warn("Unexpected exception in HTTP exchange, ", e);
+                } finally {
+                    active.decrementAndGet();
+                    long serviceMillis = System.currentTimeMillis() - startTick;
+                    totalServiceMillis.addAndGet(serviceMillis);
+                    while (true) {
+                        long max = maxServiceMillis.get();
+                        if (serviceMillis <= max || maxServiceMillis.compareAndSet(max, serviceMillis))
+                            break;
+                    }
+                    completed.incrementAndGet();
+                    inFlight.decrementAndGet();
+
+                    // handlers name the thread after the request, restore it before it is reused
+                    thread.setName(threadName);
+                }
+            }
+        });
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.name = name;
+        stats.maxThreads = executor.getMaximumPoolSize();
+        stats.threads = executor.getPoolSize();
+        stats.peakThreads = executor.getLargestPoolSize();
+        stats.active = active.get();
+        stats.peakActive = peakActive.get();
+        stats.queued = executor.getQueue().size();
+        stats.submitted = submitted.get();
+        stats.completed = completed.get();
+        stats.failed = failed.get();
+        stats.saturated = saturated.get();
+        stats.maxServiceMillis = maxServiceMillis.get();
+
+        long n = stats.completed;
+        if (n > 0) {
+            stats.avgQueueMillis = totalQueueMillis.get() / n;
+            stats.avgServiceMillis = totalServiceMillis.get() / n;
+        }
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        Stats stats = getStats();
+        return name + "[threads: " + stats.threads + "/" + stats.maxThreads + ", active: " + stats.active + ", queued: " + stats.queued + ", completed: " +
+            stats.completed + ", saturated: " + stats.saturated + ", avg queue ms: " + stats.avgQueueMillis + ", avg service ms: " + stats.avgServiceMillis + "]";
+    }
+
+    public static class Stats {
+        public String name;
+        public int maxThreads;
+        public int threads;
+        public int peakThreads;
+        public int active;
+        public int peakActive;
+        public int queued;
+        public long submitted;
+        public long completed;
+        public long failed;
+        public long saturated;
+        public long avgQueueMillis;
+        public long avgServiceMillis;
+        public long maxServiceMillis;
+
+        public Stats() {
+        }
+    }
+}
@@ -321,6 +321,7 @@ public class ConsoleProxyRdpClient extends ConsoleProxyClientBase {
     public void closeClient() {
         _workerDone = true;
         shutdown();
+        tileEncoder.dispose();
     }
 
     @Override
@@ -121,6 +121,7 @@ public class ConsoleProxyVncClient extends ConsoleProxyClientBase {
         workerDone = true;
         if (client != null)
             client.shutdown();
+        tileEncoder.dispose();
     }
 
     @Override
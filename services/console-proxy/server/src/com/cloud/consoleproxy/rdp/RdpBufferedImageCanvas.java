@@ -16,16 +16,13 @@
 // under the License.
 package com.cloud.consoleproxy.rdp;
 
-import java.awt.Graphics2D;
 import java.awt.Image;
-import java.awt.Rectangle;
-import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.List;
 
 import com.cloud.consoleproxy.ConsoleProxyRdpClient;
-import com.cloud.consoleproxy.util.ImageHelper;
 import com.cloud.consoleproxy.util.Logger;
+import com.cloud.consoleproxy.util.TileEncoder;
 import com.cloud.consoleproxy.util.TileInfo;
 import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
 
@@ -53,20 +50,10 @@ public class RdpBufferedImageCanvas extends BufferedImageCanvas implements Frame
     }
 
     @Override
-    public byte[] getFrameBufferJpeg() {
-        int width = offlineImage.getWidth();
-        int height = offlineImage.getHeight();
-
-        BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-        Graphics2D g = bufferedImage.createGraphics();
-        synchronized (offlineImage) {
-            g.drawImage(offlineImage, 0, 0, width, height, 0, 0, width, height, null);
-            g.dispose();
-        }
-
+    public byte[] getFrameBufferJpeg(TileEncoder encoder) {
         byte[] imgBits = null;
         try {
-            imgBits = ImageHelper.jpegFromImage(bufferedImage);
+            imgBits = encoder.encodeFrame(offlineImage);
         } catch (IOException e) {
             s_logger.info("[ignored] read error on image", e);
         }
@@ -75,24 +62,10 @@ public class RdpBufferedImageCanvas extends BufferedImageCanvas implements Frame
     }
 
     @Override
-    public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight) {
-        int width = Math.max(tileWidth, tileWidth * tileList.size());
-
-        BufferedImage bufferedImage = new BufferedImage(width, tileHeight, BufferedImage.TYPE_3BYTE_BGR);
-        Graphics2D g = bufferedImage.createGraphics();
-
-        synchronized (offlineImage) {
-            int i = 0;
-            for (TileInfo tile : tileList) {
-                Rectangle rc = tile.getTileRect();
-                g.drawImage(offlineImage, i * tileWidth, 0, i * tileWidth + rc.width, rc.height, rc.x, rc.y, rc.x + rc.width, rc.y + rc.height, null);
-                i++;
-            }
-        }
-
+    public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight, TileEncoder encoder) {
         byte[] imgBits = null;
         try {
-            imgBits = ImageHelper.jpegFromImage(bufferedImage);
+            imgBits = encoder.encodeTiles(offlineImage, tileList, tileWidth, tileHeight);
         } catch (IOException e) {
             s_logger.info("[ignored] read error on image tiles", e);
         }
@@ -0,0 +1,261 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.util;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ *
+ * TileEncoder encodes the images of a console session. The JPEG writer, the output buffer and the
+ * images the frames and the tiles are drawn into are kept between frames instead of being created
+ * for every one. The full frames and the tile strips have an image each, up to a retained size: a
+ * larger one is allocated for the frame only, so that one large request does not pin its memory for
+ * the life of the session. The images are released while the session is idle.
+ *
+ * The JPEG quality follows the time the viewer takes to fetch an image after it is produced: it is
+ * lowered while the viewer is slow and raised again once it keeps up.
+ */
+public class TileEncoder {
+    private static final Logger s_logger = Logger.getLogger(TileEncoder.class);
+
+    public static final float DEFAULT_QUALITY = 0.75f;
+    public static final float MIN_QUALITY = 0.3f;
+    public static final float MAX_QUALITY = 0.9f;
+    private static final float QUALITY_STEP = 0.05f;
+
+    // fetches slower than this lower the quality, faster ones raise it
+    private static final long SLOW_ROUND_TRIP_MILLIS = 300;
+    private static final long FAST_ROUND_TRIP_MILLIS = 100;
+    // fetches slower than this are viewers in the background, not a measure of the link
+    private static final long MAX_ROUND_TRIP_MILLIS = 5000;
+
+    private ImageWriter writer;
+    private ImageWriteParam param;
+    private final ByteArrayOutputStream bos = new ByteArrayOutputStream(128000);
+
+    // images up to this many pixels are kept between frames
+    static final int MAX_RETAINED_FRAME_PIXELS = 1920 * 1200;
+    static final int MAX_RETAINED_STRIP_PIXELS = 64 * 64 * 64;
+
+    private final ImageBuffer frameBuffer = new ImageBuffer(MAX_RETAINED_FRAME_PIXELS);
+    private final ImageBuffer stripBuffer = new ImageBuffer(MAX_RETAINED_STRIP_PIXELS);
+
+    private float quality = DEFAULT_QUALITY;
+    private double roundTripMillis = -1;
+
+    private long frames;
+    private long totalEncodeNanos;
+    private long totalBytes;
+    private long lastEncodeMillis;
+    private int lastBytes;
+
+    public synchronized byte[] encodeFrame(BufferedImage source) throws IOException {
+        long startTick = System.nanoTime();
+        int width = source.getWidth();
+        int height = source.getHeight();
+
+        BufferedImage image = frameBuffer.get(width, height);
+        Graphics2D g = image.createGraphics();
+        try {
+            synchronized (source) {
+                g.drawImage(source, 0, 0, width, height, 0, 0, width, height, null);
+            }
+        } finally {
+            g.dispose();
+        }
+        return encode(image, width, height, startTick);
+    }
+
+    /**
+     * Encodes the tiles side by side in one image, in the order of the list.
+     */
+    public synchronized byte[] encodeTiles(BufferedImage source, List<TileInfo> tileList, int tileWidth, int tileHeight) throws IOException {
+        long startTick = System.nanoTime();
+        int width = Math.max(tileWidth, tileWidth * tileList.size());
+
+        BufferedImage image = stripBuffer.get(width, tileHeight);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setColor(Color.black);
+            synchronized (source) {
+                int i = 0;
+                for (TileInfo tile : tileList) {
+                    Rectangle rc = tile.getTileRect();
+                    if (rc.width < tileWidth || rc.height < tileHeight)
+                        g.fillRect(i * tileWidth, 0, tileWidth, tileHeight);
+                    g.drawImage(source, i * tileWidth, 0, i * tileWidth + rc.width, rc.height, rc.x, rc.y, rc.x + rc.width, rc.y + rc.height, null);
+                    i++;
+                }
+            }
+        } finally {
+            g.dispose();
+        }
+        return encode(image, width, tileHeight, startTick);
+    }
+
+    /**
+     * Reports the time the viewer took to fetch an image after it was encoded.
+     */
+    public synchronized void onRoundTrip(long millis) {
+        if (millis < 0 || millis > MAX_ROUND_TRIP_MILLIS)
+            return;
+
+        if (roundTripMillis < 0)
+            roundTripMillis = millis;
+        else
+            roundTripMillis = roundTripMillis * 0.8 + millis * 0.2;
+
+        float newQuality = quality;
+        if (roundTripMillis > SLOW_ROUND_TRIP_MILLIS)
+            newQuality = Math.max(MIN_QUALITY, quality - QUALITY_STEP);
+        else if (roundTripMillis < FAST_ROUND_TRIP_MILLIS)
+            newQuality = Math.min(MAX_QUALITY, quality + QUALITY_STEP);
+
+        if (newQuality != quality) {
+            if (s_logger.isDebugEnabled())
+                s_logger.debug("Round trip " + (long)roundTripMillis + " ms, change JPEG quality from " + quality + " to " + newQuality);
+            quality = newQuality;
+        }
+    }
+
+    public synchronized float getQuality() {
+        return quality;
+    }
+
+    public synchronized long getRoundTripMillis() {
+        return (long)roundTripMillis;
+    }
+
+    public synchronized long getFrames() {
+        return frames;
+    }
+
+    public synchronized double getAverageEncodeMillis() {
+        return frames > 0 ? totalEncodeNanos / 1000000.0 / frames : 0;
+    }
+
+    public synchronized long getLastEncodeMillis() {
+        return lastEncodeMillis;
+    }
+
+    public synchronized long getAverageBytesPerFrame() {
+        return frames > 0 ? totalBytes / frames : 0;
+    }
+
+    public synchronized int getLastBytesPerFrame() {
+        return lastBytes;
+    }
+
+    /**
+     * @return bytes of the images kept between frames.
+     */
+    public synchronized long getRetainedBytes() {
+        return frameBuffer.getRetainedBytes() + stripBuffer.getRetainedBytes();
+    }
+
+    /**
+     * Releases the images kept between frames, for a session without activity. They are allocated
+     * again by the next frame.
+     */
+    public synchronized void releaseBuffers() {
+        frameBuffer.release();
+        stripBuffer.release();
+    }
+
+    public synchronized void dispose() {
+        if (writer != null) {
+            writer.dispose();
+            writer = null;
+        }
+        releaseBuffers();
+    }
+
+    private byte[] encode(BufferedImage image, int width, int height, long startTick) throws IOException {
+        if (writer == null) {
+            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+            if (!writers.hasNext())
+                throw new IOException("No JPEG image writer available");
+            writer = writers.next();
+            param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        }
+        param.setCompressionQuality(quality);
+        param.setSourceRegion(new Rectangle(0, 0, width, height));
+
+        bos.reset();
+        // in memory, ImageIO.write() would cache the stream in a temporary file
+        ImageOutputStream ios = new MemoryCacheImageOutputStream(bos);
+        try {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.setOutput(null);
+            ios.close();
+        }
+        byte[] bits = bos.toByteArray();
+
+        long encodeNanos = System.nanoTime() - startTick;
+        frames++;
+        totalEncodeNanos += encodeNanos;
+        totalBytes += bits.length;
+        lastEncodeMillis = encodeNanos / 1000000;
+        lastBytes = bits.length;
+        return bits;
+    }
+
+    private static class ImageBuffer {
+        private final int maxRetainedPixels;
+        private BufferedImage image;
+
+        ImageBuffer(int maxRetainedPixels) {
+            this.maxRetainedPixels = maxRetainedPixels;
+        }
+
+        // an image of the height that is at least as wide, a narrower one is encoded from its left side
+        BufferedImage get(int width, int height) {
+            if (image != null && image.getWidth() >= width && image.getHeight() == height)
+                return image;
+
+            BufferedImage newImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+            if ((long)width * height <= maxRetainedPixels)
+                image = newImage;
+            return newImage;
+        }
+
+        long getRetainedBytes() {
+            return image != null ? (long)image.getWidth() * image.getHeight() * 3 : 0;
+        }
+
+        void release() {
+            image = null;
+        }
+    }
+}
@@ -26,8 +26,8 @@ import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.List;
 
-import com.cloud.consoleproxy.util.ImageHelper;
 import com.cloud.consoleproxy.util.Logger;
+import com.cloud.consoleproxy.util.TileEncoder;
 import com.cloud.consoleproxy.util.TileInfo;
 
 /**
@@ -106,22 +106,10 @@ public class BufferedImageCanvas extends Canvas implements FrameBufferCanvas {
     }
 
     @Override
-    public byte[] getFrameBufferJpeg() {
-        int width = 800;
-        int height = 600;
-
-        width = offlineImage.getWidth();
-        height = offlineImage.getHeight();
-
-        BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-        Graphics2D g = bufferedImage.createGraphics();
-        synchronized (offlineImage) {
-            g.drawImage(offlineImage, 0, 0, width, height, 0, 0, width, height, null);
-        }
-
+    public byte[] getFrameBufferJpeg(TileEncoder encoder) {
         byte[] imgBits = null;
         try {
-            imgBits = ImageHelper.jpegFromImage(bufferedImage);
+            imgBits = encoder.encodeFrame(offlineImage);
         } catch (IOException e) {
             s_logger.info("[ignored] read error on image", e);
         }
@@ -129,26 +117,13 @@ public class BufferedImageCanvas extends Canvas implements FrameBufferCanvas {
     }
 
     @Override
-    public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight) {
-        int width = Math.max(tileWidth, tileWidth * tileList.size());
-        BufferedImage bufferedImage = new BufferedImage(width, tileHeight, BufferedImage.TYPE_3BYTE_BGR);
-        Graphics2D g = bufferedImage.createGraphics();
-
-        synchronized (offlineImage) {
-            int i = 0;
-            for (TileInfo tile : tileList) {
-                Rectangle rc = tile.getTileRect();
-                g.drawImage(offlineImage, i * tileWidth, 0, i * tileWidth + rc.width, rc.height, rc.x, rc.y, rc.x + rc.width, rc.y + rc.height, null);
-                i++;
-            }
-        }
-
+    public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight, TileEncoder encoder) {
         byte[] imgBits = null;
         try {
-            imgBits = ImageHelper.jpegFromImage(bufferedImage);
+            imgBits = encoder.encodeTiles(offlineImage, tileList, tileWidth, tileHeight);
         } catch (IOException e) {
             s_logger.info("[ignored] read error on image tiles", e);
         }
         return imgBits;
     }
-}
\ No newline at end of file
+}
@@ -19,12 +19,13 @@ package com.cloud.consoleproxy.vnc;
 import java.awt.Image;
 import java.util.List;
 
+import com.cloud.consoleproxy.util.TileEncoder;
 import com.cloud.consoleproxy.util.TileInfo;
 
 public interface FrameBufferCanvas {
     Image getFrameBufferScaledImage(int width, int height);
 
-    public byte[] getFrameBufferJpeg();
+    public byte[] getFrameBufferJpeg(TileEncoder encoder);
 
-    public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight);
+    public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight, TileEncoder encoder);
 }
@@ -0,0 +1,92 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class ConsoleProxyHttpExecutorTest {
+
+    @Test
+    public void testThreadsAreBoundedAndReused() throws Exception {
+        ConsoleProxyHttpExecutor executor = new ConsoleProxyHttpExecutor("test", 4, 100);
+        final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+        final CountDownLatch done = new CountDownLatch(50);
+        try {
+            for (int i = 0; i < 50; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        String name = Thread.currentThread().getName();
+                        threads.add(name);
+                        Thread.currentThread().setName(name + " handling request");
+                        done.countDown();
+                    }
+                });
+            }
+            Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+
+            Assert.assertTrue(threads.size() <= 4);
+            ConsoleProxyHttpExecutor.Stats stats = executor.getStats();
+            Assert.assertEquals(50, stats.submitted);
+            Assert.assertTrue(stats.peakThreads <= 4);
+            Assert.assertEquals(0, stats.saturated);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSaturatedExchangeRunsOnCaller() throws Exception {
+        ConsoleProxyHttpExecutor executor = new ConsoleProxyHttpExecutor("test", 1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            Runnable blocker = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            executor.execute(blocker);
+            executor.execute(blocker);
+
+            final Thread[] ranOn = new Thread[1];
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ranOn[0] = Thread.currentThread();
+                }
+            });
+            Assert.assertSame(Thread.currentThread(), ranOn[0]);
+            Assert.assertEquals(1, executor.getStats().saturated);
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+}
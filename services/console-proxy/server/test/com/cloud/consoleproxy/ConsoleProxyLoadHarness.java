@@ -0,0 +1,232 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ *
+ * ConsoleProxyLoadHarness simulates AJAX console viewers against a stub VNC server, to measure the
+ * console proxy HTTP server under many concurrent sessions.
+ *
+ * Usage: ConsoleProxyLoadHarness [sessions] [seconds] [httpMaxThreads] [httpQueueSize]
+ */
+public class ConsoleProxyLoadHarness {
+    private static final Pattern START_URLS = Pattern.compile("new AjaxViewer\\('main_panel', '([^']*)', '([^']*)'");
+    private static final Pattern REFRESH_URL = Pattern.compile("ajaxViewer\\.refresh\\('([^']*)'");
+
+    private final int sessions;
+    private final int seconds;
+    private final int httpMaxThreads;
+    private final int httpQueueSize;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final List<long[]> latencies = new ArrayList<long[]>();
+
+    public ConsoleProxyLoadHarness(int sessions, int seconds, int httpMaxThreads, int httpQueueSize) {
+        this.sessions = sessions;
+        this.seconds = seconds;
+        this.httpMaxThreads = httpMaxThreads;
+        this.httpQueueSize = httpQueueSize;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int httpMaxThreads = args.length > 2 ? Integer.parseInt(args[2]) : ConsoleProxy.httpMaxThreads;
+        int httpQueueSize = args.length > 3 ? Integer.parseInt(args[3]) : ConsoleProxy.httpQueueSize;
+
+        new ConsoleProxyLoadHarness(sessions, seconds, httpMaxThreads, httpQueueSize).run();
+        System.exit(0);
+    }
+
+    public void run() throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        ConsoleProxy.standaloneStart = true;
+
+        // tokens are encrypted with the key the management server would pass to the console proxy
+        ConsoleProxyPasswordBasedEncryptor.KeyIVPair keyIvPair = new ConsoleProxyPasswordBasedEncryptor.KeyIVPair();
+        keyIvPair.setKeyBytes(new byte[16]);
+        keyIvPair.setIvBytes(new byte[16]);
+        ConsoleProxy.setEncryptorPassword(new Gson().toJson(keyIvPair));
+        ConsoleProxyPasswordBasedEncryptor encryptor = new ConsoleProxyPasswordBasedEncryptor(ConsoleProxy.getEncryptorPassword());
+
+        StubVncServer vncServer = new StubVncServer(800, 600, 100, 64);
+        vncServer.start();
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 512);
+        server.createContext("/ajax", new ConsoleProxyAjaxHandler());
+        server.createContext("/ajaximg", new ConsoleProxyAjaxImageHandler());
+        ConsoleProxy.httpExecutor = new ConsoleProxyHttpExecutor("HTTP", httpMaxThreads, httpQueueSize);
+        server.setExecutor(ConsoleProxy.httpExecutor);
+        server.start();
+
+        int baseThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+        ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+        try {
+            String baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+            final long deadline = System.currentTimeMillis() + seconds * 1000L;
+            final CountDownLatch done = new CountDownLatch(sessions);
+            for (int i = 0; i < sessions; i++) {
+                ConsoleProxyClientParam param = new ConsoleProxyClientParam();
+                param.setClientHostAddress("127.0.0.1");
+                param.setClientHostPort(vncServer.getPort());
+                param.setClientHostPassword("sid-" + i);
+                param.setClientTag("session-" + i);
+                final String startUrl = baseUrl + "/ajax?token=" + encryptor.encryptObject(ConsoleProxyClientParam.class, param);
+                final String base = baseUrl;
+                final long[] sessionLatencies = new long[1 << 16];
+                synchronized (latencies) {
+                    latencies.add(sessionLatencies);
+                }
+
+                Thread viewer = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            simulateViewer(base, startUrl, deadline, sessionLatencies);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }, "Viewer " + i);
+                viewer.setDaemon(true);
+                viewer.start();
+            }
+            done.await();
+        } finally {
+            server.stop(0);
+            ConsoleProxy.httpExecutor.shutdown();
+            vncServer.stop();
+        }
+
+        report(baseThreads, vncServer.getUpdates());
+    }
+
+    private void simulateViewer(String baseUrl, String startUrl, long deadline, long[] sessionLatencies) {
+        int n = 0;
+        String imgUrl = null;
+        String updateUrl = null;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                if (updateUrl == null) {
+                    String page = new String(get(startUrl, sessionLatencies, n++));
+                    Matcher matcher = START_URLS.matcher(page);
+                    if (!matcher.find()) {
+                        errors.incrementAndGet();
+                        Thread.sleep(1000);
+                        continue;
+                    }
+                    imgUrl = matcher.group(1);
+                    updateUrl = matcher.group(2);
+                }
+
+                bytes.addAndGet(get(baseUrl + imgUrl, sessionLatencies, n++).length);
+
+                String update = new String(get(baseUrl + updateUrl, sessionLatencies, n++));
+                Matcher matcher = REFRESH_URL.matcher(update);
+                if (matcher.find()) {
+                    imgUrl = matcher.group(1);
+                } else {
+                    // kicked off or disconnected, start over
+                    errors.incrementAndGet();
+                    updateUrl = null;
+                }
+            } catch (IOException e) {
+                errors.incrementAndGet();
+                updateUrl = null;
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private byte[] get(String url, long[] sessionLatencies, int n) throws IOException {
+        long startTick = System.nanoTime();
+        HttpURLConnection conn = (HttpURLConnection)new URL(url).openConnection();
+        conn.setConnectTimeout(10000);
+        conn.setReadTimeout(30000);
+        try {
+            InputStream is = conn.getInputStream();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = is.read(buf)) > 0)
+                bos.write(buf, 0, len);
+            is.close();
+            return bos.toByteArray();
+        } catch (IOException e) {
+            InputStream es = conn.getErrorStream();
+            if (es != null)
+                es.close();
+            throw e;
+        } finally {
+            requests.incrementAndGet();
+            sessionLatencies[n % sessionLatencies.length] = System.nanoTime() - startTick;
+        }
+    }
+
+    private void report(int baseThreads, long vncUpdates) {
+        long total = requests.get();
+        long[] all = new long[(int)Math.min(total, Integer.MAX_VALUE)];
+        int count = 0;
+        synchronized (latencies) {
+            for (long[] sessionLatencies : latencies) {
+                for (long latency : sessionLatencies) {
+                    if (latency > 0 && count < all.length)
+                        all[count++] = latency;
+                }
+            }
+        }
+        Arrays.sort(all, 0, count);
+
+        System.out.println("sessions: " + sessions + ", seconds: " + seconds);
+        System.out.println("requests: " + total + " (" + total / Math.max(seconds, 1) + "/s), errors: " + errors.get() + ", image bytes: " + bytes.get() +
+            ", VNC updates: " + vncUpdates);
+        System.out.println("latency ms p50: " + percentile(all, count, 50) + ", p95: " + percentile(all, count, 95) + ", p99: " + percentile(all, count, 99) +
+            ", max: " + percentile(all, count, 100));
+        System.out.println("threads before: " + baseThreads + ", peak: " + ManagementFactory.getThreadMXBean().getPeakThreadCount() + ", started: " +
+            ManagementFactory.getThreadMXBean().getTotalStartedThreadCount());
+        System.out.println("executor: " + ConsoleProxy.httpExecutor);
+    }
+
+    private static long percentile(long[] sorted, int count, int p) {
+        if (count == 0)
+            return 0;
+        int i = Math.min(count - 1, (int)((long)count * p / 100));
+        return sorted[i] / 1000000;
+    }
+}
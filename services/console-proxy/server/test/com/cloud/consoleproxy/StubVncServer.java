@@ -0,0 +1,214 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloud.consoleproxy.vnc.RfbConstants;
+
+/**
+ *
+ * StubVncServer is a minimal RFB 3.3 server for load testing the console proxy. It accepts any
+ * number of clients without authentication and answers every update request with a block of
+ * changed pixels after a delay, as a guest with a busy screen would.
+ */
+public class StubVncServer implements Runnable {
+    private final ServerSocket serverSocket;
+    private final int width;
+    private final int height;
+    private final int updateIntervalMillis;
+    private final int updateSize;
+    private final AtomicLong updates = new AtomicLong();
+    private volatile boolean stopped = false;
+
+    public StubVncServer(int width, int height, int updateIntervalMillis, int updateSize) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.updateIntervalMillis = updateIntervalMillis;
+        this.updateSize = updateSize;
+        serverSocket = new ServerSocket(0, 512, InetAddress.getByName("127.0.0.1"));
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public long getUpdates() {
+        return updates.get();
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "Stub VNC server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        stopped = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // ignored, the server is going away
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!stopped) {
+            try {
+                final Socket socket = serverSocket.accept();
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "Stub VNC session " + socket.getPort());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!stopped)
+                    e.printStackTrace();
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream is = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream os = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            handshake(is, os);
+            Random random = new Random(socket.getPort());
+            boolean first = true;
+            while (!stopped) {
+                int messageType = is.readUnsignedByte();
+                switch (messageType) {
+                    case RfbConstants.CLIENT_SET_PIXEL_FORMAT:
+                        is.skipBytes(19);
+                        break;
+                    case RfbConstants.CLIENT_SET_ENCODINGS: {
+                        is.skipBytes(1);
+                        int n = is.readUnsignedShort();
+                        is.skipBytes(n * 4);
+                        break;
+                    }
+                    case RfbConstants.CLIENT_FRAMEBUFFER_UPDATE_REQUEST:
+                        is.skipBytes(9);
+                        if (first) {
+                            sendUpdate(os, 0, 0, width, height, random.nextInt());
+                            first = false;
+                        } else {
+                            Thread.sleep(updateIntervalMillis);
+                            int w = Math.min(updateSize, width);
+                            int h = Math.min(updateSize, height);
+                            sendUpdate(os, random.nextInt(width - w + 1), random.nextInt(height - h + 1), w, h, random.nextInt());
+                        }
+                        break;
+                    case RfbConstants.CLIENT_KEYBOARD_EVENT:
+                        is.skipBytes(7);
+                        break;
+                    case RfbConstants.CLIENT_POINTER_EVENT:
+                        is.skipBytes(5);
+                        break;
+                    case RfbConstants.CLIENT_CUT_TEXT: {
+                        is.skipBytes(3);
+                        int length = is.readInt();
+                        is.skipBytes(length);
+                        break;
+                    }
+                    default:
+                        throw new IOException("Unexpected client message " + messageType);
+                }
+            }
+        } catch (IOException e) {
+            // the client went away
+        } catch (InterruptedException e) {
+            // the server is going away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+
+    private void handshake(DataInputStream is, DataOutputStream os) throws IOException {
+        os.write((RfbConstants.RFB_PROTOCOL_VERSION + "\n").getBytes(RfbConstants.CHARSET));
+        os.flush();
+        is.readFully(new byte[12]);
+
+        os.writeInt(RfbConstants.NO_AUTH);
+        os.flush();
+
+        // shared flag
+        is.readUnsignedByte();
+
+        os.writeShort(width);
+        os.writeShort(height);
+
+        // 32 bits true color, the format the console proxy asks for anyway
+        os.writeByte(32);
+        os.writeByte(24);
+        os.writeByte(RfbConstants.LITTLE_ENDIAN);
+        os.writeByte(RfbConstants.TRUE_COLOR);
+        os.writeShort(255);
+        os.writeShort(255);
+        os.writeShort(255);
+        os.writeByte(16);
+        os.writeByte(8);
+        os.writeByte(0);
+        os.write(new byte[3]);
+
+        byte[] name = "stub".getBytes(RfbConstants.CHARSET);
+        os.writeInt(name.length);
+        os.write(name);
+        os.flush();
+    }
+
+    private void sendUpdate(DataOutputStream os, int x, int y, int w, int h, int color) throws IOException {
+        os.writeByte(0); // FramebufferUpdate
+        os.writeByte(0);
+        os.writeShort(1);
+        os.writeShort(x);
+        os.writeShort(y);
+        os.writeShort(w);
+        os.writeShort(h);
+        os.writeInt(RfbConstants.ENCODING_RAW);
+
+        byte[] row = new byte[w * 4];
+        for (int i = 0; i < row.length; i += 4) {
+            row[i] = (byte)color;
+            row[i + 1] = (byte)(color >> 8);
+            row[i + 2] = (byte)(color >> 16);
+        }
+        for (int i = 0; i < h; i++)
+            os.write(row);
+        os.flush();
+        updates.incrementAndGet();
+    }
+}
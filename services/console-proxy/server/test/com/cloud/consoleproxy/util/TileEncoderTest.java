@@ -0,0 +1,116 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.consoleproxy.util;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TileEncoderTest {
+
+    private static BufferedImage screen(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        Random random = new Random(1);
+        for (int y = 0; y < height; y += 8) {
+            for (int x = 0; x < width; x += 8) {
+                g.setColor(new Color(random.nextInt(0xffffff)));
+                g.fillRect(x, y, 8, 8);
+            }
+        }
+        g.dispose();
+        return image;
+    }
+
+    private static List<TileInfo> tiles(int count) {
+        List<TileInfo> tiles = new ArrayList<TileInfo>();
+        for (int i = 0; i < count; i++)
+            tiles.add(new TileInfo(0, i, new Rectangle(i * 64, 0, 64, 64)));
+        return tiles;
+    }
+
+    @Test
+    public void testTilesAreMergedIntoOneImage() throws Exception {
+        TileEncoder encoder = new TileEncoder();
+        BufferedImage source = screen(800, 600);
+
+        BufferedImage frame = ImageIO.read(new ByteArrayInputStream(encoder.encodeFrame(source)));
+        Assert.assertEquals(800, frame.getWidth());
+        Assert.assertEquals(600, frame.getHeight());
+
+        BufferedImage strip = ImageIO.read(new ByteArrayInputStream(encoder.encodeTiles(source, tiles(3), 64, 64)));
+        Assert.assertEquals(192, strip.getWidth());
+        Assert.assertEquals(64, strip.getHeight());
+
+        Assert.assertEquals(2, encoder.getFrames());
+        Assert.assertTrue(encoder.getAverageBytesPerFrame() > 0);
+        Assert.assertTrue(encoder.getLastBytesPerFrame() > 0);
+    }
+
+    @Test
+    public void testRetainedImagesAreBounded() throws Exception {
+        TileEncoder encoder = new TileEncoder();
+        BufferedImage source = screen(800, 600);
+
+        encoder.encodeFrame(source);
+        encoder.encodeTiles(source, tiles(3), 64, 64);
+        Assert.assertEquals((800 * 600 + 192 * 64) * 3, encoder.getRetainedBytes());
+
+        // a strip larger than the retained size is allocated for the frame only
+        BufferedImage strip = ImageIO.read(new ByteArrayInputStream(encoder.encodeTiles(source, tiles(100), 64, 64)));
+        Assert.assertEquals(6400, strip.getWidth());
+        Assert.assertEquals((800 * 600 + 192 * 64) * 3, encoder.getRetainedBytes());
+
+        encoder.releaseBuffers();
+        Assert.assertEquals(0, encoder.getRetainedBytes());
+        BufferedImage frame = ImageIO.read(new ByteArrayInputStream(encoder.encodeFrame(source)));
+        Assert.assertEquals(800, frame.getWidth());
+        Assert.assertEquals(800 * 600 * 3, encoder.getRetainedBytes());
+    }
+
+    @Test
+    public void testQualityFollowsRoundTrip() throws Exception {
+        TileEncoder encoder = new TileEncoder();
+        BufferedImage source = screen(640, 64);
+        int bytesAtDefault = encoder.encodeTiles(source, tiles(10), 64, 64).length;
+
+        for (int i = 0; i < 20; i++)
+            encoder.onRoundTrip(1000);
+        Assert.assertEquals(TileEncoder.MIN_QUALITY, encoder.getQuality(), 0.001);
+        int bytesWhenSlow = encoder.encodeTiles(source, tiles(10), 64, 64).length;
+        Assert.assertTrue(bytesWhenSlow < bytesAtDefault);
+
+        // viewers in the background are not a measure of the link
+        encoder.onRoundTrip(60000);
+        Assert.assertEquals(1000, encoder.getRoundTripMillis());
+
+        for (int i = 0; i < 40; i++)
+            encoder.onRoundTrip(20);
+        Assert.assertEquals(TileEncoder.MAX_QUALITY, encoder.getQuality(), 0.001);
+    }
+}
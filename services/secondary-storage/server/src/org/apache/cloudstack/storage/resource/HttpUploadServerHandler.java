@@ -21,11 +21,13 @@ import static io.netty.handler.codec.http.HttpHeaders.Names.CONNECTION;
 import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_LENGTH;
 import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_TYPE;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.cloudstack.storage.template.UploadEntity;
 import org.apache.cloudstack.utils.imagestore.ImageStoreUtil;
@@ -51,33 +53,24 @@ import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.codec.http.QueryStringDecoder;
-import io.netty.handler.codec.http.multipart.DefaultHttpDataFactory;
-import io.netty.handler.codec.http.multipart.DiskFileUpload;
-import io.netty.handler.codec.http.multipart.FileUpload;
-import io.netty.handler.codec.http.multipart.HttpDataFactory;
-import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder;
-import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder.ErrorDataDecoderException;
-import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder.IncompatibleDataDecoderException;
-import io.netty.handler.codec.http.multipart.InterfaceHttpData;
-import io.netty.handler.codec.http.multipart.InterfaceHttpData.HttpDataType;
 import io.netty.util.CharsetUtil;
 
 public class HttpUploadServerHandler extends SimpleChannelInboundHandler<HttpObject> {
     private static final Logger logger = Logger.getLogger(HttpUploadServerHandler.class.getName());
 
-    private static final HttpDataFactory factory = new DefaultHttpDataFactory(true);
-
     private final StringBuilder responseContent = new StringBuilder();
 
     private HttpRequest request;
 
-    private HttpPostRequestDecoder decoder;
+    private MultipartUploadWriter writer;
 
     private NfsSecondaryStorageResource storageResource;
 
     private String uuid;
 
-    private boolean requestProcessed = false;
+    private volatile boolean requestProcessed = false;
+
+    private final AtomicBoolean holdsUploadSlot = new AtomicBoolean();
 
     private static final String HEADER_SIGNATURE = "X-signature";
 
@@ -93,8 +86,10 @@ public class HttpUploadServerHandler extends SimpleChannelInboundHandler<HttpObj
 
     @Override
     public void channelUnregistered(ChannelHandlerContext ctx) throws Exception {
-        if (decoder != null) {
-            decoder.cleanFiles();
+        if (writer != null) {
+            writer.abort();
+            writer = null;
+            releaseUploadSlot();
         }
         requestProcessed = false;
     }
@@ -105,6 +100,11 @@ public class HttpUploadServerHandler extends SimpleChannelInboundHandler<HttpObj
             String message = "file receive failed or connection closed prematurely.";
             logger.error(message);
             storageResource.updateStateMapWithError(uuid, message);
+            if (writer != null) {
+                writer.abort();
+                writer = null;
+            }
+            releaseUploadSlot();
         }
     }
 
@@ -153,6 +153,23 @@ public class HttpUploadServerHandler extends SimpleChannelInboundHandler<HttpObj
                 uuid = uriAttributes.get("uuid").get(0);
                 logger.info("URI: uuid=" + uuid);
 
+                String boundary = MultipartUploadWriter.getBoundary(request.headers().get(CONTENT_TYPE));
+                if (boundary == null) {
+                    logger.error("received a post request that is not multipart/form-data");
+                    responseContent.append("only multipart/form-data uploads are allowed");
+                    writeResponse(ctx.channel(), HttpResponseStatus.BAD_REQUEST);
+                    requestProcessed = true;
+                    return;
+                }
+                // the one time post url is not used yet, the upload can be sent again later
+                if (!acquireUploadSlot()) {
+                    logger.warn("too many uploads in progress, rejecting upload of " + uuid);
+                    responseContent.append("too many uploads in progress, try again later");
+                    writeResponse(ctx.channel(), HttpResponseStatus.SERVICE_UNAVAILABLE);
+                    requestProcessed = true;
+                    return;
+                }
+
                 UploadEntity uploadEntity = null;
                 try {
                     // Validate the request here
@@ -164,6 +181,7 @@ public class HttpUploadServerHandler extends SimpleChannelInboundHandler<HttpObj
                     responseContent.append(ex.getMessage());
                     writeResponse(ctx.channel(), HttpResponseStatus.BAD_REQUEST);
                     requestProcessed = true;
+                    releaseUploadSlot();
                     return;
                 }
                 if (uploadEntity == null) {
@@ -171,21 +189,12 @@ public class HttpUploadServerHandler extends SimpleChannelInboundHandler<HttpObj
                     responseContent.append("Internal Server Error");
                     writeResponse(ctx.channel(), HttpResponseStatus.INTERNAL_SERVER_ERROR);
                     requestProcessed = true;
+                    releaseUploadSlot();
                     return;
                 }
-                //set the base directory to download the file
-                DiskFileUpload.baseDirectory = uploadEntity.getInstallPathPrefix();
-                logger.info("base directory: " + DiskFileUpload.baseDirectory);
-                try {
-                    //initialize the decoder
-                    decoder = new HttpPostRequestDecoder(factory, request);
-                } catch (ErrorDataDecoderException | IncompatibleDataDecoderException e) {
-                    logger.error("exception while initialising the decoder", e);
-                    responseContent.append(e.getMessage());
-                    writeResponse(ctx.channel(), HttpResponseStatus.INTERNAL_SERVER_ERROR);
-                    requestProcessed = true;
-                    return;
-                }
+                logger.info("base directory: " + uploadEntity.getInstallPathPrefix());
+                writer = new MultipartUploadWriter(boundary, new File(uploadEntity.getInstallPathPrefix()), storageResource.getUploadWriteExecutor(),
+                        storageResource.getUploadInFlightBytes(), new UploadListener(ctx.channel(), request, uuid, uploadEntity));
             } else {
                 logger.warn("received a get request");
                 responseContent.append("only post requests are allowed");
@@ -195,80 +204,135 @@ public class HttpUploadServerHandler extends SimpleChannelInboundHandler<HttpObj
             }
 
         }
-        // check if the decoder was constructed before
-        if (decoder != null) {
+        // check if the writer was constructed before
+        if (writer != null) {
             if (msg instanceof HttpContent) {
-                // New chunk is received
+                // New chunk is received, the writer keeps what it needs of it
                 HttpContent chunk = (HttpContent) msg;
                 try {
-                    decoder.offer(chunk);
-                } catch (ErrorDataDecoderException e) {
+                    writer.offer(chunk.content());
+                } catch (IOException e) {
                     logger.error("data decoding exception", e);
                     responseContent.append(e.getMessage());
                     writeResponse(ctx.channel(), HttpResponseStatus.INTERNAL_SERVER_ERROR);
+                    storageResource.updateStateMapWithError(uuid, e.getMessage());
                     requestProcessed = true;
+                    writer.abort();
+                    writer = null;
+                    releaseUploadSlot();
                     return;
                 }
                 if (chunk instanceof LastHttpContent) {
-                    writeResponse(ctx.channel(), readFileUploadData());
-                    reset();
+                    // the whole file is received, the response is sent once it is written and installed
+                    requestProcessed = true;
+                    writer.finish();
+                    writer = null;
+                    request = null;
                 }
             }
         }
 
     }
 
-    private void reset() {
-        request = null;
-        // destroy the decoder to release all resources
-        decoder.destroy();
-        decoder = null;
+    private boolean acquireUploadSlot() {
+        if (storageResource.acquireUploadSlot()) {
+            holdsUploadSlot.set(true);
+            return true;
+        }
+        return false;
     }
 
-    private HttpResponseStatus readFileUploadData() throws IOException {
-        while (decoder.hasNext()) {
-            InterfaceHttpData data = decoder.next();
-            if (data != null) {
-                try {
-                    logger.info("BODY FileUpload: " + data.getHttpDataType().name() + ": " + data);
-                    if (data.getHttpDataType() == HttpDataType.FileUpload) {
-                        FileUpload fileUpload = (FileUpload) data;
-                        if (fileUpload.isCompleted()) {
-                            requestProcessed = true;
-                            String format = ImageStoreUtil.checkTemplateFormat(fileUpload.getFile().getAbsolutePath(), fileUpload.getFilename());
-                            if(StringUtils.isNotBlank(format)) {
-                                String errorString = "File type mismatch between the sent file and the actual content. Received: " + format;
-                                logger.error(errorString);
-                                responseContent.append(errorString);
-                                storageResource.updateStateMapWithError(uuid, errorString);
-                                return HttpResponseStatus.BAD_REQUEST;
-                            }
-                            String status = storageResource.postUpload(uuid, fileUpload.getFile().getName());
-                            if (status != null) {
-                                responseContent.append(status);
-                                storageResource.updateStateMapWithError(uuid, status);
-                                return HttpResponseStatus.INTERNAL_SERVER_ERROR;
-                            } else {
-                                responseContent.append("upload successful.");
-                                return HttpResponseStatus.OK;
-                            }
+    private void releaseUploadSlot() {
+        if (holdsUploadSlot.compareAndSet(true, false)) {
+            storageResource.releaseUploadSlot();
+        }
+    }
+
+    private class UploadListener implements MultipartUploadWriter.Listener {
+        private final Channel channel;
+        private final HttpRequest request;
+        private final String uuid;
+        private final UploadEntity uploadEntity;
+
+        UploadListener(Channel channel, HttpRequest request, String uuid, UploadEntity uploadEntity) {
+            this.channel = channel;
+            this.request = request;
+            this.uuid = uuid;
+            this.uploadEntity = uploadEntity;
+        }
+
+        @Override
+        public void suspend() {
+            channel.config().setAutoRead(false);
+        }
+
+        @Override
+        public void resume() {
+            channel.config().setAutoRead(true);
+        }
+
+        @Override
+        public void written(long bytes) {
+            uploadEntity.incremetByteCount(bytes);
+        }
+
+        @Override
+        public void completed(File file, String filename) {
+            try {
+                HttpResponseStatus status = HttpResponseStatus.UNPROCESSABLE_ENTITY;
+                String message = "received entity is not a file";
+                if (file != null) {
+                    uploadEntity.setUploadCompleted();
+                    logger.info("received " + uploadEntity.getDownloadedsize() + " bytes of " + filename + " for " + uuid + " at " + uploadEntity.getUploadRate() +
+                            " bytes/s");
+                    String format = ImageStoreUtil.checkTemplateFormat(file.getAbsolutePath(), filename);
+                    if (StringUtils.isNotBlank(format)) {
+                        message = "File type mismatch between the sent file and the actual content. Received: " + format;
+                        logger.error(message);
+                        storageResource.updateStateMapWithError(uuid, message);
+                        status = HttpResponseStatus.BAD_REQUEST;
+                    } else {
+                        String result = storageResource.postUpload(uuid, file.getName());
+                        if (result != null) {
+                            message = result;
+                            storageResource.updateStateMapWithError(uuid, result);
+                            status = HttpResponseStatus.INTERNAL_SERVER_ERROR;
+                        } else {
+                            message = "upload successful.";
+                            status = HttpResponseStatus.OK;
                         }
                     }
-                } finally {
-                    data.release();
                 }
+                writeResponse(channel, request, status, message);
+            } finally {
+                releaseUploadSlot();
+            }
+        }
+
+        @Override
+        public void failed(String message) {
+            try {
+                logger.error(message);
+                requestProcessed = true;
+                storageResource.updateStateMapWithError(uuid, message);
+                writeResponse(channel, request, HttpResponseStatus.INTERNAL_SERVER_ERROR, message).addListener(ChannelFutureListener.CLOSE);
+            } finally {
+                releaseUploadSlot();
             }
         }
-        responseContent.append("received entity is not a file");
-        return HttpResponseStatus.UNPROCESSABLE_ENTITY;
     }
 
     private void writeResponse(Channel channel, HttpResponseStatus statusCode) {
-        // Convert the response content to a ChannelBuffer.
-        ByteBuf buf = copiedBuffer(responseContent.toString(), CharsetUtil.UTF_8);
+        String content = responseContent.toString();
         responseContent.setLength(0);
+        writeResponse(channel, request, statusCode, content);
+    }
+
+    private static ChannelFuture writeResponse(Channel channel, HttpRequest request, HttpResponseStatus statusCode, String content) {
+        // Convert the response content to a ChannelBuffer.
+        ByteBuf buf = copiedBuffer(content, CharsetUtil.UTF_8);
         // Decide whether to close the connection or not.
-        boolean close = HttpHeaders.Values.CLOSE.equalsIgnoreCase(request.headers().get(CONNECTION)) ||
+        boolean close = request == null || HttpHeaders.Values.CLOSE.equalsIgnoreCase(request.headers().get(CONNECTION)) ||
             request.getProtocolVersion().equals(HttpVersion.HTTP_1_0) && !HttpHeaders.Values.KEEP_ALIVE.equalsIgnoreCase(request.headers().get(CONNECTION));
         // Build the response object.
         FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, statusCode, buf);
@@ -283,6 +347,7 @@ public class HttpUploadServerHandler extends SimpleChannelInboundHandler<HttpObj
         if (close) {
             future.addListener(ChannelFutureListener.CLOSE);
         }
+        return future;
     }
 
     @Override
@@ -0,0 +1,453 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.storage.resource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.log4j.Logger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Receives the body of a multipart/form-data upload and writes the content of its first file part
+ * to a file in the given directory.
+ *
+ * The body is parsed on the event loop as it arrives, the file content is not copied: slices of the
+ * received buffers are queued and written with gathering writes to a FileChannel by a task on the
+ * writer executor, one task at a time per upload. When the bytes queued for an upload go above the
+ * in-flight limit the listener is asked to stop reading from the connection, it is asked to resume
+ * once half of them are written.
+ */
+public class MultipartUploadWriter {
+    private static final Logger s_logger = Logger.getLogger(MultipartUploadWriter.class);
+
+    private static final Pattern FILENAME = Pattern.compile(";\\s*filename=(\"([^\"]*)\"|[^;\\s]*)", Pattern.CASE_INSENSITIVE);
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+    private static final int MAX_GATHERED_BUFFERS = 64;
+
+    private static final int PREAMBLE = 0;
+    private static final int HEADERS = 1;
+    private static final int BODY = 2;
+    private static final int BOUNDARY = 3;
+    private static final int EPILOGUE = 4;
+
+    public interface Listener {
+        /** The bytes waiting to be written went above the in-flight limit, stop reading. */
+        void suspend();
+
+        /** The writer caught up, reading can continue. */
+        void resume();
+
+        void written(long bytes);
+
+        /**
+         * Called on the writer executor once the whole body is received and written, with a null
+         * file if the body did not contain a file part. The file is deleted when this returns.
+         */
+        void completed(File file, String filename);
+
+        /** Called on the writer executor when the file could not be written. */
+        void failed(String message);
+    }
+
+    private final byte[] delimiter;
+    private final File dir;
+    private final Executor executor;
+    private final long maxInFlightBytes;
+    private final Listener listener;
+
+    // parser state, only used by the thread offering the content
+    private int state = PREAMBLE;
+    private int matched;
+    private int headerBytes;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private byte lastByte;
+    private String partFilename;
+    private boolean writing;
+
+    // set on the event loop before the writer is scheduled for the data of the file part
+    private volatile File file;
+    private volatile String filename;
+    private volatile boolean fileCompleted;
+
+    private final Queue<ByteBuf> queue = new ConcurrentLinkedQueue<ByteBuf>();
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    private final AtomicBoolean suspended = new AtomicBoolean();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean finished;
+    private volatile boolean aborted;
+
+    // writer state, only used by the task draining the queue
+    private FileChannel channel;
+    private volatile long bytesWritten;
+    private boolean done;
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    public MultipartUploadWriter(String boundary, File dir, Executor executor, long maxInFlightBytes, Listener listener) {
+        delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.dir = dir;
+        this.executor = executor;
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.listener = listener;
+        // the opening boundary is not always preceded by a line break
+        matched = 2;
+    }
+
+    /**
+     * Returns the boundary of a multipart/form-data content type, or null for other content types.
+     */
+    public static String getBoundary(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        String[] parts = contentType.split(";");
+        if (!parts[0].trim().equalsIgnoreCase("multipart/form-data")) {
+            return null;
+        }
+        for (int i = 1; i < parts.length; i++) {
+            String part = parts[i].trim();
+            if (part.regionMatches(true, 0, "boundary=", 0, 9)) {
+                String boundary = part.substring(9).trim();
+                if (boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                    boundary = boundary.substring(1, boundary.length() - 1);
+                }
+                return boundary.isEmpty() ? null : boundary;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses the next part of the body. The content is not released, the slices written keep a
+     * reference of their own.
+     */
+    public void offer(ByteBuf content) throws IOException {
+        int index = content.readerIndex();
+        int end = content.writerIndex();
+        while (index < end) {
+            switch (state) {
+            case PREAMBLE:
+            case BODY:
+                index = readData(content, index, end);
+                break;
+            case BOUNDARY:
+                index = readBoundaryEnd(content, index, end);
+                break;
+            case HEADERS:
+                index = readHeaders(content, index, end);
+                break;
+            default:
+                // the epilogue is ignored
+                index = end;
+            }
+        }
+    }
+
+    /**
+     * The whole body was received, the listener is called once what is left is written.
+     */
+    public void finish() {
+        finished = true;
+        schedule();
+    }
+
+    /**
+     * Drops what is not written yet and deletes the file, the listener is not called.
+     */
+    public void abort() {
+        aborted = true;
+        schedule();
+    }
+
+    private int readData(ByteBuf buf, int index, int end) {
+        boolean keep = state == BODY && writing;
+        if (matched > 0) {
+            // a delimiter started at the end of the previous buffer
+            int held = matched;
+            int i = index;
+            while (matched < delimiter.length && i < end && buf.getByte(i) == delimiter[matched]) {
+                matched++;
+                i++;
+            }
+            if (matched == delimiter.length) {
+                endOfPart();
+                return i;
+            }
+            if (i == end) {
+                return end;
+            }
+            // the bytes held back were data after all, the ones of this buffer are scanned again
+            if (keep) {
+                write(Unpooled.wrappedBuffer(delimiter, 0, held));
+            }
+            matched = 0;
+        }
+
+        int i = index;
+        while (i < end) {
+            int cr = buf.indexOf(i, end, delimiter[0]);
+            if (cr < 0) {
+                break;
+            }
+            int length = Math.min(delimiter.length, end - cr);
+            int k = 1;
+            while (k < length && buf.getByte(cr + k) == delimiter[k]) {
+                k++;
+            }
+            if (k == delimiter.length) {
+                writeSlice(buf, index, cr - index, keep);
+                endOfPart();
+                return cr + k;
+            }
+            if (k == length) {
+                // hold back what may be the start of a delimiter until the next buffer
+                writeSlice(buf, index, cr - index, keep);
+                matched = k;
+                return end;
+            }
+            i = cr + 1;
+        }
+        writeSlice(buf, index, end - index, keep);
+        return end;
+    }
+
+    private void endOfPart() {
+        matched = 0;
+        if (state == BODY && writing) {
+            writing = false;
+            fileCompleted = true;
+        }
+        state = BOUNDARY;
+        lastByte = 0;
+        headerBytes = 0;
+    }
+
+    private int readBoundaryEnd(ByteBuf buf, int index, int end) throws IOException {
+        while (index < end) {
+            byte b = buf.getByte(index++);
+            if (lastByte == '-' && b == '-') {
+                state = EPILOGUE;
+                return index;
+            }
+            if (lastByte == '\r' && b == '\n') {
+                state = HEADERS;
+                line.reset();
+                partFilename = null;
+                return index;
+            }
+            lastByte = b;
+            if (++headerBytes > MAX_HEADER_BYTES) {
+                throw new IOException("Malformed multipart body, no line break after boundary");
+            }
+        }
+        return index;
+    }
+
+    private int readHeaders(ByteBuf buf, int index, int end) throws IOException {
+        while (index < end) {
+            byte b = buf.getByte(index++);
+            if (++headerBytes > MAX_HEADER_BYTES) {
+                throw new IOException("Multipart headers longer than " + MAX_HEADER_BYTES + " bytes");
+            }
+            if (b != '\n') {
+                line.write(b);
+                continue;
+            }
+            String header = new String(line.toByteArray(), StandardCharsets.UTF_8).trim();
+            line.reset();
+            if (!header.isEmpty()) {
+                parseHeader(header);
+                continue;
+            }
+
+            // an empty line ends the headers, only the first file part is kept
+            state = BODY;
+            if (partFilename != null && file == null) {
+                String name = FilenameUtils.getName(partFilename);
+                File partFile = File.createTempFile("FUp_", "_" + name, dir);
+                filename = partFilename;
+                file = partFile;
+                writing = true;
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Writing upload of " + partFilename + " to " + partFile.getAbsolutePath());
+                }
+            }
+            return index;
+        }
+        return index;
+    }
+
+    private void parseHeader(String header) {
+        int colon = header.indexOf(':');
+        if (colon < 0 || !header.substring(0, colon).trim().equalsIgnoreCase("Content-Disposition")) {
+            return;
+        }
+        Matcher matcher = FILENAME.matcher(header.substring(colon + 1));
+        if (matcher.find()) {
+            partFilename = matcher.group(2) != null ? matcher.group(2) : matcher.group(1);
+        }
+    }
+
+    private void writeSlice(ByteBuf buf, int index, int length, boolean keep) {
+        if (keep && length > 0) {
+            write(buf.slice(index, length).retain());
+        }
+    }
+
+    private void write(ByteBuf buf) {
+        if (aborted) {
+            buf.release();
+            return;
+        }
+        long bytes = buf.readableBytes();
+        queue.add(buf);
+        if (inFlightBytes.addAndGet(bytes) > maxInFlightBytes && suspended.compareAndSet(false, true)) {
+            listener.suspend();
+            // the writer may have caught up before it could see the flag
+            resumeIfDrained();
+        }
+        schedule();
+    }
+
+    private void resumeIfDrained() {
+        if (inFlightBytes.get() <= maxInFlightBytes / 2 && suspended.compareAndSet(true, false)) {
+            listener.resume();
+        }
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(drainTask);
+        }
+    }
+
+    private void drain() {
+        ArrayList<ByteBuf> batch = new ArrayList<ByteBuf>(MAX_GATHERED_BUFFERS);
+        while (true) {
+            ByteBuf buf;
+            while (batch.size() < MAX_GATHERED_BUFFERS && (buf = queue.poll()) != null) {
+                batch.add(buf);
+            }
+            if (!batch.isEmpty()) {
+                long bytes = 0;
+                try {
+                    for (ByteBuf b : batch) {
+                        bytes += b.readableBytes();
+                    }
+                    if (!done && !aborted) {
+                        writeBatch(batch, bytes);
+                    }
+                } catch (IOException e) {
+                    s_logger.warn("Unable to write upload to " + file, e);
+                    complete("Unable to write the uploaded file: " + e.getMessage());
+                } finally {
+                    for (ByteBuf b : batch) {
+                        b.release();
+                    }
+                    batch.clear();
+                    inFlightBytes.addAndGet(-bytes);
+                    resumeIfDrained();
+                }
+                continue;
+            }
+
+            if (!done && (aborted || finished)) {
+                complete(null);
+            }
+            scheduled.set(false);
+            // something may have been queued after the queue was found empty
+            if ((queue.isEmpty() && (done || !(aborted || finished))) || !scheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    private void writeBatch(ArrayList<ByteBuf> batch, long bytes) throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        ArrayList<ByteBuffer> buffers = new ArrayList<ByteBuffer>(batch.size());
+        for (ByteBuf b : batch) {
+            if (b.nioBufferCount() == 1) {
+                buffers.add(b.nioBuffer());
+            } else {
+                for (ByteBuffer nioBuffer : b.nioBuffers()) {
+                    buffers.add(nioBuffer);
+                }
+            }
+        }
+        ByteBuffer[] array = buffers.toArray(new ByteBuffer[buffers.size()]);
+        long remaining = bytes;
+        while (remaining > 0) {
+            remaining -= channel.write(array);
+        }
+        bytesWritten += bytes;
+        listener.written(bytes);
+    }
+
+    private void complete(String error) {
+        done = true;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = "Unable to close the uploaded file: " + e.getMessage();
+                }
+            }
+            channel = null;
+        }
+
+        try {
+            if (error != null) {
+                listener.failed(error);
+            } else if (!aborted) {
+                listener.completed(fileCompleted ? file : null, fileCompleted ? filename : null);
+            }
+        } finally {
+            if (file != null && file.exists() && !file.delete()) {
+                s_logger.warn("Unable to delete uploaded file " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+}
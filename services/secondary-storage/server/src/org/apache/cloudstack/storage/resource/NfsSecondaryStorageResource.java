@@ -44,6 +44,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 import javax.naming.ConfigurationException;
 
@@ -158,6 +162,7 @@ import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.S3Utils;
 import com.cloud.utils.S3Utils.FileNamingStrategy;
 import com.cloud.utils.SwiftUtil;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.utils.script.OutputInterpreter;
@@ -211,7 +216,11 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
     protected String _parent = "/mnt/SecStorage";
     final private String _tmpltpp = "template.properties";
     protected String createTemplateFromSnapshotXenScript;
-    private HashMap<String,UploadEntity> uploadEntityStateMap = new HashMap<String,UploadEntity>();
+    private final Map<String,UploadEntity> uploadEntityStateMap = new ConcurrentHashMap<String,UploadEntity>();
+    // uploads received at the same time, and bytes of each upload waiting to be written to the file
+    private Semaphore _uploadSlots = new Semaphore(10);
+    private long _uploadInFlightBytes = 16L * 1024 * 1024;
+    private final ExecutorService _uploadWriteExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("Upload-Writer"));
     private String _ssvmPSK = null;
 
     public void setParentPath(String path) {
@@ -1373,6 +1382,25 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
         s_logger.info("created a thread to start post upload server");
     }
 
+    /**
+     * Takes one of the slots of the uploads that can be received at the same time by this SSVM.
+     */
+    public boolean acquireUploadSlot() {
+        return _uploadSlots.tryAcquire();
+    }
+
+    public void releaseUploadSlot() {
+        _uploadSlots.release();
+    }
+
+    public long getUploadInFlightBytes() {
+        return _uploadInFlightBytes;
+    }
+
+    public ExecutorService getUploadWriteExecutor() {
+        return _uploadWriteExecutor;
+    }
+
     private void savePostUploadPSK(String psk) {
         try {
             FileUtils.writeStringToFile(new File(POST_UPLOAD_KEY_LOCATION),psk, "utf-8");
@@ -1694,13 +1722,18 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
                 answer.setInstallPath(uploadEntity.getTmpltPath());
                 answer.setPhysicalSize(uploadEntity.getPhysicalSize());
                 answer.setDownloadPercent(100);
+                answer.setUploadedBytes(uploadEntity.getDownloadedsize());
+                answer.setUploadRate(uploadEntity.getUploadRate());
                 uploadEntityStateMap.remove(entityUuid);
                 return answer;
             } else if (uploadEntity.getUploadState() == UploadEntity.Status.IN_PROGRESS) {
                 UploadStatusAnswer answer =  new UploadStatusAnswer(cmd, UploadStatus.IN_PROGRESS);
-                long downloadedSize = FileUtils.sizeOfDirectory(new File(uploadEntity.getInstallPathPrefix()));
+                // the bytes written are counted as the file is received
+                long downloadedSize = uploadEntity.getDownloadedsize();
                 int downloadPercent = (int) (100 * downloadedSize / uploadEntity.getContentLength());
                 answer.setDownloadPercent(Math.min(downloadPercent, 100));
+                answer.setUploadedBytes(downloadedSize);
+                answer.setUploadRate(uploadEntity.getUploadRate());
                 return answer;
             }
         }
@@ -2044,6 +2077,9 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
         String value = (String)params.get("scripts.timeout");
         _timeout = NumbersUtil.parseInt(value, 1440) * 1000;
 
+        _uploadSlots = new Semaphore(NumbersUtil.parseInt((String)params.get("upload.max.concurrent"), 10));
+        _uploadInFlightBytes = NumbersUtil.parseLong((String)params.get("upload.max.inflight.mb"), 16) * 1024 * 1024;
+
         _storage = (StorageLayer)params.get(StorageLayer.InstanceConfigKey);
         configureStorageLayerClass(params);
 
@@ -2863,6 +2899,9 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
     }
 
     public void updateStateMapWithError(String uuid,String errorMessage) {
+        if (uuid == null) {
+            return;
+        }
         UploadEntity uploadEntity=null;
         if (uploadEntityStateMap.get(uuid)!=null) {
             uploadEntity=uploadEntityStateMap.get(uuid);
@@ -62,6 +62,7 @@ import com.cloud.storage.template.HttpTemplateDownloader;
 import com.cloud.storage.template.IsoProcessor;
 import com.cloud.storage.template.LocalTemplateDownloader;
 import com.cloud.storage.template.OVAProcessor;
+import com.cloud.storage.template.ParallelHttpTemplateDownloader;
 import com.cloud.storage.template.Processor;
 import com.cloud.storage.template.Processor.FormatInfo;
 import com.cloud.storage.template.QCOW2Processor;
@@ -230,6 +231,8 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
     private String listTmpltScr;
     private String listVolScr;
     private int installTimeoutPerGig = 180 * 60 * 1000;
+    private int httpDownloadStreams = ParallelHttpTemplateDownloader.DEFAULT_STREAMS;
+    private long httpDownloadChunkSize = ParallelHttpTemplateDownloader.DEFAULT_CHUNK_SIZE;
 
     public void setThreadPool(ExecutorService threadPool) {
         this.threadPool = threadPool;
@@ -260,9 +263,16 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
                 td.getDownloadPercent());
 
         switch (status) {
+        case UNRECOVERABLE_ERROR:
+            if (td instanceof ParallelHttpTemplateDownloader && ((ParallelHttpTemplateDownloader)td).isResumable()) {
+                // a new download of the template continues from what was received
+                s_logger.info("Keeping partial download " + td.getDownloadLocalPath() + " of jobId: " + jobId);
+                break;
+            }
+            dj.cleanup();
+            break;
         case ABORTED:
         case NOT_STARTED:
-        case UNRECOVERABLE_ERROR:
             // TODO
             dj.cleanup();
             break;
@@ -397,7 +407,14 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
         ResourceType resourceType = dnld.getResourceType();
 
         File originalTemplate = new File(td.getDownloadLocalPath());
-        String checkSum = computeCheckSum(originalTemplate);
+        String checkSum = null;
+        if (td instanceof ParallelHttpTemplateDownloader) {
+            // computed while downloading
+            checkSum = ((ParallelHttpTemplateDownloader)td).getChecksum();
+        }
+        if (checkSum == null) {
+            checkSum = computeCheckSum(originalTemplate);
+        }
         if (checkSum == null) {
             s_logger.warn("Something wrong happened when try to calculate the checksum of downloaded template!");
         }
@@ -577,7 +594,12 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
                     TemplateDownloader td;
                     if ((uri != null) && (uri.getScheme() != null)) {
                         if (uri.getScheme().equalsIgnoreCase("http") || uri.getScheme().equalsIgnoreCase("https")) {
-                            td = new HttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user, password, proxy, resourceType);
+                            if (httpDownloadStreams > 1) {
+                                td = new ParallelHttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user, password, proxy, resourceType,
+                                        httpDownloadStreams, httpDownloadChunkSize);
+                            } else {
+                                td = new HttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user, password, proxy, resourceType);
+                            }
                         } else if (uri.getScheme().equalsIgnoreCase("file")) {
                             td = new LocalTemplateDownloader(_storage, url, tmpDir, maxTemplateSizeInBytes, new Completion(jobId));
                         } else if (uri.getScheme().equalsIgnoreCase("scp")) {
@@ -989,6 +1011,12 @@ public class DownloadManagerImpl extends ManagerBase implements DownloadManager
         value = (String)params.get("install.timeout.pergig");
         installTimeoutPerGig = NumbersUtil.parseInt(value, 15 * 60) * 1000;
 
+        value = (String)params.get("download.http.streams");
+        httpDownloadStreams = NumbersUtil.parseInt(value, ParallelHttpTemplateDownloader.DEFAULT_STREAMS);
+
+        value = (String)params.get("download.http.chunk.size");
+        httpDownloadChunkSize = NumbersUtil.parseLong(value, ParallelHttpTemplateDownloader.DEFAULT_CHUNK_SIZE / (1024 * 1024)) * 1024 * 1024;
+
         value = (String)params.get("install.numthreads");
         final int numInstallThreads = NumbersUtil.parseInt(value, 10);
 
@@ -21,7 +21,9 @@ package org.apache.cloudstack.storage.template;
 import com.cloud.storage.Storage;
 
 public class UploadEntity {
-    private long downloadedsize;
+    private volatile long downloadedsize;
+    private final long uploadStartTime = System.currentTimeMillis();
+    private volatile long uploadEndTime;
     private String filename;
     private String installPathPrefix;
     private String templatePath;
@@ -88,6 +90,18 @@ public class UploadEntity {
            this.downloadedsize+= numberOfBytes;
     }
 
+    public void setUploadCompleted() {
+        this.uploadEndTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the rate the file was received at so far, in bytes per second.
+     */
+    public long getUploadRate() {
+        long end = uploadEndTime > 0 ? uploadEndTime : System.currentTimeMillis();
+        return downloadedsize * 1000 / Math.max(1, end - uploadStartTime);
+    }
+
     public String getFilename() {
         return filename;
     }
@@ -0,0 +1,249 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.cloudstack.storage.resource;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+public class MultipartUploadWriterTest {
+    private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+    private File dir;
+    private byte[] content;
+
+    // tasks of the writer are run when the test decides to
+    private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+    private final Executor executor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+    };
+
+    private class RecordingListener implements MultipartUploadWriter.Listener {
+        int suspended;
+        int resumed;
+        long written;
+        boolean completed;
+        byte[] received;
+        String filename;
+        String error;
+
+        @Override
+        public void suspend() {
+            suspended++;
+        }
+
+        @Override
+        public void resume() {
+            resumed++;
+        }
+
+        @Override
+        public void written(long bytes) {
+            written += bytes;
+        }
+
+        @Override
+        public void completed(File file, String filename) {
+            completed = true;
+            this.filename = filename;
+            if (file != null) {
+                assertEquals(dir, file.getParentFile());
+                try {
+                    received = Files.readAllBytes(file.toPath());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        @Override
+        public void failed(String message) {
+            error = message;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("upload").toFile();
+        content = new byte[256 * 1024];
+        new Random(1).nextBytes(content);
+        // things that look like the start of a delimiter but are not
+        byte[] almost = ("\r\n--" + BOUNDARY.substring(0, 20)).getBytes(StandardCharsets.ISO_8859_1);
+        System.arraycopy(almost, 0, content, 1000, almost.length);
+        System.arraycopy(almost, 0, content, content.length - almost.length, almost.length);
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private byte[] body(boolean withFile) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("--" + BOUNDARY + "\r\n" + "Content-Disposition: form-data; name=\"description\"\r\n\r\n" + "some text\r\n").getBytes(StandardCharsets.UTF_8));
+        if (withFile) {
+            out.write(("--" + BOUNDARY + "\r\n" + "Content-Disposition: form-data; name=\"file\"; filename=\"C:\\images\\disk.vhd\"\r\n"
+                    + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            out.write(content);
+            out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+        }
+        out.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+
+    private void offer(MultipartUploadWriter writer, byte[] body, int chunkSize, boolean runTasks) throws IOException {
+        List<ByteBuf> chunks = new ArrayList<ByteBuf>();
+        for (int offset = 0; offset < body.length; offset += chunkSize) {
+            ByteBuf chunk = Unpooled.wrappedBuffer(body, offset, Math.min(chunkSize, body.length - offset));
+            chunks.add(chunk);
+            writer.offer(chunk);
+            // released by the pipeline once it is read
+            chunk.release();
+            if (runTasks) {
+                runTasks();
+            }
+        }
+        runTasks();
+        for (ByteBuf chunk : chunks) {
+            assertEquals(0, chunk.refCnt());
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    @Test
+    public void testFileIsWrittenWhateverTheChunks() throws Exception {
+        byte[] body = body(true);
+        for (int chunkSize : new int[] {1, 7, 73, 8192, body.length}) {
+            RecordingListener listener = new RecordingListener();
+            MultipartUploadWriter writer = new MultipartUploadWriter(BOUNDARY, dir, executor, Long.MAX_VALUE, listener);
+            offer(writer, body, chunkSize, chunkSize > 1000);
+            assertFalse(listener.completed);
+            writer.finish();
+            runTasks();
+
+            assertTrue(listener.completed);
+            assertNull(listener.error);
+            assertEquals("C:\\images\\disk.vhd", listener.filename);
+            assertArrayEquals("chunk size " + chunkSize, content, listener.received);
+            assertEquals(content.length, listener.written);
+            assertEquals(content.length, writer.getBytesWritten());
+            // the file is removed once it is installed
+            assertEquals(0, dir.listFiles().length);
+        }
+    }
+
+    @Test
+    public void testBodyWithoutFile() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        MultipartUploadWriter writer = new MultipartUploadWriter(BOUNDARY, dir, executor, Long.MAX_VALUE, listener);
+        offer(writer, body(false), 100, true);
+        writer.finish();
+        runTasks();
+
+        assertTrue(listener.completed);
+        assertNull(listener.received);
+        assertNull(listener.filename);
+    }
+
+    @Test
+    public void testReadingIsSuspendedWhileTheWriterIsBehind() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        MultipartUploadWriter writer = new MultipartUploadWriter(BOUNDARY, dir, executor, 16 * 1024, listener);
+        byte[] body = body(true);
+        int offset = 0;
+        while (listener.suspended == 0) {
+            ByteBuf chunk = Unpooled.wrappedBuffer(body, offset, 4096);
+            writer.offer(chunk);
+            chunk.release();
+            offset += 4096;
+        }
+        assertEquals(0, listener.resumed);
+        runTasks();
+        assertEquals(1, listener.resumed);
+
+        ByteBuf rest = Unpooled.wrappedBuffer(body, offset, body.length - offset);
+        writer.offer(rest);
+        rest.release();
+        writer.finish();
+        runTasks();
+        assertArrayEquals(content, listener.received);
+        assertEquals(listener.suspended, listener.resumed);
+    }
+
+    @Test
+    public void testAbortDeletesTheFile() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        MultipartUploadWriter writer = new MultipartUploadWriter(BOUNDARY, dir, executor, Long.MAX_VALUE, listener);
+        byte[] body = body(true);
+        ByteBuf chunk = Unpooled.wrappedBuffer(body, 0, body.length / 2);
+        writer.offer(chunk);
+        chunk.release();
+        runTasks();
+        assertEquals(1, dir.listFiles().length);
+
+        writer.abort();
+        runTasks();
+        assertEquals(0, chunk.refCnt());
+        assertEquals(0, dir.listFiles().length);
+        assertFalse(listener.completed);
+        assertNull(listener.error);
+    }
+
+    @Test
+    public void testGetBoundary() {
+        assertEquals(BOUNDARY, MultipartUploadWriter.getBoundary("multipart/form-data; boundary=" + BOUNDARY));
+        assertEquals("abc", MultipartUploadWriter.getBoundary("Multipart/Form-Data; charset=UTF-8; Boundary=\"abc\""));
+        assertNull(MultipartUploadWriter.getBoundary("application/x-www-form-urlencoded"));
+        assertNull(MultipartUploadWriter.getBoundary("multipart/form-data"));
+        assertNull(MultipartUploadWriter.getBoundary(null));
+    }
+}
@@ -0,0 +1,191 @@
+# Licensed to the Apache Software Foundation (ASF) under one
+# or more contributor license agreements.  See the NOTICE file
+# distributed with this work for additional information
+# regarding copyright ownership.  The ASF licenses this file
+# to you under the Apache License, Version 2.0 (the
+# "License"); you may not use this file except in compliance
+# with the License.  You may obtain a copy of the License at
+#
+#   http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing,
+# software distributed under the License is distributed on an
+# "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+# KIND, either express or implied.  See the License for the
+# specific language governing permissions and limitations
+# under the License.
+""" Stress test for host capacity accounting under concurrent deployments,
+    with and without capacity.reservation.optimistic
+"""
+import time
+from threading import Thread
+
+from nose.plugins.attrib import attr
+from marvin.cloudstackTestCase import cloudstackTestCase
+from marvin.lib.utils import cleanup_resources
+from marvin.lib.base import (Account,
+                             ServiceOffering,
+                             VirtualMachine,
+                             Configurations
+                             )
+from marvin.lib.common import (get_domain,
+                               get_zone,
+                               get_template
+                               )
+
+
+class TestConcurrentDeployCapacity(cloudstackTestCase):
+
+    # vms deployed at the same time in each round
+    concurrentDeployments = 20
+
+    @classmethod
+    def setUpClass(cls):
+        testClient = super(TestConcurrentDeployCapacity, cls).getClsTestClient()
+        cls.apiclient = testClient.getApiClient()
+        cls.testdata = testClient.getParsedTestDataConfig()
+        cls.hypervisor = cls.testClient.getHypervisorInfo()
+
+        cls.domain = get_domain(cls.apiclient)
+        cls.zone = get_zone(cls.apiclient, testClient.getZoneForTests())
+        cls.template = get_template(
+            cls.apiclient,
+            cls.zone.id,
+            cls.testdata["ostype"])
+
+        cls._cleanup = []
+        cls.service_offering = ServiceOffering.create(
+            cls.apiclient,
+            cls.testdata["service_offerings"]["tiny"]
+        )
+        cls._cleanup.append(cls.service_offering)
+        cls.account = Account.create(
+            cls.apiclient,
+            cls.testdata["account"],
+            domainid=cls.domain.id
+        )
+        cls._cleanup.append(cls.account)
+
+        config = Configurations.list(
+            cls.apiclient,
+            name="capacity.reservation.optimistic"
+        )
+        cls.originalMode = config[0].value
+        return
+
+    @classmethod
+    def tearDownClass(cls):
+        try:
+            Configurations.update(
+                cls.apiclient,
+                "capacity.reservation.optimistic",
+                cls.originalMode)
+            cleanup_resources(cls.apiclient, cls._cleanup)
+        except Exception as e:
+            raise Exception("Warning: Exception during cleanup : %s" % e)
+
+    def setUp(self):
+        self.apiclient = self.testClient.getApiClient()
+        self.dbclient = self.testClient.getDbConnection()
+        self.cleanup = []
+
+        if self.hypervisor.lower() != "simulator":
+            self.skipTest("Stress test only runs against the simulator")
+
+    def tearDown(self):
+        try:
+            cleanup_resources(self.apiclient, self.cleanup)
+        except Exception as e:
+            raise Exception("Warning: Exception during cleanup : %s" % e)
+        return
+
+    def getAllocatedCapacity(self):
+        """ Sum of used and reserved cpu and memory of all hosts in the zone
+        """
+        result = self.dbclient.execute(
+            "select capacity_type, sum(used_capacity + reserved_capacity) "
+            "from op_host_capacity where capacity_type in (0, 1) and "
+            "data_center_id = (select id from data_center where uuid = '%s') "
+            "group by capacity_type;" % self.zone.id
+        )
+        return dict((int(row[0]), int(row[1])) for row in result)
+
+    def deployConcurrently(self):
+        vms = []
+        failures = []
+
+        def deploy(index):
+            try:
+                vms.append(VirtualMachine.create(
+                    self.apiclient,
+                    self.testdata["small"],
+                    templateid=self.template.id,
+                    accountid=self.account.name,
+                    domainid=self.account.domainid,
+                    serviceofferingid=self.service_offering.id,
+                    zoneid=self.zone.id
+                ))
+            except Exception as e:
+                failures.append(e)
+
+        threads = [Thread(target=deploy, args=(i,))
+                   for i in range(self.concurrentDeployments)]
+        start = time.time()
+        for thread in threads:
+            thread.start()
+        for thread in threads:
+            thread.join()
+        elapsed = time.time() - start
+        return vms, failures, elapsed
+
+    def runRound(self, optimistic):
+        Configurations.update(
+            self.apiclient,
+            "capacity.reservation.optimistic",
+            "true" if optimistic else "false")
+
+        before = self.getAllocatedCapacity()
+        vms, failures, elapsed = self.deployConcurrently()
+        self.cleanup.extend(vms)
+        self.assertEqual(
+            len(failures),
+            0,
+            "Deployments failed with optimistic=%s: %s" % (optimistic, failures))
+
+        # every vm is counted exactly once, whichever path allocated it
+        after = self.getAllocatedCapacity()
+        cpu = self.service_offering.cpunumber * self.service_offering.cpuspeed
+        ram = self.service_offering.memory * 1024 * 1024
+        self.assertEqual(
+            after.get(1, 0) - before.get(1, 0),
+            cpu * len(vms),
+            "Allocated cpu does not match the deployed vms")
+        self.assertEqual(
+            after.get(0, 0) - before.get(0, 0),
+            ram * len(vms),
+            "Allocated memory does not match the deployed vms")
+
+        self.debug("optimistic=%s: %d vms in %.1f s, %.2f deployments/s" % (
+            optimistic, len(vms), elapsed, len(vms) / elapsed))
+
+        cleanup_resources(self.apiclient, self.cleanup)
+        self.cleanup = []
+        return elapsed
+
+    @attr(tags=["advanced", "basic", "simulator"], required_hardware="false")
+    def test_01_concurrent_deploy_capacity(self):
+        """ Deploy vms concurrently with row locking and with optimistic
+            capacity reservation
+        # 1. Deploy a batch of vms in parallel with
+             capacity.reservation.optimistic false
+        # 2. Verify all of them run and the host capacity grew by exactly
+             their cpu and memory
+        # 3. Repeat with capacity.reservation.optimistic true
+        # 4. Log the throughput of both rounds
+        """
+        lockingTime = self.runRound(False)
+        optimisticTime = self.runRound(True)
+        self.debug("Concurrent deployments took %.1f s with row locks and "
+                   "%.1f s with optimistic reservation" %
+                   (lockingTime, optimisticTime))
+        return
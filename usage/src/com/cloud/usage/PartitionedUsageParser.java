@@ -0,0 +1,136 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Parses the usage of the accounts on a pool of workers.  The accounts are
+ * dealt round robin to one partition per worker, every partition is parsed in
+ * its own transaction.  The partitions wait for each other before ending
+ * their transaction, and only commit if every partition was parsed.
+ */
+public class PartitionedUsageParser<T> {
+    public static final Logger s_logger = Logger.getLogger(PartitionedUsageParser.class.getName());
+
+    /**
+     * Called on the worker thread of a partition.
+     */
+    public interface PartitionHandler<T> {
+        void begin(int partition);
+
+        boolean parse(int partition, T item);
+
+        /**
+         * Called even if begin() failed.
+         *
+         * @param commit false if any partition failed to parse.
+         */
+        void end(int partition, boolean commit);
+    }
+
+    private final int _partitions;
+    private final ExecutorService _executor;
+
+    public PartitionedUsageParser(final String name, final int partitions) {
+        _partitions = partitions;
+        _executor = Executors.newFixedThreadPool(partitions, new NamedThreadFactory(name));
+    }
+
+    public int getPartitions() {
+        return _partitions;
+    }
+
+    /**
+     * @return true if every item was parsed and the partitions committed.
+     */
+    public boolean parse(final List<T> items, final PartitionHandler<T> handler) throws InterruptedException {
+        final List<List<T>> partitions = new ArrayList<List<T>>(_partitions);
+        for (int i = 0; i < _partitions; i++) {
+            partitions.add(new ArrayList<T>(items.size() / _partitions + 1));
+        }
+        for (int i = 0; i < items.size(); i++) {
+            partitions.get(i % _partitions).add(items.get(i));
+        }
+
+        final AtomicBoolean failed = new AtomicBoolean();
+        final CountDownLatch parsed = new CountDownLatch(_partitions);
+        final CountDownLatch ended = new CountDownLatch(_partitions);
+        for (int i = 0; i < _partitions; i++) {
+            final int partition = i;
+            _executor.execute(new ManagedContextRunnable() {
+                @Override
+                protected void runInContext() {
+                    try {
+                        parsePartition(partition, partitions.get(partition), handler, failed, parsed);
+                    } finally {
+                        ended.countDown();
+                    }
+                }
+            });
+        }
+        ended.await();
+        return !failed.get();
+    }
+
+    protected void parsePartition(final int partition, final List<T> items, final PartitionHandler<T> handler, final AtomicBoolean failed, final CountDownLatch parsed) {
+        try {
+            handler.begin(partition);
+            for (final T item : items) {
+                if (failed.get()) {
+                    break;
+                }
+                if (!handler.parse(partition, item)) {
+                    s_logger.warn("Unable to parse the usage of " + item + " in partition " + partition);
+                    failed.set(true);
+                }
+            }
+        } catch (final Throwable e) {
+            s_logger.error("Unable to parse the usage of partition " + partition, e);
+            failed.set(true);
+        } finally {
+            parsed.countDown();
+        }
+
+        try {
+            parsed.await();
+        } catch (final InterruptedException e) {
+            failed.set(true);
+        }
+        try {
+            handler.end(partition, !failed.get());
+        } catch (final Throwable e) {
+            s_logger.error("Unable to end the usage parsing of partition " + partition, e);
+            failed.set(true);
+        }
+    }
+
+    public void shutdown() {
+        _executor.shutdownNow();
+    }
+}
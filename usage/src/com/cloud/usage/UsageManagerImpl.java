@@ -22,6 +22,7 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
@@ -81,13 +82,17 @@ import com.cloud.user.VmDiskStatisticsVO;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.user.dao.UserStatisticsDao;
 import com.cloud.user.dao.VmDiskStatisticsDao;
+import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.Pair;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.GenericDao;
 import com.cloud.utils.db.GlobalLock;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.TransactionLegacy;
+import com.cloud.utils.mgmt.JmxUtil;
 
 @Component
 @Local(value = {UsageManager.class})
@@ -162,6 +167,12 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
     private Future _scheduledFuture = null;
     private Future _heartbeat = null;
     private Future _sanity = null;
+    private int _parseBatchSize = 500;
+    private int _eventBatchSize = 500;
+    private final HelperRows _helperRows = new HelperRows();
+    private final Map<Long, Account> _eventAccounts = new HashMap<Long, Account>();
+    private PartitionedUsageParser<Pair<AccountVO, Boolean>> _partitionedParser = null;
+    private final UsageParserStats _parserStats = new UsageParserStats();
 
     public UsageManagerImpl() {
     }
@@ -256,6 +267,19 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
             throw new ConfigurationException("Unhandled exception configuring UsageManager " + e.toString());
         }
         _pid = Integer.parseInt(System.getProperty("pid"));
+
+        int parseThreads = NumbersUtil.parseInt(configs.get("usage.parse.threads"), 1);
+        _parseBatchSize = NumbersUtil.parseInt(configs.get("usage.parse.batch.size"), 500);
+        _eventBatchSize = Math.max(1, NumbersUtil.parseInt(configs.get("usage.event.batch.size"), 500));
+        if (parseThreads > 1) {
+            s_logger.info("Parsing the usage of the accounts with " + parseThreads + " threads");
+            _partitionedParser = new PartitionedUsageParser<Pair<AccountVO, Boolean>>("Usage-Parser", parseThreads);
+        }
+        try {
+            JmxUtil.registerMBean("Usage", "ParserStatistics", _parserStats);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the usage parser statistics MBean", e);
+        }
         return true;
     }
 
@@ -306,6 +330,9 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         if (_sanity != null) {
             _sanity.cancel(true);
         }
+        if (_partitionedParser != null) {
+            _partitionedParser.shutdown();
+        }
         return true;
     }
 
@@ -574,32 +601,43 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                 userTxn.close();
             }
 
-            // TODO:  Fetch a maximum number of events and process them before moving on to the next range of events
-
-            // - get a list of the latest events
-            // - insert the latest events into the usage.events table
-            List<UsageEventVO> events = _usageEventDao.getRecentEvents(new Date(endDateMillis));
+            // - copy the latest events into the usage.events table
+            _usageEventDao.copyRecentEvents(new Date(endDateMillis));
 
             TransactionLegacy usageTxn = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
             try {
                 usageTxn.start();
 
-                // make sure start date is before all of our un-processed events (the events are ordered oldest
-                // to newest, so just test against the first event)
-                if ((events != null) && (events.size() > 0)) {
-                    Date oldestEventDate = events.get(0).getCreateDate();
-                    if (oldestEventDate.getTime() < startDateMillis) {
-                        startDateMillis = oldestEventDate.getTime();
-                        startDate = new Date(startDateMillis);
+                // - read the un-processed events a page at a time, oldest first, and create entries in the helper tables
+                // - create the usage records using the parse methods below
+                _helperRows.clear();
+                int numEventsProcessed = 0;
+                UsageEventVO lastEvent = null;
+                List<UsageEventVO> events = null;
+                do {
+                    events = _usageEventDao.listLatestEvents(new Date(endDateMillis), lastEvent, _eventBatchSize);
+                    if (events.isEmpty()) {
+                        break;
                     }
 
-                    // - loop over the list of events and create entries in the helper tables
-                    // - create the usage records using the parse methods below
-                    for (UsageEventVO event : events) {
-                        event.setProcessed(true);
-                        _usageEventDao.update(event.getId(), event);
-                        createHelperRecord(event);
+                    // make sure start date is before all of our un-processed events (the events are ordered oldest
+                    // to newest, so just test against the first event)
+                    if (lastEvent == null) {
+                        Date oldestEventDate = events.get(0).getCreateDate();
+                        if (oldestEventDate.getTime() < startDateMillis) {
+                            startDateMillis = oldestEventDate.getTime();
+                            startDate = new Date(startDateMillis);
+                        }
                     }
+
+                    _usageEventDao.markProcessed(events);
+                    createHelperRecords(events);
+                    lastEvent = events.get(events.size() - 1);
+                    numEventsProcessed += events.size();
+                } while (events.size() == _eventBatchSize);
+
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("created helper entries for " + numEventsProcessed + " usage events");
                 }
 
                 // TODO:  Fetch a maximum number of user stats and process them before moving on to the next range of user stats
@@ -725,69 +763,61 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                     tempDate = aggregateCal.getTime();
                 }
 
-                while (!currentEndDate.after(endDate) || (currentEndDate.getTime() - endDate.getTime() < 60000)) {
-                    Long offset = Long.valueOf(0);
-                    Long limit = Long.valueOf(500);
-
-                    do {
-                        Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
-                        accounts = _accountDao.listAll(filter);
-                        if ((accounts != null) && !accounts.isEmpty()) {
-                            for (AccountVO account : accounts) {
-                                parsed = parseHelperTables(account, currentStartDate, currentEndDate);
-                                numAcctsProcessed++;
+                if (_partitionedParser != null) {
+                    parsed = parseInPartitions(currentStartDate, currentEndDate, endDate, recentlyDeletedDate);
+                } else {
+                    while (!currentEndDate.after(endDate) || (currentEndDate.getTime() - endDate.getTime() < 60000)) {
+                        Long offset = Long.valueOf(0);
+                        Long limit = Long.valueOf(500);
+
+                        do {
+                            Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
+                            accounts = _accountDao.listAll(filter);
+                            if ((accounts != null) && !accounts.isEmpty()) {
+                                for (AccountVO account : accounts) {
+                                    parsed = parseHelperTables(account, currentStartDate, currentEndDate);
+                                    numAcctsProcessed++;
+                                }
                             }
+                            offset = new Long(offset.longValue() + limit.longValue());
+                        } while ((accounts != null) && !accounts.isEmpty());
+
+                        if (s_logger.isDebugEnabled()) {
+                            s_logger.debug("processed VM/Network Usage for " + numAcctsProcessed + " ACTIVE accts");
                         }
-                        offset = new Long(offset.longValue() + limit.longValue());
-                    } while ((accounts != null) && !accounts.isEmpty());
+                        numAcctsProcessed = 0;
 
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("processed VM/Network Usage for " + numAcctsProcessed + " ACTIVE accts");
-                    }
-                    numAcctsProcessed = 0;
-
-                    // reset offset
-                    offset = Long.valueOf(0);
-
-                    do {
-                        Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
-
-                        accounts = _accountDao.findRecentlyDeletedAccounts(null, recentlyDeletedDate, filter);
-
-                        if ((accounts != null) && !accounts.isEmpty()) {
-                            for (AccountVO account : accounts) {
-                                parsed = parseHelperTables(account, currentStartDate, currentEndDate);
-                                List<Long> publicTemplates = _usageDao.listPublicTemplatesByAccount(account.getId());
-                                for (Long templateId : publicTemplates) {
-                                    //mark public templates owned by deleted accounts as deleted
-                                    List<UsageStorageVO> storageVOs = _usageStorageDao.listById(account.getId(), templateId, StorageTypes.TEMPLATE);
-                                    if (storageVOs.size() > 1) {
-                                        s_logger.warn("More that one usage entry for storage: " + templateId + " assigned to account: " + account.getId() +
-                                                "; marking them all as deleted...");
-                                    }
-                                    for (UsageStorageVO storageVO : storageVOs) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("deleting template: " + storageVO.getId() + " from account: " + storageVO.getAccountId());
-                                        }
-                                        storageVO.setDeleted(account.getRemoved());
-                                        _usageStorageDao.update(storageVO);
-                                    }
+                        // reset offset
+                        offset = Long.valueOf(0);
+
+                        do {
+                            Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
+
+                            accounts = _accountDao.findRecentlyDeletedAccounts(null, recentlyDeletedDate, filter);
+
+                            if ((accounts != null) && !accounts.isEmpty()) {
+                                for (AccountVO account : accounts) {
+                                    parsed = parseHelperTables(account, currentStartDate, currentEndDate);
+                                    markPublicTemplatesDeleted(account);
+                                    numAcctsProcessed++;
                                 }
-                                numAcctsProcessed++;
                             }
-                        }
-                        offset = new Long(offset.longValue() + limit.longValue());
-                    } while ((accounts != null) && !accounts.isEmpty());
+                            offset = new Long(offset.longValue() + limit.longValue());
+                        } while ((accounts != null) && !accounts.isEmpty());
 
-                    currentStartDate = new Date(currentEndDate.getTime() + 1);
-                    aggregateCal.setTime(currentEndDate);
-                    aggregateCal.add(Calendar.MINUTE, _aggregationDuration);
-                    currentEndDate = aggregateCal.getTime();
+                        currentStartDate = new Date(currentEndDate.getTime() + 1);
+                        aggregateCal.setTime(currentEndDate);
+                        aggregateCal.add(Calendar.MINUTE, _aggregationDuration);
+                        currentEndDate = aggregateCal.getTime();
+                    }
                 }
 
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug("processed Usage for " + numAcctsProcessed + " RECENTLY DELETED accts");
                 }
+                if (s_logger.isInfoEnabled()) {
+                    s_logger.info("Usage parser statistics: " + _parserStats);
+                }
 
                 // FIXME: we don't break the above loop if something fails to parse, so it gets reset every account,
                 //        do we want to break out of processing accounts and rollback if there are errors?
@@ -826,10 +856,128 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         }
     }
 
+    /**
+     * Parses the usage of every window between the first one and endDate,
+     * with the accounts split in partitions that are parsed in parallel.
+     */
+    boolean parseInPartitions(Date currentStartDate, Date currentEndDate, Date endDate, Date recentlyDeletedDate) throws InterruptedException {
+        final List<Pair<Date, Date>> windows = new ArrayList<Pair<Date, Date>>();
+        Calendar aggregateCal = Calendar.getInstance(_usageTimezone);
+        while (!currentEndDate.after(endDate) || (currentEndDate.getTime() - endDate.getTime() < 60000)) {
+            windows.add(new Pair<Date, Date>(currentStartDate, currentEndDate));
+            currentStartDate = new Date(currentEndDate.getTime() + 1);
+            aggregateCal.setTime(currentEndDate);
+            aggregateCal.add(Calendar.MINUTE, _aggregationDuration);
+            currentEndDate = aggregateCal.getTime();
+        }
+
+        // the accounts are paired with whether they were recently deleted
+        List<Pair<AccountVO, Boolean>> accounts = new ArrayList<Pair<AccountVO, Boolean>>();
+        Long offset = Long.valueOf(0);
+        Long limit = Long.valueOf(500);
+        List<AccountVO> page = null;
+        do {
+            Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
+            page = _accountDao.listAll(filter);
+            if (page != null) {
+                for (AccountVO account : page) {
+                    accounts.add(new Pair<AccountVO, Boolean>(account, false));
+                }
+            }
+            offset = new Long(offset.longValue() + limit.longValue());
+        } while ((page != null) && !page.isEmpty());
+
+        offset = Long.valueOf(0);
+        do {
+            Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
+            page = _accountDao.findRecentlyDeletedAccounts(null, recentlyDeletedDate, filter);
+            if (page != null) {
+                for (AccountVO account : page) {
+                    accounts.add(new Pair<AccountVO, Boolean>(account, true));
+                }
+            }
+            offset = new Long(offset.longValue() + limit.longValue());
+        } while ((page != null) && !page.isEmpty());
+
+        long timeStart = System.currentTimeMillis();
+        final TransactionLegacy[] txns = new TransactionLegacy[_partitionedParser.getPartitions()];
+        boolean parsed = _partitionedParser.parse(accounts, new PartitionedUsageParser.PartitionHandler<Pair<AccountVO, Boolean>>() {
+            @Override
+            public void begin(int partition) {
+                txns[partition] = TransactionLegacy.open(TransactionLegacy.USAGE_DB);
+                txns[partition].start();
+                _usageDao.beginBatch(_parseBatchSize);
+            }
+
+            @Override
+            public boolean parse(int partition, Pair<AccountVO, Boolean> account) {
+                boolean parsed = true;
+                for (Pair<Date, Date> window : windows) {
+                    parsed &= parseHelperTables(account.first(), window.first(), window.second());
+                }
+                if (account.second()) {
+                    markPublicTemplatesDeleted(account.first());
+                }
+                return parsed;
+            }
+
+            @Override
+            public void end(int partition, boolean commit) {
+                TransactionLegacy txn = txns[partition];
+                if (txn == null) {
+                    return;
+                }
+                try {
+                    _usageDao.endBatch(commit);
+                    if (commit) {
+                        txn.commit();
+                    } else {
+                        txn.rollback();
+                    }
+                } finally {
+                    txn.close();
+                }
+            }
+        });
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("processed Usage for " + accounts.size() + " accts in " + windows.size() + " windows and " + txns.length + " partitions in " +
+                    (System.currentTimeMillis() - timeStart) + " ms, parsed: " + parsed);
+        }
+        return parsed;
+    }
+
+    private void markPublicTemplatesDeleted(AccountVO account) {
+        List<Long> publicTemplates = _usageDao.listPublicTemplatesByAccount(account.getId());
+        for (Long templateId : publicTemplates) {
+            //mark public templates owned by deleted accounts as deleted
+            List<UsageStorageVO> storageVOs = _usageStorageDao.listById(account.getId(), templateId, StorageTypes.TEMPLATE);
+            if (storageVOs.size() > 1) {
+                s_logger.warn("More that one usage entry for storage: " + templateId + " assigned to account: " + account.getId() +
+                        "; marking them all as deleted...");
+            }
+            for (UsageStorageVO storageVO : storageVOs) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("deleting template: " + storageVO.getId() + " from account: " + storageVO.getAccountId());
+                }
+                storageVO.setDeleted(account.getRemoved());
+                _usageStorageDao.update(storageVO);
+            }
+        }
+    }
+
+    private long recordParseTime(String parser, long timeStart) {
+        long now = System.currentTimeMillis();
+        _parserStats.record(parser, now - timeStart);
+        return now;
+    }
+
     private boolean parseHelperTables(AccountVO account, Date currentStartDate, Date currentEndDate) {
         boolean parsed = false;
+        long time = System.currentTimeMillis();
 
         parsed = VMInstanceUsageParser.parse(account, currentStartDate, currentEndDate);
+        time = recordParseTime("VMInstance", time);
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("vm usage instances successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
@@ -837,6 +985,7 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         }
 
         parsed = NetworkUsageParser.parse(account, currentStartDate, currentEndDate);
+        time = recordParseTime("Network", time);
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("network usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
@@ -844,6 +993,7 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         }
 
         parsed = VmDiskUsageParser.parse(account, currentStartDate, currentEndDate);
+        time = recordParseTime("VmDisk", time);
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("vm disk usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
@@ -851,6 +1001,7 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         }
 
         parsed = VolumeUsageParser.parse(account, currentStartDate, currentEndDate);
+        time = recordParseTime("Volume", time);
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("volume usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
@@ -858,6 +1009,7 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         }
 
         parsed = StorageUsageParser.parse(account, currentStartDate, currentEndDate);
+        time = recordParseTime("Storage", time);
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("storage usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
@@ -865,6 +1017,7 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         }
 
         parsed = SecurityGroupUsageParser.parse(account, currentStartDate, currentEndDate);
+        time = recordParseTime("SecurityGroup", time);
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("Security Group usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
@@ -872,6 +1025,7 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         }
 
         parsed = LoadBalancerUsageParser.parse(account, currentStartDate, currentEndDate);
+        time = recordParseTime("LoadBalancer", time);
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("load balancer usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
@@ -879,6 +1033,7 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         }
 
         parsed = PortForwardingUsageParser.parse(account, currentStartDate, currentEndDate);
+        time = recordParseTime("PortForwarding", time);
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("port forwarding usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
@@ -886,6 +1041,7 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         }
 
         parsed = NetworkOfferingUsageParser.parse(account, currentStartDate, currentEndDate);
+        time = recordParseTime("NetworkOffering", time);
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("network offering usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
@@ -893,18 +1049,21 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         }
 
         parsed = IPAddressUsageParser.parse(account, currentStartDate, currentEndDate);
+        time = recordParseTime("IPAddress", time);
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("IPAddress usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
             }
         }
         parsed = VPNUserUsageParser.parse(account, currentStartDate, currentEndDate);
+        time = recordParseTime("VPNUser", time);
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("VPN user usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
             }
         }
         parsed = VMSnapshotUsageParser.parse(account, currentStartDate, currentEndDate);
+        time = recordParseTime("VMSnapshot", time);
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("VM Snapshot usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
@@ -913,6 +1072,88 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         return parsed;
     }
 
+    /**
+     * Creates the helper records of a page of events.  The events are grouped
+     * by helper table, keeping their order within a table, so that the rows
+     * that are only inserted can be written in batches.
+     */
+    void createHelperRecords(List<UsageEventVO> events) {
+        Map<String, List<UsageEventVO>> groups = new LinkedHashMap<String, List<UsageEventVO>>();
+        for (UsageEventVO event : events) {
+            String table = getHelperTable(event.getType());
+            if (table == null) {
+                continue;
+            }
+            List<UsageEventVO> group = groups.get(table);
+            if (group == null) {
+                group = new ArrayList<UsageEventVO>();
+                groups.put(table, group);
+            }
+            group.add(event);
+        }
+
+        _eventAccounts.clear();
+        try {
+            for (List<UsageEventVO> group : groups.values()) {
+                for (UsageEventVO event : group) {
+                    // the other events read the helper table, which must have the pending rows
+                    if (!isInsertOnlyEvent(event.getType())) {
+                        _helperRows.flush();
+                    }
+                    createHelperRecord(event);
+                }
+                _helperRows.flush();
+            }
+        } finally {
+            _helperRows.clear();
+            _eventAccounts.clear();
+        }
+    }
+
+    private String getHelperTable(String eventType) {
+        if (isVMEvent(eventType)) {
+            return "usage_vm_instance";
+        } else if (isIPEvent(eventType)) {
+            return "usage_ip_address";
+        } else if (isVolumeEvent(eventType)) {
+            return "usage_volume";
+        } else if (isTemplateEvent(eventType) || isISOEvent(eventType) || isSnapshotEvent(eventType)) {
+            return "usage_storage";
+        } else if (isLoadBalancerEvent(eventType)) {
+            return "usage_load_balancer_policy";
+        } else if (isPortForwardingEvent(eventType)) {
+            return "usage_port_forwarding";
+        } else if (isNetworkOfferingEvent(eventType)) {
+            return "usage_network_offering";
+        } else if (isVPNUserEvent(eventType)) {
+            return "usage_vpn_user";
+        } else if (isSecurityGroupEvent(eventType)) {
+            return "usage_security_group";
+        } else if (isVmSnapshotEvent(eventType)) {
+            return "usage_vmsnapshot";
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the helper record of the event is only inserted, without reading its helper table.
+     */
+    private boolean isInsertOnlyEvent(String eventType) {
+        return EventTypes.EVENT_NET_IP_ASSIGN.equals(eventType) || EventTypes.EVENT_SNAPSHOT_CREATE.equals(eventType) ||
+                EventTypes.EVENT_LOAD_BALANCER_CREATE.equals(eventType) || EventTypes.EVENT_NET_RULE_ADD.equals(eventType) ||
+                EventTypes.EVENT_NETWORK_OFFERING_CREATE.equals(eventType) || EventTypes.EVENT_NETWORK_OFFERING_ASSIGN.equals(eventType) ||
+                EventTypes.EVENT_VPN_USER_ADD.equals(eventType) || EventTypes.EVENT_SECURITY_GROUP_ASSIGN.equals(eventType) || isVmSnapshotEvent(eventType);
+    }
+
+    private Account findEventAccount(long accountId) {
+        Account acct = _eventAccounts.get(accountId);
+        if (acct == null) {
+            acct = _accountDao.findByIdIncludingRemoved(accountId);
+            _eventAccounts.put(accountId, acct);
+        }
+        return acct;
+    }
+
     private void createHelperRecord(UsageEventVO event) {
         String eventType = event.getType();
         if (isVMEvent(eventType)) {
@@ -1258,6 +1499,10 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                     currentAccountedBytesReceived + "; ubs: " + bytesSent + "; ubr: " + bytesReceived);
         }
         usageNetworks.add(usageNetworkVO);
+        if (usageNetworks.size() >= _eventBatchSize) {
+            _usageNetworkDao.saveUsageNetworks(usageNetworks);
+            usageNetworks.clear();
+        }
     }
 
     private void createVmDiskHelperEntry(VmDiskStatisticsVO vmDiskStat, UsageVmDiskVO usageVmDiskStat, long timestamp) {
@@ -1318,6 +1563,10 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                     currentAccountedBytesRead + "; curABW: " + currentAccountedBytesWrite + "; ubr: " + bytesRead + "; ubw: " + bytesWrite);
         }
         usageVmDisks.add(usageVmDiskVO);
+        if (usageVmDisks.size() >= _eventBatchSize) {
+            _usageVmDiskDao.saveUsageVmDisks(usageVmDisks);
+            usageVmDisks.clear();
+        }
     }
 
     private void createIPHelperEvent(UsageEventVO event) {
@@ -1328,7 +1577,7 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("assigning ip address: " + ipAddress + " to account: " + event.getAccountId());
             }
-            Account acct = _accountDao.findByIdIncludingRemoved(event.getAccountId());
+            Account acct = findEventAccount(event.getAccountId());
             long zoneId = event.getZoneId();
             long id = event.getResourceId();
             long sourceNat = event.getSize();
@@ -1336,7 +1585,7 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
             boolean isSystem = (event.getTemplateId() == null || event.getTemplateId() == 0) ? false : true;
             UsageIPAddressVO ipAddressVO =
                     new UsageIPAddressVO(id, event.getAccountId(), acct.getDomainId(), zoneId, ipAddress, isSourceNat, isSystem, event.getCreateDate(), null);
-            _usageIPAddressDao.persist(ipAddressVO);
+            _helperRows.add(_usageIPAddressDao, ipAddressVO);
         } else if (EventTypes.EVENT_NET_IP_RELEASE.equals(event.getType())) {
             SearchCriteria<UsageIPAddressVO> sc = _usageIPAddressDao.createSearchCriteria();
             sc.addAnd("accountId", SearchCriteria.Op.EQ, event.getAccountId());
@@ -1382,7 +1631,7 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("create volume with id : " + volId + " for account: " + event.getAccountId());
             }
-            Account acct = _accountDao.findByIdIncludingRemoved(event.getAccountId());
+            Account acct = findEventAccount(event.getAccountId());
             UsageVolumeVO volumeVO = new UsageVolumeVO(volId, event.getZoneId(), event.getAccountId(), acct.getDomainId(), event.getOfferingId(), event.getTemplateId(), event.getSize(), event.getCreateDate(), null);
             _usageVolumeDao.persist(volumeVO);
         } else if (EventTypes.EVENT_VOLUME_DELETE.equals(event.getType())) {
@@ -1433,7 +1682,7 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                 s_logger.warn("Usage entry for Template: " + templateId + " assigned to account: " + event.getAccountId() + "already exists in zone " + zoneId);
                 return;
             }
-            Account acct = _accountDao.findByIdIncludingRemoved(event.getAccountId());
+            Account acct = findEventAccount(event.getAccountId());
             UsageStorageVO storageVO =
                     new UsageStorageVO(templateId, zoneId, event.getAccountId(), acct.getDomainId(), StorageTypes.TEMPLATE, event.getTemplateId(), templateSize,
                             event.getVirtualSize(), event.getCreateDate(), null);
@@ -1477,7 +1726,7 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                 s_logger.warn("Usage entry for ISO: " + isoId + " assigned to account: " + event.getAccountId() + "already exists in zone " + zoneId);
                 return;
             }
-            Account acct = _accountDao.findByIdIncludingRemoved(event.getAccountId());
+            Account acct = findEventAccount(event.getAccountId());
             UsageStorageVO storageVO =
                     new UsageStorageVO(isoId, zoneId, event.getAccountId(), acct.getDomainId(), StorageTypes.ISO, null, isoSize, isoSize, event.getCreateDate(), null);
             _usageStorageDao.persist(storageVO);
@@ -1516,10 +1765,10 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("create snapshot with id : " + snapId + " for account: " + event.getAccountId());
             }
-            Account acct = _accountDao.findByIdIncludingRemoved(event.getAccountId());
+            Account acct = findEventAccount(event.getAccountId());
             UsageStorageVO storageVO =
                     new UsageStorageVO(snapId, zoneId, event.getAccountId(), acct.getDomainId(), StorageTypes.SNAPSHOT, null, snapSize, event.getCreateDate(), null);
-            _usageStorageDao.persist(storageVO);
+            _helperRows.add(_usageStorageDao, storageVO);
         } else if (EventTypes.EVENT_SNAPSHOT_DELETE.equals(event.getType())) {
             List<UsageStorageVO> storageVOs = _usageStorageDao.listById(event.getAccountId(), snapId, StorageTypes.SNAPSHOT);
             if (storageVOs.size() > 1) {
@@ -1546,9 +1795,9 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                 s_logger.debug("Creating load balancer : " + id + " for account: " + event.getAccountId());
             }
             zoneId = event.getZoneId();
-            Account acct = _accountDao.findByIdIncludingRemoved(event.getAccountId());
+            Account acct = findEventAccount(event.getAccountId());
             UsageLoadBalancerPolicyVO lbVO = new UsageLoadBalancerPolicyVO(id, zoneId, event.getAccountId(), acct.getDomainId(), event.getCreateDate(), null);
-            _usageLoadBalancerPolicyDao.persist(lbVO);
+            _helperRows.add(_usageLoadBalancerPolicyDao, lbVO);
         } else if (EventTypes.EVENT_LOAD_BALANCER_DELETE.equals(event.getType())) {
             SearchCriteria<UsageLoadBalancerPolicyVO> sc = _usageLoadBalancerPolicyDao.createSearchCriteria();
             sc.addAnd("accountId", SearchCriteria.Op.EQ, event.getAccountId());
@@ -1580,9 +1829,9 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                 s_logger.debug("Creating port forwarding rule : " + id + " for account: " + event.getAccountId());
             }
             zoneId = event.getZoneId();
-            Account acct = _accountDao.findByIdIncludingRemoved(event.getAccountId());
+            Account acct = findEventAccount(event.getAccountId());
             UsagePortForwardingRuleVO pfVO = new UsagePortForwardingRuleVO(id, zoneId, event.getAccountId(), acct.getDomainId(), event.getCreateDate(), null);
-            _usagePortForwardingRuleDao.persist(pfVO);
+            _helperRows.add(_usagePortForwardingRuleDao, pfVO);
         } else if (EventTypes.EVENT_NET_RULE_DELETE.equals(event.getType())) {
             SearchCriteria<UsagePortForwardingRuleVO> sc = _usagePortForwardingRuleDao.createSearchCriteria();
             sc.addAnd("accountId", SearchCriteria.Op.EQ, event.getAccountId());
@@ -1621,11 +1870,11 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                 s_logger.debug("Creating networking offering: " + networkOfferingId + " for Vm: " + vmId + " for account: " + event.getAccountId());
             }
             zoneId = event.getZoneId();
-            Account acct = _accountDao.findByIdIncludingRemoved(event.getAccountId());
+            Account acct = findEventAccount(event.getAccountId());
             boolean isDefault = (event.getSize() == 1) ? true : false;
             UsageNetworkOfferingVO networkOffering =
                     new UsageNetworkOfferingVO(zoneId, event.getAccountId(), acct.getDomainId(), vmId, networkOfferingId, nicId, isDefault, event.getCreateDate(), null);
-            _usageNetworkOfferingDao.persist(networkOffering);
+            _helperRows.add(_usageNetworkOfferingDao, networkOffering);
         } else if (EventTypes.EVENT_NETWORK_OFFERING_DELETE.equals(event.getType()) || EventTypes.EVENT_NETWORK_OFFERING_REMOVE.equals(event.getType())) {
             SearchCriteria<UsageNetworkOfferingVO> sc = _usageNetworkOfferingDao.createSearchCriteria();
             sc.addAnd("accountId", SearchCriteria.Op.EQ, event.getAccountId());
@@ -1658,10 +1907,10 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Creating VPN user: " + userId + " for account: " + event.getAccountId());
             }
-            Account acct = _accountDao.findByIdIncludingRemoved(event.getAccountId());
+            Account acct = findEventAccount(event.getAccountId());
             String userName = event.getResourceName();
             UsageVPNUserVO vpnUser = new UsageVPNUserVO(zoneId, event.getAccountId(), acct.getDomainId(), userId, userName, event.getCreateDate(), null);
-            _usageVPNUserDao.persist(vpnUser);
+            _helperRows.add(_usageVPNUserDao, vpnUser);
         } else if (EventTypes.EVENT_VPN_USER_REMOVE.equals(event.getType())) {
             SearchCriteria<UsageVPNUserVO> sc = _usageVPNUserDao.createSearchCriteria();
             sc.addAnd("accountId", SearchCriteria.Op.EQ, event.getAccountId());
@@ -1693,9 +1942,9 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                 s_logger.debug("Assigning : security group" + sgId + " to Vm: " + vmId + " for account: " + event.getAccountId());
             }
             zoneId = event.getZoneId();
-            Account acct = _accountDao.findByIdIncludingRemoved(event.getAccountId());
+            Account acct = findEventAccount(event.getAccountId());
             UsageSecurityGroupVO securityGroup = new UsageSecurityGroupVO(zoneId, event.getAccountId(), acct.getDomainId(), vmId, sgId, event.getCreateDate(), null);
-            _usageSecurityGroupDao.persist(securityGroup);
+            _helperRows.add(_usageSecurityGroupDao, securityGroup);
         } else if (EventTypes.EVENT_SECURITY_GROUP_REMOVE.equals(event.getType())) {
             SearchCriteria<UsageSecurityGroupVO> sc = _usageSecurityGroupDao.createSearchCriteria();
             sc.addAnd("accountId", SearchCriteria.Op.EQ, event.getAccountId());
@@ -1726,10 +1975,43 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         //Size could be null for VM snapshot delete events
         long size = (event.getSize() == null) ? 0 : event.getSize();
         Date created = event.getCreateDate();
-        Account acct = _accountDao.findByIdIncludingRemoved(event.getAccountId());
+        Account acct = findEventAccount(event.getAccountId());
         Long domainId = acct.getDomainId();
         UsageVMSnapshotVO vsVO = new UsageVMSnapshotVO(volumeId, zoneId, accountId, domainId, vmId, offeringId, size, created, null);
-        _usageVMSnapshotDao.persist(vsVO);
+        _helperRows.add(_usageVMSnapshotDao, vsVO);
+    }
+
+    /**
+     * Helper rows that are only inserted, written with JDBC batches.
+     */
+    private class HelperRows {
+        private final Map<GenericDao<?, ?>, List<Object>> _rows = new LinkedHashMap<GenericDao<?, ?>, List<Object>>();
+        private int _count = 0;
+
+        <T> void add(GenericDao<T, ?> dao, T row) {
+            List<Object> rows = _rows.get(dao);
+            if (rows == null) {
+                rows = new ArrayList<Object>();
+                _rows.put(dao, rows);
+            }
+            rows.add(row);
+            if (++_count >= _eventBatchSize) {
+                flush();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void flush() {
+            for (Map.Entry<GenericDao<?, ?>, List<Object>> entry : _rows.entrySet()) {
+                ((GenericDao<Object, ?>)entry.getKey()).persistInBatch(entry.getValue());
+            }
+            clear();
+        }
+
+        void clear() {
+            _rows.clear();
+            _count = 0;
+        }
     }
 
     private class Heartbeat extends ManagedContextRunnable {
@@ -0,0 +1,76 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.StandardMBean;
+
+import com.cloud.utils.LatencyHistogram;
+
+public class UsageParserStats extends StandardMBean implements UsageParserStatsMBean {
+    private final ConcurrentHashMap<String, LatencyHistogram> _parsers = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    public UsageParserStats() {
+        super(UsageParserStatsMBean.class, false);
+    }
+
+    public void record(final String parser, final long millis) {
+        LatencyHistogram histogram = _parsers.get(parser);
+        if (histogram == null) {
+            _parsers.putIfAbsent(parser, new LatencyHistogram());
+            histogram = _parsers.get(parser);
+        }
+        histogram.record(millis);
+    }
+
+    @Override
+    public String[] getParsers() {
+        return new TreeMap<String, LatencyHistogram>(_parsers).keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public String getParserStatistics(final String parser) {
+        final LatencyHistogram histogram = _parsers.get(parser);
+        if (histogram == null) {
+            return null;
+        }
+        return "count: " + histogram.getCount() + ", total: " + Math.round(histogram.getAverage() * histogram.getCount()) + " ms, p50: " + histogram.getPercentile(50) +
+            " ms, p99: " + histogram.getPercentile(99) + " ms, max: " + histogram.getMax() + " ms";
+    }
+
+    @Override
+    public void resetStatistics() {
+        for (final LatencyHistogram histogram : _parsers.values()) {
+            histogram.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (final Map.Entry<String, LatencyHistogram> entry : new TreeMap<String, LatencyHistogram>(_parsers).entrySet()) {
+            if (sb.length() > 0) {
+                sb.append("; ");
+            }
+            sb.append(entry.getKey()).append(" ").append(getParserStatistics(entry.getKey()));
+        }
+        return sb.toString();
+    }
+}
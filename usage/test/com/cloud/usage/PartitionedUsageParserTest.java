@@ -0,0 +1,343 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.cloudstack.usage.UsageTypes;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.usage.dao.UsageDaoImpl;
+import com.cloud.usage.dao.UsageIPAddressDao;
+import com.cloud.usage.dao.UsageLoadBalancerPolicyDao;
+import com.cloud.usage.dao.UsageNetworkDao;
+import com.cloud.usage.dao.UsageNetworkOfferingDao;
+import com.cloud.usage.dao.UsagePortForwardingRuleDao;
+import com.cloud.usage.dao.UsageSecurityGroupDao;
+import com.cloud.usage.dao.UsageStorageDao;
+import com.cloud.usage.dao.UsageVMInstanceDao;
+import com.cloud.usage.dao.UsageVMSnapshotDao;
+import com.cloud.usage.dao.UsageVPNUserDao;
+import com.cloud.usage.dao.UsageVmDiskDao;
+import com.cloud.usage.dao.UsageVolumeDao;
+import com.cloud.usage.parser.IPAddressUsageParser;
+import com.cloud.usage.parser.LoadBalancerUsageParser;
+import com.cloud.usage.parser.NetworkOfferingUsageParser;
+import com.cloud.usage.parser.NetworkUsageParser;
+import com.cloud.usage.parser.PortForwardingUsageParser;
+import com.cloud.usage.parser.SecurityGroupUsageParser;
+import com.cloud.usage.parser.StorageUsageParser;
+import com.cloud.usage.parser.VMInstanceUsageParser;
+import com.cloud.usage.parser.VMSnapshotUsageParser;
+import com.cloud.usage.parser.VPNUserUsageParser;
+import com.cloud.usage.parser.VmDiskUsageParser;
+import com.cloud.usage.parser.VolumeUsageParser;
+import com.cloud.user.AccountVO;
+import com.cloud.user.dao.AccountDao;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.SearchCriteria;
+
+public class PartitionedUsageParserTest {
+    private static final int ACCOUNTS = 60;
+    private static final int DELETED_ACCOUNTS = 5;
+    private static final int PARTITIONS = 4;
+    private static final long HOUR = 60 * 60 * 1000L;
+    // 2015-01-01 00:00:00 GMT, the usage of the 6 hours that follow is parsed
+    private static final long START = 1420070400000L;
+    private static final int WINDOWS = 6;
+
+    private final List<AccountVO> _accounts = new ArrayList<AccountVO>();
+    private final List<AccountVO> _deletedAccounts = new ArrayList<AccountVO>();
+    private final Map<Long, List<UsageVMInstanceVO>> _vmInstances = new HashMap<Long, List<UsageVMInstanceVO>>();
+    private final Map<Long, List<UsageVolumeVO>> _volumes = new HashMap<Long, List<UsageVolumeVO>>();
+
+    private RecordingUsageDao _usageDao;
+    private UsageManagerImpl _usageMgr;
+    private PartitionedUsageParser<?> _parser;
+
+    @Before
+    public void setUp() throws Exception {
+        for (long id = 1; id <= ACCOUNTS + DELETED_ACCOUNTS; id++) {
+            final AccountVO account = new AccountVO("account" + id, 1L, null, AccountVO.ACCOUNT_TYPE_NORMAL, "uuid" + id);
+            account.setId(id);
+            if (id <= ACCOUNTS) {
+                _accounts.add(account);
+            } else {
+                _deletedAccounts.add(account);
+            }
+            createHelperRows(id);
+        }
+
+        _usageDao = new RecordingUsageDao();
+
+        final AccountDao accountDao = Mockito.mock(AccountDao.class);
+        Mockito.when(accountDao.listAll(Mockito.any(Filter.class))).thenAnswer(new Answer<List<AccountVO>>() {
+            @Override
+            public List<AccountVO> answer(final InvocationOnMock invocation) {
+                return page(_accounts, (Filter)invocation.getArguments()[0]);
+            }
+        });
+        Mockito.when(accountDao.findRecentlyDeletedAccounts(Mockito.any(Long.class), Mockito.any(Date.class), Mockito.any(Filter.class))).thenAnswer(
+                new Answer<List<AccountVO>>() {
+                    @Override
+                    public List<AccountVO> answer(final InvocationOnMock invocation) {
+                        return page(_deletedAccounts, (Filter)invocation.getArguments()[2]);
+                    }
+                });
+
+        final UsageVMInstanceDao usageInstanceDao = Mockito.mock(UsageVMInstanceDao.class);
+        Mockito.when(usageInstanceDao.getUsageRecords(Mockito.anyLong(), Mockito.any(Date.class), Mockito.any(Date.class))).thenAnswer(
+                new Answer<List<UsageVMInstanceVO>>() {
+                    @Override
+                    public List<UsageVMInstanceVO> answer(final InvocationOnMock invocation) {
+                        final Object[] args = invocation.getArguments();
+                        final List<UsageVMInstanceVO> rows = new ArrayList<UsageVMInstanceVO>();
+                        for (final UsageVMInstanceVO row : _vmInstances.get(args[0])) {
+                            if (overlaps(row.getStartDate(), row.getEndDate(), (Date)args[1], (Date)args[2])) {
+                                rows.add(row);
+                            }
+                        }
+                        return rows;
+                    }
+                });
+
+        final UsageVolumeDao usageVolumeDao = Mockito.mock(UsageVolumeDao.class);
+        Mockito.when(usageVolumeDao.getUsageRecords(Mockito.any(Long.class), Mockito.any(Long.class), Mockito.any(Date.class), Mockito.any(Date.class),
+                Mockito.anyBoolean(), Mockito.anyInt())).thenAnswer(new Answer<List<UsageVolumeVO>>() {
+                    @Override
+                    public List<UsageVolumeVO> answer(final InvocationOnMock invocation) {
+                        final Object[] args = invocation.getArguments();
+                        final List<UsageVolumeVO> rows = new ArrayList<UsageVolumeVO>();
+                        for (final UsageVolumeVO row : _volumes.get(args[0])) {
+                            if (overlaps(row.getCreated(), row.getDeleted(), (Date)args[2], (Date)args[3])) {
+                                rows.add(row);
+                            }
+                        }
+                        return rows;
+                    }
+                });
+
+        final UsageNetworkDao usageNetworkDao = Mockito.mock(UsageNetworkDao.class);
+        Mockito.when(usageNetworkDao.createSearchCriteria()).thenReturn(Mockito.mock(SearchCriteria.class));
+        final UsageVmDiskDao usageVmDiskDao = Mockito.mock(UsageVmDiskDao.class);
+        Mockito.when(usageVmDiskDao.createSearchCriteria()).thenReturn(Mockito.mock(SearchCriteria.class));
+
+        // the parsers of the usage server, without usage for the helper tables that are not mocked
+        initParser(new VMInstanceUsageParser(), "_usageInstanceDao", usageInstanceDao);
+        initParser(new NetworkUsageParser(), "_usageNetworkDao", usageNetworkDao);
+        initParser(new VmDiskUsageParser(), "_usageVmDiskDao", usageVmDiskDao);
+        initParser(new VolumeUsageParser(), "_usageVolumeDao", usageVolumeDao);
+        initParser(new StorageUsageParser(), "_usageStorageDao", Mockito.mock(UsageStorageDao.class));
+        initParser(new SecurityGroupUsageParser(), "_usageSecurityGroupDao", Mockito.mock(UsageSecurityGroupDao.class));
+        initParser(new LoadBalancerUsageParser(), "_usageLoadBalancerPolicyDao", Mockito.mock(UsageLoadBalancerPolicyDao.class));
+        initParser(new PortForwardingUsageParser(), "_usagePFRuleDao", Mockito.mock(UsagePortForwardingRuleDao.class));
+        initParser(new NetworkOfferingUsageParser(), "_usageNetworkOfferingDao", Mockito.mock(UsageNetworkOfferingDao.class));
+        initParser(new IPAddressUsageParser(), "_usageIPAddressDao", Mockito.mock(UsageIPAddressDao.class));
+        initParser(new VPNUserUsageParser(), "_usageVPNUserDao", Mockito.mock(UsageVPNUserDao.class));
+        initParser(new VMSnapshotUsageParser(), "_usageVMSnapshotDao", Mockito.mock(UsageVMSnapshotDao.class));
+
+        _usageMgr = new UsageManagerImpl();
+        setField(_usageMgr, "_accountDao", accountDao);
+        setField(_usageMgr, "_usageDao", _usageDao);
+        setField(_usageMgr, "_usageStorageDao", Mockito.mock(UsageStorageDao.class));
+        setField(_usageMgr, "_aggregationDuration", 60);
+    }
+
+    @After
+    public void tearDown() {
+        if (_parser != null) {
+            _parser.shutdown();
+        }
+    }
+
+    // a few vms and volumes per account, created and removed at random times of the parsed hours
+    private void createHelperRows(final long accountId) {
+        final Random random = new Random(accountId);
+        final List<UsageVMInstanceVO> vms = new ArrayList<UsageVMInstanceVO>();
+        final int vmCount = random.nextInt(4);
+        for (int i = 0; i < vmCount; i++) {
+            final long vmId = accountId * 10 + i;
+            final Date created = new Date(START - HOUR + random.nextInt(WINDOWS * 60) * 60000L);
+            final Date stopped = random.nextBoolean() ? null : new Date(created.getTime() + random.nextInt(WINDOWS * 60) * 60000L);
+            vms.add(new UsageVMInstanceVO(UsageTypes.ALLOCATED_VM, 1, accountId, vmId, "i-" + vmId, 1, 2, "KVM", created, null));
+            vms.add(new UsageVMInstanceVO(UsageTypes.RUNNING_VM, 1, accountId, vmId, "i-" + vmId, 1, 2, "KVM", created, stopped));
+        }
+        _vmInstances.put(accountId, vms);
+
+        final List<UsageVolumeVO> volumes = new ArrayList<UsageVolumeVO>();
+        final int volumeCount = random.nextInt(3);
+        for (int i = 0; i < volumeCount; i++) {
+            final long volumeId = accountId * 10 + i;
+            final Date created = new Date(START - HOUR + random.nextInt(WINDOWS * 60) * 60000L);
+            final Date deleted = random.nextBoolean() ? null : new Date(created.getTime() + random.nextInt(WINDOWS * 60) * 60000L);
+            volumes.add(new UsageVolumeVO(volumeId, 1, accountId, 1, 3L, null, (1 + random.nextInt(100)) * 1024L * 1024L * 1024L, created, deleted));
+        }
+        _volumes.put(accountId, volumes);
+    }
+
+    private static boolean overlaps(final Date start, final Date end, final Date windowStart, final Date windowEnd) {
+        return !start.after(windowEnd) && (end == null || !end.before(windowStart));
+    }
+
+    private static List<AccountVO> page(final List<AccountVO> accounts, final Filter filter) {
+        final int from = (int)Math.min(filter.getOffset(), accounts.size());
+        final int to = (int)Math.min(filter.getOffset() + filter.getLimit(), accounts.size());
+        return new ArrayList<AccountVO>(accounts.subList(from, to));
+    }
+
+    private static void setField(final Object target, final String name, final Object value) throws Exception {
+        final Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    private void initParser(final Object parser, final String daoField, final Object dao) throws Exception {
+        setField(parser, "_usageDao", _usageDao);
+        setField(parser, daoField, dao);
+        final Method init = parser.getClass().getDeclaredMethod("init");
+        init.setAccessible(true);
+        init.invoke(parser);
+    }
+
+    /**
+     * @return the usage records persisted by parsing the windows with the given
+     * number of partitions and batch size.
+     */
+    private List<String> parse(final int partitions, final int batchSize) throws Exception {
+        _usageDao.clear();
+        if (_parser != null) {
+            _parser.shutdown();
+        }
+        _parser = new PartitionedUsageParser<Object>("Usage-Parser-Test", partitions);
+        setField(_usageMgr, "_partitionedParser", _parser);
+        setField(_usageMgr, "_parseBatchSize", batchSize);
+
+        final Date endDate = new Date(START + WINDOWS * HOUR - 1);
+        Assert.assertTrue(_usageMgr.parseInPartitions(new Date(START), new Date(START + HOUR - 1), endDate, new Date(START - 24 * HOUR)));
+        return _usageDao.persisted();
+    }
+
+    @Test
+    public void parallelUsageMatchesSequentialUsage() throws Exception {
+        final List<String> sequential = parse(1, 1000);
+        Assert.assertFalse(sequential.isEmpty());
+        Assert.assertEquals(1, _usageDao.threads());
+
+        final List<String> parallel = parse(PARTITIONS, 7);
+        Assert.assertEquals(PARTITIONS, _usageDao.threads());
+        Assert.assertEquals(sequential, parallel);
+    }
+
+    @Test
+    public void failureRollsBackEveryPartition() throws Exception {
+        final List<Long> accounts = new ArrayList<Long>();
+        for (long i = 1; i <= 1000; i++) {
+            accounts.add(i);
+        }
+        final PartitionedUsageParser<Long> parser = new PartitionedUsageParser<Long>("Usage-Parser-Test", PARTITIONS);
+        try {
+            final RecordingHandler handler = new RecordingHandler(500);
+            Assert.assertFalse(parser.parse(accounts, handler));
+            Assert.assertEquals(0, handler.committed);
+            Assert.assertEquals(PARTITIONS, handler.rolledBack);
+        } finally {
+            parser.shutdown();
+        }
+    }
+
+    /**
+     * Keeps the usage records instead of inserting them in the usage database,
+     * along with the threads that saved them.
+     */
+    private static class RecordingUsageDao extends UsageDaoImpl {
+        private final List<String> _persisted = new ArrayList<String>();
+        private final Set<Thread> _threads = new HashSet<Thread>();
+
+        @Override
+        public synchronized void saveUsageRecords(final List<UsageVO> usageRecords) {
+            for (final UsageVO record : usageRecords) {
+                _persisted.add(record.getAccountId() + "/" + record.getUsageType() + "/" + record.getUsageId() + "/" + record.getVmInstanceId() + "/" +
+                        record.getRawUsage() + "/" + record.getStartDate().getTime() + "/" + record.getEndDate().getTime() + "/" + record.getDescription());
+            }
+            _threads.add(Thread.currentThread());
+        }
+
+        @Override
+        public List<Long> listPublicTemplatesByAccount(final long accountId) {
+            return new ArrayList<Long>();
+        }
+
+        synchronized void clear() {
+            _persisted.clear();
+            _threads.clear();
+        }
+
+        synchronized List<String> persisted() {
+            final List<String> records = new ArrayList<String>(_persisted);
+            Collections.sort(records);
+            return records;
+        }
+
+        synchronized int threads() {
+            return _threads.size();
+        }
+    }
+
+    private static class RecordingHandler implements PartitionedUsageParser.PartitionHandler<Long> {
+        private final long _failingAccount;
+        int committed;
+        int rolledBack;
+
+        RecordingHandler(final long failingAccount) {
+            _failingAccount = failingAccount;
+        }
+
+        @Override
+        public void begin(final int partition) {
+        }
+
+        @Override
+        public boolean parse(final int partition, final Long account) {
+            return account != _failingAccount;
+        }
+
+        @Override
+        public synchronized void end(final int partition, final boolean commit) {
+            if (commit) {
+                committed++;
+            } else {
+                rolledBack++;
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.cloud.event.EventTypes;
+import com.cloud.event.UsageEventVO;
+import com.cloud.usage.dao.UsageIPAddressDaoImpl;
+import com.cloud.usage.dao.UsageStorageDaoImpl;
+import com.cloud.user.AccountVO;
+import com.cloud.user.dao.AccountDao;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.SearchCriteria;
+
+public class UsageHelperRecordsTest {
+    private static final long ACCOUNT_ID = 2L;
+    private static final long ZONE_ID = 1L;
+
+    // the reads and the batched inserts of the helper tables, in the order they were made
+    private final List<String> _calls = new ArrayList<String>();
+    private AccountDao _accountDao;
+    private UsageManagerImpl _usageMgr;
+
+    @Before
+    public void setUp() throws Exception {
+        final AccountVO account = new AccountVO("account", 1L, null, AccountVO.ACCOUNT_TYPE_NORMAL, "uuid");
+        account.setId(ACCOUNT_ID);
+        _accountDao = Mockito.mock(AccountDao.class);
+        Mockito.when(_accountDao.findByIdIncludingRemoved(ACCOUNT_ID)).thenReturn(account);
+
+        _usageMgr = new UsageManagerImpl();
+        setField(_usageMgr, "_accountDao", _accountDao);
+        setField(_usageMgr, "_usageIPAddressDao", new RecordingIPAddressDao());
+        setField(_usageMgr, "_usageStorageDao", new RecordingStorageDao());
+    }
+
+    private static void setField(final Object target, final String name, final Object value) throws Exception {
+        final Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    private static UsageEventVO ipEvent(final String type, final long ipId, final String address) {
+        return new UsageEventVO(type, ACCOUNT_ID, ZONE_ID, ipId, address, false, null, false);
+    }
+
+    private static UsageEventVO snapshotEvent(final String type, final long snapshotId) {
+        return new UsageEventVO(type, ACCOUNT_ID, ZONE_ID, snapshotId, "snapshot" + snapshotId, null, null, 1024L, 1024L);
+    }
+
+    @Test
+    public void pendingRowsAreFlushedBeforeTheirTableIsRead() {
+        final List<UsageEventVO> events = Arrays.asList(ipEvent(EventTypes.EVENT_NET_IP_ASSIGN, 10, "10.0.0.1"),
+                snapshotEvent(EventTypes.EVENT_SNAPSHOT_CREATE, 20), ipEvent(EventTypes.EVENT_NET_IP_ASSIGN, 11, "10.0.0.2"),
+                ipEvent(EventTypes.EVENT_NET_IP_RELEASE, 10, "10.0.0.1"), ipEvent(EventTypes.EVENT_NET_IP_ASSIGN, 12, "10.0.0.3"),
+                snapshotEvent(EventTypes.EVENT_SNAPSHOT_DELETE, 20));
+
+        _usageMgr.createHelperRecords(events);
+
+        // the events are grouped per helper table in the order the tables first appear, the ip
+        // assignments before the release are inserted before usage_ip_address is searched
+        Assert.assertEquals(Arrays.asList("usage_ip_address insert [10.0.0.1, 10.0.0.2]", "usage_ip_address search",
+                "usage_ip_address insert [10.0.0.3]", "usage_storage insert [20]", "usage_storage list 20"), _calls);
+        // the account of the events is looked up once per page
+        Mockito.verify(_accountDao, Mockito.times(1)).findByIdIncludingRemoved(ACCOUNT_ID);
+    }
+
+    private class RecordingIPAddressDao extends UsageIPAddressDaoImpl {
+        @Override
+        public void persistInBatch(final List<UsageIPAddressVO> entities) {
+            final List<String> addresses = new ArrayList<String>();
+            for (final UsageIPAddressVO entity : entities) {
+                addresses.add(entity.getAddress());
+            }
+            _calls.add("usage_ip_address insert " + addresses);
+        }
+
+        @Override
+        public UsageIPAddressVO persist(final UsageIPAddressVO entity) {
+            _calls.add("usage_ip_address persist " + entity.getAddress());
+            return entity;
+        }
+
+        @Override
+        public List<UsageIPAddressVO> search(final SearchCriteria<UsageIPAddressVO> sc, final Filter filter) {
+            _calls.add("usage_ip_address search");
+            return new ArrayList<UsageIPAddressVO>();
+        }
+    }
+
+    private class RecordingStorageDao extends UsageStorageDaoImpl {
+        @Override
+        public void persistInBatch(final List<UsageStorageVO> entities) {
+            final List<Long> ids = new ArrayList<Long>();
+            for (final UsageStorageVO entity : entities) {
+                ids.add(entity.getId());
+            }
+            _calls.add("usage_storage insert " + ids);
+        }
+
+        @Override
+        public UsageStorageVO persist(final UsageStorageVO entity) {
+            _calls.add("usage_storage persist " + entity.getId());
+            return entity;
+        }
+
+        @Override
+        public List<UsageStorageVO> listById(final long accountId, final long id, final int type) {
+            _calls.add("usage_storage list " + id);
+            return new ArrayList<UsageStorageVO>();
+        }
+    }
+}
@@ -25,6 +25,7 @@ import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.Map;
 
 public class HttpUtils {
@@ -52,23 +53,32 @@ public class HttpUtils {
         }
     }
 
+    /**
+     * Sets the headers of the response and returns the writer for its body. Without a content
+     * length, the body is sent with chunked transfer encoding once it outgrows the response buffer.
+     */
+    public static PrintWriter openHttpResponse(final HttpServletResponse resp, final Integer responseCode, final String responseType,
+                                               final String jsonContentType) throws IOException {
+        if (RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
+            if (jsonContentType != null && !jsonContentType.isEmpty()) {
+                resp.setContentType(jsonContentType);
+            } else {
+                resp.setContentType(JSON_CONTENT_TYPE);
+            }
+        } else if (RESPONSE_TYPE_XML.equalsIgnoreCase(responseType)){
+            resp.setContentType(XML_CONTENT_TYPE);
+        }
+        if (responseCode != null) {
+            resp.setStatus(responseCode);
+        }
+        addSecurityHeaders(resp);
+        return resp.getWriter();
+    }
+
     public static void writeHttpResponse(final HttpServletResponse resp, final String response,
                                          final Integer responseCode, final String responseType, final String jsonContentType) {
         try {
-            if (RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
-                if (jsonContentType != null && !jsonContentType.isEmpty()) {
-                    resp.setContentType(jsonContentType);
-                } else {
-                    resp.setContentType(JSON_CONTENT_TYPE);
-                }
-            } else if (RESPONSE_TYPE_XML.equalsIgnoreCase(responseType)){
-                resp.setContentType(XML_CONTENT_TYPE);
-            }
-            if (responseCode != null) {
-                resp.setStatus(responseCode);
-            }
-            addSecurityHeaders(resp);
-            resp.getWriter().print(response);
+            openHttpResponse(resp, responseCode, responseType, jsonContentType).print(response);
         } catch (final IOException ioex) {
             if (s_logger.isTraceEnabled()) {
                 s_logger.trace("Exception writing http response: " + ioex);
@@ -0,0 +1,158 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram counts durations in fixed buckets so that percentiles
+ * can be reported without keeping the samples.  Recording is lock free and
+ * cheap enough for hot paths; the percentiles are as precise as the bucket
+ * bounds.
+ */
+public class LatencyHistogram {
+    /**
+     * Default upper bounds of the buckets, in milliseconds.
+     */
+    public static final long[] DEFAULT_BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000, 300000};
+
+    private final long[] _bounds;
+    // one more bucket than bounds, for the samples above the last bound
+    private final AtomicLongArray _counts;
+    private final AtomicLong _count = new AtomicLong();
+    private final AtomicLong _sum = new AtomicLong();
+    private final AtomicLong _max = new AtomicLong();
+
+    public LatencyHistogram() {
+        this(DEFAULT_BOUNDS);
+    }
+
+    /**
+     * @param bounds inclusive upper bounds of the buckets, in ascending order.
+     */
+    public LatencyHistogram(final long[] bounds) {
+        for (int i = 1; i < bounds.length; i++) {
+            if (bounds[i] <= bounds[i - 1]) {
+                throw new IllegalArgumentException("Bucket bounds must be ascending: " + Arrays.toString(bounds));
+            }
+        }
+        _bounds = bounds.clone();
+        _counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    public void record(final long value) {
+        final long v = Math.max(0, value);
+        int index = Arrays.binarySearch(_bounds, v);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        _counts.incrementAndGet(index);
+        _count.incrementAndGet();
+        _sum.addAndGet(v);
+        long max = _max.get();
+        while (v > max && !_max.compareAndSet(max, v)) {
+            max = _max.get();
+        }
+    }
+
+    public long getCount() {
+        return _count.get();
+    }
+
+    public long getMax() {
+        return _max.get();
+    }
+
+    public double getAverage() {
+        final long count = _count.get();
+        return count == 0 ? 0 : (double)_sum.get() / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return upper bound of the bucket holding the percentile, or the max
+     * if it is above the last bound.
+     */
+    public long getPercentile(final double percentile) {
+        final long count = _count.get();
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = (long)Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+        for (int i = 0; i < _bounds.length; i++) {
+            seen += _counts.get(i);
+            if (seen >= rank && seen > 0) {
+                return Math.min(_bounds[i], _max.get());
+            }
+        }
+        return _max.get();
+    }
+
+    public long[] getBounds() {
+        return _bounds.clone();
+    }
+
+    /**
+     * @return count of each bucket, the last one counts the samples above the last bound.
+     */
+    public long[] getCounts() {
+        final long[] counts = new long[_counts.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = _counts.get(i);
+        }
+        return counts;
+    }
+
+    public void reset() {
+        for (int i = 0; i < _counts.length(); i++) {
+            _counts.set(i, 0);
+        }
+        _count.set(0);
+        _sum.set(0);
+        _max.set(0);
+    }
+
+    /**
+     * @return the non empty buckets, e.g. "<=5:12 <=10:3 >300000:1".
+     */
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < _counts.length(); i++) {
+            final long count = _counts.get(i);
+            if (count == 0) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            if (i < _bounds.length) {
+                sb.append("<=").append(_bounds[i]);
+            } else {
+                sb.append('>').append(_bounds[_bounds.length - 1]);
+            }
+            sb.append(':').append(count);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,253 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.concurrency;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * HashedWheelTimer is a timer for large numbers of timeouts that are
+ * usually cancelled before they expire, such as request timeouts.
+ *
+ * Scheduling and cancelling are lock free: new timeouts are queued and
+ * moved into the wheel by the worker thread on its next tick, cancelled
+ * timeouts are only flagged and dropped when their bucket comes around.
+ * The price is precision, a timeout fires up to one tick late.  Expired
+ * tasks are handed to the given executor so that a slow task does not
+ * hold up the wheel.
+ */
+public class HashedWheelTimer {
+    private static final Logger s_logger = Logger.getLogger(HashedWheelTimer.class);
+
+    public interface Timeout {
+        /**
+         * @return false if the timeout already expired or was cancelled.
+         */
+        boolean cancel();
+
+        boolean isCancelled();
+
+        boolean isExpired();
+    }
+
+    private static final int ST_INIT = 0;
+    private static final int ST_STARTED = 1;
+    private static final int ST_STOPPED = 2;
+
+    private final String _name;
+    private final long _tickNanos;
+    private final int _mask;
+    private final LinkedList<WheelTimeout>[] _wheel;
+    private final Executor _executor;
+    private final ConcurrentLinkedQueue<WheelTimeout> _newTimeouts = new ConcurrentLinkedQueue<WheelTimeout>();
+    private final AtomicInteger _state = new AtomicInteger(ST_INIT);
+    private final AtomicLong _pending = new AtomicLong();
+    private final AtomicLong _expired = new AtomicLong();
+    private final long _startTime;
+    private Thread _worker;
+
+    /**
+     * @param name name of the worker thread.
+     * @param tickDuration duration of one tick.
+     * @param unit unit of tickDuration.
+     * @param ticksPerWheel number of buckets, rounded up to a power of two.
+     * @param executor runs the expired tasks.
+     */
+    @SuppressWarnings("unchecked")
+    public HashedWheelTimer(final String name, final long tickDuration, final TimeUnit unit, final int ticksPerWheel, final Executor executor) {
+        if (tickDuration <= 0 || ticksPerWheel <= 0 || ticksPerWheel > 1 << 30) {
+            throw new IllegalArgumentException("Invalid tick duration " + tickDuration + " or ticks per wheel " + ticksPerWheel);
+        }
+        int size = 1;
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        _name = name;
+        _tickNanos = unit.toNanos(tickDuration);
+        _mask = size - 1;
+        _wheel = new LinkedList[size];
+        for (int i = 0; i < size; i++) {
+            _wheel[i] = new LinkedList<WheelTimeout>();
+        }
+        _executor = executor;
+        _startTime = System.nanoTime();
+    }
+
+    /**
+     * Schedules the task to run once after the delay.  The worker thread is
+     * started on the first call.
+     */
+    public Timeout schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        start();
+        if (_state.get() == ST_STOPPED) {
+            throw new RejectedExecutionException("Timer " + _name + " has been stopped");
+        }
+        final WheelTimeout timeout = new WheelTimeout(task, System.nanoTime() - _startTime + unit.toNanos(Math.max(0, delay)));
+        _pending.incrementAndGet();
+        _newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    protected void start() {
+        if (_state.get() == ST_INIT && _state.compareAndSet(ST_INIT, ST_STARTED)) {
+            _worker = new Thread(new Worker(), _name);
+            _worker.setDaemon(true);
+            _worker.start();
+        }
+    }
+
+    /**
+     * Stops the worker thread, timeouts that have not expired yet are dropped.
+     */
+    public void stop() {
+        if (_state.getAndSet(ST_STOPPED) == ST_STARTED) {
+            _worker.interrupt();
+        }
+    }
+
+    /**
+     * @return timeouts that are neither expired nor cancelled.
+     */
+    public long getPendingTimeouts() {
+        return _pending.get();
+    }
+
+    public long getExpiredTimeouts() {
+        return _expired.get();
+    }
+
+    private class Worker implements Runnable {
+        private long _tick = (System.nanoTime() - _startTime) / _tickNanos;
+
+        @Override
+        public void run() {
+            while (_state.get() == ST_STARTED) {
+                if (!waitForNextTick()) {
+                    break;
+                }
+                transferNewTimeouts();
+                expireTimeouts(_wheel[(int)(_tick & _mask)]);
+                _tick++;
+            }
+        }
+
+        private boolean waitForNextTick() {
+            final long deadline = _tickNanos * (_tick + 1);
+            while (true) {
+                final long sleepNanos = deadline - (System.nanoTime() - _startTime);
+                if (sleepNanos <= 0) {
+                    return true;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (final InterruptedException e) {
+                    if (_state.get() == ST_STOPPED) {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        private void transferNewTimeouts() {
+            WheelTimeout timeout;
+            while ((timeout = _newTimeouts.poll()) != null) {
+                if (timeout.isCancelled()) {
+                    continue;
+                }
+                // never place a timeout in a bucket that has already been passed
+                final long ticks = Math.max(timeout._deadline / _tickNanos, _tick);
+                timeout._remainingRounds = (ticks - _tick) / _wheel.length;
+                _wheel[(int)(ticks & _mask)].add(timeout);
+            }
+        }
+
+        private void expireTimeouts(final LinkedList<WheelTimeout> bucket) {
+            final Iterator<WheelTimeout> it = bucket.iterator();
+            while (it.hasNext()) {
+                final WheelTimeout timeout = it.next();
+                if (timeout.isCancelled()) {
+                    it.remove();
+                } else if (timeout._remainingRounds <= 0) {
+                    it.remove();
+                    timeout.expire();
+                } else {
+                    timeout._remainingRounds--;
+                }
+            }
+        }
+    }
+
+    private class WheelTimeout implements Timeout {
+        private static final int ST_PENDING = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+
+        private final Runnable _task;
+        private final long _deadline;
+        private final AtomicInteger _timeoutState = new AtomicInteger(ST_PENDING);
+        // only touched by the worker thread
+        private long _remainingRounds;
+
+        WheelTimeout(final Runnable task, final long deadline) {
+            _task = task;
+            _deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (_timeoutState.compareAndSet(ST_PENDING, ST_CANCELLED)) {
+                _pending.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return _timeoutState.get() == ST_CANCELLED;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return _timeoutState.get() == ST_EXPIRED;
+        }
+
+        void expire() {
+            if (!_timeoutState.compareAndSet(ST_PENDING, ST_EXPIRED)) {
+                return;
+            }
+            _pending.decrementAndGet();
+            _expired.incrementAndGet();
+            try {
+                _executor.execute(_task);
+            } catch (final RejectedExecutionException e) {
+                s_logger.warn("Unable to run expired task of timer " + _name, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BufferPool hands out direct ByteBuffers in power of two size classes so
+ * that the framing and SSL paths of Link do not allocate on every packet.
+ * The SSL packet and application buffer sizes (16k plus some SSL overhead)
+ * both land in the same small class, larger classes are used to assemble
+ * multi-packet messages.  Requests bigger than the largest class are served
+ * with an unpooled heap buffer and counted as misses.
+ *
+ * The pool is thread safe and also keeps the wire counters of the
+ * connection it belongs to.
+ */
+public class BufferPool {
+    public static final int MIN_CLASS_SIZE = 4 * 1024;
+    public static final int MAX_CLASS_SIZE = 4 * 1024 * 1024;
+    /* Upper bound on the memory parked in each size class */
+    protected static final int MAX_BYTES_PER_CLASS = 8 * 1024 * 1024;
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] _classes;
+    private final AtomicInteger[] _pooled;
+    private final int[] _maxPooled;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _bytesRead = new AtomicLong();
+    private final AtomicLong _bytesWritten = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public BufferPool() {
+        final int count = classIndex(MAX_CLASS_SIZE) + 1;
+        _classes = new ConcurrentLinkedQueue[count];
+        _pooled = new AtomicInteger[count];
+        _maxPooled = new int[count];
+        for (int i = 0; i < count; i++) {
+            _classes[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            _pooled[i] = new AtomicInteger();
+            _maxPooled[i] = Math.max(1, MAX_BYTES_PER_CLASS / classSize(i));
+        }
+    }
+
+    protected static int classIndex(final int size) {
+        int index = 0;
+        int capacity = MIN_CLASS_SIZE;
+        while (capacity < size) {
+            capacity <<= 1;
+            index++;
+        }
+        return index;
+    }
+
+    protected static int classSize(final int index) {
+        return MIN_CLASS_SIZE << index;
+    }
+
+    /**
+     * @param size minimum capacity needed.
+     * @return a cleared buffer with at least size bytes of capacity.
+     */
+    public ByteBuffer acquire(final int size) {
+        if (size > MAX_CLASS_SIZE) {
+            _misses.incrementAndGet();
+            return ByteBuffer.allocate(size);
+        }
+
+        final int index = classIndex(size);
+        final ByteBuffer buffer = _classes[index].poll();
+        if (buffer != null) {
+            _pooled[index].decrementAndGet();
+            _hits.incrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+
+        _misses.incrementAndGet();
+        return ByteBuffer.allocateDirect(classSize(index));
+    }
+
+    /**
+     * Gives a buffer obtained from acquire() back to the pool.  Buffers that
+     * do not belong to a size class, and buffers over the per class limit,
+     * are simply dropped.
+     */
+    public void release(final ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+
+        final int capacity = buffer.capacity();
+        if (capacity > MAX_CLASS_SIZE || capacity != classSize(classIndex(capacity))) {
+            return;
+        }
+
+        final int index = classIndex(capacity);
+        if (_pooled[index].incrementAndGet() > _maxPooled[index]) {
+            _pooled[index].decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        _classes[index].offer(buffer);
+    }
+
+    public void recordRead(final long bytes) {
+        _bytesRead.addAndGet(bytes);
+    }
+
+    public void recordWritten(final long bytes) {
+        _bytesWritten.addAndGet(bytes);
+    }
+
+    public long getHits() {
+        return _hits.get();
+    }
+
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    public long getBytesRead() {
+        return _bytesRead.get();
+    }
+
+    public long getBytesWritten() {
+        return _bytesWritten.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool[hits=" + getHits() + ", misses=" + getMisses() + ", read=" + getBytesRead() + ", written=" + getBytesWritten() + "]";
+    }
+}
@@ -34,6 +34,7 @@ import java.nio.channels.SocketChannel;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
@@ -55,8 +56,14 @@ import com.cloud.utils.db.DbProperties;
 public class Link {
     private static final Logger s_logger = Logger.getLogger(Link.class);
 
+    /* Used by the static write() for callers that are not bound to a NioConnection */
+    private static final BufferPool s_sharedPool = new BufferPool();
+    /* Queued in place of data to ask write() to close the connection */
+    private static final ByteBuffer[] CLOSE_REQUEST = new ByteBuffer[0];
+
     private final InetSocketAddress _addr;
     private final NioConnection _connection;
+    private final BufferPool _bufferPool;
     private SelectionKey _key;
     private final ConcurrentLinkedQueue<ByteBuffer[]> _writeQueue;
     private ByteBuffer _readBuffer;
@@ -64,6 +71,9 @@ public class Link {
     private Object _attach;
     private boolean _readHeader;
     private boolean _gotFollowingPacket;
+    private final AtomicInteger _pendingTasks = new AtomicInteger();
+    private final AtomicInteger _parkedTasks = new AtomicInteger();
+    private volatile boolean _readPaused;
 
     private SSLEngine _sslEngine;
     public static final String keystoreFile = "/cloudmanagementserver.keystore";
@@ -71,6 +81,7 @@ public class Link {
     public Link(InetSocketAddress addr, NioConnection connection) {
         _addr = addr;
         _connection = connection;
+        _bufferPool = connection != null ? connection.getBufferPool() : s_sharedPool;
         _readBuffer = ByteBuffer.allocate(2048);
         _attach = null;
         _key = null;
@@ -101,6 +112,59 @@ public class Link {
         _sslEngine = sslEngine;
     }
 
+    int incrementPendingTasks() {
+        return _pendingTasks.incrementAndGet();
+    }
+
+    int decrementPendingTasks() {
+        return _pendingTasks.decrementAndGet();
+    }
+
+    /**
+     * @return number of tasks received on this link still waiting in, or running on, the handler pool.
+     */
+    public int getPendingTasks() {
+        return _pendingTasks.get();
+    }
+
+    int incrementParkedTasks() {
+        return _parkedTasks.incrementAndGet();
+    }
+
+    int decrementParkedTasks() {
+        return _parkedTasks.decrementAndGet();
+    }
+
+    /**
+     * @return number of tasks received on this link waiting for room in the handler queue.
+     */
+    public int getParkedTasks() {
+        return _parkedTasks.get();
+    }
+
+    public boolean isReadPaused() {
+        return _readPaused;
+    }
+
+    void setReadPaused(boolean readPaused) {
+        _readPaused = readPaused;
+    }
+
+    /**
+     * Restores read interest on a link whose reads were suspended by the connection.
+     */
+    synchronized void resumeRead() {
+        if (!_readPaused || _key == null) {
+            return;
+        }
+        _readPaused = false;
+        int ops = SelectionKey.OP_READ;
+        if (!_writeQueue.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        _connection.change(ops, _key, null);
+    }
+
     /**
      * No user, so comment it out.
      *
@@ -144,57 +208,52 @@ public class Link {
     }
      */
 
-    private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
+    private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine, BufferPool pool) throws IOException {
         SSLSession sslSession = sslEngine.getSession();
-        ByteBuffer pkgBuf = ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
+        // The first 4 bytes of the packet buffer carry the header, so header and data go out in one write
+        ByteBuffer pkgBuf = pool.acquire(sslSession.getPacketBufferSize() + 40 + 4);
         SSLEngineResult engResult;
 
-        ByteBuffer headBuf = ByteBuffer.allocate(4);
-
-        int totalLen = 0;
-        for (ByteBuffer buffer : buffers) {
-            totalLen += buffer.limit();
-        }
-
-        int processedLen = 0;
-        while (processedLen < totalLen) {
-            headBuf.clear();
-            pkgBuf.clear();
-            engResult = sslEngine.wrap(buffers, pkgBuf);
-            if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED && engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
-                    engResult.getStatus() != SSLEngineResult.Status.OK) {
-                throw new IOException("SSL: SSLEngine return bad result! " + engResult);
-            }
-
-            processedLen = 0;
+        try {
+            int totalLen = 0;
             for (ByteBuffer buffer : buffers) {
-                processedLen += buffer.position();
+                totalLen += buffer.limit();
             }
 
-            int dataRemaining = pkgBuf.position();
-            int header = dataRemaining;
-            int headRemaining = 4;
-            pkgBuf.flip();
-            if (processedLen < totalLen) {
-                header = header | HEADER_FLAG_FOLLOWING;
-            }
-            headBuf.putInt(header);
-            headBuf.flip();
+            int processedLen = 0;
+            while (processedLen < totalLen) {
+                pkgBuf.clear();
+                pkgBuf.position(4);
+                engResult = sslEngine.wrap(buffers, pkgBuf);
+                if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED && engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
+                        engResult.getStatus() != SSLEngineResult.Status.OK) {
+                    throw new IOException("SSL: SSLEngine return bad result! " + engResult);
+                }
 
-            while (headRemaining > 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Header " + headRemaining);
+                processedLen = 0;
+                for (ByteBuffer buffer : buffers) {
+                    processedLen += buffer.position();
                 }
-                long count = ch.write(headBuf);
-                headRemaining -= count;
-            }
-            while (dataRemaining > 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Data " + dataRemaining);
+
+                int header = pkgBuf.position() - 4;
+                if (processedLen < totalLen) {
+                    header = header | HEADER_FLAG_FOLLOWING;
+                }
+                pkgBuf.putInt(0, header);
+                pkgBuf.flip();
+
+                int remaining = pkgBuf.limit();
+                while (remaining > 0) {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Writing Data " + remaining);
+                    }
+                    long count = ch.write(pkgBuf);
+                    remaining -= count;
                 }
-                long count = ch.write(pkgBuf);
-                dataRemaining -= count;
+                pool.recordWritten(pkgBuf.limit());
             }
+        } finally {
+            pool.release(pkgBuf);
         }
     }
 
@@ -209,7 +268,7 @@ public class Link {
      */
     public static void write(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
         synchronized (ch) {
-            doWrite(ch, buffers, sslEngine);
+            doWrite(ch, buffers, sslEngine, s_sharedPool);
         }
     }
 
@@ -223,9 +282,11 @@ public class Link {
                 _readBuffer.limit(4);
             }
 
-            if (ch.read(_readBuffer) == -1) {
+            int count = ch.read(_readBuffer);
+            if (count == -1) {
                 throw new IOException("Connection closed with -1 on reading size.");
             }
+            _bufferPool.recordRead(count);
 
             if (_readBuffer.hasRemaining()) {
                 s_logger.trace("Need to read the rest of the packet length");
@@ -243,7 +304,7 @@ public class Link {
             }
 
             if (!_gotFollowingPacket) {
-                _plaintextBuffer = ByteBuffer.allocate(2000);
+                _plaintextBuffer = _bufferPool.acquire(_sslEngine.getSession().getApplicationBufferSize() + 40);
             }
 
             if ((header & HEADER_FLAG_FOLLOWING) != 0) {
@@ -264,9 +325,11 @@ public class Link {
             _readBuffer.limit(readSize);
         }
 
-        if (ch.read(_readBuffer) == -1) {
+        int count = ch.read(_readBuffer);
+        if (count == -1) {
             throw new IOException("Connection closed with -1 on read.");
         }
+        _bufferPool.recordRead(count);
 
         if (_readBuffer.hasRemaining()) {   // We're not done yet.
             if (s_logger.isTraceEnabled()) {
@@ -277,36 +340,40 @@ public class Link {
 
         _readBuffer.flip();
 
-        ByteBuffer appBuf;
-
         SSLSession sslSession = _sslEngine.getSession();
         SSLEngineResult engResult;
         int remaining = 0;
 
-        while (_readBuffer.hasRemaining()) {
-            remaining = _readBuffer.remaining();
-            appBuf = ByteBuffer.allocate(sslSession.getApplicationBufferSize() + 40);
-            engResult = _sslEngine.unwrap(_readBuffer, appBuf);
-            if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED && engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
-                    engResult.getStatus() != SSLEngineResult.Status.OK) {
-                throw new IOException("SSL: SSLEngine return bad result! " + engResult);
-            }
-            if (remaining == _readBuffer.remaining()) {
-                throw new IOException("SSL: Unable to unwrap received data! still remaining " + remaining + "bytes!");
-            }
+        ByteBuffer appBuf = _bufferPool.acquire(sslSession.getApplicationBufferSize() + 40);
+        try {
+            while (_readBuffer.hasRemaining()) {
+                remaining = _readBuffer.remaining();
+                appBuf.clear();
+                engResult = _sslEngine.unwrap(_readBuffer, appBuf);
+                if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED && engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
+                        engResult.getStatus() != SSLEngineResult.Status.OK) {
+                    throw new IOException("SSL: SSLEngine return bad result! " + engResult);
+                }
+                if (remaining == _readBuffer.remaining()) {
+                    throw new IOException("SSL: Unable to unwrap received data! still remaining " + remaining + "bytes!");
+                }
 
-            appBuf.flip();
-            if (_plaintextBuffer.remaining() < appBuf.limit()) {
-                // We need to expand _plaintextBuffer for more data
-                ByteBuffer newBuffer = ByteBuffer.allocate(_plaintextBuffer.capacity() + appBuf.limit() * 5);
-                _plaintextBuffer.flip();
-                newBuffer.put(_plaintextBuffer);
-                _plaintextBuffer = newBuffer;
-            }
-            _plaintextBuffer.put(appBuf);
-            if (s_logger.isTraceEnabled()) {
-                s_logger.trace("Done with packet: " + appBuf.limit());
+                appBuf.flip();
+                if (_plaintextBuffer.remaining() < appBuf.limit()) {
+                    // We need to expand _plaintextBuffer for more data, doubling keeps the number of copies logarithmic
+                    ByteBuffer newBuffer = _bufferPool.acquire(Math.max(_plaintextBuffer.capacity() * 2, _plaintextBuffer.position() + appBuf.limit()));
+                    _plaintextBuffer.flip();
+                    newBuffer.put(_plaintextBuffer);
+                    _bufferPool.release(_plaintextBuffer);
+                    _plaintextBuffer = newBuffer;
+                }
+                _plaintextBuffer.put(appBuf);
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Done with packet: " + appBuf.limit());
+                }
             }
+        } finally {
+            _bufferPool.release(appBuf);
         }
 
         _readBuffer.clear();
@@ -316,6 +383,8 @@ public class Link {
             _plaintextBuffer.flip();
             byte[] result = new byte[_plaintextBuffer.limit()];
             _plaintextBuffer.get(result);
+            _bufferPool.release(_plaintextBuffer);
+            _plaintextBuffer = null;
             return result;
         } else {
             if (s_logger.isTraceEnabled()) {
@@ -334,24 +403,20 @@ public class Link {
     }
 
     public void send(ByteBuffer[] data, boolean close) throws ClosedChannelException {
-        ByteBuffer[] item = new ByteBuffer[data.length + 1];
-        int remaining = 0;
-        for (int i = 0; i < data.length; i++) {
-            remaining += data[i].remaining();
-            item[i + 1] = data[i];
-        }
-
-        item[0] = ByteBuffer.allocate(4);
-        item[0].putInt(remaining);
-        item[0].flip();
-
         if (s_logger.isTraceEnabled()) {
+            int remaining = 0;
+            for (ByteBuffer buffer : data) {
+                remaining += buffer.remaining();
+            }
             s_logger.trace("Sending packet of length " + remaining);
         }
 
-        _writeQueue.add(item);
+        // The wire header is produced by doWrite() for every SSL packet, so the data is queued as is
+        if (data.length > 0) {
+            _writeQueue.add(data);
+        }
         if (close) {
-            _writeQueue.add(new ByteBuffer[0]);
+            _writeQueue.add(CLOSE_REQUEST);
         }
         synchronized (this) {
             if (_key == null) {
@@ -374,21 +439,26 @@ public class Link {
     public boolean write(SocketChannel ch) throws IOException {
         ByteBuffer[] data = null;
         while ((data = _writeQueue.poll()) != null) {
-            if (data.length == 0) {
+            if (data == CLOSE_REQUEST) {
                 if (s_logger.isTraceEnabled()) {
                     s_logger.trace("Closing connection requested");
                 }
                 return true;
             }
 
-            ByteBuffer[] raw_data = new ByteBuffer[data.length - 1];
-            System.arraycopy(data, 1, raw_data, 0, data.length - 1);
-
-            doWrite(ch, raw_data, _sslEngine);
+            doWrite(ch, data, _sslEngine, _bufferPool);
+            written(data);
         }
         return false;
     }
 
+    /**
+     * Called by the selector thread after a message queued by send() has
+     * been written to the channel.
+     */
+    protected void written(ByteBuffer[] data) {
+    }
+
     public InetSocketAddress getSocketAddress() {
         return _addr;
     }
@@ -32,6 +32,7 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -41,9 +42,13 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.StandardMBean;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 
@@ -52,10 +57,23 @@ import org.apache.log4j.Logger;
 
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.exception.NioConnectionException;
+import com.cloud.utils.mgmt.JmxUtil;
 
 /**
  * NioConnection abstracts the NIO socket operations.  The Java implementation
  * provides that.
+ *
+ * By default a single selector thread accepts, handshakes and serves every
+ * channel.  When more than one selector is configured, the main selector only
+ * accepts, SSL handshakes run on a separate executor, and the established
+ * channels are spread over the selector workers.  When a task backlog per link
+ * is configured, reading from a link stops while it has that many tasks waiting
+ * in the handler pool, and resumes once half of them are done.
+ *
+ * When the handler queue is bounded and full, the task is parked and reading
+ * from its link stops, so the selector threads never run a handler themselves.
+ * The parked tasks are submitted in order as the queue drains, and reading
+ * resumes once a link has none left.
  */
 public abstract class NioConnection implements Callable<Boolean> {
     private static final Logger s_logger = Logger.getLogger(NioConnection.class);;
@@ -71,14 +89,48 @@ public abstract class NioConnection implements Callable<Boolean> {
     protected HandlerFactory _factory;
     protected String _name;
     protected ExecutorService _executor;
+    protected final BufferPool _bufferPool = new BufferPool();
+    // tasks that found the handler queue full, in the order they were received
+    private final ArrayDeque<ParkedTask> _parkedTasks = new ArrayDeque<ParkedTask>();
+    private volatile boolean _hasParkedTasks;
+
+    protected int _workers;
+    protected int _selectorCount;
+    protected int _maxTasksPerLink;
+    protected SelectorWorker[] _selectorWorkers = new SelectorWorker[0];
+    protected ExecutorService _selectorExecutor;
+    protected ExecutorService _handshakeExecutor;
+    private final AtomicInteger _nextSelectorWorker = new AtomicInteger();
 
     public NioConnection(final String name, final int port, final int workers, final HandlerFactory factory) {
+        this(name, port, workers, factory, 1, 0, 0);
+    }
+
+    /**
+     * @param selectors number of selector threads serving established channels, 1 keeps everything on one thread.
+     * @param maxQueuedTasks bound of the handler queue, 0 for unbounded.  Reading from a link whose task finds the queue full stops until the queue drains.
+     * @param maxTasksPerLink tasks a link may have waiting in the handler pool before reading from it is suspended, 0 to never suspend.
+     */
+    public NioConnection(final String name, final int port, final int workers, final HandlerFactory factory, final int selectors, final int maxQueuedTasks,
+            final int maxTasksPerLink) {
         _name = name;
         _isRunning = false;
         _selector = null;
         _port = port;
         _factory = factory;
-        _executor = new ThreadPoolExecutor(workers, 5 * workers, 1, TimeUnit.DAYS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name + "-Handler"));
+        _workers = workers;
+        _selectorCount = selectors;
+        _maxTasksPerLink = maxTasksPerLink;
+        if (maxQueuedTasks > 0) {
+            _executor = new ThreadPoolExecutor(workers, 5 * workers, 1, TimeUnit.DAYS, new LinkedBlockingQueue<Runnable>(maxQueuedTasks), new NamedThreadFactory(name + "-Handler")) {
+                @Override
+                protected void afterExecute(final Runnable r, final Throwable t) {
+                    submitParkedTasks();
+                }
+            };
+        } else {
+            _executor = new ThreadPoolExecutor(workers, 5 * workers, 1, TimeUnit.DAYS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name + "-Handler"));
+        }
     }
 
     public void start() throws NioConnectionException {
@@ -97,11 +149,42 @@ public abstract class NioConnection implements Callable<Boolean> {
             throw new NioConnectionException(e.getMessage(), e);
         }
         _isStartup = true;
+        _isRunning = true;
+
+        if (_selectorCount > 1) {
+            try {
+                startSelectorWorkers();
+            } catch (final IOException e) {
+                s_logger.error("Unable to open the selectors.", e);
+                throw new NioConnectionException(e.getMessage(), e);
+            }
+        }
 
         _threadExecutor = Executors.newSingleThreadExecutor();
         _futureTask = _threadExecutor.submit(this);
+    }
 
-        _isRunning = true;
+    protected void startSelectorWorkers() throws IOException {
+        final ThreadPoolExecutor handshakeExecutor = new ThreadPoolExecutor(_workers, _workers, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory(_name + "-Handshake"));
+        handshakeExecutor.allowCoreThreadTimeOut(true);
+        _handshakeExecutor = handshakeExecutor;
+
+        _selectorWorkers = new SelectorWorker[_selectorCount];
+        for (int i = 0; i < _selectorCount; i++) {
+            _selectorWorkers[i] = new SelectorWorker(i, Selector.open());
+        }
+
+        _selectorExecutor = Executors.newFixedThreadPool(_selectorCount, new NamedThreadFactory(_name + "-Selector"));
+        for (final SelectorWorker worker : _selectorWorkers) {
+            _selectorExecutor.submit(worker);
+            try {
+                JmxUtil.registerMBean("NioConnection", worker.getName(), worker);
+            } catch (final Exception e) {
+                s_logger.warn("Unable to register selector " + worker.getName() + " to JMX", e);
+            }
+        }
+        s_logger.info(_name + " serves its channels with " + _selectorCount + " selectors");
     }
 
     public void stop() {
@@ -111,6 +194,20 @@ public abstract class NioConnection implements Callable<Boolean> {
             _futureTask.cancel(false);
             _threadExecutor.shutdown();
         }
+        if (_handshakeExecutor != null) {
+            _handshakeExecutor.shutdown();
+        }
+        if (_selectorExecutor != null) {
+            for (final SelectorWorker worker : _selectorWorkers) {
+                worker.wakeup();
+                try {
+                    JmxUtil.unregisterMBean("NioConnection", worker.getName());
+                } catch (final Exception e) {
+                    s_logger.debug("Unable to unregister selector " + worker.getName() + " from JMX: " + e.getMessage());
+                }
+            }
+            _selectorExecutor.shutdown();
+        }
     }
 
     public boolean isRunning() {
@@ -121,46 +218,20 @@ public abstract class NioConnection implements Callable<Boolean> {
         return _isStartup;
     }
 
+    /**
+     * @return the buffer pool shared by the links of this connection, with its hit/miss and wire counters.
+     */
+    public BufferPool getBufferPool() {
+        return _bufferPool;
+    }
+
     @Override
     public Boolean call() throws NioConnectionException {
         while (_isRunning) {
             try {
                 _selector.select();
 
-                // Someone is ready for I/O, get the ready keys
-                final Set<SelectionKey> readyKeys = _selector.selectedKeys();
-                final Iterator<SelectionKey> i = readyKeys.iterator();
-
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Keys Processing: " + readyKeys.size());
-                }
-                // Walk through the ready keys collection.
-                while (i.hasNext()) {
-                    final SelectionKey sk = i.next();
-                    i.remove();
-
-                    if (!sk.isValid()) {
-                        if (s_logger.isTraceEnabled()) {
-                            s_logger.trace("Selection Key is invalid: " + sk.toString());
-                        }
-                        final Link link = (Link)sk.attachment();
-                        if (link != null) {
-                            link.terminated();
-                        } else {
-                            closeConnection(sk);
-                        }
-                    } else if (sk.isReadable()) {
-                        read(sk);
-                    } else if (sk.isWritable()) {
-                        write(sk);
-                    } else if (sk.isAcceptable()) {
-                        accept(sk);
-                    } else if (sk.isConnectable()) {
-                        connect(sk);
-                    }
-                }
-
-                s_logger.trace("Keys Done Processing.");
+                processSelectedKeys(_selector);
 
                 processTodos();
             } catch (final ClosedSelectorException e) {
@@ -177,6 +248,49 @@ public abstract class NioConnection implements Callable<Boolean> {
         return true;
     }
 
+    /**
+     * Dispatches the keys selected by the last select() on the selector.
+     * @return number of keys processed.
+     */
+    protected int processSelectedKeys(final Selector selector) throws IOException {
+        // Someone is ready for I/O, get the ready keys
+        final Set<SelectionKey> readyKeys = selector.selectedKeys();
+        final Iterator<SelectionKey> i = readyKeys.iterator();
+        final int count = readyKeys.size();
+
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("Keys Processing: " + count);
+        }
+        // Walk through the ready keys collection.
+        while (i.hasNext()) {
+            final SelectionKey sk = i.next();
+            i.remove();
+
+            if (!sk.isValid()) {
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Selection Key is invalid: " + sk.toString());
+                }
+                final Link link = (Link)sk.attachment();
+                if (link != null) {
+                    link.terminated();
+                } else {
+                    closeConnection(sk);
+                }
+            } else if (sk.isReadable()) {
+                read(sk);
+            } else if (sk.isWritable()) {
+                write(sk);
+            } else if (sk.isAcceptable()) {
+                accept(sk);
+            } else if (sk.isConnectable()) {
+                connect(sk);
+            }
+        }
+
+        s_logger.trace("Keys Done Processing.");
+        return count;
+    }
+
     abstract void init() throws IOException;
 
     abstract void registerLink(InetSocketAddress saddr, Link link);
@@ -194,11 +308,48 @@ public abstract class NioConnection implements Callable<Boolean> {
             s_logger.trace("Connection accepted for " + socket);
         }
 
-        // Begin SSL handshake in BLOCKING mode
-        socketChannel.configureBlocking(true);
+        if (_selectorWorkers.length > 0) {
+            // Keep the accepting selector free, the handshake blocks on the agent for up to a minute
+            try {
+                _handshakeExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        final SSLEngine sslEngine = handshake(socketChannel);
+                        if (sslEngine != null) {
+                            nextSelectorWorker().accepted(socketChannel, sslEngine);
+                        }
+                    }
+                });
+            } catch (final Exception e) {
+                s_logger.warn("Unable to schedule the handshake for " + socket, e);
+                closeAutoCloseable(socketChannel, "accepting socketChannel");
+            }
+            return;
+        }
+
+        final SSLEngine sslEngine = handshake(socketChannel);
+        if (sslEngine == null) {
+            return;
+        }
 
+        socketChannel.configureBlocking(false);
+        final InetSocketAddress saddr = (InetSocketAddress)socket.getRemoteSocketAddress();
+        final Link link = new Link(saddr, this);
+        link.setSSLEngine(sslEngine);
+        accepted(socketChannel.register(key.selector(), SelectionKey.OP_READ, link), link);
+    }
+
+    /**
+     * Runs the SSL handshake of an accepted channel in blocking mode.
+     * @return the engine of the established session, null if the handshake failed and the channel got closed.
+     */
+    protected SSLEngine handshake(final SocketChannel socketChannel) {
+        final Socket socket = socketChannel.socket();
         SSLEngine sslEngine = null;
         try {
+            // Begin SSL handshake in BLOCKING mode
+            socketChannel.configureBlocking(true);
+
             final SSLContext sslContext = Link.initSSLContext(false);
             sslEngine = sslContext.createSSLEngine();
             sslEngine.setUseClientMode(false);
@@ -213,25 +364,23 @@ public abstract class NioConnection implements Callable<Boolean> {
             }
             closeAutoCloseable(socketChannel, "accepting socketChannel");
             closeAutoCloseable(socket, "opened socket");
-            return;
+            return null;
         }
 
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("SSL: Handshake done");
         }
-        socketChannel.configureBlocking(false);
-        final InetSocketAddress saddr = (InetSocketAddress)socket.getRemoteSocketAddress();
-        final Link link = new Link(saddr, this);
-        link.setSSLEngine(sslEngine);
-        link.setKey(socketChannel.register(key.selector(), SelectionKey.OP_READ, link));
-        final Task task = _factory.create(Task.Type.CONNECT, link, null);
-        registerLink(saddr, link);
+        return sslEngine;
+    }
 
-        try {
-            _executor.submit(task);
-        } catch (final Exception e) {
-            s_logger.warn("Exception occurred when submitting the task", e);
-        }
+    /**
+     * Announces a link whose channel has just been registered with its selector.
+     */
+    protected void accepted(final SelectionKey key, final Link link) {
+        link.setKey(key);
+        final Task task = _factory.create(Task.Type.CONNECT, link, null);
+        registerLink(link.getSocketAddress(), link);
+        submit(key, link, task);
     }
 
     protected void terminate(final SelectionKey key) {
@@ -241,12 +390,7 @@ public abstract class NioConnection implements Callable<Boolean> {
             link.terminated();
             final Task task = _factory.create(Task.Type.DISCONNECT, link, null);
             unregisterLink(link.getSocketAddress());
-
-            try {
-                _executor.submit(task);
-            } catch (final Exception e) {
-                s_logger.warn("Exception occurred when submitting the task", e);
-            }
+            submit(null, link, task);
         }
     }
 
@@ -265,18 +409,131 @@ public abstract class NioConnection implements Callable<Boolean> {
                 return;
             }
             final Task task = _factory.create(Task.Type.DATA, link, data);
-
-            try {
-                _executor.submit(task);
-            } catch (final Exception e) {
-                s_logger.warn("Exception occurred when submitting the task", e);
+            if (_maxTasksPerLink > 0) {
+                submitThrottled(key, link, task);
+                return;
             }
+            submit(key, link, task);
         } catch (final Exception e) {
             logDebug(e, key, 1);
             terminate(key);
         }
     }
 
+    /**
+     * Submits a task received on the link, and stops reading from the link
+     * when it has too many tasks waiting so the agent gets pushed back by TCP.
+     */
+    protected void submitThrottled(final SelectionKey key, final Link link, final Task task) {
+        if (link.incrementPendingTasks() >= _maxTasksPerLink && !link.isReadPaused()) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Suspending reads from " + link.getSocketAddress() + ", it has " + _maxTasksPerLink + " tasks waiting");
+            }
+            link.setReadPaused(true);
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+
+        final boolean submitted = submit(key, link, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                try {
+                    return task.call();
+                } finally {
+                    link.decrementPendingTasks();
+                    resumeReadIfDrained(link);
+                }
+            }
+        });
+        if (!submitted) {
+            link.decrementPendingTasks();
+        }
+    }
+
+    /**
+     * Submits a task to the handler pool, or parks it if the handler queue is
+     * full.  Reading from the link stops while it has parked tasks, this is
+     * only done on the thread of the selector the key belongs to.
+     *
+     * @param key the key to stop reading from, null if not on its selector thread.
+     * @return false if the task was dropped as the connection is stopped.
+     */
+    protected boolean submit(final SelectionKey key, final Link link, final Callable<Boolean> task) {
+        synchronized (_parkedTasks) {
+            // behind the tasks parked before it, to keep the order of every link
+            if (_parkedTasks.isEmpty()) {
+                try {
+                    _executor.submit(task);
+                    return true;
+                } catch (final RejectedExecutionException e) {
+                    if (_executor.isShutdown()) {
+                        s_logger.warn("Exception occurred when submitting the task", e);
+                        return false;
+                    }
+                }
+            }
+            _parkedTasks.add(new ParkedTask(link, task));
+            link.incrementParkedTasks();
+            _hasParkedTasks = true;
+        }
+
+        if (key != null && key.isValid() && !link.isReadPaused()) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Suspending reads from " + link.getSocketAddress() + ", the handler queue is full");
+            }
+            link.setReadPaused(true);
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        // the queue may have drained before the task got parked
+        submitParkedTasks();
+        return true;
+    }
+
+    /**
+     * Submits the parked tasks in order while the handler queue has room.
+     */
+    protected void submitParkedTasks() {
+        if (!_hasParkedTasks) {
+            return;
+        }
+        final List<Link> drained = new ArrayList<Link>();
+        synchronized (_parkedTasks) {
+            ParkedTask parked;
+            while ((parked = _parkedTasks.peek()) != null) {
+                try {
+                    _executor.submit(parked.task);
+                } catch (final RejectedExecutionException e) {
+                    if (!_executor.isShutdown()) {
+                        break;
+                    }
+                    s_logger.warn("Exception occurred when submitting the task", e);
+                }
+                _parkedTasks.poll();
+                if (parked.link.decrementParkedTasks() == 0) {
+                    drained.add(parked.link);
+                }
+            }
+            _hasParkedTasks = !_parkedTasks.isEmpty();
+        }
+        for (final Link link : drained) {
+            resumeReadIfDrained(link);
+        }
+    }
+
+    protected void resumeReadIfDrained(final Link link) {
+        if (link.getParkedTasks() == 0 && (_maxTasksPerLink <= 0 || link.getPendingTasks() <= _maxTasksPerLink / 2)) {
+            link.resumeRead();
+        }
+    }
+
+    /**
+     * @return number of tasks waiting for room in the handler queue.
+     */
+    public int getParkedTaskCount() {
+        synchronized (_parkedTasks) {
+            return _parkedTasks.size();
+        }
+    }
+
     protected void logTrace(final Exception e, final SelectionKey key, final int loc) {
         if (s_logger.isTraceEnabled()) {
             Socket socket = null;
@@ -316,6 +573,10 @@ public abstract class NioConnection implements Callable<Boolean> {
             _todos = new ArrayList<ChangeRequest>();
         }
 
+        processTodos(todos, _selector);
+    }
+
+    protected void processTodos(final List<ChangeRequest> todos, final Selector selector) {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Todos Processing: " + todos.size());
         }
@@ -331,7 +592,9 @@ public abstract class NioConnection implements Callable<Boolean> {
                             final Link link = (Link)todo.att;
                             link.setKey(key);
                         }
-                        key.interestOps(todo.ops);
+                        final Link link = (Link)key.attachment();
+                        // a resume queued before reads got suspended again
+                        key.interestOps(link != null && link.isReadPaused() ? todo.ops & ~SelectionKey.OP_READ : todo.ops);
                     }
                 } catch (final CancelledKeyException e) {
                     s_logger.debug("key has been cancelled");
@@ -339,7 +602,7 @@ public abstract class NioConnection implements Callable<Boolean> {
                 break;
             case ChangeRequest.REGISTER:
                 try {
-                    key = ((SocketChannel)todo.key).register(_selector, todo.ops, todo.att);
+                    key = ((SocketChannel)todo.key).register(selector, todo.ops, todo.att);
                     if (todo.att != null) {
                         final Link link = (Link)todo.att;
                         link.setKey(key);
@@ -369,6 +632,14 @@ public abstract class NioConnection implements Callable<Boolean> {
                     }
                 }
                 break;
+            case ChangeRequest.ACCEPT:
+                try {
+                    accepted(((SocketChannel)todo.key).register(selector, todo.ops, todo.att), (Link)todo.att);
+                } catch (final ClosedChannelException e) {
+                    s_logger.warn("Couldn't register accepted socket: " + todo.key);
+                    closeAutoCloseable((SocketChannel)todo.key, "accepted socketChannel");
+                }
+                break;
             default:
                 s_logger.warn("Shouldn't be here");
                 throw new RuntimeException("Shouldn't be here");
@@ -394,12 +665,7 @@ public abstract class NioConnection implements Callable<Boolean> {
             link.setKey(key);
             key.attach(link);
             final Task task = _factory.create(Task.Type.CONNECT, link, null);
-
-            try {
-                _executor.submit(task);
-            } catch (final Exception e) {
-                s_logger.warn("Exception occurred when submitting the task", e);
-            }
+            submit(key, link, task);
         } catch (final IOException e) {
             logTrace(e, key, 2);
             terminate(key);
@@ -407,11 +673,7 @@ public abstract class NioConnection implements Callable<Boolean> {
     }
 
     protected void scheduleTask(final Task task) {
-        try {
-            _executor.submit(task);
-        } catch (final Exception e) {
-            s_logger.warn("Exception occurred when submitting the task", e);
-        }
+        submit(null, task.getLink(), task);
     }
 
     protected void write(final SelectionKey key) throws IOException {
@@ -425,7 +687,7 @@ public abstract class NioConnection implements Callable<Boolean> {
                 closeConnection(key);
                 link.terminated();
             } else {
-                key.interestOps(SelectionKey.OP_READ);
+                key.interestOps(link.isReadPaused() ? 0 : SelectionKey.OP_READ);
             }
         } catch (final Exception e) {
             logDebug(e, key, 3);
@@ -460,31 +722,189 @@ public abstract class NioConnection implements Callable<Boolean> {
 
     public void change(final int ops, final SelectionKey key, final Object att) {
         final ChangeRequest todo = new ChangeRequest(key, ChangeRequest.CHANGEOPS, ops, att);
-        synchronized (this) {
-            _todos.add(todo);
-        }
-        _selector.wakeup();
+        addTodo(key, todo);
     }
 
     public void close(final SelectionKey key) {
         final ChangeRequest todo = new ChangeRequest(key, ChangeRequest.CLOSE, 0, null);
+        addTodo(key, todo);
+    }
+
+    /**
+     * Queues the request to the thread of the selector the key belongs to.
+     */
+    protected void addTodo(final SelectionKey key, final ChangeRequest todo) {
+        if (key != null) {
+            for (final SelectorWorker worker : _selectorWorkers) {
+                if (worker._workerSelector == key.selector()) {
+                    worker.addTodo(todo);
+                    return;
+                }
+            }
+        }
         synchronized (this) {
             _todos.add(todo);
         }
         _selector.wakeup();
     }
 
+    protected SelectorWorker nextSelectorWorker() {
+        final int next = _nextSelectorWorker.getAndIncrement() & Integer.MAX_VALUE;
+        return _selectorWorkers[next % _selectorWorkers.length];
+    }
+
     /* Release the resource used by the instance */
     public void cleanUp() throws IOException {
         if (_selector != null) {
             _selector.close();
         }
+        for (final SelectorWorker worker : _selectorWorkers) {
+            worker._workerSelector.close();
+        }
+    }
+
+    /**
+     * Serves the channels handed over by the accepting selector.
+     */
+    protected class SelectorWorker extends StandardMBean implements NioSelectorMBean, Callable<Boolean> {
+        protected final int _index;
+        protected final Selector _workerSelector;
+        protected List<ChangeRequest> _workerTodos = new ArrayList<ChangeRequest>();
+        protected final AtomicLong _selectCount = new AtomicLong();
+        protected final AtomicLong _selectedKeyCount = new AtomicLong();
+
+        public SelectorWorker(final int index, final Selector selector) {
+            super(NioSelectorMBean.class, false);
+            _index = index;
+            _workerSelector = selector;
+        }
+
+        public void accepted(final SocketChannel socketChannel, final SSLEngine sslEngine) {
+            try {
+                socketChannel.configureBlocking(false);
+            } catch (final IOException e) {
+                s_logger.warn("Unable to switch " + socketChannel.socket() + " to non-blocking mode", e);
+                closeAutoCloseable(socketChannel, "accepted socketChannel");
+                return;
+            }
+            final Link link = new Link((InetSocketAddress)socketChannel.socket().getRemoteSocketAddress(), NioConnection.this);
+            link.setSSLEngine(sslEngine);
+            addTodo(new ChangeRequest(socketChannel, ChangeRequest.ACCEPT, SelectionKey.OP_READ, link));
+        }
+
+        protected void addTodo(final ChangeRequest todo) {
+            synchronized (this) {
+                _workerTodos.add(todo);
+            }
+            _workerSelector.wakeup();
+        }
+
+        protected void wakeup() {
+            _workerSelector.wakeup();
+        }
+
+        @Override
+        public Boolean call() {
+            while (_isRunning) {
+                try {
+                    _workerSelector.select();
+                    _selectCount.incrementAndGet();
+                    _selectedKeyCount.addAndGet(processSelectedKeys(_workerSelector));
+
+                    final List<ChangeRequest> todos;
+                    synchronized (this) {
+                        todos = _workerTodos;
+                        _workerTodos = new ArrayList<ChangeRequest>();
+                    }
+                    if (!todos.isEmpty()) {
+                        processTodos(todos, _workerSelector);
+                    }
+                } catch (final ClosedSelectorException e) {
+                    break;
+                } catch (final IOException e) {
+                    s_logger.error("Selector " + getName() + " failed to select", e);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String getName() {
+            return _name + " Selector " + _index;
+        }
+
+        @Override
+        public int getRegisteredChannels() {
+            try {
+                return _workerSelector.keys().size();
+            } catch (final ClosedSelectorException e) {
+                return 0;
+            }
+        }
+
+        @Override
+        public int getSuspendedChannels() {
+            int count = 0;
+            for (final Link link : getLinks()) {
+                if (link.isReadPaused()) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public int getPendingTasks() {
+            int count = 0;
+            for (final Link link : getLinks()) {
+                count += link.getPendingTasks();
+            }
+            return count;
+        }
+
+        @Override
+        public int getPendingChangeRequests() {
+            synchronized (this) {
+                return _workerTodos.size();
+            }
+        }
+
+        @Override
+        public long getSelectCount() {
+            return _selectCount.get();
+        }
+
+        @Override
+        public long getSelectedKeyCount() {
+            return _selectedKeyCount.get();
+        }
+
+        @Override
+        public int getHandlerQueueSize() {
+            return _executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)_executor).getQueue().size() : 0;
+        }
+
+        protected List<Link> getLinks() {
+            final List<Link> links = new ArrayList<Link>();
+            try {
+                for (final SelectionKey key : _workerSelector.keys().toArray(new SelectionKey[0])) {
+                    final Object att = key.attachment();
+                    if (att instanceof Link) {
+                        links.add((Link)att);
+                    }
+                }
+            } catch (final ClosedSelectorException e) {
+                s_logger.debug("Selector " + getName() + " is closed");
+            }
+            return links;
+        }
     }
 
     public class ChangeRequest {
         public static final int REGISTER = 1;
         public static final int CHANGEOPS = 2;
         public static final int CLOSE = 3;
+        public static final int ACCEPT = 4;
 
         public Object key;
         public int type;
@@ -498,4 +918,14 @@ public abstract class NioConnection implements Callable<Boolean> {
             this.att = att;
         }
     }
+
+    protected static class ParkedTask {
+        final Link link;
+        final Callable<Boolean> task;
+
+        ParkedTask(final Link link, final Callable<Boolean> task) {
+            this.link = link;
+            this.task = task;
+        }
+    }
 }
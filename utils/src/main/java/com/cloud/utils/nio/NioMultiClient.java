@@ -0,0 +1,103 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.nio;
+
+import static com.cloud.utils.AutoCloseableUtil.closeAutoCloseable;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import org.apache.cloudstack.utils.security.SSLUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * NioMultiClient serves any number of outgoing links on a single selector.
+ * Unlike NioClient, which owns exactly one connection made at start up,
+ * links are opened with connect() whenever the user needs one, so a pool of
+ * links to several servers costs one selector thread.
+ */
+public class NioMultiClient extends NioConnection {
+    private static final Logger s_logger = Logger.getLogger(NioMultiClient.class);
+
+    protected static final int CONNECT_TIMEOUT = 60 * 1000;
+
+    public NioMultiClient(final String name, final int workers, final HandlerFactory factory) {
+        super(name, 0, workers, factory);
+    }
+
+    @Override
+    protected void init() throws IOException {
+        _selector = Selector.open();
+    }
+
+    /**
+     * Connects the link to its socket address and does the SSL handshake in
+     * the calling thread.  The link is then handed to the selector thread,
+     * the CONNECT task created for it signals that it can be used to send.
+     *
+     * @param link a link created for this connection, not yet connected.
+     */
+    public void connect(final Link link) throws IOException {
+        final InetSocketAddress addr = link.getSocketAddress();
+        final SocketChannel ch = SocketChannel.open();
+        try {
+            ch.configureBlocking(true);
+            ch.socket().setKeepAlive(true);
+            ch.socket().connect(addr, CONNECT_TIMEOUT);
+
+            final SSLContext sslContext = Link.initSSLContext(true);
+            final SSLEngine sslEngine = sslContext.createSSLEngine(addr.getHostString(), addr.getPort());
+            sslEngine.setUseClientMode(true);
+            sslEngine.setEnabledProtocols(SSLUtils.getSupportedProtocols(sslEngine.getEnabledProtocols()));
+            Link.doHandshake(ch, sslEngine, true);
+
+            ch.configureBlocking(false);
+            link.setSSLEngine(sslEngine);
+        } catch (final GeneralSecurityException e) {
+            closeAutoCloseable(ch, "failed channel to " + addr);
+            throw new IOException("Failed to initialise security", e);
+        } catch (final IOException e) {
+            closeAutoCloseable(ch, "failed channel to " + addr);
+            throw e;
+        }
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug(_name + " connected to " + addr);
+        }
+        addTodo(null, new ChangeRequest(ch, ChangeRequest.ACCEPT, SelectionKey.OP_READ, link));
+    }
+
+    @Override
+    protected void registerLink(final InetSocketAddress saddr, final Link link) {
+        // don't do anything.
+    }
+
+    @Override
+    protected void unregisterLink(final InetSocketAddress saddr) {
+        // don't do anything.
+    }
+}
@@ -25,6 +25,8 @@ import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.Map;
 import java.util.WeakHashMap;
 
 import org.apache.log4j.Logger;
@@ -35,12 +37,21 @@ public class NioServer extends NioConnection {
     protected InetSocketAddress _localAddr;
     private ServerSocketChannel _serverSocket;
 
-    protected WeakHashMap<InetSocketAddress, Link> _links;
+    protected Map<InetSocketAddress, Link> _links;
 
     public NioServer(final String name, final int port, final int workers, final HandlerFactory factory) {
-        super(name, port, workers, factory);
+        this(name, port, workers, factory, 1, 0, 0);
+    }
+
+    /**
+     * @see NioConnection#NioConnection(String, int, int, HandlerFactory, int, int, int)
+     */
+    public NioServer(final String name, final int port, final int workers, final HandlerFactory factory, final int selectors, final int maxQueuedTasks,
+            final int maxTasksPerLink) {
+        super(name, port, workers, factory, selectors, maxQueuedTasks, maxTasksPerLink);
         _localAddr = null;
-        _links = new WeakHashMap<InetSocketAddress, Link>(1024);
+        // Links are registered from every selector thread
+        _links = Collections.synchronizedMap(new WeakHashMap<InetSocketAddress, Link>(1024));
     }
 
     @Override
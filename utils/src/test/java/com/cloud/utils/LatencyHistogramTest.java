@@ -0,0 +1,77 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void empty() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(99), 0);
+        assertEquals(0, histogram.getAverage(), 0);
+        assertEquals("", histogram.toString());
+    }
+
+    @Test
+    public void buckets() {
+        final LatencyHistogram histogram = new LatencyHistogram(new long[] {10, 100, 1000});
+        histogram.record(-1);
+        histogram.record(10);
+        histogram.record(11);
+        histogram.record(1000);
+        histogram.record(5000);
+
+        assertArrayEquals(new long[] {2, 1, 1, 1}, histogram.getCounts());
+        assertEquals(5, histogram.getCount());
+        assertEquals(5000, histogram.getMax());
+        assertEquals((10 + 11 + 1000 + 5000) / 5.0, histogram.getAverage(), 0.001);
+        assertEquals("<=10:2 <=100:1 <=1000:1 >1000:1", histogram.toString());
+    }
+
+    @Test
+    public void percentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1, histogram.getPercentile(1));
+        assertEquals(50, histogram.getPercentile(50));
+        assertEquals(100, histogram.getPercentile(95));
+        assertEquals(100, histogram.getPercentile(100));
+
+        histogram.record(400000);
+        assertEquals(400000, histogram.getPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void boundsMustAscend() {
+        new LatencyHistogram(new long[] {10, 5});
+    }
+}
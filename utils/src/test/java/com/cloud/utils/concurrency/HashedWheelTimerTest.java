@@ -0,0 +1,142 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.concurrency;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.utils.concurrency.HashedWheelTimer.Timeout;
+
+public class HashedWheelTimerTest {
+    private static final Executor s_direct = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            command.run();
+        }
+    };
+
+    private HashedWheelTimer _timer;
+
+    @Before
+    public void setUp() {
+        _timer = new HashedWheelTimer("TestTimer", 10, TimeUnit.MILLISECONDS, 8, s_direct);
+    }
+
+    @After
+    public void tearDown() {
+        _timer.stop();
+    }
+
+    @Test
+    public void timeoutExpires() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final long start = System.nanoTime();
+        final Timeout timeout = _timer.schedule(new CountDown(latch), 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+        assertEquals(0, _timer.getPendingTimeouts());
+        assertEquals(1, _timer.getExpiredTimeouts());
+    }
+
+    @Test
+    public void timeoutLongerThanOneRound() throws Exception {
+        // 8 ticks of 10ms per round, so this goes around the wheel a few times
+        final CountDownLatch latch = new CountDownLatch(1);
+        final long start = System.nanoTime();
+        _timer.schedule(new CountDown(latch), 250, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(250));
+    }
+
+    @Test
+    public void cancelledTimeoutDoesNotRun() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        final Timeout cancelled = _timer.schedule(task, 30, TimeUnit.MILLISECONDS);
+        final CountDownLatch latch = new CountDownLatch(1);
+        _timer.schedule(new CountDown(latch), 100, TimeUnit.MILLISECONDS);
+
+        assertTrue(cancelled.cancel());
+        assertTrue(cancelled.isCancelled());
+        assertFalse(cancelled.cancel());
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+        assertEquals(0, _timer.getPendingTimeouts());
+    }
+
+    @Test
+    public void manyTimeouts() throws Exception {
+        final int count = 10000;
+        final CountDownLatch latch = new CountDownLatch(count / 2);
+        final Timeout[] timeouts = new Timeout[count];
+        for (int i = 0; i < count; i++) {
+            timeouts[i] = _timer.schedule(new CountDown(latch), 1000 + i % 200, TimeUnit.MILLISECONDS);
+        }
+        for (int i = 0; i < count; i += 2) {
+            timeouts[i].cancel();
+        }
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < count; i++) {
+            assertEquals(i % 2 == 0, timeouts[i].isCancelled());
+        }
+        assertEquals(count / 2, _timer.getExpiredTimeouts());
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void scheduleAfterStop() {
+        _timer.stop();
+        _timer.schedule(new CountDown(new CountDownLatch(1)), 10, TimeUnit.MILLISECONDS);
+    }
+
+    private static class CountDown implements Runnable {
+        private final CountDownLatch _latch;
+
+        CountDown(final CountDownLatch latch) {
+            _latch = latch;
+        }
+
+        @Override
+        public void run() {
+            _latch.countDown();
+        }
+    }
+}
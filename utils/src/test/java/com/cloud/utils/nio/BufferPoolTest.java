@@ -0,0 +1,105 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+    @Test
+    public void acquireRoundsUpToSizeClass() {
+        final BufferPool pool = new BufferPool();
+        final ByteBuffer buffer = pool.acquire(16 * 1024 + 40);
+        assertTrue(buffer.isDirect());
+        assertEquals(32 * 1024, buffer.capacity());
+        assertEquals(0, buffer.position());
+        assertEquals(buffer.capacity(), buffer.limit());
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    public void releasedBufferIsReused() {
+        final BufferPool pool = new BufferPool();
+        final ByteBuffer buffer = pool.acquire(2000);
+        buffer.putInt(42);
+        pool.release(buffer);
+
+        final ByteBuffer reused = pool.acquire(3000);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    public void oversizedRequestIsNotPooled() {
+        final BufferPool pool = new BufferPool();
+        final ByteBuffer buffer = pool.acquire(BufferPool.MAX_CLASS_SIZE + 1);
+        assertFalse(buffer.isDirect());
+        pool.release(buffer);
+
+        assertNotSame(buffer, pool.acquire(BufferPool.MAX_CLASS_SIZE + 1));
+        assertEquals(0, pool.getHits());
+        assertEquals(2, pool.getMisses());
+    }
+
+    @Test
+    public void foreignBufferIsDropped() {
+        final BufferPool pool = new BufferPool();
+        pool.release(ByteBuffer.allocateDirect(5000));
+        pool.acquire(5000);
+        assertEquals(0, pool.getHits());
+    }
+
+    @Test
+    public void sizeClassIsBounded() {
+        final BufferPool pool = new BufferPool();
+        final int max = BufferPool.MAX_BYTES_PER_CLASS / BufferPool.MAX_CLASS_SIZE;
+        final ByteBuffer[] buffers = new ByteBuffer[max + 1];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.acquire(BufferPool.MAX_CLASS_SIZE);
+        }
+        for (final ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        for (int i = 0; i < buffers.length; i++) {
+            pool.acquire(BufferPool.MAX_CLASS_SIZE);
+        }
+        assertEquals(max, pool.getHits());
+    }
+
+    @Test
+    public void wireCounters() {
+        final BufferPool pool = new BufferPool();
+        pool.recordRead(10);
+        pool.recordRead(5);
+        pool.recordWritten(7);
+        assertEquals(15, pool.getBytesRead());
+        assertEquals(7, pool.getBytesWritten());
+    }
+}
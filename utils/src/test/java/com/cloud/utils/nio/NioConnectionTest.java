@@ -0,0 +1,130 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NioConnectionTest {
+    // 5 handler threads at most, one task waiting
+    private static final int WORKERS = 1;
+    private static final int MAX_THREADS = 5 * WORKERS;
+
+    private NioServer _connection;
+    private Selector _selector;
+    private SocketChannel _channel;
+    private SelectionKey _key;
+    private Link _link;
+
+    private final CountDownLatch _release = new CountDownLatch(1);
+    private final List<Integer> _ran = Collections.synchronizedList(new ArrayList<Integer>());
+
+    @Before
+    public void setUp() throws Exception {
+        _connection = new NioServer("NioConnectionTest", 0, WORKERS, null, 1, 1, 0);
+        _selector = Selector.open();
+        _connection._selector = _selector;
+        _connection._todos = new ArrayList<NioConnection.ChangeRequest>();
+
+        _channel = SocketChannel.open();
+        _channel.configureBlocking(false);
+        _link = new Link(new InetSocketAddress("127.0.0.1", 8250), _connection);
+        _key = _channel.register(_selector, SelectionKey.OP_READ, _link);
+        _link.setKey(_key);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _release.countDown();
+        _connection.stop();
+        _channel.close();
+        _selector.close();
+    }
+
+    private Callable<Boolean> task(final int id, final CountDownLatch started) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                started.countDown();
+                _release.await(30, TimeUnit.SECONDS);
+                _ran.add(id);
+                return true;
+            }
+        };
+    }
+
+    @Test
+    public void fullQueueSuspendsReadsInsteadOfRunningOnTheSelector() throws Exception {
+        final CountDownLatch busy = new CountDownLatch(MAX_THREADS);
+        for (int i = 0; i < MAX_THREADS + 1; i++) {
+            assertTrue(_connection.submit(_key, _link, task(i, busy)));
+        }
+        assertTrue(busy.await(30, TimeUnit.SECONDS));
+        assertEquals(0, _connection.getParkedTaskCount());
+
+        final CountDownLatch parkedStarted = new CountDownLatch(2);
+        assertTrue(_connection.submit(_key, _link, task(100, parkedStarted)));
+        assertTrue(_connection.submit(_key, _link, task(101, parkedStarted)));
+        assertEquals(2, _connection.getParkedTaskCount());
+        assertEquals(2, _link.getParkedTasks());
+        assertTrue(_link.isReadPaused());
+        assertEquals(0, _key.interestOps() & SelectionKey.OP_READ);
+        // nothing ran on the submitting thread
+        assertTrue(_ran.isEmpty());
+
+        _release.countDown();
+        assertTrue(parkedStarted.await(30, TimeUnit.SECONDS));
+        final long deadline = System.currentTimeMillis() + 30000;
+        while (_link.isReadPaused() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(_link.isReadPaused());
+        assertEquals(0, _connection.getParkedTaskCount());
+        assertEquals(0, _link.getParkedTasks());
+
+        // the selector thread re-arms the read interest
+        _connection.processTodos();
+        assertEquals(SelectionKey.OP_READ, _key.interestOps());
+    }
+
+    @Test
+    public void changeOpsKeepsSuspendedReadsOff() throws Exception {
+        _link.setReadPaused(true);
+        _connection.change(SelectionKey.OP_READ | SelectionKey.OP_WRITE, _key, null);
+        _connection.processTodos();
+        assertEquals(SelectionKey.OP_WRITE, _key.interestOps());
+    }
+}
@@ -0,0 +1,34 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.testcase;
+
+import com.cloud.utils.nio.NioServer;
+
+/**
+ * Runs the NioTest scenario against a server with several selectors, a
+ * separate handshake pool and per link read suspension.
+ */
+public class NioMultiSelectorTest extends NioTest {
+
+    @Override
+    protected NioServer createServer() {
+        return new NioServer("NioTestServer", 7777, 5, new NioTestServer(), 4, 16, 1);
+    }
+}
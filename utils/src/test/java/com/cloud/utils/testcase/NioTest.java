@@ -81,7 +81,7 @@ public class NioTest extends TestCase {
         _testCount = 0;
         _completedCount = 0;
 
-        _server = new NioServer("NioTestServer", 7777, 5, new NioTestServer());
+        _server = createServer();
         try {
             _server.start();
         } catch (final NioConnectionException e) {
@@ -121,6 +121,10 @@ public class NioTest extends TestCase {
         stopServer();
     }
 
+    protected NioServer createServer() {
+        return new NioServer("NioTestServer", 7777, 5, new NioTestServer());
+    }
+
     protected void stopClient() {
         _client.stop();
         s_logger.info("Client stopped.");